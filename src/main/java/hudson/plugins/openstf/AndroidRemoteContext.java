@@ -12,6 +12,8 @@ import hudson.plugins.android_emulator.sdk.AndroidSdk;
 import hudson.plugins.android_emulator.sdk.Tool;
 import hudson.plugins.android_emulator.util.Utils;
 import hudson.plugins.android_emulator.sdk.cli.SdkCliCommand;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.NullStream;
 import io.swagger.client.model.DeviceListResponseDevices;
@@ -19,6 +21,8 @@ import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AndroidRemoteContext {
   /** Interval during which an emulator command should complete. */
@@ -28,12 +32,16 @@ public class AndroidRemoteContext {
   protected static final int PORT_RANGE_END = 9999;
 
   private int adbServerPort;
+  private boolean sharedAdbServer;
+  private boolean sharedAdbServerAcquired;
   protected String serial;
 
   protected PortAllocationManager portAllocator;
 
   private AndroidSdk sdk;
   private DeviceListResponseDevices stfDevice = null;
+  private final List<DeviceListResponseDevices> stfDevices =
+      new ArrayList<DeviceListResponseDevices>();
 
   protected AbstractBuild<?, ?> build;
   private BuildListener listener;
@@ -41,12 +49,27 @@ public class AndroidRemoteContext {
 
   public AndroidRemoteContext(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener,
       AndroidSdk sdk) throws InterruptedException, IOException {
+    this(build, launcher, listener, sdk, 0);
+  }
+
+  /**
+   * @param sharedAdbServerPort Port of the adb server shared by the builds on the agent,
+   *     or 0 to run a dedicated adb server on a port allocated for this build.
+   */
+  public AndroidRemoteContext(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener,
+      AndroidSdk sdk, int sharedAdbServerPort) throws InterruptedException, IOException {
 
     this.build = build;
     this.listener = listener;
     this.launcher = launcher;
     this.sdk = sdk;
 
+    if (sharedAdbServerPort > 0) {
+      adbServerPort = sharedAdbServerPort;
+      sharedAdbServer = true;
+      return;
+    }
+
     final Computer computer = Computer.currentComputer();
 
     // Use the Port Allocator plugin to reserve the ports we need
@@ -58,7 +81,21 @@ public class AndroidRemoteContext {
 
   public void cleanUp() {
     // Free up the TCP ports
-    portAllocator.free(adbServerPort);
+    if (portAllocator != null) {
+      portAllocator.free(adbServerPort);
+    }
+  }
+
+  public boolean isSharedAdbServer() {
+    return sharedAdbServer;
+  }
+
+  public boolean isSharedAdbServerAcquired() {
+    return sharedAdbServerAcquired;
+  }
+
+  public void setSharedAdbServerAcquired(boolean acquired) {
+    sharedAdbServerAcquired = acquired;
   }
 
   public int adbServerPort() {
@@ -77,6 +114,10 @@ public class AndroidRemoteContext {
     return launcher;
   }
 
+  public AbstractBuild<?, ?> build() {
+    return build;
+  }
+
   public AndroidSdk sdk() {
     return sdk;
   }
@@ -94,6 +135,17 @@ public class AndroidRemoteContext {
    * @throws InterruptedException
    */
   public ProcStarter getProcStarter() throws IOException, InterruptedException {
+    return launcher.launch().stdout(new NullStream()).stderr(logger()).envs(getAdbEnvironment());
+  }
+
+  /**
+   * Gets the environment for running the Android SDK tools against the adb server of this context.
+   *
+   * @return The build environment with the adb server port and SDK settings
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public EnvVars getAdbEnvironment() throws IOException, InterruptedException {
 
     final EnvVars buildEnvironment = build.getEnvironment(TaskListener.NULL);
     buildEnvironment.put("ANDROID_ADB_SERVER_PORT", Integer.toString(adbServerPort));
@@ -103,7 +155,7 @@ public class AndroidRemoteContext {
     if (launcher.isUnix()) {
       buildEnvironment.put("LD_LIBRARY_PATH", String.format("%s/tools/lib", sdk.getSdkRoot()));
     }
-    return launcher.launch().stdout(new NullStream()).stderr(logger()).envs(buildEnvironment);
+    return buildEnvironment;
   }
 
   /**
@@ -148,12 +200,77 @@ public class AndroidRemoteContext {
     return getProcStarter(Utils.getToolCommand(sdk, launcher.isUnix(), new SdkCliCommand( tool, args)));
   }
 
+  /**
+   * Runs a task on the node of this build, e.g. to talk to the adb server listening there.
+   *
+   * @param task The task to run.
+   * @return The result of the task
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public <T> T callOnNode(Callable<T, IOException> task) throws IOException, InterruptedException {
+    VirtualChannel channel = launcher.getChannel();
+    if (channel == null) {
+      throw new IOException("The node of this build is offline");
+    }
+    return channel.call(task);
+  }
+
+  /**
+   * Gets the primary device of this context, which {@link #serial()} refers to.
+   *
+   * @return The first device added, or null if none was added
+   */
   public DeviceListResponseDevices getDevice() {
     return stfDevice;
   }
 
-  public void setDevice(DeviceListResponseDevices device) {
-    stfDevice = device;
-    serial = device.remoteConnectUrl;
+  /**
+   * Gets all the devices of this context.
+   *
+   * @return The devices, the primary device first
+   */
+  public List<DeviceListResponseDevices> getDevices() {
+    return new ArrayList<DeviceListResponseDevices>(stfDevices);
+  }
+
+  /**
+   * Gets the adb serials of all the devices of this context.
+   *
+   * @return The serials, the primary device first
+   */
+  public List<String> serials() {
+    List<String> serials = new ArrayList<String>();
+    for (DeviceListResponseDevices device: stfDevices) {
+      serials.add(device.remoteConnectUrl);
+    }
+    return serials;
+  }
+
+  /**
+   * Adds a device to this context. The first device added becomes the primary device.
+   *
+   * @param device A device reserved for the build, with its remote connect URL
+   */
+  public void addDevice(DeviceListResponseDevices device) {
+    stfDevices.add(device);
+    if (stfDevice == null) {
+      stfDevice = device;
+      serial = device.remoteConnectUrl;
+    }
+  }
+
+  /**
+   * Removes a device from this context. If it was the primary device, the next device becomes
+   * the primary device.
+   *
+   * @param device The device to remove
+   */
+  public void removeDevice(DeviceListResponseDevices device) {
+    stfDevices.remove(device);
+    if (device == stfDevice) {
+      stfDevice = stfDevices.isEmpty() ? null : stfDevices.get(0);
+      serial = stfDevice == null ? null : stfDevice.remoteConnectUrl;
+    }
   }
 }
@@ -0,0 +1,77 @@
+package hudson.plugins.openstf;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Latest device preview request of each job configuration page of a session.
+ * A page only applies the response to its latest request, so the controller stops working on
+ * older requests of the page as soon as a newer one comes in.
+ */
+final class DevicePreviewRequests implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String SESSION_ATTRIBUTE = DevicePreviewRequests.class.getName();
+
+  /** Upper bound of pages tracked per session. */
+  private static final int MAX_PAGES = 16;
+
+  private final Map<String, Long> latestRequests =
+      new LinkedHashMap<String, Long>(MAX_PAGES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return size() > MAX_PAGES;
+        }
+      };
+
+  private DevicePreviewRequests() {
+  }
+
+  /**
+   * Gets the preview requests of a session.
+   * @param session HTTP session of the page.
+   * @return the preview requests of the session.
+   */
+  static DevicePreviewRequests get(HttpSession session) {
+    synchronized (session) {
+      DevicePreviewRequests requests =
+          (DevicePreviewRequests) session.getAttribute(SESSION_ATTRIBUTE);
+      if (requests == null) {
+        requests = new DevicePreviewRequests();
+        session.setAttribute(SESSION_ATTRIBUTE, requests);
+      }
+      return requests;
+    }
+  }
+
+  /**
+   * Records a request of a page.
+   * @param pageId ID of the page, chosen by the page.
+   * @param requestId ID of the request, which increases with every request of the page.
+   * @return false if the page already sent a newer request.
+   */
+  synchronized boolean begin(String pageId, long requestId) {
+    Long latest = latestRequests.get(pageId);
+    if (latest != null && latest > requestId) {
+      return false;
+    }
+    latestRequests.put(pageId, requestId);
+    return true;
+  }
+
+  /**
+   * Whether a request is still the latest of its page.
+   * @param pageId ID of the page.
+   * @param requestId ID of the request.
+   * @return false if the page sent a newer request since.
+   */
+  synchronized boolean isLatest(String pageId, long requestId) {
+    Long latest = latestRequests.get(pageId);
+    return latest == null || latest == requestId;
+  }
+}
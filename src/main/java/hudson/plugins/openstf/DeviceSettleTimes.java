@@ -0,0 +1,84 @@
+package hudson.plugins.openstf;
+
+import hudson.Extension;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Settle times measured by the readiness probes, aggregated per device model and phase.
+ * Shown on the global config page, to see where the time goes between reservation and build.
+ */
+@Extension
+public class DeviceSettleTimes {
+
+  /** From the reservation until remote connect is accepted. */
+  public static final String PHASE_REMOTE_CONNECT = "remoteConnect";
+
+  /** From remote connect until the remote connect URL is published. */
+  public static final String PHASE_REMOTE_CONNECT_URL = "remoteConnectUrl";
+
+  /** From adb connect until the device is authorized and booted. */
+  public static final String PHASE_AUTHENTICATION = "authentication";
+
+  private static final DeviceSettleTimes FALLBACK_INSTANCE = new DeviceSettleTimes();
+
+  private final Map<String, Stat> stats = new TreeMap<String, Stat>();
+
+  /**
+   * Gets the settle times registered as an extension.
+   * Falls back to a static instance when Jenkins is not running (e.g. unit tests).
+   * @return the settle times.
+   */
+  public static DeviceSettleTimes get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      List<DeviceSettleTimes> list = jenkins.getExtensionList(DeviceSettleTimes.class);
+      if (!list.isEmpty()) {
+        return list.get(0);
+      }
+    }
+    return FALLBACK_INSTANCE;
+  }
+
+  /**
+   * Records a measured settle time.
+   * @param model Device model.
+   * @param phase Phase name. (one of PHASE_*)
+   * @param millis Measured time in milliseconds.
+   */
+  public synchronized void record(String model, String phase, long millis) {
+    String key = String.valueOf(model) + " / " + phase;
+    Stat stat = stats.get(key);
+    if (stat == null) {
+      stat = new Stat();
+      stats.put(key, stat);
+    }
+    stat.count++;
+    stat.totalMillis += millis;
+    stat.maxMillis = Math.max(stat.maxMillis, millis);
+  }
+
+  /**
+   * Gets the summary lines, one per device model and phase.
+   * @return summary lines.
+   */
+  public synchronized List<String> getSummary() {
+    List<String> summary = new ArrayList<String>();
+    for (Map.Entry<String, Stat> entry: stats.entrySet()) {
+      Stat stat = entry.getValue();
+      summary.add(Messages.SETTLE_TIME_SUMMARY(entry.getKey(), stat.count,
+          stat.totalMillis / stat.count, stat.maxMillis));
+    }
+    return summary;
+  }
+
+  private static final class Stat {
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+  }
+}
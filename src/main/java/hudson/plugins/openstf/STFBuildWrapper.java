@@ -8,6 +8,9 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Proc;
 import hudson.Util;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
@@ -19,49 +22,85 @@ import hudson.plugins.android_emulator.SdkInstallationException;
 import hudson.plugins.android_emulator.SdkInstaller;
 import hudson.plugins.android_emulator.sdk.AndroidSdk;
 import hudson.plugins.android_emulator.sdk.Tool;
+import hudson.plugins.openstf.adb.AdbTasks;
+import hudson.plugins.openstf.adb.SharedAdbServer;
 import hudson.plugins.openstf.exception.ApiFailedException;
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.plugins.openstf.inventory.DeviceListView;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.logcat.LogcatRecorder;
+import hudson.plugins.openstf.reservation.DeviceAffinityIndex;
+import hudson.plugins.openstf.reservation.DeviceConnectHistory;
+import hudson.plugins.openstf.reservation.DeviceReleaseQueue;
+import hudson.plugins.openstf.reservation.DeviceReservationBroker;
+import hudson.plugins.openstf.reservation.WarmDevicePool;
+import hudson.plugins.openstf.util.STFApiClientPool;
 import hudson.plugins.openstf.util.Utils;
+import hudson.plugins.openstf.util.ValidatedConfigCache;
 import hudson.remoting.Callable;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
-import hudson.util.ArgumentListBuilder;
 import hudson.util.ComboBoxModel;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
-import hudson.util.NullStream;
+import io.swagger.client.ApiClient;
 import io.swagger.client.model.DeviceListResponseDevices;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public class STFBuildWrapper extends BuildWrapper {
+public class STFBuildWrapper extends BuildWrapper implements MatrixAggregatable {
 
   /** Timeout value for STF device connection to complete. */
   private static final int STF_DEVICE_CONNECT_COMPLETE_TIMEOUT_MS = 30 * 1000;
 
-  /** Interval during which killing a process should complete. */
-  private static final int KILL_PROCESS_TIMEOUT_MS = 10 * 1000;
+  /** Timeout value for the connected device to be authorized and booted. */
+  private static final int STF_DEVICE_READY_TIMEOUT_MS = 15 * 1000;
+
+  /** Interval during which logcat should finish by itself after the device is disconnected. */
+  private static final int LOGCAT_FINISH_TIMEOUT_MS = 3 * 1000;
+
+  /** Interval during which each phase of the teardown should complete. */
+  private static final int TEARDOWN_TIMEOUT_MS = 30 * 1000;
+
+  private static final Logger LOGGER = Logger.getLogger(STFBuildWrapper.class.getName());
+
+  /** Default upper bound of the devices kept warm between builds. */
+  private static final int DEFAULT_WARM_POOL_MAX_DEVICES = 4;
 
   private DescriptorImpl descriptor;
   private AndroidEmulator.DescriptorImpl emulatorDescriptor;
 
   public Map<String, String> deviceCondition;
   public final int deviceReleaseWaitTime;
+  public int devicePriority;
+  public boolean binaryLogcat;
+  public int minDeviceCount = 1;
+  public int maxDeviceCount = 1;
 
   /**
    * Allocates a STFBuildWrapper object.
@@ -74,6 +113,56 @@ public class STFBuildWrapper extends BuildWrapper {
     this.deviceReleaseWaitTime = deviceReleaseWaitTime;
   }
 
+  /**
+   * Sets the priority of the device reservation.
+   * When builds are waiting for devices, higher priority builds get a device first.
+   * @param devicePriority Priority of the device reservation.
+   */
+  @DataBoundSetter
+  public void setDevicePriority(int devicePriority) {
+    this.devicePriority = devicePriority;
+  }
+
+  /**
+   * Sets whether to capture logcat in the binary format.
+   * Binary logcat is decoded on the node and archived with an index, so that the build page can
+   * query it by time, pid, tid, priority and tag.
+   * @param binaryLogcat true to capture binary logcat.
+   */
+  @DataBoundSetter
+  public void setBinaryLogcat(boolean binaryLogcat) {
+    this.binaryLogcat = binaryLogcat;
+  }
+
+  /**
+   * Sets the number of devices the build needs.
+   * The build fails if fewer devices can be reserved and connected.
+   * @param minDeviceCount Minimum number of devices.
+   */
+  @DataBoundSetter
+  public void setMinDeviceCount(int minDeviceCount) {
+    this.minDeviceCount = minDeviceCount;
+  }
+
+  /**
+   * Sets the number of devices the build can use.
+   * Devices beyond the minimum count are reserved if they are free or get released shortly.
+   * @param maxDeviceCount Maximum number of devices.
+   */
+  @DataBoundSetter
+  public void setMaxDeviceCount(int maxDeviceCount) {
+    this.maxDeviceCount = maxDeviceCount;
+  }
+
+  public int getMinDeviceCount() {
+    // Jobs saved before this option existed have 0.
+    return Math.max(1, minDeviceCount);
+  }
+
+  public int getMaxDeviceCount() {
+    return Math.max(getMinDeviceCount(), maxDeviceCount);
+  }
+
   @Override
   public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener)
       throws IOException, InterruptedException {
@@ -108,13 +197,13 @@ public class STFBuildWrapper extends BuildWrapper {
       return null;
     }
 
-    Utils.setupSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken);
+    ApiClient stfApiClient = Utils.getSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken);
 
     // SDK location
     String androidHome = hudson.plugins.android_emulator.util.Utils
 				.getConfiguredAndroidHome();
     // Validate Setting values
-    String configError = isConfigValid(stfApiEndpoint, ignoreCertError, stfToken);
+    String configError = isConfigValid(stfApiClient, stfApiEndpoint, ignoreCertError, stfToken);
     if (configError != null) {
       log(logger, Messages.ERROR_MISCONFIGURED(configError));
       build.setResult(Result.NOT_BUILT);
@@ -148,12 +237,44 @@ public class STFBuildWrapper extends BuildWrapper {
             ? androidSdk.getSdkRoot() : hudson.plugins.android_emulator.Messages.USING_PATH();
     log(logger, hudson.plugins.android_emulator.Messages.USING_SDK(displayHome));
 
-    STFConfig stfConfig = new STFConfig(useSpecificKey, adbPublicKey, adbPrivateKey,
-        deviceFilter, deviceReleaseWaitTime);
+    STFConfig stfConfig = new STFConfig(stfApiClient, useSpecificKey, adbPublicKey,
+        adbPrivateKey, deviceFilter, deviceReleaseWaitTime, devicePriority);
+    stfConfig.setPreferredSerials(
+        DeviceAffinityIndex.get().getAffineSerials(build.getParent().getFullName()));
+    // Use the devices the matrix build reserved for this configuration, if any.
+    List<DeviceListResponseDevices> preassignedDevices =
+        STFMatrixDeviceAssignmentAction.claim(build);
+    if (preassignedDevices != null) {
+      log(logger, Messages.USING_MATRIX_DEVICES(preassignedDevices.size()));
+      stfConfig.setPreassignedDevices(preassignedDevices);
+    } else if (descriptor.warmPoolIdleTime > 0) {
+      // Use the devices a previous build on this node left reserved and connected, if any.
+      List<DeviceListResponseDevices> warmDevices = WarmDevicePool.get().take(stfApiClient,
+          build.getBuiltOnStr(), getSharedAdbServerPort(), DeviceFilter.compile(deviceFilter),
+          getMinDeviceCount(), getMaxDeviceCount(), build.getExternalizableId());
+      if (!warmDevices.isEmpty()) {
+        log(logger, Messages.USING_WARM_DEVICES(warmDevices.size()));
+        stfConfig.setWarmDevices(warmDevices);
+      }
+    }
 
     return doSetup(build, launcher, listener, androidSdk, stfConfig);
   }
 
+  /**
+   * Reserves the devices of all the configurations of a matrix build before they start.
+   * This method is called by Jenkins.
+   * @return the aggregator, or null if the devices are reserved by each configuration.
+   */
+  @Override
+  public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher,
+      BuildListener listener) {
+    if (!STFMatrixDeviceAggregator.isApplicable(build.getParent())) {
+      return null;
+    }
+    return new STFMatrixDeviceAggregator(build, launcher, listener, this);
+  }
+
   private Environment doSetup(final AbstractBuild<?, ?> build, final Launcher launcher,
         final BuildListener listener, final AndroidSdk androidSdk, final STFConfig stfConfig)
         throws IOException, InterruptedException {
@@ -161,23 +282,35 @@ public class STFBuildWrapper extends BuildWrapper {
     final PrintStream logger = listener.getLogger();
 
     final AndroidRemoteContext remote =
-        new AndroidRemoteContext(build, launcher, listener, androidSdk);
+        new AndroidRemoteContext(build, launcher, listener, androidSdk, getSharedAdbServerPort());
 
+    final List<STFConfig.ReservedDevice> reservedDevices;
     try {
-      String reservedDeviceId = stfConfig.reserve();
-      DeviceListResponseDevices device = Utils.getSTFDeviceById(reservedDeviceId);
-      remote.setDevice(device);
-      log(logger, Messages.SHOW_RESERVED_DEVICE_INFO(device.name, device.serial,
-          device.sdk, device.version));
-      build.addAction(new STFReservedDeviceAction(descriptor.stfApiEndpoint, Utils.convertDeviceToMap(device)));
+      long reserveStart = System.currentTimeMillis();
+      reservedDevices = stfConfig.reserve(getMinDeviceCount(), getMaxDeviceCount());
+      long reserveSeconds = (System.currentTimeMillis() - reserveStart) / 1000;
+      int queueLength = DeviceReservationBroker.get().getQueueLength();
+      if (reservedDevices.size() == 1) {
+        log(logger, Messages.RESERVED_DEVICE_AFTER(reserveSeconds, queueLength));
+      } else {
+        log(logger, Messages.RESERVED_DEVICES_AFTER(reservedDevices.size(), reserveSeconds,
+            queueLength));
+      }
     } catch (STFException ex) {
       log(logger, ex.getMessage());
       build.setResult(Result.NOT_BUILT);
-      if (remote.getDevice() != null) {
-        cleanUp(stfConfig, remote);
-      }
+      remote.cleanUp();
       return null;
     }
+    for (STFConfig.ReservedDevice reservedDevice: reservedDevices) {
+      DeviceListResponseDevices device = reservedDevice.getDevice();
+      DeviceReleaseQueue.get().lease(stfConfig.getApiClient(), device.serial,
+          build.getExternalizableId());
+      remote.addDevice(device);
+      log(logger, Messages.SHOW_RESERVED_DEVICE_INFO(device.name, device.serial,
+          device.sdk, device.version));
+      build.addAction(new STFReservedDeviceAction(descriptor.stfApiEndpoint, Utils.convertDeviceToMap(device)));
+    }
 
     if (stfConfig.getUseSpecificKey()) {
       try {
@@ -196,15 +329,84 @@ public class STFBuildWrapper extends BuildWrapper {
 
     // We manually start the adb-server so that later commands will not have to start it,
     // allowing them to complete faster.
-    Proc adbStart =
-        remote.getToolProcStarter(Tool.ADB, "start-server").stdout(logger).stderr(logger).start();
-    adbStart.joinWithTimeout(5L, TimeUnit.SECONDS, listener);
-    Proc adbStart2 =
-        remote.getToolProcStarter(Tool.ADB, "start-server").stdout(logger).stderr(logger).start();
-    adbStart2.joinWithTimeout(5L, TimeUnit.SECONDS, listener);
-
-    // Start dumping logcat to temporary file
-    final File artifactsDir = build.getArtifactsDir();
+    if (remote.isSharedAdbServer()) {
+      try {
+        remote.setSharedAdbServerAcquired(true);
+        List<String> serials = new ArrayList<String>();
+        for (STFConfig.ReservedDevice reservedDevice: reservedDevices) {
+          // A warm device is still connected, and the build takes over the reference the
+          // previous build left to the pool.
+          if (!reservedDevice.isWarm()) {
+            serials.add(reservedDevice.getDevice().remoteConnectUrl);
+          }
+        }
+        boolean started = remote.callOnNode(AdbTasks.acquireShared(remote.adbServerPort(),
+            serials, remote.getToolCommand(Tool.ADB, "start-server").toList(),
+            remote.getAdbEnvironment()));
+        log(logger, started
+            ? Messages.STARTED_SHARED_ADB_SERVER(remote.adbServerPort())
+            : Messages.USING_SHARED_ADB_SERVER(remote.adbServerPort()));
+      } catch (IOException ex) {
+        log(logger, Messages.CANNOT_START_SHARED_ADB_SERVER(remote.adbServerPort(),
+            ex.getMessage()));
+        build.setResult(Result.FAILURE);
+        cleanUp(stfConfig, remote);
+        return null;
+      }
+    } else {
+      Proc adbStart =
+          remote.getToolProcStarter(Tool.ADB, "start-server").stdout(logger).stderr(logger).start();
+      adbStart.joinWithTimeout(5L, TimeUnit.SECONDS, listener);
+      Proc adbStart2 =
+          remote.getToolProcStarter(Tool.ADB, "start-server").stdout(logger).stderr(logger).start();
+      adbStart2.joinWithTimeout(5L, TimeUnit.SECONDS, listener);
+    }
+
+    // Make sure we're still connected. Devices adb failed to connect won't come online, so they
+    // are dropped without waiting for them.
+    List<String> connectingSerials = new ArrayList<String>(remote.serials());
+    connectingSerials.removeAll(connect(remote));
+
+    log(logger, Messages.WAITING_FOR_STF_DEVICE_CONNECT_COMPLETION());
+    int connectTimeout = STF_DEVICE_CONNECT_COMPLETE_TIMEOUT_MS;
+    List<String> onlineSerials;
+    try {
+      onlineSerials = waitForSTFDeviceConnectCompletion(connectTimeout, remote, connectingSerials);
+    } catch (InterruptedException ex) {
+      // The build was aborted, which says nothing about the devices: keep their history as is.
+      cleanUp(stfConfig, remote);
+      throw ex;
+    }
+    DeviceConnectHistory connectHistory = DeviceConnectHistory.get();
+    for (STFConfig.ReservedDevice reservedDevice: reservedDevices) {
+      DeviceListResponseDevices device = reservedDevice.getDevice();
+      if (!onlineSerials.contains(device.remoteConnectUrl)) {
+        connectHistory.recordFailure(device.serial);
+      }
+    }
+
+    if (onlineSerials.size() < getMinDeviceCount()) {
+      log(logger, Messages.CONNECTING_STF_DEVICE_FAILED());
+      build.setResult(Result.FAILURE);
+      cleanUp(stfConfig, remote);
+      return null;
+    }
+
+    // Go on without the devices which did not come online, as long as enough did. If the primary
+    // device is one of them, the next device which came online becomes the primary device.
+    for (STFConfig.ReservedDevice reservedDevice: reservedDevices) {
+      DeviceListResponseDevices device = reservedDevice.getDevice();
+      if (!onlineSerials.contains(device.remoteConnectUrl)) {
+        log(logger, Messages.DROPPING_UNCONNECTED_DEVICE(device.name, device.serial));
+        remote.removeDevice(device);
+        if (!releaseDevice(stfConfig, remote, device)) {
+          log(logger, Messages.DEVICE_RELEASE_QUEUED(device.serial));
+        }
+      }
+    }
+
+    // Start dumping logcat of the primary device to temporary file, and archiving it while the
+    // build runs
     final FilePath workspace = build.getWorkspace();
     if (workspace == null) {
       log(logger, Messages.CANNOT_GET_WORKSPACE_ON_THIS_BUILD());
@@ -213,33 +415,68 @@ public class STFBuildWrapper extends BuildWrapper {
       return null;
     }
     final FilePath logcatFile = workspace.createTextTempFile("logcat_", ".log", "", false);
-    final OutputStream logcatStream = logcatFile.write();
-    final String logcatArgs = String.format("-s %s logcat -v time", remote.serial());
-    final Proc logWriter = remote.getToolProcStarter(Tool.ADB, logcatArgs)
-        .stdout(logcatStream).stderr(new NullStream()).start();
-
-    // Make sure we're still connected
-    connect(remote);
-
-    log(logger, Messages.WAITING_FOR_STF_DEVICE_CONNECT_COMPLETION());
-    int connectTimeout = STF_DEVICE_CONNECT_COMPLETE_TIMEOUT_MS;
-    boolean connectSucceeded = waitForSTFDeviceConnectCompletion(connectTimeout, remote);
-
-    if (!connectSucceeded) {
-      log(logger, Messages.CONNECTING_STF_DEVICE_FAILED());
+    final LogcatRecorder logcatRecorder =
+        new LogcatRecorder(remote, logcatFile, build.getArtifactsDir(), binaryLogcat);
+    try {
+      logcatRecorder.start();
+    } catch (IOException ex) {
+      log(logger, Messages.CANNOT_START_LOGCAT(ex.getMessage()));
+      logcatFile.delete();
       build.setResult(Result.FAILURE);
       cleanUp(stfConfig, remote);
       return null;
     }
+    STFLiveLogcatAction.register(build, logcatRecorder);
+
+    // Wait for Authentication, probing all the devices at once.
+    Map<String, Long> readySettleMillis;
+    try {
+      readySettleMillis = waitForSTFDevicesReady(remote);
+    } catch (InterruptedException ex) {
+      cleanUp(stfConfig, remote, logcatRecorder);
+      throw ex;
+    }
+    DeviceSettleTimes settleTimes = DeviceSettleTimes.get();
+    for (STFConfig.ReservedDevice reservedDevice: reservedDevices) {
+      DeviceListResponseDevices device = reservedDevice.getDevice();
+      if (!onlineSerials.contains(device.remoteConnectUrl)) {
+        continue;
+      }
+
+      Long readyMillis = readySettleMillis.get(device.remoteConnectUrl);
+      long authenticationSettleMillis = readyMillis == null ? -1 : readyMillis;
+      if (authenticationSettleMillis < 0) {
+        log(logger, Messages.STF_DEVICE_NOT_READY_IN_TIME());
+        connectHistory.recordFailure(device.serial);
+      }
+      if (reservedDevice.isWarm()) {
+        continue;
+      }
+      if (authenticationSettleMillis >= 0) {
+        connectHistory.recordConnect(device.serial, reservedDevice.getRemoteConnectSettleMillis()
+            + reservedDevice.getRemoteConnectUrlSettleMillis() + authenticationSettleMillis);
+      }
 
-    // Wait for Authentication
-    Thread.sleep(5 * 1000);
+      String model = device.model;
+      settleTimes.record(model, DeviceSettleTimes.PHASE_REMOTE_CONNECT,
+          reservedDevice.getRemoteConnectSettleMillis());
+      settleTimes.record(model, DeviceSettleTimes.PHASE_REMOTE_CONNECT_URL,
+          reservedDevice.getRemoteConnectUrlSettleMillis());
+      if (authenticationSettleMillis >= 0) {
+        settleTimes.record(model, DeviceSettleTimes.PHASE_AUTHENTICATION,
+            authenticationSettleMillis);
+      }
+      log(logger, Messages.SHOW_SETTLE_TIMES(device.serial,
+          reservedDevice.getRemoteConnectSettleMillis(),
+          reservedDevice.getRemoteConnectUrlSettleMillis(), authenticationSettleMillis));
+    }
 
     return new Environment() {
       @Override
       public void buildEnvVars(Map<String, String> env) {
         env.put("ANDROID_SERIAL", remote.serial());
         env.put("ANDROID_AVD_DEVICE", remote.serial());
+        env.put("ANDROID_SERIALS", Util.join(remote.serials(), ","));
         env.put("ANDROID_ADB_SERVER_PORT", Integer.toString(remote.adbServerPort()));
         env.put("ANDROID_TMP_LOGCAT_FILE", logcatFile.getRemote());
         if (androidSdk.hasKnownRoot()) {
@@ -257,142 +494,296 @@ public class STFBuildWrapper extends BuildWrapper {
       public boolean tearDown(AbstractBuild build, BuildListener listener)
           throws IOException, InterruptedException {
 
-        cleanUp(stfConfig, remote, logWriter, logcatFile, logcatStream, artifactsDir);
+        DeviceAffinityIndex affinityIndex = DeviceAffinityIndex.get();
+        for (DeviceListResponseDevices device: remote.getDevices()) {
+          affinityIndex.recordRelease(build.getParent().getFullName(), device.serial);
+        }
+
+        Result result = build.getResult();
+        // Devices of a failed build may be in a bad state, so the next build gets fresh ones.
+        boolean keepWarm = descriptor.warmPoolIdleTime > 0
+            && (result == null || result.isBetterOrEqualTo(Result.UNSTABLE));
+        cleanUp(stfConfig, remote, logcatRecorder, keepWarm);
         return true;
       }
     };
   }
 
-  private static void connect(AndroidRemoteContext remote)
+  /**
+   * Connects the devices of the build to adb, all at once.
+   * @return the serials adb failed to connect.
+   */
+  private static Set<String> connect(AndroidRemoteContext remote)
       throws IOException, InterruptedException {
+    Map<String, String> failures =
+        remote.callOnNode(AdbTasks.connect(remote.adbServerPort(), remote.serials()));
+    for (String message: failures.values()) {
+      log(remote.logger(), message);
+    }
+    return failures.keySet();
+  }
 
-    ArgumentListBuilder adbConnectCmd = remote
-        .getToolCommand(Tool.ADB, "connect " + remote.serial());
-    remote.getProcStarter(adbConnectCmd).start()
-        .joinWithTimeout(5L, TimeUnit.SECONDS, remote.launcher().getListener());
+  /**
+   * Waits until the connected devices accept shell commands and have finished booting.
+   * adb only allows shell commands after the device authorized our key.
+   * @return time each device took in milliseconds, by serial, or -1 if it did not become ready
+   *     in time.
+   */
+  private static Map<String, Long> waitForSTFDevicesReady(AndroidRemoteContext remote)
+      throws InterruptedException {
+    try {
+      return remote.callOnNode(AdbTasks.waitForBootCompleted(remote.adbServerPort(),
+          remote.serials(), STF_DEVICE_READY_TIMEOUT_MS));
+    } catch (InterruptedIOException ex) {
+      throw (InterruptedException) new InterruptedException(ex.getMessage()).initCause(ex);
+    } catch (IOException ex) {
+      ex.printStackTrace(remote.logger());
+      return Collections.emptyMap();
+    }
   }
 
-  private static void disconnect(AndroidRemoteContext remote)
-      throws IOException, InterruptedException {
-    final String args = "disconnect " + remote.serial();
-    ArgumentListBuilder adbDisconnectCmd = remote.getToolCommand(Tool.ADB, args);
-    remote.getProcStarter(adbDisconnectCmd).start()
-        .joinWithTimeout(5L, TimeUnit.SECONDS, remote.launcher().getListener());
+  private static void disconnect(AndroidRemoteContext remote, String serial)
+      throws InterruptedException {
+    try {
+      remote.callOnNode(AdbTasks.disconnect(remote.adbServerPort(), serial));
+    } catch (IOException ex) {
+      // The adb server is not running, so the device is not connected either.
+    }
+  }
+
+  /**
+   * Releases a device of this build from the shared adb server.
+   * The device is disconnected only if no other build on the agent uses it,
+   * and the adb server keeps running for the next builds.
+   */
+  private static void releaseSharedAdbServer(AndroidRemoteContext remote, String serial)
+      throws InterruptedException {
+    try {
+      remote.callOnNode(AdbTasks.releaseShared(remote.adbServerPort(), serial));
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Failed to release " + serial + " from the shared adb server",
+          ex);
+    }
+  }
+
+  /**
+   * Disconnects a device from adb and releases it on STF.
+   * Only logs through {@link #LOGGER}, since it may go on after the build log was closed.
+   * @return false if STF failed to release the device, and the release was queued.
+   */
+  private static boolean releaseDevice(STFConfig stfConfig, AndroidRemoteContext remote,
+      DeviceListResponseDevices device) throws InterruptedException {
+    if (remote.isSharedAdbServer()) {
+      if (remote.isSharedAdbServerAcquired()) {
+        releaseSharedAdbServer(remote, device.remoteConnectUrl);
+      }
+    } else {
+      disconnect(remote, device.remoteConnectUrl);
+    }
+
+    try {
+      stfConfig.release(device);
+      return true;
+    } catch (STFException ex) {
+      LOGGER.log(Level.WARNING, "Failed to release STF device " + device.serial, ex);
+      DeviceReleaseQueue.get().retryLater(stfConfig.getApiClient(), device.serial);
+      return false;
+    }
   }
 
   private void cleanUp(STFConfig stfConfig, AndroidRemoteContext remote)
     throws IOException, InterruptedException {
-    cleanUp(stfConfig, remote, null, null, null, null);
+    cleanUp(stfConfig, remote, null, false);
   }
 
-  private void cleanUp(STFConfig stfConfig, AndroidRemoteContext remote, Proc logcatProcess,
-      FilePath logcatFile, OutputStream logcatStream, File artifactsDir)
-      throws IOException, InterruptedException {
+  private void cleanUp(STFConfig stfConfig, AndroidRemoteContext remote,
+      LogcatRecorder logcatRecorder) throws IOException, InterruptedException {
+    cleanUp(stfConfig, remote, logcatRecorder, false);
+  }
 
-    // Disconnect STF device from adb
-    disconnect(remote);
+  /**
+   * Tears down the build.
+   * The devices are given back to STF first, so that other builds can use them right away.
+   * Archiving logcat and stopping adb then run in parallel. If they take too long, they go on
+   * in the background and the build finishes without waiting for them. The build itself is only
+   * changed here, on the build thread.
+   * @param keepWarm true to keep the devices reserved and connected for the next build, as long
+   *     as the warm device pool has room.
+   */
+  private void cleanUp(final STFConfig stfConfig, final AndroidRemoteContext remote,
+      final LogcatRecorder logcatRecorder, boolean keepWarm)
+      throws IOException, InterruptedException {
 
-    try {
-      stfConfig.release(remote.getDevice());
-    } catch (STFException ex) {
-      log(remote.logger(), ex.getMessage());
-    }
-
-    // Clean up logging process
-    if (logcatProcess != null) {
-      if (logcatProcess.isAlive()) {
-        // This should have stopped when the emulator was,
-        // but if not attempt to kill the process manually.
-        // First, give it a final chance to finish cleanly.
-        Thread.sleep(3 * 1000);
-        if (logcatProcess.isAlive()) {
-          hudson.plugins.android_emulator.util.Utils
-              .killProcess(logcatProcess, KILL_PROCESS_TIMEOUT_MS);
-        }
+    // Disconnect the STF devices from adb, and release them
+    Map<String, Future<Boolean>> releases = new LinkedHashMap<String, Future<Boolean>>();
+    for (final DeviceListResponseDevices device: remote.getDevices()) {
+      if (keepWarm && WarmDevicePool.get().park(stfConfig.getApiClient(),
+          remote.build().getBuiltOnStr(), remote.isSharedAdbServer() ? remote.adbServerPort() : 0,
+          device, descriptor.warmPoolIdleTime * 1000L, descriptor.warmPoolMaxDevices)) {
+        log(remote.logger(), Messages.KEEPING_DEVICE_WARM(device.name, device.serial,
+            descriptor.warmPoolIdleTime));
+        continue;
       }
-      try {
-        logcatStream.close();
-      } catch (Exception ex) {
-        // ignore
+      releases.put(device.serial, Computer.threadPoolForRemoting.submit(
+          new java.util.concurrent.Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+              return releaseDevice(stfConfig, remote, device);
+            }
+          }));
+    }
+    awaitAll(new ArrayList<Future<?>>(releases.values()), TEARDOWN_TIMEOUT_MS);
+    for (Map.Entry<String, Future<Boolean>> release: releases.entrySet()) {
+      if (isFalse(release.getValue())) {
+        log(remote.logger(), Messages.DEVICE_RELEASE_QUEUED(release.getKey()));
       }
+    }
+    remote.setSharedAdbServerAcquired(false);
+
+    List<Future<?>> steps = new ArrayList<Future<?>>();
+
+    // Stop logging. The log has been archived while the build ran, except for the last chunk.
+    // The action is added right away, as the last chunk may only be archived after the build.
+    if (logcatRecorder != null) {
+      log(remote.logger(), hudson.plugins.android_emulator.Messages.ARCHIVING_LOG());
+      STFLiveLogcatAction.unregister(remote.build());
+      remote.build().addAction(new STFLogcatAction());
+      steps.add(Computer.threadPoolForRemoting.submit(new java.util.concurrent.Callable<Void>() {
+        @Override
+        public Void call() throws InterruptedException {
+          finishLogcat(remote, logcatRecorder);
+          return null;
+        }
+      }));
+    }
 
-      // Archive the logs
-      if (logcatFile.length() != 0) {
-        log(remote.logger(), hudson.plugins.android_emulator.Messages.ARCHIVING_LOG());
-        logcatFile.copyTo(new FilePath(artifactsDir).child("logcat.txt"));
+    steps.add(Computer.threadPoolForRemoting.submit(new java.util.concurrent.Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        if (!remote.isSharedAdbServer()) {
+          try {
+            remote.callOnNode(AdbTasks.killServer(remote.adbServerPort()));
+          } catch (IOException ex) {
+            // The adb server is not running.
+          }
+        }
+        // The port may only be reused once the adb server stopped.
+        remote.cleanUp();
+        return null;
       }
-      logcatFile.delete();
+    }));
+
+    if (!awaitAll(steps, TEARDOWN_TIMEOUT_MS)) {
+      log(remote.logger(), Messages.TEARDOWN_CONTINUES_IN_BACKGROUND(TEARDOWN_TIMEOUT_MS / 1000));
+    }
+  }
+
+  /**
+   * Archives the last chunk of logcat.
+   * Only logs through {@link #LOGGER}, since it may go on after the build log was closed.
+   */
+  private static void finishLogcat(AndroidRemoteContext remote, LogcatRecorder logcatRecorder)
+      throws InterruptedException {
+    try {
+      logcatRecorder.finish(LOGCAT_FINISH_TIMEOUT_MS);
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Failed to archive the logcat of " + remote.build(), ex);
     }
+  }
 
-    ArgumentListBuilder adbKillCmd = remote.getToolCommand(Tool.ADB, "kill-server");
-    remote.getProcStarter(adbKillCmd).join();
+  /**
+   * Waits for tasks until the timeout elapses.
+   * @return true if all the tasks completed.
+   */
+  private static boolean awaitAll(List<Future<?>> futures, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    boolean completed = true;
+    for (Future<?> future: futures) {
+      try {
+        future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (ExecutionException ex) {
+        LOGGER.log(Level.WARNING, "STF build teardown step failed", ex.getCause());
+      } catch (TimeoutException ex) {
+        completed = false;
+      }
+    }
+    return completed;
+  }
 
-    remote.cleanUp();
+  /**
+   * Whether a task completed with false.
+   */
+  private static boolean isFalse(Future<Boolean> future) throws InterruptedException {
+    if (!future.isDone() || future.isCancelled()) {
+      return false;
+    }
+    try {
+      return Boolean.FALSE.equals(future.get());
+    } catch (ExecutionException ex) {
+      return false;
+    }
   }
 
-  private String isConfigValid(String stfApiEndpoint, boolean ignoreCertError, String stfToken) {
+  private static String isConfigValid(ApiClient stfApiClient, String stfApiEndpoint,
+      boolean ignoreCertError, String stfToken) {
 
     if (stfApiEndpoint == null || stfApiEndpoint.equals("")) {
       return Messages.API_ENDPOINT_URL_NOT_SET();
     }
-    FormValidation result = descriptor.doCheckSTFApiEndpoint(stfApiEndpoint, ignoreCertError);
-    if (FormValidation.Kind.ERROR == result.kind) {
-      return result.getMessage();
+    if (!(stfApiEndpoint.startsWith("http://") || stfApiEndpoint.startsWith("https://"))) {
+      return Messages.MALFORMED_STF_API_ENDPOINT_URL();
     }
-    result = descriptor.doCheckSTFToken(stfApiEndpoint, ignoreCertError, stfToken);
-    if (FormValidation.Kind.ERROR == result.kind) {
-      return result.getMessage();
+    if (stfToken == null || stfToken.equals("")) {
+      return Messages.STF_TOKEN_REQUIRED();
+    }
+    if (ValidatedConfigCache.isValid(stfApiEndpoint, ignoreCertError, stfToken)) {
+      return null;
     }
 
+    // A single request checks both the endpoint and the token. If STF can't be reached, the API
+    // calls of the build report it.
+    try {
+      if (!Utils.verifySTFToken(stfApiClient)) {
+        return Messages.STF_TOKEN_NOT_VALID();
+      }
+    } catch (ApiFailedException ex) {
+      return null;
+    }
+    ValidatedConfigCache.markValid(stfApiEndpoint, ignoreCertError, stfToken);
     return null;
   }
 
-  private boolean waitForSTFDeviceConnectCompletion(final int timeout,
-      AndroidRemoteContext remote) {
+  /**
+   * Gets the port of the shared adb server the build uses.
+   * @return the port, or 0 if the build runs a dedicated adb server.
+   */
+  private int getSharedAdbServerPort() {
+    return descriptor.shareAdbServer ? descriptor.sharedAdbServerPort : 0;
+  }
 
-    long start = System.currentTimeMillis();
-    int sleep = timeout / (int) (Math.sqrt(timeout / (double) 1000) * 2);
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    ArgumentListBuilder adbDevicesCmd = remote.getToolCommand(Tool.ADB, "devices");
-    boolean shownUnauthorizedOnce = false;
+  /**
+   * Waits until the given devices of the build turn online in adb, all at once.
+   * @return the serials of the devices which turned online.
+   * @throws InterruptedException if the build was aborted while waiting.
+   */
+  private List<String> waitForSTFDeviceConnectCompletion(final int timeout,
+      AndroidRemoteContext remote, List<String> serials) throws InterruptedException {
 
     try {
-      while (System.currentTimeMillis() < start + timeout) {
-        remote.getProcStarter(adbDevicesCmd).stdout(out).stderr(out).start()
-            .joinWithTimeout(5L, TimeUnit.SECONDS, remote.launcher().getListener());
-
-        int unauthorized = 0;
-
-        String devicesResult = out.toString(Utils.getDefaultCharset().displayName());
-        String lineSeparator =
-            Computer.currentComputer().getSystemProperties().get("line.separator").toString();
-        for (String line: devicesResult.split(lineSeparator)) {
-          if (line != null) {
-            if (line.contains(remote.serial()) && line.contains("device")) {
-              return true;
-            }
-
-            if (line.contains(remote.serial()) && line.contains("unauthorized")) {
-                unauthorized++;
-
-                //Show without rising exception, that we can't authorize device
-                if (unauthorized == 4 && !shownUnauthorizedOnce) {
-                    log(remote.logger(), Messages.DEVICE_UNAUTHORIZED());
-                    shownUnauthorizedOnce=true;
-                }
-            }
-          }
-        }
-
-        Thread.sleep(sleep);
-      }
+      return remote.callOnNode(AdbTasks.waitForDevices(remote.adbServerPort(), serials,
+          timeout, remote.listener()));
+    } catch (InterruptedIOException ex) {
+      log(remote.logger(), Messages.INTERRUPTED_DURING_STF_DEVICE_CONNECT_COMPLETION());
+      throw (InterruptedException) new InterruptedException(ex.getMessage()).initCause(ex);
     } catch (InterruptedException ex) {
       log(remote.logger(), Messages.INTERRUPTED_DURING_STF_DEVICE_CONNECT_COMPLETION());
+      throw ex;
     } catch (IOException ex) {
       log(remote.logger(), Messages.COULD_NOT_CHECK_STF_DEVICE_CONNECT_COMPLETION());
       ex.printStackTrace(remote.logger());
     }
-    return false;
+    return Collections.<String>emptyList();
   }
 
   @Extension
@@ -404,6 +795,11 @@ public class STFBuildWrapper extends BuildWrapper {
     public String adbPublicKey;
     public String adbPrivateKey;
     public boolean ignoreCertError = false;
+    public int deviceListCacheTtl = STFDeviceInventory.DEFAULT_CACHE_TTL_SEC;
+    public boolean shareAdbServer = false;
+    public int sharedAdbServerPort = SharedAdbServer.DEFAULT_PORT;
+    public int warmPoolIdleTime = 0;
+    public int warmPoolMaxDevices = DEFAULT_WARM_POOL_MAX_DEVICES;
 
     public DescriptorImpl() {
       super(STFBuildWrapper.class);
@@ -428,7 +824,22 @@ public class STFBuildWrapper extends BuildWrapper {
         adbPrivateKey = null;
       }
       ignoreCertError = json.optBoolean("ignoreCertError", false);
+      deviceListCacheTtl = Math.max(0,
+          json.optInt("deviceListCacheTtl", STFDeviceInventory.DEFAULT_CACHE_TTL_SEC));
+      shareAdbServer = json.optBoolean("shareAdbServer", false);
+      sharedAdbServerPort = json.optInt("sharedAdbServerPort", SharedAdbServer.DEFAULT_PORT);
+      if (sharedAdbServerPort <= 0 || sharedAdbServerPort > 65535) {
+        sharedAdbServerPort = SharedAdbServer.DEFAULT_PORT;
+      }
+      warmPoolIdleTime = Math.max(0, json.optInt("warmPoolIdleTime", 0));
+      warmPoolMaxDevices = Math.max(1,
+          json.optInt("warmPoolMaxDevices", DEFAULT_WARM_POOL_MAX_DEVICES));
       save();
+      // The devices were kept for the previous settings.
+      WarmDevicePool.get().evictAll();
+      STFApiClientPool.clear();
+      ValidatedConfigCache.clear();
+      STFDeviceInventory.get().invalidate();
       return true;
     }
 
@@ -448,6 +859,15 @@ public class STFBuildWrapper extends BuildWrapper {
         formData.discard("deviceReleaseWaitTime");
       }
 
+      int devicePriority = 0;
+      try {
+        devicePriority = Integer.parseInt(formData.optString("devicePriority", "0"));
+      } catch (NumberFormatException ex) {
+        // ignore
+      } finally {
+        formData.discard("devicePriority");
+      }
+
       JSONArray conditionArray = formData.optJSONArray("condition");
       if (conditionArray != null) {
         for (Object conditionObj: conditionArray) {
@@ -463,7 +883,14 @@ public class STFBuildWrapper extends BuildWrapper {
         }
       }
 
-      return new STFBuildWrapper(deviceCondition, deviceReleaseWaitTime);
+      STFBuildWrapper wrapper = new STFBuildWrapper(deviceCondition, deviceReleaseWaitTime);
+      wrapper.setDevicePriority(devicePriority);
+      wrapper.setBinaryLogcat(formData.optBoolean("binaryLogcat", false));
+      int minDeviceCount = Math.max(1, formData.optInt("minDeviceCount", 1));
+      wrapper.setMinDeviceCount(minDeviceCount);
+      wrapper.setMaxDeviceCount(
+          Math.max(minDeviceCount, formData.optInt("maxDeviceCount", minDeviceCount)));
+      return wrapper;
     }
 
     @Override
@@ -471,8 +898,15 @@ public class STFBuildWrapper extends BuildWrapper {
       return true;
     }
 
+    /**
+     * Gets the STF API client for the current global configuration.
+     * @return STF API client.
+     */
+    public ApiClient getSTFApiClient() {
+      return Utils.getSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken);
+    }
+
     public ListBoxModel doFillConditionNameItems() {
-      Utils.setupSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken);
       return Utils.getSTFDeviceAttributeListBoxItems();
     }
 
@@ -486,8 +920,7 @@ public class STFBuildWrapper extends BuildWrapper {
       if (Util.fixEmpty(stfApiEndpoint) == null || Util.fixEmpty(stfToken) == null) {
         return new ComboBoxModel();
       } else {
-        Utils.setupSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken);
-        return Utils.getSTFDeviceAttributeValueComboBoxItems(conditionName);
+        return Utils.getSTFDeviceAttributeValueComboBoxItems(getSTFApiClient(), conditionName);
       }
     }
 
@@ -529,31 +962,101 @@ public class STFBuildWrapper extends BuildWrapper {
     }
 
     /**
-     * Gets a list of devices that match the given filter, as JSON Array.
+     * Gets the changes of the device list shown on the job configuration page.
      * This method called by javascript in jelly.
      * @param filterJSON Conditions of the STF device you want to get.
-     * @return List of STF devices that meet the filter.
+     * @param knownJSON Revision of each device tile the page shows, by serial.
+     * @param pageId ID of the page, to tell its requests from those of other pages.
+     * @param requestId ID of the request, which increases with every request of the page.
+     * @return the "endpoint" for device images, and the changes of the device list.
+     *     (see {@link DeviceListView#getUpdate}) If the page sent a newer request meanwhile,
+     *     only "stale" is set.
      */
     @JavaScriptMethod
-    public JSONArray getDeviceListJSON(JSONObject filterJSON) {
-      Map<String, String> filter = (Map<String, String>) JSONObject.toBean(filterJSON, Map.class);
+    public JSONObject getDeviceListUpdate(JSONObject filterJSON, JSONObject knownJSON,
+        String pageId, long requestId) {
+      StaplerRequest request = Stapler.getCurrentRequest();
+      DevicePreviewRequests previewRequests =
+          request == null ? null : DevicePreviewRequests.get(request.getSession());
+      if (previewRequests != null && !previewRequests.begin(pageId, requestId)) {
+        return getStaleDeviceListUpdate();
+      }
 
-      if (Util.fixEmpty(stfApiEndpoint) == null || Util.fixEmpty(stfToken) == null) {
-        return new JSONArray();
+      Map<String, String> filter = (Map<String, String>) JSONObject.toBean(filterJSON, Map.class);
+      Map<String, String> knownRevisions = new HashMap<String, String>();
+      for (Object serial: knownJSON.keySet()) {
+        knownRevisions.put(serial.toString(), knownJSON.optString(serial.toString()));
       }
 
-      if (!Utils.validateDeviceFilter(filter)) {
-        return new JSONArray();
+      JSONObject update;
+      if (Util.fixEmpty(stfApiEndpoint) == null || Util.fixEmpty(stfToken) == null
+          || !Utils.validateDeviceFilter(filter)) {
+        update = DeviceListView.getEmptyUpdate(knownRevisions);
+      } else {
+        try {
+          DeviceListView view = STFDeviceInventory.get().getListView(getSTFApiClient());
+          // The inventory may have been fetched meanwhile, which takes a while.
+          if (previewRequests != null && !previewRequests.isLatest(pageId, requestId)) {
+            return getStaleDeviceListUpdate();
+          }
+          update = view.getUpdate(filter, knownRevisions);
+        } catch (ApiFailedException ex) {
+          update = DeviceListView.getEmptyUpdate(knownRevisions);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return getStaleDeviceListUpdate();
+        }
       }
+      update.put("endpoint", String.valueOf(stfApiEndpoint));
+      return update;
+    }
 
-      Utils.setupSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken);
+    private static JSONObject getStaleDeviceListUpdate() {
+      JSONObject update = new JSONObject();
+      update.put("stale", true);
+      return update;
+    }
 
-      try {
-        List<DeviceListResponseDevices> deviceList = Utils.getDeviceList(filter);
-        return JSONArray.fromObject(deviceList);
-      } catch (ApiFailedException ex) {
-        return new JSONArray();
-      }
+    /**
+     * Gets the statistics of the warm device pool, shown on the global config page.
+     * @return warm device pool status.
+     */
+    public String getWarmPoolStatus() {
+      WarmDevicePool pool = WarmDevicePool.get();
+      return Messages.WARM_POOL_STATUS(pool.size(), pool.getReuseCount(),
+          pool.getEvictionCount());
+    }
+
+    /**
+     * Gets the statistics of the device reservation queue, shown on the global config page.
+     * @return reservation queue status.
+     */
+    public String getReservationQueueStatus() {
+      DeviceReservationBroker broker = DeviceReservationBroker.get();
+      return Messages.RESERVATION_QUEUE_STATUS(broker.getQueueLength(),
+          broker.getReservationCount(), broker.getAverageWaitMillis() / 1000,
+          broker.getMaxWaitMillis() / 1000, broker.getFailedReservationCount(),
+          broker.getBatchReservationCount());
+    }
+
+    /**
+     * Gets how often reservations got a device which recently ran the same job or app, shown on
+     * the global config page.
+     * @return device affinity status.
+     */
+    public String getAffinityStatus() {
+      DeviceAffinityIndex affinityIndex = DeviceAffinityIndex.get();
+      long count = affinityIndex.getAffineReservationCount();
+      long hits = affinityIndex.getHitCount();
+      return Messages.AFFINITY_STATUS(hits, count, count == 0 ? 0 : hits * 100 / count);
+    }
+
+    /**
+     * Gets the settle times per device model, shown on the global config page.
+     * @return summary lines.
+     */
+    public List<String> getSettleTimeSummary() {
+      return DeviceSettleTimes.get().getSummary();
     }
 
     @JavaScriptMethod
@@ -7,8 +7,17 @@ import hudson.plugins.openstf.exception.ApiFailedException;
 import hudson.plugins.openstf.exception.NoDeviceAvailableException;
 import hudson.plugins.openstf.exception.WaitDeviceReleaseInterruptedException;
 import hudson.plugins.openstf.exception.WaitDeviceReleaseTimeoutException;
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.reservation.DeviceConnectHistory;
+import hudson.plugins.openstf.reservation.DeviceReleaseQueue;
+import hudson.plugins.openstf.reservation.DeviceReservationBroker;
+import hudson.plugins.openstf.util.ReadinessProbe;
 import hudson.plugins.openstf.util.Utils;
 import hudson.remoting.Callable;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.swagger.client.ApiClient;
 import io.swagger.client.model.DeviceListResponseDevices;
 import jenkins.security.MasterToSlaveCallable;
 import net.sf.json.JSONObject;
@@ -21,100 +30,358 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 class STFConfig implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
-  private String stfApiEndpoint;
-  private String stfToken;
+  private static final Logger LOGGER = Logger.getLogger(STFConfig.class.getName());
+
+  /** How long to try reserving one of the free devices when the job doesn't wait for release. */
+  private static final long IMMEDIATE_RESERVATION_TIMEOUT_MS = 30 * 1000;
+
+  /** How long to try reserving the devices beyond the minimum count. */
+  private static final long EXTRA_DEVICE_RESERVATION_TIMEOUT_MS = 10 * 1000;
+
+  /** How long to retry remote connect after the reservation. */
+  private static final long REMOTE_CONNECT_TIMEOUT_MS = 15 * 1000;
+
+  /** How long STF may take to publish the remote connect URL after remote connect. */
+  private static final long REMOTE_CONNECT_URL_TIMEOUT_MS = 10 * 1000;
+
+  private transient ApiClient stfApiClient;
   private Boolean useSpecificKey;
   private String adbPublicKey;
   private String adbPrivateKey;
   private Map<String, String> stfDeviceFilter;
   private int stfDeviceReleaseWaitTime;
+  private int stfDevicePriority;
+  private transient List<DeviceListResponseDevices> preassignedDevices;
+  private transient List<DeviceListResponseDevices> warmDevices;
+  private transient List<String> preferredSerials;
 
-  public STFConfig(Boolean useSpecificKey, String adbPublicKey, String adbPrivateKey,
-      Map<String, String> stfDeviceFilter, int stfDeviceReleaseWaitTime) {
+  public STFConfig(ApiClient stfApiClient, Boolean useSpecificKey, String adbPublicKey,
+      String adbPrivateKey, Map<String, String> stfDeviceFilter, int stfDeviceReleaseWaitTime,
+      int stfDevicePriority) {
 
+    this.stfApiClient = stfApiClient;
     this.useSpecificKey = useSpecificKey;
     this.adbPublicKey = adbPublicKey;
     this.adbPrivateKey = adbPrivateKey;
     this.stfDeviceFilter = stfDeviceFilter;
     this.stfDeviceReleaseWaitTime = stfDeviceReleaseWaitTime;
+    this.stfDevicePriority = stfDevicePriority;
+  }
+
+  public ApiClient getApiClient() {
+    return stfApiClient;
   }
 
   public Boolean getUseSpecificKey() {
     return useSpecificKey;
   }
 
-  public String reserve() throws STFException, InterruptedException {
+  /**
+   * Sets the devices the matrix parent build reserved for this build, so that {@link #reserve}
+   * only sets up remote connect for them.
+   * @param preassignedDevices Devices already reserved for this build.
+   */
+  public void setPreassignedDevices(List<DeviceListResponseDevices> preassignedDevices) {
+    this.preassignedDevices = preassignedDevices;
+  }
+
+  /**
+   * Sets the devices taken from the warm device pool for this build, so that {@link #reserve}
+   * uses them as they are.
+   * @param warmDevices Devices still reserved and remote connected by the previous build.
+   */
+  public void setWarmDevices(List<DeviceListResponseDevices> warmDevices) {
+    this.warmDevices = warmDevices;
+  }
+
+  /**
+   * Sets the devices to prefer when several free devices match the filter.
+   * @param preferredSerials Serials of the devices, most preferred first.
+   */
+  public void setPreferredSerials(List<String> preferredSerials) {
+    this.preferredSerials = preferredSerials;
+  }
+
+  /**
+   * Reserves devices matching the filter, and sets up remote connect for them.
+   * Several devices are reserved concurrently. Devices beyond the minimum count are reserved
+   * only if they become free shortly.
+   * If devices were preassigned, they are used instead, and the inventory is only queried to
+   * replace those whose remote connect could not be set up.
+   * Warm devices are used without any STF request.
+   * @param minCount Number of devices the build needs.
+   * @param maxCount Number of devices the build can use.
+   * @return the reserved devices, with their remote connect URL.
+   * @throws STFException if fewer than minCount devices could be reserved. The devices which
+   *     were reserved are released.
+   * @throws InterruptedException if interrupted while reserving.
+   */
+  public List<ReservedDevice> reserve(int minCount, int maxCount)
+      throws STFException, InterruptedException {
+    List<java.util.concurrent.Callable<ReservedDevice>> tasks =
+        new ArrayList<java.util.concurrent.Callable<ReservedDevice>>();
+
+    if (warmDevices != null) {
+      List<ReservedDevice> reservedDevices = new ArrayList<ReservedDevice>();
+      for (DeviceListResponseDevices device: warmDevices) {
+        reservedDevices.add(new ReservedDevice(device));
+      }
+      return reservedDevices;
+    }
+
     Map<String, String> filter = this.stfDeviceFilter;
-    DeviceListResponseDevices reservedDevice = null;
     filter.put("present", "true");
+    DeviceFilter presentDeviceFilter = DeviceFilter.compile(filter);
+    filter.put("owner", "null");
+    final DeviceFilter freeDeviceFilter = DeviceFilter.compile(filter);
+    final long timeout = stfDeviceReleaseWaitTime == 0
+        ? IMMEDIATE_RESERVATION_TIMEOUT_MS : stfDeviceReleaseWaitTime * 60 * 1000L;
+
+    if (preassignedDevices != null) {
+      for (final DeviceListResponseDevices device: preassignedDevices) {
+        tasks.add(new java.util.concurrent.Callable<ReservedDevice>() {
+          @Override
+          public ReservedDevice call() throws Exception {
+            try {
+              return setUpRemoteConnect(device);
+            } catch (ApiFailedException ex) {
+              // The planned device is broken and has been released. Reserve another one, as if
+              // the build had no plan.
+              return reserveOne(freeDeviceFilter, timeout);
+            }
+          }
+        });
+      }
+      return runReservations(tasks, tasks.size());
+    }
 
-    List<DeviceListResponseDevices> deviceList = Utils.getDeviceList(filter);
+    // Only the serial is used for reservation, so fetch just what the filter needs.
+    List<DeviceListResponseDevices> deviceList =
+        Utils.findDevices(stfApiClient, presentDeviceFilter, "owner");
 
-    if (deviceList.isEmpty()) {
-      throw new NoDeviceAvailableException("No device available");
+    if (deviceList.isEmpty() || deviceList.size() < minCount) {
+      throw new NoDeviceAvailableException(minCount == 1 ? "No device available"
+          : "Only " + deviceList.size() + " device(s) available, " + minCount + " required");
     }
 
-    filter.put("owner", "null");
-    deviceList = Utils.getDeviceList(filter);
+    int freeCount = freeDeviceFilter.apply(deviceList).size();
+    if (freeCount < minCount && stfDeviceReleaseWaitTime == 0) {
+      throw new NoDeviceAvailableException(minCount == 1 ? "No device available"
+          : "Only " + freeCount + " device(s) free, " + minCount + " required");
+    }
 
-    if (deviceList.isEmpty()) {
-      if (stfDeviceReleaseWaitTime == 0) {
-        throw new NoDeviceAvailableException("No device available");
-      } else {
-        try {
-          for (int i = 0; i < stfDeviceReleaseWaitTime; i++) {
-            Thread.sleep(60 * 1000);
-            deviceList = Utils.getDeviceList(filter);
-            if (!deviceList.isEmpty()) {
-              break;
-            }
+    int count = Math.min(maxCount, deviceList.size());
+    if (count == 1) {
+      return Collections.singletonList(reserveOne(freeDeviceFilter, timeout));
+    }
+
+    for (int i = 0; i < count; i++) {
+      final long deviceTimeout = i < minCount
+          ? timeout : Math.min(timeout, EXTRA_DEVICE_RESERVATION_TIMEOUT_MS);
+      tasks.add(new java.util.concurrent.Callable<ReservedDevice>() {
+        @Override
+        public ReservedDevice call() throws Exception {
+          return reserveOne(freeDeviceFilter, deviceTimeout);
+        }
+      });
+    }
+    return runReservations(tasks, minCount);
+  }
+
+  private List<ReservedDevice> runReservations(
+      List<java.util.concurrent.Callable<ReservedDevice>> tasks, int minCount)
+      throws STFException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(tasks.size(),
+        new NamingThreadFactory(new DaemonThreadFactory(), "STF device reservation"));
+    final Reservations reservations = new Reservations();
+    List<Future<ReservedDevice>> futures = new ArrayList<Future<ReservedDevice>>();
+    for (final java.util.concurrent.Callable<ReservedDevice> task: tasks) {
+      futures.add(executor.submit(new java.util.concurrent.Callable<ReservedDevice>() {
+        @Override
+        public ReservedDevice call() throws Exception {
+          ReservedDevice reservedDevice = task.call();
+          if (!reservations.add(reservedDevice)) {
+            // The build gave up on the reservations while this one was being made.
+            releaseOrRetryLater(reservedDevice.getDevice(), true);
+            throw new WaitDeviceReleaseInterruptedException(
+                "Interrupted while waiting for a device to be released");
           }
-          if (deviceList.isEmpty()) {
-            throw new WaitDeviceReleaseTimeoutException("No device was released in time");
+          return reservedDevice;
+        }
+      }));
+    }
+    executor.shutdown();
+
+    List<ReservedDevice> reservedDevices = new ArrayList<ReservedDevice>();
+    STFException failure = null;
+    try {
+      for (Future<ReservedDevice> future: futures) {
+        try {
+          reservedDevices.add(future.get());
+        } catch (ExecutionException ex) {
+          if (failure == null) {
+            failure = ex.getCause() instanceof STFException
+                ? (STFException) ex.getCause() : new ApiFailedException(ex.getCause().toString());
           }
-        } catch (InterruptedException ex) {
-          throw new WaitDeviceReleaseInterruptedException(
-              "Interrupted while waiting for a device to be released", ex);
         }
       }
+    } catch (InterruptedException ex) {
+      // Tasks still running release their device themselves, whether they are interrupted
+      // while probing or finish later.
+      executor.shutdownNow();
+      releaseQuietly(reservations.abandon());
+      throw new WaitDeviceReleaseInterruptedException(
+          "Interrupted while waiting for a device to be released", ex);
     }
 
-    Collections.shuffle(deviceList);
+    if (reservedDevices.size() < minCount) {
+      releaseQuietly(reservedDevices);
+      throw failure;
+    }
+    return reservedDevices;
+  }
 
-    for (DeviceListResponseDevices device: deviceList) {
+  private ReservedDevice reserveOne(DeviceFilter freeDeviceFilter, long timeout)
+      throws STFException, InterruptedException {
+    DeviceListResponseDevices reservedDevice;
+    try {
+      reservedDevice = DeviceReservationBroker.get().reserve(stfApiClient, freeDeviceFilter,
+          stfDevicePriority, preferredSerials, timeout);
+    } catch (InterruptedException ex) {
+      throw new WaitDeviceReleaseInterruptedException(
+          "Interrupted while waiting for a device to be released", ex);
+    }
 
-      try {
-        Utils.reserveSTFDevice(device);
-        reservedDevice = device;
-        break;
-      } catch (ApiFailedException ex) {
-        //ignore
+    if (reservedDevice == null) {
+      if (stfDeviceReleaseWaitTime == 0) {
+        throw new NoDeviceAvailableException("No free device could be reserved in time");
       }
+      throw new WaitDeviceReleaseTimeoutException(
+          "No free device could be reserved in time after waiting for a release");
+    }
+    if (Thread.interrupted()) {
+      // Served just as the build was aborted.
+      releaseOrRetryLater(reservedDevice, false);
+      throw new WaitDeviceReleaseInterruptedException(
+          "Interrupted while waiting for a device to be released");
     }
+    return setUpRemoteConnect(reservedDevice);
+  }
 
-    if (reservedDevice == null) {
-      throw new ApiFailedException("POST /api/v1/user/devices API failed");
+  /**
+   * Sets up remote connect for a device reserved for the build.
+   * The device is released if remote connect could not be set up, or if interrupted.
+   */
+  private ReservedDevice setUpRemoteConnect(final DeviceListResponseDevices device)
+      throws STFException, InterruptedException {
+    // STF may take a moment to reflect the reservation, so retry remote connect until accepted.
+    long remoteConnectSettleMillis;
+    try {
+      remoteConnectSettleMillis = new ReadinessProbe() {
+        @Override
+        protected boolean isReady() {
+          try {
+            Utils.remoteConnectSTFDevice(stfApiClient, device);
+            return true;
+          } catch (ApiFailedException ex) {
+            return false;
+          }
+        }
+      }.await(REMOTE_CONNECT_TIMEOUT_MS);
+    } catch (InterruptedException ex) {
+      // No lease points at the device yet, so nothing else would release it. The probe only
+      // sleeps after remote connect was refused.
+      releaseOrRetryLater(device, false);
+      throw ex;
+    }
+    if (remoteConnectSettleMillis < 0) {
+      DeviceConnectHistory.get().recordFailure(device.serial);
+      releaseOrRetryLater(device, false);
+      throw new ApiFailedException("POST /user/devices/" + device.serial
+          + "/remoteConnect API failed");
+    }
+
+    // The remote connect URL shows up once STF has set up the remote connection.
+    final DeviceListResponseDevices[] fetchedDevice = new DeviceListResponseDevices[1];
+    long remoteConnectUrlSettleMillis;
+    try {
+      remoteConnectUrlSettleMillis = new ReadinessProbe() {
+        @Override
+        protected boolean isReady() {
+          try {
+            fetchedDevice[0] = Utils.getSTFDeviceById(stfApiClient, device.serial);
+            return fetchedDevice[0].remoteConnectUrl != null;
+          } catch (ApiFailedException ex) {
+            return false;
+          }
+        }
+      }.await(REMOTE_CONNECT_URL_TIMEOUT_MS);
+    } catch (InterruptedException ex) {
+      releaseOrRetryLater(fetchedDevice[0] == null ? device : fetchedDevice[0], true);
+      throw ex;
+    }
+    if (remoteConnectUrlSettleMillis < 0) {
+      DeviceConnectHistory.get().recordFailure(device.serial);
+      releaseOrRetryLater(fetchedDevice[0] == null ? device : fetchedDevice[0], true);
+      throw new ApiFailedException("GET /devices/" + device.serial
+          + " API did not return the remote connect URL");
     }
 
-    // Wati for system reflects
-    Thread.sleep(5 * 1000);
-    Utils.remoteConnectSTFDevice(reservedDevice);
+    return new ReservedDevice(fetchedDevice[0], remoteConnectSettleMillis,
+        remoteConnectUrlSettleMillis);
+  }
 
-    return reservedDevice.serial;
+  private void releaseQuietly(List<ReservedDevice> reservedDevices) {
+    for (ReservedDevice reservedDevice: reservedDevices) {
+      releaseOrRetryLater(reservedDevice.getDevice(), true);
+    }
   }
 
   public void release(DeviceListResponseDevices device) throws STFException {
-    Utils.remoteDisconnectSTFDevice(device);
-    Utils.releaseSTFDevice(device);
+    Utils.remoteDisconnectSTFDevice(stfApiClient, device);
+    releaseReservation(device);
+  }
+
+  /**
+   * Releases a device the build gives up on. If STF fails to release it, the release is queued
+   * to be retried later, so that the device doesn't stay owned by our token.
+   * @param device The device.
+   * @param remoteConnected Whether remote connect was set up for the device.
+   */
+  private void releaseOrRetryLater(DeviceListResponseDevices device, boolean remoteConnected) {
+    try {
+      if (remoteConnected) {
+        Utils.remoteDisconnectSTFDevice(stfApiClient, device);
+      }
+      releaseReservation(device);
+    } catch (STFException ex) {
+      LOGGER.log(Level.INFO, "Failed to release STF device " + device.serial
+          + ", retrying later", ex);
+      DeviceReleaseQueue.get().retryLater(stfApiClient, device.serial);
+    }
+  }
+
+  private void releaseReservation(DeviceListResponseDevices device) throws STFException {
+    Utils.releaseSTFDevice(stfApiClient, device);
+    DeviceReleaseQueue.get().released(device.serial);
+    STFDeviceInventory.get().invalidate();
+    DeviceReservationBroker.get().notifyDeviceReleased();
   }
 
   public Callable<Boolean, IOException> getAdbKeySettingTask(BuildListener listener) {
@@ -171,4 +438,80 @@ class STFConfig implements Serializable {
       }
     }
   }
+
+  /**
+   * Devices reserved by the tasks of {@link #runReservations}, handed over to the build or, once
+   * the build gave up, left to the tasks to release.
+   */
+  private static final class Reservations {
+    private final List<ReservedDevice> devices = new ArrayList<ReservedDevice>();
+    private boolean abandoned;
+
+    /**
+     * Hands a reserved device over to the build.
+     * @return false if the build gave up, so the caller has to release the device.
+     */
+    synchronized boolean add(ReservedDevice reservedDevice) {
+      if (abandoned) {
+        return false;
+      }
+      devices.add(reservedDevice);
+      return true;
+    }
+
+    /**
+     * Gives up on the reservations.
+     * @return the devices handed over so far, to be released by the caller.
+     */
+    synchronized List<ReservedDevice> abandon() {
+      abandoned = true;
+      return new ArrayList<ReservedDevice>(devices);
+    }
+  }
+
+  /**
+   * A device reserved for the build, with the time each setup phase took.
+   */
+  static final class ReservedDevice {
+
+    private final DeviceListResponseDevices device;
+    private final long remoteConnectSettleMillis;
+    private final long remoteConnectUrlSettleMillis;
+    private final boolean warm;
+
+    ReservedDevice(DeviceListResponseDevices device, long remoteConnectSettleMillis,
+        long remoteConnectUrlSettleMillis) {
+      this.device = device;
+      this.remoteConnectSettleMillis = remoteConnectSettleMillis;
+      this.remoteConnectUrlSettleMillis = remoteConnectUrlSettleMillis;
+      this.warm = false;
+    }
+
+    /** A device taken from the warm device pool, which needed no setup. */
+    ReservedDevice(DeviceListResponseDevices device) {
+      this.device = device;
+      this.remoteConnectSettleMillis = 0;
+      this.remoteConnectUrlSettleMillis = 0;
+      this.warm = true;
+    }
+
+    public DeviceListResponseDevices getDevice() {
+      return device;
+    }
+
+    /** Whether the device was taken from the warm device pool. */
+    public boolean isWarm() {
+      return warm;
+    }
+
+    /** Time it took STF to accept remote connect after the reservation. */
+    public long getRemoteConnectSettleMillis() {
+      return remoteConnectSettleMillis;
+    }
+
+    /** Time it took STF to publish the remote connect URL after remote connect. */
+    public long getRemoteConnectUrlSettleMillis() {
+      return remoteConnectUrlSettleMillis;
+    }
+  }
 }
@@ -0,0 +1,50 @@
+package hudson.plugins.openstf;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.plugins.openstf.reservation.DeviceReleaseQueue;
+import jenkins.model.Jenkins;
+
+import java.util.List;
+
+/**
+ * Periodically reclaims the devices whose build is no longer running, and retries the releases
+ * which failed.
+ */
+@Extension
+public class STFDeviceReleaseSweeper extends AsyncPeriodicWork {
+
+  /** Interval between sweeps. The retries themselves back off in the queue. */
+  private static final long SWEEP_INTERVAL_MS = 30 * 1000;
+
+  public STFDeviceReleaseSweeper() {
+    super("STF device release sweeper");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return SWEEP_INTERVAL_MS;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    STFBuildWrapper.DescriptorImpl descriptor =
+        Jenkins.getInstance().getDescriptorByType(STFBuildWrapper.DescriptorImpl.class);
+    if (descriptor == null || Util.fixEmpty(descriptor.stfApiEndpoint) == null
+        || Util.fixEmpty(descriptor.stfToken) == null) {
+      return;
+    }
+
+    DeviceReleaseQueue queue = DeviceReleaseQueue.get();
+    List<String> reclaimed = queue.sweep();
+    if (!reclaimed.isEmpty()) {
+      listener.getLogger().println("Reclaiming STF devices " + reclaimed);
+    }
+    int released = queue.process(descriptor.getSTFApiClient());
+    if (released > 0) {
+      listener.getLogger().println("Released " + released + " STF devices");
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package hudson.plugins.openstf;
+
+import static hudson.plugins.android_emulator.AndroidEmulator.log;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Result;
+import hudson.plugins.android_emulator.sdk.AndroidSdk;
+import hudson.plugins.android_emulator.sdk.Tool;
+import hudson.plugins.android_emulator.sdk.cli.SdkCliCommand;
+import hudson.plugins.android_emulator.util.Utils;
+import hudson.plugins.openstf.instrumentation.InstrumentationTasks;
+import hudson.plugins.openstf.instrumentation.InstrumentationTestResult;
+import hudson.plugins.openstf.reservation.DeviceAffinityIndex;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the instrumentation tests of a test APK spread over the STF devices of the build.
+ * The test classes are handed out one at a time to whichever device is free, and the results
+ * are merged into one JUnit XML report, to be published by the JUnit publisher.
+ */
+public class STFInstrumentationBuilder extends Builder {
+
+  /** Default path of the JUnit XML report in the workspace. */
+  public static final String DEFAULT_REPORT_FILE = "stf-instrumentation/TEST-results.xml";
+
+  public final String testApk;
+  public String appApk;
+  public String reportFile = DEFAULT_REPORT_FILE;
+
+  /**
+   * Allocates a STFInstrumentationBuilder object.
+   * @param testApk Path of the test APK in the workspace.
+   */
+  @DataBoundConstructor
+  public STFInstrumentationBuilder(String testApk) {
+    this.testApk = testApk;
+  }
+
+  /**
+   * Sets the APK under test, installed before the tests run.
+   * @param appApk Path of the APK in the workspace, or empty if the test APK is self-contained.
+   */
+  @DataBoundSetter
+  public void setAppApk(String appApk) {
+    this.appApk = Util.fixEmptyAndTrim(appApk);
+  }
+
+  /**
+   * Sets where to write the JUnit XML report.
+   * @param reportFile Path of the report in the workspace.
+   */
+  @DataBoundSetter
+  public void setReportFile(String reportFile) {
+    this.reportFile = Util.fixEmptyAndTrim(reportFile) == null
+        ? DEFAULT_REPORT_FILE : reportFile.trim();
+  }
+
+  @Override
+  public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+      throws IOException, InterruptedException {
+
+    final PrintStream logger = listener.getLogger();
+
+    // The devices are exported by STFBuildWrapper.
+    EnvVars env = build.getEnvironment(listener);
+    String serials = Util.fixEmpty(env.get("ANDROID_SERIALS", env.get("ANDROID_SERIAL")));
+    if (serials == null) {
+      log(logger, Messages.NO_STF_DEVICE_FOR_INSTRUMENTATION(Messages.JOB_DESCRIPTION()));
+      build.setResult(Result.FAILURE);
+      return false;
+    }
+
+    FilePath workspace = build.getWorkspace();
+    if (workspace == null) {
+      log(logger, Messages.CANNOT_GET_WORKSPACE_ON_THIS_BUILD());
+      build.setResult(Result.FAILURE);
+      return false;
+    }
+    FilePath testApkFile = workspace.child(env.expand(testApk));
+    if (!testApkFile.exists()) {
+      log(logger, Messages.APK_NOT_FOUND(testApkFile.getRemote()));
+      build.setResult(Result.FAILURE);
+      return false;
+    }
+    FilePath appApkFile = null;
+    if (appApk != null) {
+      appApkFile = workspace.child(env.expand(appApk));
+      if (!appApkFile.exists()) {
+        log(logger, Messages.APK_NOT_FOUND(appApkFile.getRemote()));
+        build.setResult(Result.FAILURE);
+        return false;
+      }
+    }
+    FilePath report = workspace.child(env.expand(reportFile));
+
+    AndroidSdk androidSdk = Utils.getAndroidSdk(launcher, env.get("ANDROID_HOME"), null);
+    if (androidSdk == null) {
+      log(logger, hudson.plugins.android_emulator.Messages.SDK_TOOLS_NOT_FOUND());
+      build.setResult(Result.FAILURE);
+      return false;
+    }
+    List<String> adbCommand = Utils.getToolCommand(androidSdk, launcher.isUnix(),
+        new SdkCliCommand(Tool.ADB, "")).toList();
+
+    // PATH+XXX entries are only understood by the launcher.
+    Map<String, String> adbEnvironment = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry: env.entrySet()) {
+      if (entry.getKey().indexOf('+') < 0) {
+        adbEnvironment.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    List<String> serialList = new ArrayList<String>();
+    for (String serial: serials.split(",")) {
+      if (!serial.trim().isEmpty()) {
+        serialList.add(serial.trim());
+      }
+    }
+
+    VirtualChannel channel = launcher.getChannel();
+    if (channel == null) {
+      log(logger, Messages.CANNOT_RUN_INSTRUMENTATION("The node of this build is offline"));
+      build.setResult(Result.FAILURE);
+      return false;
+    }
+    List<InstrumentationTestResult> results;
+    try {
+      // Later builds of this job prefer the devices which have these packages installed.
+      DeviceAffinityIndex.get().recordPackages(build.getParent().getFullName(),
+          channel.call(InstrumentationTasks.readPackages(testApkFile.getRemote())));
+      results = channel.call(InstrumentationTasks.run(adbCommand, adbEnvironment, serialList,
+          testApkFile.getRemote(), appApkFile == null ? null : appApkFile.getRemote(),
+          report.getRemote(), listener));
+    } catch (InterruptedIOException ex) {
+      // Aborted: let Jenkins mark the build as such, rather than as failed.
+      throw (InterruptedException) new InterruptedException(ex.getMessage()).initCause(ex);
+    } catch (IOException ex) {
+      log(logger, Messages.CANNOT_RUN_INSTRUMENTATION(ex.getMessage()));
+      build.setResult(Result.FAILURE);
+      return false;
+    }
+
+    int failures = 0;
+    int errors = 0;
+    int skipped = 0;
+    for (InstrumentationTestResult result: results) {
+      switch (result.getStatus()) {
+        case FAILED:
+          failures++;
+          break;
+        case ERROR:
+          errors++;
+          break;
+        case SKIPPED:
+          skipped++;
+          break;
+        default:
+          break;
+      }
+    }
+    log(logger, Messages.INSTRUMENTATION_SUMMARY(results.size(), failures, errors, skipped,
+        report.getRemote()));
+    return true;
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+    @Override
+    public String getDisplayName() {
+      return Messages.INSTRUMENTATION_DESCRIPTION();
+    }
+
+    @Override
+    public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+      return true;
+    }
+  }
+}
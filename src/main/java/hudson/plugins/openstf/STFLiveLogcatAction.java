@@ -0,0 +1,159 @@
+package hudson.plugins.openstf;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.plugins.openstf.logcat.LogcatRecorder;
+import hudson.plugins.openstf.logcat.LogcatRingBuffer;
+import jenkins.model.TransientActionFactory;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the logcat of the device while the build runs.
+ * The page fetches the text following the offset it has read, like the progressive console
+ * log. The text comes from a bounded ring buffer on the node, and each fetch is bounded too,
+ * so viewers don't cost memory on the controller. Once the build finished, the archived logcat
+ * is shown by {@link STFLogcatAction}.
+ * The action is not saved with the build: {@link Factory} shows it while the recorder of the
+ * build is registered.
+ */
+public class STFLiveLogcatAction implements Action {
+
+  /** Maximum number of bytes returned by a fetch. */
+  static final int MAX_FETCH_BYTES = 64 * 1024;
+
+  /** Recorders of the running builds, by build ID. */
+  private static final Map<String, LogcatRecorder> RECORDERS =
+      new HashMap<String, LogcatRecorder>();
+
+  private final Run<?, ?> run;
+  private final LogcatRecorder recorder;
+
+  STFLiveLogcatAction(Run<?, ?> run, LogcatRecorder recorder) {
+    this.run = run;
+    this.recorder = recorder;
+  }
+
+  /**
+   * Shows the live logcat of a build.
+   * @param run The build.
+   * @param recorder The logcat recorder of the build.
+   */
+  public static void register(Run<?, ?> run, LogcatRecorder recorder) {
+    synchronized (RECORDERS) {
+      RECORDERS.put(run.getExternalizableId(), recorder);
+    }
+  }
+
+  /**
+   * Stops showing the live logcat of a build.
+   * @param run The build.
+   */
+  public static void unregister(Run<?, ?> run) {
+    synchronized (RECORDERS) {
+      RECORDERS.remove(run.getExternalizableId());
+    }
+  }
+
+  public String getDisplayName() {
+    return Messages.LIVE_LOGCAT();
+  }
+
+  public String getIconFileName() {
+    return isLive() ? "monitor.png" : null;
+  }
+
+  public String getUrlName() {
+    return "stf-logcat-live";
+  }
+
+  public Run<?, ?> getRun() {
+    return run;
+  }
+
+  /**
+   * Whether logcat is being captured.
+   * This method is called by Jelly.
+   */
+  public boolean isLive() {
+    return recorder.isRecording();
+  }
+
+  /**
+   * Sends the logcat text following the offset given by the start parameter.
+   * X-Text-Size tells the offset to fetch next, and X-More-Data whether to keep fetching.
+   * This method is called by Stapler.
+   */
+  public void doProgressiveText(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    run.checkPermission(Run.ARTIFACTS);
+    long start;
+    try {
+      String value = Util.fixEmptyAndTrim(req.getParameter("start"));
+      start = value == null ? 0 : Long.parseLong(value);
+    } catch (NumberFormatException ex) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+      return;
+    }
+
+    LogcatRingBuffer.Tail tail;
+    try {
+      tail = recorder.tail(start, MAX_FETCH_BYTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    }
+
+    rsp.setContentType("text/plain;charset=UTF-8");
+    if (tail == null) {
+      rsp.setHeader("X-Text-Size", String.valueOf(start));
+      return;
+    }
+    rsp.setHeader("X-Text-Size", String.valueOf(tail.getNextOffset()));
+    rsp.setHeader("X-More-Data", "true");
+    OutputStream out = rsp.getOutputStream();
+    if (tail.getSkippedBytes() > 0) {
+      out.write((Messages.LIVE_LOGCAT_SKIPPED(tail.getSkippedBytes()) + "\n").getBytes("UTF-8"));
+    }
+    out.write(tail.getData());
+  }
+
+  /**
+   * Adds the action to the builds whose recorder is registered.
+   */
+  @Extension
+  @SuppressWarnings("rawtypes")
+  public static final class Factory extends TransientActionFactory<Run> {
+
+    @Override
+    public Class<Run> type() {
+      return Run.class;
+    }
+
+    @Override
+    public Collection<? extends Action> createFor(Run target) {
+      LogcatRecorder recorder;
+      synchronized (RECORDERS) {
+        recorder = RECORDERS.get(target.getExternalizableId());
+        // Drop the recorder of a build that ended without unregistering it.
+        if (recorder != null && !target.isBuilding()) {
+          RECORDERS.remove(target.getExternalizableId());
+          recorder = null;
+        }
+      }
+      if (recorder == null) {
+        return Collections.emptyList();
+      }
+      return Collections.singletonList(new STFLiveLogcatAction(target, recorder));
+    }
+  }
+}
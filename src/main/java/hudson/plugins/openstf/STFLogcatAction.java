@@ -0,0 +1,136 @@
+package hudson.plugins.openstf;
+
+import hudson.Util;
+import hudson.model.Run;
+import hudson.plugins.openstf.logcat.LogcatBinaryDecoder;
+import hudson.plugins.openstf.logcat.LogcatEntry;
+import hudson.plugins.openstf.logcat.LogcatIndexReader;
+import hudson.plugins.openstf.logcat.LogcatQuery;
+import hudson.plugins.openstf.logcat.LogcatRecorder;
+import jenkins.model.RunAction2;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the logcat archived while the build ran.
+ * Text logcat is decompressed on the fly. Binary logcat is read through its index, and can be
+ * narrowed down with the query parameters priority (minimum priority letter), tag, pid, tid,
+ * from and to (milliseconds since the epoch).
+ */
+public class STFLogcatAction implements RunAction2 {
+
+  private transient Run<?, ?> run;
+
+  public String getDisplayName() {
+    return Messages.LOGCAT();
+  }
+
+  public String getIconFileName() {
+    // The action is added before the last chunk is archived, which may fail.
+    return isArchived() ? "notepad.png" : null;
+  }
+
+  public String getUrlName() {
+    return "stf-logcat";
+  }
+
+  public void onAttached(Run<?, ?> run) {
+    this.run = run;
+  }
+
+  public void onLoad(Run<?, ?> run) {
+    this.run = run;
+  }
+
+  /**
+   * Streams the logcat as plain text.
+   * This method is called by Stapler.
+   */
+  public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    run.checkPermission(Run.ARTIFACTS);
+    File artifactsDir = run.getArtifactsDir();
+    File dataFile = new File(artifactsDir, LogcatRecorder.BINARY_DATA_FILE_NAME);
+    File indexFile = new File(artifactsDir, LogcatRecorder.BINARY_INDEX_FILE_NAME);
+    if (dataFile.isFile() && indexFile.isFile()) {
+      LogcatQuery query;
+      try {
+        query = parseQuery(req);
+      } catch (IllegalArgumentException ex) {
+        rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+        return;
+      }
+      rsp.setContentType("text/plain;charset=UTF-8");
+      final Writer writer = new OutputStreamWriter(rsp.getOutputStream(), "UTF-8");
+      new LogcatIndexReader(dataFile, indexFile).query(query, new LogcatBinaryDecoder.Handler() {
+        @Override
+        public void onEntry(LogcatEntry entry) throws IOException {
+          writer.write(entry.format());
+        }
+      });
+      writer.flush();
+      return;
+    }
+
+    File archive = new File(artifactsDir, LogcatRecorder.TEXT_ARCHIVE_FILE_NAME);
+    if (!archive.isFile()) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    rsp.setContentType("text/plain;charset=UTF-8");
+    InputStream in = new GZIPInputStream(new FileInputStream(archive));
+    try {
+      OutputStream out = rsp.getOutputStream();
+      IOUtils.copy(in, out);
+    } catch (EOFException ex) {
+      // The build is still writing the last chunk.
+    } finally {
+      in.close();
+    }
+  }
+
+  private boolean isArchived() {
+    if (run == null) {
+      return false;
+    }
+    File artifactsDir = run.getArtifactsDir();
+    return new File(artifactsDir, LogcatRecorder.BINARY_DATA_FILE_NAME).isFile()
+        || new File(artifactsDir, LogcatRecorder.TEXT_ARCHIVE_FILE_NAME).isFile();
+  }
+
+  static LogcatQuery parseQuery(StaplerRequest req) {
+    int minPriority = 0;
+    String priority = Util.fixEmptyAndTrim(req.getParameter("priority"));
+    if (priority != null) {
+      minPriority = LogcatEntry.parsePriority(priority.charAt(0));
+      if (priority.length() != 1 || minPriority < 0) {
+        throw new IllegalArgumentException("Unknown priority: " + priority);
+      }
+    }
+    return new LogcatQuery(
+        parseLong(req, "from", Long.MIN_VALUE), parseLong(req, "to", Long.MAX_VALUE),
+        minPriority, Util.fixEmpty(req.getParameter("tag")),
+        parseInteger(req, "pid"), parseInteger(req, "tid"));
+  }
+
+  private static long parseLong(StaplerRequest req, String name, long defaultValue) {
+    String value = Util.fixEmptyAndTrim(req.getParameter(name));
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  private static Integer parseInteger(StaplerRequest req, String name) {
+    String value = Util.fixEmptyAndTrim(req.getParameter(name));
+    return value == null ? null : Integer.valueOf(value);
+  }
+}
@@ -0,0 +1,212 @@
+package hudson.plugins.openstf;
+
+import static hudson.plugins.android_emulator.AndroidEmulator.log;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.matrix.Axis;
+import hudson.matrix.DefaultMatrixExecutionStrategyImpl;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixExecutionStrategy;
+import hudson.matrix.MatrixProject;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.plugins.openstf.axis.STFDeviceConditionAxis;
+import hudson.plugins.openstf.exception.ApiFailedException;
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.plugins.openstf.inventory.DeviceQuery;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.reservation.DeviceAssignmentPlanner;
+import hudson.plugins.openstf.reservation.DeviceReleaseQueue;
+import hudson.plugins.openstf.reservation.DeviceReservationBroker;
+import hudson.plugins.openstf.util.Utils;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reserves the devices of all the cells of a matrix build at once, before the cells start.
+ * The devices are planned from one inventory snapshot, so that cells don't query the inventory
+ * one after the other and race for the same devices. Only cells which can start right away, as
+ * far as idle executors go, get their devices ahead: devices held for cells waiting in the queue
+ * would sit idle while other jobs wait for them. Cells which got no device reserve one themselves
+ * when they start.
+ */
+class STFMatrixDeviceAggregator extends MatrixAggregator {
+
+  private final STFBuildWrapper wrapper;
+  private STFMatrixDeviceAssignmentAction assignment;
+
+  STFMatrixDeviceAggregator(MatrixBuild build, Launcher launcher, BuildListener listener,
+      STFBuildWrapper wrapper) {
+    super(build, launcher, listener);
+    this.wrapper = wrapper;
+  }
+
+  /**
+   * Whether reserving the devices ahead pays off for the project.
+   * @param project Matrix project.
+   * @return true if the project has a device condition axis, and runs its cells in parallel.
+   */
+  static boolean isApplicable(MatrixProject project) {
+    MatrixExecutionStrategy strategy = project.getExecutionStrategy();
+    // Cells run one after the other would keep their devices idle until their turn.
+    if (strategy instanceof DefaultMatrixExecutionStrategyImpl
+        && ((DefaultMatrixExecutionStrategyImpl) strategy).isRunSequentially()) {
+      return false;
+    }
+    for (Axis axis: project.getAxes()) {
+      if (axis instanceof STFDeviceConditionAxis) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean startBuild() throws InterruptedException, IOException {
+    PrintStream logger = listener.getLogger();
+    STFBuildWrapper.DescriptorImpl descriptor =
+        Jenkins.getInstance().getDescriptorByType(STFBuildWrapper.DescriptorImpl.class);
+    if (Util.fixEmpty(descriptor.stfApiEndpoint) == null
+        || Util.fixEmpty(descriptor.stfToken) == null) {
+      return true;
+    }
+    ApiClient stfApiClient = descriptor.getSTFApiClient();
+
+    EnvVars envVars = build.getEnvironment(listener);
+    Map<String, DeviceFilter> filters = new LinkedHashMap<String, DeviceFilter>();
+    Set<String> attributes = new HashSet<String>();
+    Map<Label, Integer> idleExecutors = new HashMap<Label, Integer>();
+    int cellCount = 0;
+    for (MatrixConfiguration configuration: build.getParent().getActiveConfigurations()) {
+      cellCount++;
+      Label label = configuration.getAssignedLabel();
+      Integer idle = idleExecutors.get(label);
+      if (idle == null) {
+        idle = countIdleExecutors(label);
+      }
+      if (idle <= 0) {
+        continue;
+      }
+      idleExecutors.put(label, idle - 1);
+
+      Map<String, String> buildVars = new HashMap<String, String>(build.getBuildVariables());
+      buildVars.putAll(configuration.getCombination());
+      Map<String, String> filter =
+          Utils.expandVariables(envVars, buildVars, wrapper.deviceCondition);
+      // The cell reports an invalid condition itself.
+      if (!Utils.validateDeviceFilter(filter)) {
+        continue;
+      }
+      filter.put("present", "true");
+      filter.put("owner", "null");
+      DeviceFilter deviceFilter = DeviceFilter.compile(filter);
+      attributes.addAll(deviceFilter.getAttributes());
+      filters.put(STFMatrixDeviceAssignmentAction.getKey(configuration.getCombination()),
+          deviceFilter);
+    }
+    if (filters.size() < 2) {
+      return true;
+    }
+
+    List<DeviceListResponseDevices> devices;
+    try {
+      String fields = DeviceQuery.getFields(DeviceFilter.ANY,
+          attributes.toArray(new String[attributes.size()]));
+      devices = STFDeviceInventory.get().getDevices(stfApiClient, fields, 0);
+    } catch (ApiFailedException ex) {
+      // The cells reserve their devices themselves.
+      log(logger, ex.getMessage());
+      return true;
+    }
+
+    int devicesPerCell = wrapper.getMinDeviceCount();
+    Map<String, List<DeviceListResponseDevices>> plan =
+        DeviceAssignmentPlanner.plan(filters, devicesPerCell, devices);
+    List<DeviceListResponseDevices> plannedDevices = new ArrayList<DeviceListResponseDevices>();
+    for (List<DeviceListResponseDevices> cellDevices: plan.values()) {
+      plannedDevices.addAll(cellDevices);
+    }
+
+    Set<String> reservedSerials =
+        DeviceReservationBroker.get().reserveAll(stfApiClient, plannedDevices);
+    // The matrix build holds the devices until its cells claim them.
+    for (String serial: reservedSerials) {
+      DeviceReleaseQueue.get().lease(stfApiClient, serial, build.getExternalizableId());
+    }
+
+    // A cell only gets its devices if all of them could be reserved.
+    Map<String, List<DeviceListResponseDevices>> assignments =
+        new HashMap<String, List<DeviceListResponseDevices>>();
+    Map<String, List<DeviceListResponseDevices>> incomplete =
+        new HashMap<String, List<DeviceListResponseDevices>>();
+    for (Map.Entry<String, List<DeviceListResponseDevices>> entry: plan.entrySet()) {
+      List<DeviceListResponseDevices> reserved = new ArrayList<DeviceListResponseDevices>();
+      for (DeviceListResponseDevices device: entry.getValue()) {
+        if (reservedSerials.contains(device.serial)) {
+          reserved.add(device);
+        }
+      }
+      if (reserved.size() == entry.getValue().size()) {
+        assignments.put(entry.getKey(), reserved);
+      } else if (!reserved.isEmpty()) {
+        incomplete.put(entry.getKey(), reserved);
+      }
+    }
+    new STFMatrixDeviceAssignmentAction(stfApiClient, incomplete).releaseUnclaimed();
+
+    assignment = new STFMatrixDeviceAssignmentAction(stfApiClient, assignments);
+    build.addAction(assignment);
+    log(logger, Messages.RESERVED_MATRIX_DEVICES(assignments.size(), cellCount,
+        assignments.size() * devicesPerCell));
+    return true;
+  }
+
+  /**
+   * Counts the executors which could start a cell right now.
+   * @param label Label the cell is tied to, or null if it can run on any node.
+   * @return number of idle executors.
+   */
+  private static int countIdleExecutors(Label label) {
+    if (label != null) {
+      return label.getIdleExecutors();
+    }
+    int idle = 0;
+    for (Computer computer: Jenkins.getInstance().getComputers()) {
+      Node node = computer.getNode();
+      // Nodes reserved for tied jobs don't take cells without a label.
+      if (node != null && node.getMode() == Node.Mode.NORMAL && computer.isOnline()
+          && computer.isAcceptingTasks()) {
+        idle += computer.countIdle();
+      }
+    }
+    return idle;
+  }
+
+  @Override
+  public boolean endBuild() throws InterruptedException, IOException {
+    if (assignment != null) {
+      int released = assignment.releaseUnclaimed();
+      if (released > 0) {
+        log(listener.getLogger(), Messages.RELEASED_UNCLAIMED_MATRIX_DEVICES(released));
+      }
+    }
+    return true;
+  }
+}
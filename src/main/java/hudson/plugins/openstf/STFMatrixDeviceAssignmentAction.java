@@ -0,0 +1,107 @@
+package hudson.plugins.openstf;
+
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+import hudson.plugins.openstf.exception.ApiFailedException;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.reservation.DeviceReleaseQueue;
+import hudson.plugins.openstf.reservation.DeviceReservationBroker;
+import hudson.plugins.openstf.util.Utils;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Devices the parent of a matrix build reserved for its cells, by combination.
+ * Each cell claims its devices when it starts. The devices which were not claimed are released
+ * when the matrix build ends.
+ */
+public class STFMatrixDeviceAssignmentAction extends InvisibleAction {
+
+  private static final Logger LOGGER =
+      Logger.getLogger(STFMatrixDeviceAssignmentAction.class.getName());
+
+  private final transient ApiClient stfApiClient;
+  private final transient Map<String, List<DeviceListResponseDevices>> assignments;
+
+  /**
+   * @param stfApiClient STF API client the devices were reserved with.
+   * @param assignments Reserved devices by combination. (see {@link #getKey})
+   */
+  public STFMatrixDeviceAssignmentAction(ApiClient stfApiClient,
+      Map<String, List<DeviceListResponseDevices>> assignments) {
+    this.stfApiClient = stfApiClient;
+    this.assignments = new ConcurrentHashMap<String, List<DeviceListResponseDevices>>(assignments);
+  }
+
+  /**
+   * Claims the devices reserved for a cell of a matrix build.
+   * @param build Build which is setting up.
+   * @return the devices reserved for the build, or null if it is not a matrix cell or no
+   *     device was reserved for it.
+   */
+  public static List<DeviceListResponseDevices> claim(AbstractBuild<?, ?> build) {
+    if (!(build instanceof MatrixRun)) {
+      return null;
+    }
+    MatrixRun run = (MatrixRun) build;
+    MatrixBuild parentBuild = run.getParentBuild();
+    if (parentBuild == null) {
+      return null;
+    }
+    STFMatrixDeviceAssignmentAction action =
+        parentBuild.getAction(STFMatrixDeviceAssignmentAction.class);
+    if (action == null || action.assignments == null) {
+      return null;
+    }
+    return action.assignments.remove(getKey(run.getParent().getCombination()));
+  }
+
+  /**
+   * Gets the key of a combination in the assignments.
+   * @param combination Axis values of a matrix cell.
+   * @return the key.
+   */
+  public static String getKey(Map<String, String> combination) {
+    return combination.toString();
+  }
+
+  /**
+   * Releases the devices which were not claimed, e.g. because the cell was skipped or aborted.
+   * @return number of devices released.
+   */
+  public int releaseUnclaimed() {
+    if (assignments == null) {
+      return 0;
+    }
+    int count = 0;
+    for (String key: assignments.keySet()) {
+      List<DeviceListResponseDevices> devices = assignments.remove(key);
+      if (devices == null) {
+        continue;
+      }
+      for (DeviceListResponseDevices device: devices) {
+        try {
+          Utils.releaseSTFDevice(stfApiClient, device);
+          DeviceReleaseQueue.get().released(device.serial);
+          count++;
+        } catch (ApiFailedException ex) {
+          LOGGER.log(Level.WARNING, "Failed to release unclaimed STF device " + device.serial, ex);
+          DeviceReleaseQueue.get().retryLater(stfApiClient, device.serial);
+        }
+      }
+    }
+    if (count > 0) {
+      STFDeviceInventory.get().invalidate();
+      DeviceReservationBroker.get().notifyDeviceReleased();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,457 @@
+package hudson.plugins.openstf.adb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client of the adb host protocol, talking to the adb server over TCP.
+ * Sending host commands directly is much cheaper than forking the adb binary for each of them.
+ * Each command uses its own connection, as the adb server closes it after replying.
+ * The adb server only listens on the loopback interface, so this must run on the node where
+ * the adb server was started.
+ */
+public class AdbClient {
+
+  /** Timeout value for connecting to the adb server. */
+  static final int SERVER_CONNECT_TIMEOUT_MS = 5 * 1000;
+
+  /** Timeout value for reading a reply. host:connect waits for the TCP connection to the device. */
+  static final int READ_TIMEOUT_MS = 30 * 1000;
+
+  /**
+   * Longest time a wait blocks in a read before checking whether it was interrupted, since
+   * interrupting a thread doesn't wake up a socket read.
+   */
+  static final int INTERRUPT_CHECK_INTERVAL_MS = 500;
+
+  /**
+   * Timeout value for the adb server to accept a subscription while waiting for devices. A
+   * server which doesn't answer in time is asked again, like one which closed the stream.
+   */
+  static final int SUBSCRIBE_TIMEOUT_MS = 2 * 1000;
+
+  /** Interval between subscriptions when the device state stream broke. */
+  static final long RESUBSCRIBE_INTERVAL_MS = 500;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final String host;
+  private final int port;
+
+  /**
+   * Creates a client of the adb server listening on the loopback interface.
+   * @param port adb server port. (ANDROID_ADB_SERVER_PORT)
+   */
+  public AdbClient(int port) {
+    this("127.0.0.1", port);
+  }
+
+  public AdbClient(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Connects the adb server to a device over TCP. (adb connect)
+   * @param serial host:port of the device.
+   * @return the message of the adb server. e.g. "connected to host:port"
+   * @throws IOException if the adb server could not be reached or refused the command.
+   */
+  public String connect(String serial) throws IOException {
+    return executeForMessage("host:connect:" + serial);
+  }
+
+  /**
+   * Disconnects the adb server from a device connected over TCP. (adb disconnect)
+   * @param serial host:port of the device.
+   * @return the message of the adb server, or an empty string if the server sent none.
+   * @throws IOException if the adb server could not be reached or refused the command.
+   */
+  public String disconnect(String serial) throws IOException {
+    return executeForMessage("host:disconnect:" + serial);
+  }
+
+  /**
+   * Gets the devices known to the adb server. (adb devices)
+   * @return device list.
+   * @throws IOException if the adb server could not be reached or refused the command.
+   */
+  public List<AdbDevice> getDevices() throws IOException {
+    return AdbDevice.parseList(executeForMessage("host:devices"));
+  }
+
+  /**
+   * Runs a shell command on a device and reads its output. (adb -s serial shell command)
+   * The adb server forwards the command over the device transport, so no adb process is forked.
+   * @param serial Serial of the device.
+   * @param command Shell command.
+   * @param timeoutMillis Maximum time to wait for each read.
+   * @return the output of the command.
+   * @throws AdbCommandFailedException if the device is unknown, offline or unauthorized.
+   * @throws IOException if the adb server could not be reached or the output was not read in time.
+   */
+  public String shell(String serial, String command, int timeoutMillis) throws IOException {
+    Socket socket = open();
+    try {
+      socket.setSoTimeout(timeoutMillis);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      send(socket, "host:transport:" + serial);
+      readStatus(in);
+      send(socket, "shell:" + command);
+      readStatus(in);
+      // The output is not length prefixed: the device closes the stream when the command ends.
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), CHARSET);
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Whether a device accepts shell commands and has finished booting.
+   * adb only allows shell commands after the device authorized our key.
+   * @param serial Serial of the device.
+   * @param timeoutMillis Maximum time to wait for the answer.
+   * @return true if the device is ready.
+   */
+  public boolean isBootCompleted(String serial, int timeoutMillis) {
+    try {
+      return "1".equals(shell(serial, "getprop sys.boot_completed", timeoutMillis).trim());
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Asks the adb server to exit. (adb kill-server)
+   * @throws IOException if the adb server could not be reached or refused the command.
+   */
+  public void kill() throws IOException {
+    Socket socket = open();
+    try {
+      send(socket, "host:kill");
+      readStatus(new DataInputStream(socket.getInputStream()));
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Whether an adb server is listening on the port.
+   * @return true if an adb server answered.
+   */
+  public boolean isServerRunning() {
+    try {
+      executeForMessage("host:version");
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Subscribes to device list changes. (host:track-devices)
+   * The adb server sends the whole device list right away, then again each time it changes.
+   * @return the tracker, which must be closed by the caller.
+   * @throws IOException if the adb server could not be reached or refused the command.
+   */
+  public DeviceTracker trackDevices() throws IOException {
+    return trackDevices(READ_TIMEOUT_MS);
+  }
+
+  private DeviceTracker trackDevices(int subscribeTimeoutMillis) throws IOException {
+    Socket socket = open();
+    try {
+      socket.setSoTimeout(subscribeTimeoutMillis);
+      send(socket, "host:track-devices");
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      readStatus(in);
+      return new DeviceTracker(socket, in);
+    } catch (IOException ex) {
+      socket.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Waits until a device turns online, following the device state stream of the adb server.
+   * Returns as soon as the adb server reports the device, instead of at the next poll.
+   * If the stream breaks, e.g. because the adb server restarted, it subscribes again.
+   * @param serial Serial of the device.
+   * @param timeoutMillis Maximum time to wait.
+   * @param listener Notified each time the state of the device changes. Can be null.
+   * @return true if the device turned online in time.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean waitForDevice(String serial, long timeoutMillis, StateListener listener)
+      throws InterruptedException {
+    return waitForDevices(Collections.singletonList(serial), timeoutMillis, listener)
+        .contains(serial);
+  }
+
+  /**
+   * Waits until several devices turn online, following one device state stream for all of them.
+   * @param serials Serials of the devices.
+   * @param timeoutMillis Maximum time to wait.
+   * @param listener Notified each time the state of one of the devices changes. Can be null.
+   * @return the serials which were online when all of them were, or when the time ran out.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public Set<String> waitForDevices(Collection<String> serials, long timeoutMillis,
+      StateListener listener) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    Map<String, String> lastStates = new HashMap<String, String>();
+    Set<String> online = new HashSet<String>();
+
+    while (true) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return online;
+      }
+      DeviceTracker tracker = null;
+      try {
+        tracker = trackDevices(SUBSCRIBE_TIMEOUT_MS);
+        while (true) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return online;
+          }
+          List<AdbDevice> devices;
+          try {
+            devices = tracker.next((int) Math.min(remaining, INTERRUPT_CHECK_INTERVAL_MS));
+          } catch (SocketTimeoutException ex) {
+            // No change yet. The tracker resumes a partly read device list on the next call.
+            continue;
+          }
+          if (devices == null) {
+            // The adb server closed the stream.
+            break;
+          }
+          online.clear();
+          for (String serial: serials) {
+            AdbDevice device = AdbDevice.find(devices, serial);
+            String state = device == null ? null : device.getState();
+            if (state != null && !state.equals(lastStates.get(serial)) && listener != null) {
+              listener.onStateChanged(serial, state);
+            }
+            lastStates.put(serial, state);
+            if (device != null && device.isOnline()) {
+              online.add(serial);
+            }
+          }
+          if (online.containsAll(serials)) {
+            return online;
+          }
+        }
+      } catch (IOException ex) {
+        // The adb server is (re)starting or slow to answer. Subscribe again after a moment.
+        online.clear();
+      } finally {
+        closeQuietly(tracker);
+      }
+      Thread.sleep(Math.min(RESUBSCRIBE_INTERVAL_MS,
+          Math.max(1, deadline - System.currentTimeMillis())));
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ex) {
+        // ignore
+      }
+    }
+  }
+
+  private String executeForMessage(String command) throws IOException {
+    Socket socket = open();
+    try {
+      send(socket, command);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      readStatus(in);
+      String message = readMessage(in, true);
+      return message == null ? "" : message;
+    } finally {
+      socket.close();
+    }
+  }
+
+  private Socket open() throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(host, port), SERVER_CONNECT_TIMEOUT_MS);
+      socket.setSoTimeout(READ_TIMEOUT_MS);
+    } catch (IOException ex) {
+      socket.close();
+      throw ex;
+    }
+    return socket;
+  }
+
+  private static void send(Socket socket, String command) throws IOException {
+    byte[] payload = command.getBytes(CHARSET);
+    OutputStream out = socket.getOutputStream();
+    out.write(String.format(Locale.ROOT, "%04x", payload.length).getBytes(CHARSET));
+    out.write(payload);
+    out.flush();
+  }
+
+  private static void readStatus(DataInputStream in) throws IOException {
+    byte[] status = new byte[4];
+    in.readFully(status);
+    String reply = new String(status, CHARSET);
+    if ("OKAY".equals(reply)) {
+      return;
+    }
+    if ("FAIL".equals(reply)) {
+      String message = readMessage(in, true);
+      throw new AdbCommandFailedException(message == null ? "" : message);
+    }
+    throw new IOException("Unexpected reply from adb server: " + reply);
+  }
+
+  /**
+   * Reads a hex length prefixed message.
+   * @param allowEof Whether the server may close the connection instead of sending a message.
+   * @return the message, or null at the end of the stream.
+   */
+  private static String readMessage(DataInputStream in, boolean allowEof) throws IOException {
+    byte[] lengthBytes = new byte[4];
+    try {
+      in.readFully(lengthBytes);
+    } catch (EOFException ex) {
+      if (allowEof) {
+        return null;
+      }
+      throw ex;
+    }
+    int length;
+    try {
+      length = Integer.parseInt(new String(lengthBytes, CHARSET), 16);
+    } catch (NumberFormatException ex) {
+      throw new IOException("Invalid length from adb server: " + new String(lengthBytes, CHARSET));
+    }
+    byte[] message = new byte[length];
+    in.readFully(message);
+    return new String(message, CHARSET);
+  }
+
+  /**
+   * Receives state changes of a device reported by the adb server.
+   */
+  public interface StateListener {
+
+    /**
+     * Called when the state of the device changed.
+     * @param serial Serial of the device.
+     * @param state New state. e.g. "device", "unauthorized", "offline"
+     */
+    void onStateChanged(String serial, String state);
+  }
+
+  /**
+   * Thrown when the adb server replied FAIL to a command.
+   */
+  public static final class AdbCommandFailedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public AdbCommandFailedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Stream of device lists pushed by the adb server.
+   */
+  public static final class DeviceTracker implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final byte[] lengthBytes = new byte[4];
+    private int lengthRead;
+    private byte[] message;
+    private int messageRead;
+
+    private DeviceTracker(Socket socket, DataInputStream in) {
+      this.socket = socket;
+      this.in = in;
+    }
+
+    /**
+     * Waits for the next device list.
+     * If the time runs out while a device list is coming in, the next call reads the rest of it.
+     * @param timeoutMillis Maximum time to wait. 0 waits forever.
+     * @return the device list, or null if the adb server closed the stream.
+     * @throws java.net.SocketTimeoutException if no device list came in time.
+     * @throws IOException if the stream broke.
+     */
+    public List<AdbDevice> next(int timeoutMillis) throws IOException {
+      socket.setSoTimeout(timeoutMillis);
+      while (lengthRead < lengthBytes.length) {
+        int read = in.read(lengthBytes, lengthRead, lengthBytes.length - lengthRead);
+        if (read < 0) {
+          if (lengthRead == 0) {
+            return null;
+          }
+          throw new EOFException();
+        }
+        lengthRead += read;
+      }
+      if (message == null) {
+        try {
+          message = new byte[Integer.parseInt(new String(lengthBytes, CHARSET), 16)];
+        } catch (NumberFormatException ex) {
+          throw new IOException(
+              "Invalid length from adb server: " + new String(lengthBytes, CHARSET));
+        }
+      }
+      while (messageRead < message.length) {
+        int read = in.read(message, messageRead, message.length - messageRead);
+        if (read < 0) {
+          throw new EOFException();
+        }
+        messageRead += read;
+      }
+      String payload = new String(message, CHARSET);
+      lengthRead = 0;
+      message = null;
+      messageRead = 0;
+      return AdbDevice.parseList(payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}
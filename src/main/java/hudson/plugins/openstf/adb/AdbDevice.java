@@ -0,0 +1,83 @@
+package hudson.plugins.openstf.adb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An entry of the device list reported by the adb server.
+ */
+public final class AdbDevice implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** State of a device which accepts commands. */
+  public static final String STATE_DEVICE = "device";
+
+  /** State of a device which did not authorize our adb key yet. */
+  public static final String STATE_UNAUTHORIZED = "unauthorized";
+
+  /** State of a device which is known to adb but not responding. */
+  public static final String STATE_OFFLINE = "offline";
+
+  private final String serial;
+  private final String state;
+
+  public AdbDevice(String serial, String state) {
+    this.serial = serial;
+    this.state = state;
+  }
+
+  public String getSerial() {
+    return serial;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public boolean isOnline() {
+    return STATE_DEVICE.equals(state);
+  }
+
+  /**
+   * Parses the payload of host:devices and host:track-devices.
+   * Each line is a serial and a state separated by a tab.
+   * @param payload Device list sent by the adb server.
+   * @return devices in the order the adb server listed them.
+   */
+  public static List<AdbDevice> parseList(String payload) {
+    if (payload == null || payload.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<AdbDevice> devices = new ArrayList<AdbDevice>();
+    for (String line: payload.split("\n")) {
+      int tab = line.indexOf('\t');
+      if (tab > 0) {
+        devices.add(new AdbDevice(line.substring(0, tab), line.substring(tab + 1).trim()));
+      }
+    }
+    return devices;
+  }
+
+  /**
+   * Finds a device by serial.
+   * @param devices Device list.
+   * @param serial Serial to look for.
+   * @return the device, or null if not listed.
+   */
+  public static AdbDevice find(List<AdbDevice> devices, String serial) {
+    for (AdbDevice device: devices) {
+      if (device.serial.equals(serial)) {
+        return device;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return serial + "\t" + state;
+  }
+}
@@ -0,0 +1,388 @@
+package hudson.plugins.openstf.adb;
+
+import hudson.model.TaskListener;
+import hudson.plugins.android_emulator.AndroidEmulator;
+import hudson.plugins.openstf.Messages;
+import hudson.plugins.openstf.util.ReadinessProbe;
+import hudson.remoting.Callable;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Remoting tasks which send adb host commands on the node where the adb server runs.
+ */
+public final class AdbTasks {
+
+  private AdbTasks() {
+  }
+
+  /**
+   * Connects devices, all of them at once. The task returns the message of each serial the adb
+   * server refused or failed to connect.
+   */
+  public static Callable<HashMap<String, String>, IOException> connect(int adbServerPort,
+      List<String> serials) {
+    return new ConnectTask(adbServerPort, serials);
+  }
+
+  public static Callable<String, IOException> disconnect(int adbServerPort, String serial) {
+    return new DisconnectTask(adbServerPort, serial);
+  }
+
+  public static Callable<List<AdbDevice>, IOException> getDevices(int adbServerPort) {
+    return new GetDevicesTask(adbServerPort);
+  }
+
+  /**
+   * Waits until devices turn online, reporting unauthorized and offline states to the build log
+   * as soon as the adb server reports them. The task returns the serials which turned online,
+   * and throws an {@link InterruptedIOException} if the build was aborted while waiting.
+   */
+  public static Callable<List<String>, IOException> waitForDevices(int adbServerPort,
+      List<String> serials, long timeoutMillis, TaskListener listener) {
+    return new WaitForDevicesTask(adbServerPort, serials, timeoutMillis, listener);
+  }
+
+  /**
+   * Waits until devices accept shell commands and have finished booting, probing all of them at
+   * once. The task returns the time each device took in milliseconds, or -1 if it did not become
+   * ready in time.
+   */
+  public static Callable<HashMap<String, Long>, IOException> waitForBootCompleted(
+      int adbServerPort, List<String> serials, long timeoutMillis) {
+    return new WaitForBootCompletedTask(adbServerPort, serials, timeoutMillis);
+  }
+
+  public static Callable<Void, IOException> killServer(int adbServerPort) {
+    return new KillServerTask(adbServerPort);
+  }
+
+  /**
+   * Connects devices through the shared adb server of the agent, all of them at once, starting
+   * the server if needed. The task returns true if the adb server had to be started.
+   */
+  public static Callable<Boolean, IOException> acquireShared(int adbServerPort,
+      List<String> serials, List<String> startCommand, Map<String, String> environment) {
+    return new AcquireSharedTask(adbServerPort, serials, startCommand, environment);
+  }
+
+  /**
+   * Releases a device of the shared adb server. The task returns the number of builds still
+   * using the device.
+   */
+  public static Callable<Integer, IOException> releaseShared(int adbServerPort, String serial) {
+    return new ReleaseSharedTask(adbServerPort, serial);
+  }
+
+  /**
+   * A host command sent for one device.
+   */
+  private interface SerialCommand<V> {
+    V call(String serial) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Sends a host command for each device at once, so that a device which is slow to answer
+   * doesn't delay the others.
+   * @return the result for each serial.
+   * @throws IOException if the command failed for any device, once all of them are done.
+   */
+  private static <V> Map<String, V> callForEachSerial(List<String> serials, String threadName,
+      final SerialCommand<V> command) throws IOException {
+    Map<String, V> results = new LinkedHashMap<String, V>();
+    if (serials.isEmpty()) {
+      return results;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(serials.size(),
+        new NamingThreadFactory(new DaemonThreadFactory(), threadName));
+    try {
+      Map<String, Future<V>> calls = new LinkedHashMap<String, Future<V>>();
+      for (final String serial: serials) {
+        calls.put(serial, executor.submit(new java.util.concurrent.Callable<V>() {
+          @Override
+          public V call() throws IOException, InterruptedException {
+            return command.call(serial);
+          }
+        }));
+      }
+      IOException failure = null;
+      for (Map.Entry<String, Future<V>> call: calls.entrySet()) {
+        try {
+          results.put(call.getKey(), call.getValue().get());
+        } catch (ExecutionException ex) {
+          if (failure == null) {
+            failure = ex.getCause() instanceof IOException
+                ? (IOException) ex.getCause() : new IOException(ex.getCause());
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return results;
+    } catch (InterruptedException ex) {
+      throw (InterruptedIOException) new InterruptedIOException(
+          "Interrupted while connecting the devices").initCause(ex);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static final class ConnectTask
+      extends MasterToSlaveCallable<HashMap<String, String>, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int adbServerPort;
+    private final List<String> serials;
+
+    private ConnectTask(int adbServerPort, List<String> serials) {
+      this.adbServerPort = adbServerPort;
+      this.serials = new ArrayList<String>(serials);
+    }
+
+    public HashMap<String, String> call() throws IOException {
+      final AdbClient client = new AdbClient(adbServerPort);
+      Map<String, String> messages = callForEachSerial(serials, "STF device connect",
+          new SerialCommand<String>() {
+            @Override
+            public String call(String serial) throws IOException {
+              try {
+                String message = client.connect(serial);
+                // adb answers OKAY to a connect which failed, e.g. "failed to connect to ...".
+                return isConnected(message) ? null : message;
+              } catch (AdbClient.AdbCommandFailedException ex) {
+                return ex.getMessage();
+              }
+            }
+          });
+      HashMap<String, String> failures = new LinkedHashMap<String, String>();
+      for (Map.Entry<String, String> message: messages.entrySet()) {
+        if (message.getValue() != null) {
+          failures.put(message.getKey(), message.getValue());
+        }
+      }
+      return failures;
+    }
+  }
+
+  /**
+   * Whether the reply of the adb server to host:connect tells that the device is connected.
+   */
+  static boolean isConnected(String message) {
+    return message.startsWith("connected to") || message.startsWith("already connected to");
+  }
+
+  private static final class DisconnectTask extends MasterToSlaveCallable<String, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int adbServerPort;
+    private final String serial;
+
+    private DisconnectTask(int adbServerPort, String serial) {
+      this.adbServerPort = adbServerPort;
+      this.serial = serial;
+    }
+
+    public String call() throws IOException {
+      return new AdbClient(adbServerPort).disconnect(serial);
+    }
+  }
+
+  private static final class GetDevicesTask
+      extends MasterToSlaveCallable<List<AdbDevice>, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int adbServerPort;
+
+    private GetDevicesTask(int adbServerPort) {
+      this.adbServerPort = adbServerPort;
+    }
+
+    public List<AdbDevice> call() throws IOException {
+      return new ArrayList<AdbDevice>(new AdbClient(adbServerPort).getDevices());
+    }
+  }
+
+  private static final class WaitForDevicesTask
+      extends MasterToSlaveCallable<List<String>, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int adbServerPort;
+    private final List<String> serials;
+    private final long timeoutMillis;
+    private final TaskListener listener;
+
+    private WaitForDevicesTask(int adbServerPort, List<String> serials, long timeoutMillis,
+        TaskListener listener) {
+      this.adbServerPort = adbServerPort;
+      this.serials = new ArrayList<String>(serials);
+      this.timeoutMillis = timeoutMillis;
+      this.listener = listener;
+    }
+
+    public List<String> call() throws IOException {
+      final PrintStream logger = listener.getLogger();
+      final boolean several = serials.size() > 1;
+      try {
+        return new ArrayList<String>(new AdbClient(adbServerPort).waitForDevices(serials,
+            timeoutMillis, new AdbClient.StateListener() {
+              @Override
+              public void onStateChanged(String serial, String state) {
+                String prefix = several ? serial + ": " : "";
+                if (AdbDevice.STATE_UNAUTHORIZED.equals(state)) {
+                  AndroidEmulator.log(logger, prefix + Messages.DEVICE_UNAUTHORIZED());
+                } else if (AdbDevice.STATE_OFFLINE.equals(state)) {
+                  AndroidEmulator.log(logger, prefix + Messages.DEVICE_OFFLINE());
+                }
+              }
+            }));
+      } catch (InterruptedException ex) {
+        throw (InterruptedIOException) new InterruptedIOException(
+            "Interrupted while waiting for the devices to come online").initCause(ex);
+      }
+    }
+  }
+
+  private static final class WaitForBootCompletedTask
+      extends MasterToSlaveCallable<HashMap<String, Long>, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum time to wait for the answer of one probe. */
+    private static final int PROBE_TIMEOUT_MS = 5 * 1000;
+
+    private final int adbServerPort;
+    private final List<String> serials;
+    private final long timeoutMillis;
+
+    private WaitForBootCompletedTask(int adbServerPort, List<String> serials,
+        long timeoutMillis) {
+      this.adbServerPort = adbServerPort;
+      this.serials = new ArrayList<String>(serials);
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    public HashMap<String, Long> call() throws IOException {
+      HashMap<String, Long> settleMillis = new LinkedHashMap<String, Long>();
+      if (serials.isEmpty()) {
+        return settleMillis;
+      }
+      final AdbClient client = new AdbClient(adbServerPort);
+      ExecutorService executor = Executors.newFixedThreadPool(serials.size(),
+          new NamingThreadFactory(new DaemonThreadFactory(), "STF device readiness probe"));
+      try {
+        Map<String, Future<Long>> probes = new LinkedHashMap<String, Future<Long>>();
+        for (final String serial: serials) {
+          probes.put(serial, executor.submit(new java.util.concurrent.Callable<Long>() {
+            @Override
+            public Long call() throws InterruptedException {
+              return new ReadinessProbe() {
+                @Override
+                protected boolean isReady() {
+                  return client.isBootCompleted(serial, PROBE_TIMEOUT_MS);
+                }
+              }.await(timeoutMillis);
+            }
+          }));
+        }
+        for (Map.Entry<String, Future<Long>> probe: probes.entrySet()) {
+          try {
+            settleMillis.put(probe.getKey(), probe.getValue().get());
+          } catch (ExecutionException ex) {
+            settleMillis.put(probe.getKey(), -1L);
+          }
+        }
+        return settleMillis;
+      } catch (InterruptedException ex) {
+        throw (InterruptedIOException) new InterruptedIOException(
+            "Interrupted while waiting for the devices to get ready").initCause(ex);
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private static final class AcquireSharedTask
+      extends MasterToSlaveCallable<Boolean, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int adbServerPort;
+    private final List<String> serials;
+    private final List<String> startCommand;
+    private final Map<String, String> environment;
+
+    private AcquireSharedTask(int adbServerPort, List<String> serials, List<String> startCommand,
+        Map<String, String> environment) {
+      this.adbServerPort = adbServerPort;
+      this.serials = new ArrayList<String>(serials);
+      this.startCommand = new ArrayList<String>(startCommand);
+      this.environment = new HashMap<String, String>(environment);
+    }
+
+    public Boolean call() throws IOException {
+      final SharedAdbServer server = SharedAdbServer.forPort(adbServerPort);
+      // The builds starting the adb server at once share one start, so only one reports it.
+      Map<String, Boolean> started = callForEachSerial(serials, "STF shared adb server connect",
+          new SerialCommand<Boolean>() {
+            @Override
+            public Boolean call(String serial) throws IOException, InterruptedException {
+              return server.acquire(serial, startCommand, environment);
+            }
+          });
+      return started.containsValue(Boolean.TRUE);
+    }
+  }
+
+  private static final class ReleaseSharedTask
+      extends MasterToSlaveCallable<Integer, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int adbServerPort;
+    private final String serial;
+
+    private ReleaseSharedTask(int adbServerPort, String serial) {
+      this.adbServerPort = adbServerPort;
+      this.serial = serial;
+    }
+
+    public Integer call() throws IOException {
+      return SharedAdbServer.forPort(adbServerPort).release(serial);
+    }
+  }
+
+  private static final class KillServerTask extends MasterToSlaveCallable<Void, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int adbServerPort;
+
+    private KillServerTask(int adbServerPort) {
+      this.adbServerPort = adbServerPort;
+    }
+
+    public Void call() throws IOException {
+      new AdbClient(adbServerPort).kill();
+      return null;
+    }
+  }
+}
@@ -0,0 +1,340 @@
+package hudson.plugins.openstf.adb;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * adb server shared by all STF builds running on an agent.
+ * Lives in the agent JVM, one per port. The server is started on first use and kept running
+ * between builds, so builds don't pay the adb server startup. Connected serials are reference
+ * counted, so a build disconnects its device only when no other build on the agent uses it.
+ * While devices are connected, a health check restarts the server if it crashed and connects
+ * the devices again.
+ * Connecting a device may take long, so it doesn't hold the lock of the server: builds using
+ * other devices go on meanwhile.
+ */
+public final class SharedAdbServer {
+
+  private static final Logger LOGGER = Logger.getLogger(SharedAdbServer.class.getName());
+
+  /** Default port of the shared adb server. Avoids 5037, which the adb of users listens on. */
+  public static final int DEFAULT_PORT = 5137;
+
+  /** Interval of the health check while devices are connected. */
+  static final long HEALTH_CHECK_INTERVAL_MS = 10 * 1000;
+
+  /** Timeout value for the adb server to answer after starting it. */
+  static final long START_TIMEOUT_MS = 10 * 1000;
+
+  /** Variables of the build environment the adb server needs. */
+  private static final List<String> ADB_VARIABLES = Arrays.asList("ANDROID_ADB_SERVER_PORT",
+      "ANDROID_SDK_HOME", "ANDROID_HOME", "ANDROID_SDK_ROOT", "LD_LIBRARY_PATH", "PATH");
+
+  /** Variables by which Jenkins finds the processes of a build to kill them. */
+  private static final List<String> BUILD_VARIABLES = Arrays.asList("BUILD_ID",
+      "JENKINS_SERVER_COOKIE", "JENKINS_NODE_COOKIE");
+
+  private static final Map<Integer, SharedAdbServer> SERVERS =
+      new HashMap<Integer, SharedAdbServer>();
+
+  private static ScheduledExecutorService healthCheckExecutor;
+
+  private final AdbClient client;
+  private final Map<String, Integer> refCounts = new HashMap<String, Integer>();
+  private final Map<String, Object> serialLocks = new HashMap<String, Object>();
+  private List<String> startCommand;
+  private Map<String, String> environment;
+  private ScheduledFuture<?> healthCheck;
+  private FutureTask<Boolean> start;
+  private int restartCount;
+
+  SharedAdbServer(int port) {
+    this.client = new AdbClient(port);
+  }
+
+  /**
+   * Gets the shared adb server of this JVM listening on the port.
+   * @param port adb server port.
+   * @return the shared adb server.
+   */
+  public static synchronized SharedAdbServer forPort(int port) {
+    SharedAdbServer server = SERVERS.get(port);
+    if (server == null) {
+      server = new SharedAdbServer(port);
+      SERVERS.put(port, server);
+    }
+    return server;
+  }
+
+  /**
+   * Starts the adb server if it is not running, and connects a device for a build.
+   * @param serial Serial of the device. (host:port)
+   * @param startCommand Command line of 'adb start-server'.
+   * @param environment Environment for the command, including ANDROID_ADB_SERVER_PORT.
+   * @return true if the adb server had to be started.
+   * @throws IOException if the adb server could not be started.
+   * @throws InterruptedException if interrupted while starting the adb server.
+   */
+  public boolean acquire(String serial, List<String> startCommand,
+      Map<String, String> environment) throws IOException, InterruptedException {
+    synchronized (this) {
+      this.startCommand = new ArrayList<String>(startCommand);
+      this.environment = new HashMap<String, String>(environment);
+    }
+
+    // Count the build in first, so that release() balances this call even if starting fails.
+    synchronized (getSerialLock(serial)) {
+      synchronized (this) {
+        Integer count = refCounts.get(serial);
+        refCounts.put(serial, count == null ? 1 : count + 1);
+      }
+    }
+    boolean started = ensureRunning();
+    synchronized (getSerialLock(serial)) {
+      client.connect(serial);
+    }
+    synchronized (this) {
+      if (!refCounts.isEmpty()) {
+        scheduleHealthCheck();
+      }
+    }
+    return started;
+  }
+
+  /**
+   * Releases a device used by a build.
+   * The device is disconnected when no other build uses it. The adb server keeps running.
+   * @param serial Serial of the device. (host:port)
+   * @return the number of builds still using the device.
+   */
+  public int release(String serial) {
+    synchronized (getSerialLock(serial)) {
+      synchronized (this) {
+        Integer count = refCounts.get(serial);
+        int remaining = count == null ? 0 : count - 1;
+        if (remaining > 0) {
+          refCounts.put(serial, remaining);
+          return remaining;
+        }
+        refCounts.remove(serial);
+        if (refCounts.isEmpty() && healthCheck != null) {
+          healthCheck.cancel(false);
+          healthCheck = null;
+        }
+      }
+      try {
+        client.disconnect(serial);
+      } catch (IOException ex) {
+        // The device is gone along with the adb server.
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Gets the number of builds using a device.
+   * @param serial Serial of the device.
+   * @return reference count.
+   */
+  public synchronized int getRefCount(String serial) {
+    Integer count = refCounts.get(serial);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Gets how many times the health check restarted the adb server.
+   * @return restart count.
+   */
+  public synchronized int getRestartCount() {
+    return restartCount;
+  }
+
+  /**
+   * Restarts the adb server if it stopped answering, and connects the devices in use again.
+   * @return true if the adb server was restarted.
+   */
+  boolean checkHealth() {
+    synchronized (this) {
+      if (refCounts.isEmpty()) {
+        return false;
+      }
+    }
+    if (client.isServerRunning()) {
+      return false;
+    }
+    LOGGER.log(Level.WARNING, "Shared adb server on port {0} is not responding, restarting it",
+        String.valueOf(client.getPort()));
+    List<String> serials;
+    try {
+      ensureRunning();
+      synchronized (this) {
+        restartCount++;
+        serials = new ArrayList<String>(refCounts.keySet());
+      }
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Failed to restart the shared adb server", ex);
+      return false;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    for (String serial: serials) {
+      synchronized (getSerialLock(serial)) {
+        // The build may have released the device meanwhile.
+        if (getRefCount(serial) == 0) {
+          continue;
+        }
+        try {
+          client.connect(serial);
+        } catch (IOException ex) {
+          LOGGER.log(Level.WARNING, "Failed to connect " + serial + " again", ex);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the lock which orders the connects and disconnects of a device, so that a disconnect
+   * of the last build doesn't overtake the connect of the next one. Builds using other devices
+   * don't wait for it.
+   */
+  private synchronized Object getSerialLock(String serial) {
+    Object lock = serialLocks.get(serial);
+    if (lock == null) {
+      lock = new Object();
+      serialLocks.put(serial, lock);
+    }
+    return lock;
+  }
+
+  /**
+   * Starts the adb server if it is not running. Builds calling this meanwhile wait for the same
+   * start instead of starting the server again.
+   * @return true if this call started the adb server.
+   */
+  private boolean ensureRunning() throws IOException, InterruptedException {
+    FutureTask<Boolean> task;
+    boolean starter = false;
+    synchronized (this) {
+      if (start == null) {
+        final List<String> command = startCommand;
+        final Map<String, String> env = environment;
+        start = new FutureTask<Boolean>(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException, InterruptedException {
+            return startIfNotRunning(command, env);
+          }
+        });
+        starter = true;
+      }
+      task = start;
+    }
+    if (starter) {
+      try {
+        task.run();
+      } finally {
+        synchronized (this) {
+          start = null;
+        }
+      }
+    }
+    try {
+      return task.get() && starter;
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      // Builds waiting for another build's start are not interrupted by its abort.
+      if (cause instanceof InterruptedException && starter) {
+        throw (InterruptedException) cause;
+      }
+      throw new IOException("Failed to start the adb server on port " + client.getPort(), cause);
+    }
+  }
+
+  private boolean startIfNotRunning(List<String> startCommand, Map<String, String> environment)
+      throws IOException, InterruptedException {
+    if (client.isServerRunning()) {
+      return false;
+    }
+    ProcessBuilder builder = new ProcessBuilder(startCommand).redirectErrorStream(true);
+    setUpStartEnvironment(builder.environment(), environment);
+    Process process = builder.start();
+    process.getOutputStream().close();
+    try {
+      if (!process.waitFor(START_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        process.destroy();
+      }
+    } finally {
+      process.getInputStream().close();
+    }
+
+    long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+    while (!client.isServerRunning()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("adb server did not start on port " + client.getPort());
+      }
+      Thread.sleep(100);
+    }
+    return true;
+  }
+
+  /**
+   * Sets up the environment of the adb server from the one of the build starting it.
+   * Only the adb and SDK variables are taken over: the variables identifying the build would let
+   * Jenkins kill the server along with the processes of that build, while other builds use it.
+   * @param startEnvironment Environment of the process, inherited from the agent.
+   * @param buildEnvironment Environment of the build.
+   */
+  static void setUpStartEnvironment(Map<String, String> startEnvironment,
+      Map<String, String> buildEnvironment) {
+    for (String name: ADB_VARIABLES) {
+      String value = buildEnvironment.get(name);
+      if (value != null) {
+        startEnvironment.put(name, value);
+      }
+    }
+    // The agent itself may have been started by a build.
+    for (String name: BUILD_VARIABLES) {
+      startEnvironment.remove(name);
+    }
+  }
+
+  private void scheduleHealthCheck() {
+    if (healthCheck != null) {
+      return;
+    }
+    healthCheck = getHealthCheckExecutor().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        checkHealth();
+      }
+    }, HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private static synchronized ScheduledExecutorService getHealthCheckExecutor() {
+    if (healthCheckExecutor == null) {
+      healthCheckExecutor = Executors.newSingleThreadScheduledExecutor(
+          new NamingThreadFactory(new DaemonThreadFactory(), "STF shared adb server health check"));
+    }
+    return healthCheckExecutor;
+  }
+}
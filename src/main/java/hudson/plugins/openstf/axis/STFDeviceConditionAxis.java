@@ -52,14 +52,6 @@ public class STFDeviceConditionAxis extends Axis {
      * @return List of Device condition types.
      */
     public ListBoxModel doFillTypeItems() {
-
-      Jenkins hudsonInstance = Jenkins.getInstance();
-
-      STFBuildWrapper.DescriptorImpl descriptor = hudsonInstance
-          .getDescriptorByType(STFBuildWrapper.DescriptorImpl.class);
-      Utils.setupSTFApiClient(descriptor.stfApiEndpoint, descriptor.ignoreCertError,
-          descriptor.stfToken);
-
       return Utils.getSTFDeviceAttributeListBoxItems();
     }
 
@@ -74,10 +66,7 @@ public class STFDeviceConditionAxis extends Axis {
 
       STFBuildWrapper.DescriptorImpl descriptor = hudsonInstance
           .getDescriptorByType(STFBuildWrapper.DescriptorImpl.class);
-      Utils.setupSTFApiClient(descriptor.stfApiEndpoint, descriptor.ignoreCertError,
-          descriptor.stfToken);
-
-      return Utils.getSTFDeviceAttributeValueListBoxItems(type);
+      return Utils.getSTFDeviceAttributeValueListBoxItems(descriptor.getSTFApiClient(), type);
     }
   }
 }
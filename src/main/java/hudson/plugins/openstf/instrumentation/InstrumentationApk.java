@@ -0,0 +1,97 @@
+package hudson.plugins.openstf.instrumentation;
+
+import net.dongliu.apk.parser.ApkFile;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Instrumentation declared by a test APK.
+ */
+public final class InstrumentationApk {
+
+  private final String packageName;
+  private final String runner;
+  private final String targetPackage;
+
+  InstrumentationApk(String packageName, String runner, String targetPackage) {
+    this.packageName = packageName;
+    this.runner = runner;
+    this.targetPackage = targetPackage;
+  }
+
+  /**
+   * Reads the package and the instrumentation runner from the manifest of a test APK.
+   * @param apk Test APK.
+   * @return the instrumentation.
+   * @throws IOException if the APK could not be read or declares no instrumentation.
+   */
+  public static InstrumentationApk read(File apk) throws IOException {
+    ApkFile apkFile = new ApkFile(apk);
+    try {
+      return parseManifest(apkFile.getApkMeta().getPackageName(), apkFile.getManifestXml());
+    } finally {
+      apkFile.close();
+    }
+  }
+
+  static InstrumentationApk parseManifest(String packageName, String manifestXml)
+      throws IOException {
+    Document manifest;
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      manifest = factory.newDocumentBuilder().parse(new InputSource(new StringReader(manifestXml)));
+    } catch (ParserConfigurationException ex) {
+      throw new IOException(ex);
+    } catch (SAXException ex) {
+      throw new IOException("Could not parse the manifest of the test APK", ex);
+    }
+
+    NodeList instrumentations = manifest.getElementsByTagName("instrumentation");
+    if (instrumentations.getLength() == 0) {
+      throw new IOException("The test APK " + packageName + " declares no instrumentation");
+    }
+    Element instrumentation = (Element) instrumentations.item(0);
+    String runner = instrumentation.getAttribute("android:name");
+    if (runner.isEmpty()) {
+      throw new IOException("The instrumentation of " + packageName + " has no name");
+    }
+    if (runner.startsWith(".")) {
+      runner = packageName + runner;
+    }
+    return new InstrumentationApk(packageName, runner,
+        instrumentation.getAttribute("android:targetPackage"));
+  }
+
+  /** Package of the test APK. */
+  public String getPackageName() {
+    return packageName;
+  }
+
+  /** Class name of the instrumentation runner. */
+  public String getRunner() {
+    return runner;
+  }
+
+  /** Package under test, or an empty string if not declared. */
+  public String getTargetPackage() {
+    return targetPackage;
+  }
+
+  /**
+   * Gets the component to pass to am instrument.
+   * @return package/runner
+   */
+  public String getComponent() {
+    return packageName + "/" + runner;
+  }
+}
@@ -0,0 +1,161 @@
+package hudson.plugins.openstf.instrumentation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the raw output of am instrument -r line by line, as the tests run.
+ * Each test reports a start status and a finish status, each made of key=value lines. Values
+ * such as stack traces continue over the following lines.
+ */
+public final class InstrumentationResultParser {
+
+  private static final String STATUS = "INSTRUMENTATION_STATUS: ";
+  private static final String STATUS_CODE = "INSTRUMENTATION_STATUS_CODE: ";
+  private static final String RESULT = "INSTRUMENTATION_RESULT: ";
+  private static final String CODE = "INSTRUMENTATION_CODE: ";
+  private static final String FAILED = "INSTRUMENTATION_FAILED: ";
+
+  static final int CODE_START = 1;
+  static final int CODE_IN_PROGRESS = 2;
+  static final int CODE_OK = 0;
+  static final int CODE_ERROR = -1;
+  static final int CODE_FAILURE = -2;
+  static final int CODE_IGNORED = -3;
+  static final int CODE_ASSUMPTION_FAILURE = -4;
+
+  private final List<InstrumentationTestResult> results =
+      new ArrayList<InstrumentationTestResult>();
+  private final Map<String, String> values = new HashMap<String, String>();
+  private String currentKey;
+  private String startedClass;
+  private String startedTest;
+  private long startedAt;
+  private boolean finished;
+  private String runFailure;
+
+  /**
+   * Parses a line of output.
+   * @param line Line without the line terminator.
+   */
+  public void parse(String line) {
+    if (line.endsWith("\r")) {
+      line = line.substring(0, line.length() - 1);
+    }
+    if (line.startsWith(STATUS)) {
+      putValue(line.substring(STATUS.length()));
+    } else if (line.startsWith(STATUS_CODE)) {
+      onStatus(parseCode(line.substring(STATUS_CODE.length())));
+      values.clear();
+      currentKey = null;
+    } else if (line.startsWith(RESULT)) {
+      putValue(line.substring(RESULT.length()));
+    } else if (line.startsWith(CODE)) {
+      finished = true;
+      String shortMsg = values.get("shortMsg");
+      if (shortMsg != null) {
+        runFailure = shortMsg;
+      }
+      currentKey = null;
+    } else if (line.startsWith(FAILED)) {
+      finished = true;
+      runFailure = line.substring(FAILED.length());
+      currentKey = null;
+    } else if (currentKey != null) {
+      values.put(currentKey, values.get(currentKey) + "\n" + line);
+    }
+  }
+
+  /**
+   * Ends parsing. A test which started but did not finish, e.g. because the process crashed,
+   * is reported as an error.
+   * @return the results of the tests, in the order they finished.
+   */
+  public List<InstrumentationTestResult> finish() {
+    if (startedTest != null) {
+      String message = runFailure != null ? runFailure : "Test did not finish";
+      results.add(new InstrumentationTestResult(startedClass, startedTest,
+          InstrumentationTestResult.Status.ERROR, message,
+          System.currentTimeMillis() - startedAt));
+      startedTest = null;
+    }
+    return results;
+  }
+
+  /**
+   * Whether am instrument reported the end of the run.
+   * @return false if the output ended early, e.g. because the device went away.
+   */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Gets the reason the run failed as a whole, e.g. a crash of the process.
+   * @return the reason, or null if none was reported.
+   */
+  public String getRunFailure() {
+    return runFailure;
+  }
+
+  private void putValue(String keyValue) {
+    int eq = keyValue.indexOf('=');
+    if (eq < 0) {
+      currentKey = null;
+      return;
+    }
+    currentKey = keyValue.substring(0, eq);
+    values.put(currentKey, keyValue.substring(eq + 1));
+  }
+
+  private void onStatus(int code) {
+    String className = values.get("class");
+    String testName = values.get("test");
+    if (className == null || testName == null) {
+      return;
+    }
+    if (code == CODE_START) {
+      startedClass = className;
+      startedTest = testName;
+      startedAt = System.currentTimeMillis();
+      return;
+    }
+    if (code == CODE_IN_PROGRESS) {
+      return;
+    }
+
+    InstrumentationTestResult.Status status;
+    switch (code) {
+      case CODE_OK:
+        status = InstrumentationTestResult.Status.PASSED;
+        break;
+      case CODE_FAILURE:
+        status = InstrumentationTestResult.Status.FAILED;
+        break;
+      case CODE_IGNORED:
+      case CODE_ASSUMPTION_FAILURE:
+        status = InstrumentationTestResult.Status.SKIPPED;
+        break;
+      default:
+        status = InstrumentationTestResult.Status.ERROR;
+        break;
+    }
+    boolean started = className.equals(startedClass) && testName.equals(startedTest);
+    long duration = started ? System.currentTimeMillis() - startedAt : 0;
+    results.add(new InstrumentationTestResult(className, testName, status, values.get("stack"),
+        duration));
+    if (started) {
+      startedTest = null;
+    }
+  }
+
+  private static int parseCode(String code) {
+    try {
+      return Integer.parseInt(code.trim());
+    } catch (NumberFormatException ex) {
+      return CODE_ERROR;
+    }
+  }
+}
@@ -0,0 +1,344 @@
+package hudson.plugins.openstf.instrumentation;
+
+import hudson.model.TaskListener;
+import hudson.plugins.android_emulator.AndroidEmulator;
+import hudson.plugins.openstf.Messages;
+import hudson.remoting.Callable;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remoting tasks which run instrumentation tests on the node where the devices are connected.
+ */
+public final class InstrumentationTasks {
+
+  private InstrumentationTasks() {
+  }
+
+  /**
+   * Installs the APKs on the devices, and runs the test classes spread over them.
+   * Writes the merged results as a JUnit XML report. The task returns the results, and throws an
+   * {@link InterruptedIOException} if the build was aborted meanwhile.
+   * @param adbCommand Command line of adb, without arguments.
+   * @param environment Environment for adb, including ANDROID_ADB_SERVER_PORT.
+   * @param serials Serials of the devices.
+   * @param testApk Path of the test APK on the node.
+   * @param appApk Path of the APK under test on the node, or null if it is installed already.
+   * @param reportFile Path of the JUnit XML report on the node.
+   */
+  public static Callable<List<InstrumentationTestResult>, IOException> run(
+      List<String> adbCommand, Map<String, String> environment, List<String> serials,
+      String testApk, String appApk, String reportFile, TaskListener listener) {
+    return new RunTask(adbCommand, environment, serials, testApk, appApk, reportFile, listener);
+  }
+
+  /**
+   * Reads the packages a test APK installs on the devices. The task returns the package under
+   * test, if declared, and the package of the test APK.
+   * @param testApk Path of the test APK on the node.
+   */
+  public static Callable<List<String>, IOException> readPackages(String testApk) {
+    return new ReadPackagesTask(testApk);
+  }
+
+  private static final class ReadPackagesTask
+      extends MasterToSlaveCallable<List<String>, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String testApk;
+
+    private ReadPackagesTask(String testApk) {
+      this.testApk = testApk;
+    }
+
+    public List<String> call() throws IOException {
+      InstrumentationApk apk = InstrumentationApk.read(new File(testApk));
+      List<String> packageNames = new ArrayList<String>();
+      if (!apk.getTargetPackage().isEmpty()) {
+        packageNames.add(apk.getTargetPackage());
+      }
+      packageNames.add(apk.getPackageName());
+      return packageNames;
+    }
+  }
+
+  private static final class RunTask
+      extends MasterToSlaveCallable<List<InstrumentationTestResult>, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Timeout value for installing an APK. */
+    private static final long INSTALL_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /** Timeout value for listing the tests. */
+    private static final long LIST_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /** Timeout value for running the tests of a class. */
+    private static final long CLASS_TIMEOUT_MS = 30 * 60 * 1000;
+
+    /**
+     * Interval at which the watchdog checks whether the caller was interrupted, since
+     * interrupting a thread doesn't wake up its read of the adb output.
+     */
+    private static final long INTERRUPT_CHECK_INTERVAL_MS = 500;
+
+    private final List<String> adbCommand;
+    private final Map<String, String> environment;
+    private final List<String> serials;
+    private final String testApk;
+    private final String appApk;
+    private final String reportFile;
+    private final TaskListener listener;
+    private transient Set<Process> processes;
+
+    private RunTask(List<String> adbCommand, Map<String, String> environment,
+        List<String> serials, String testApk, String appApk, String reportFile,
+        TaskListener listener) {
+      this.adbCommand = new ArrayList<String>(adbCommand);
+      this.environment = new HashMap<String, String>(environment);
+      this.serials = new ArrayList<String>(serials);
+      this.testApk = testApk;
+      this.appApk = appApk;
+      this.reportFile = reportFile;
+      this.listener = listener;
+    }
+
+    public List<InstrumentationTestResult> call() throws IOException {
+      PrintStream logger = listener.getLogger();
+      processes = Collections.synchronizedSet(new HashSet<Process>());
+      final InstrumentationApk apk = InstrumentationApk.read(new File(testApk));
+      try {
+        List<String> installed = install();
+        if (installed.isEmpty()) {
+          throw new IOException("The APKs could not be installed on any device");
+        }
+        List<String> classNames = listClasses(installed.get(0), apk);
+        AndroidEmulator.log(logger, Messages.RUNNING_INSTRUMENTATION(classNames.size(),
+            apk.getComponent(), installed.size()));
+
+        List<InstrumentationTestResult> results = new ShardScheduler(new ShardScheduler.Shard() {
+          @Override
+          public List<InstrumentationTestResult> run(String serial, String className)
+              throws IOException, InterruptedException {
+            return runClass(serial, className, apk);
+          }
+        }).run(installed, classNames);
+
+        File report = new File(reportFile);
+        File reportDir = report.getParentFile();
+        if (reportDir != null && !reportDir.isDirectory() && !reportDir.mkdirs()) {
+          throw new IOException("Could not create " + reportDir);
+        }
+        OutputStream out = new FileOutputStream(report);
+        try {
+          JUnitXmlWriter.write(results, out);
+        } finally {
+          out.close();
+        }
+        return new ArrayList<InstrumentationTestResult>(results);
+      } catch (InterruptedException ex) {
+        for (Process process: new ArrayList<Process>(processes)) {
+          process.destroy();
+        }
+        throw (InterruptedIOException) new InterruptedIOException(
+            "Interrupted while running the instrumentation tests").initCause(ex);
+      }
+    }
+
+    /**
+     * Installs the APKs on all the devices at once.
+     * @return the serials of the devices where the APKs were installed.
+     */
+    private List<String> install() throws InterruptedException {
+      final List<String> installed = Collections.synchronizedList(new ArrayList<String>());
+      List<Thread> installers = new ArrayList<Thread>();
+      for (final String serial: serials) {
+        Thread installer = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (appApk != null) {
+                install(serial, appApk);
+              }
+              install(serial, testApk);
+              installed.add(serial);
+            } catch (IOException ex) {
+              AndroidEmulator.log(listener.getLogger(),
+                  Messages.CANNOT_INSTALL_APK(serial, ex.getMessage()));
+            } catch (InterruptedException ex) {
+              // The build was aborted.
+            }
+          }
+        }, "STF instrumentation install " + serial);
+        installer.setDaemon(true);
+        installers.add(installer);
+        installer.start();
+      }
+      for (Thread installer: installers) {
+        installer.join();
+      }
+
+      // Keep the order of the devices.
+      List<String> ordered = new ArrayList<String>(serials);
+      ordered.retainAll(installed);
+      return ordered;
+    }
+
+    private void install(String serial, String apk) throws IOException, InterruptedException {
+      final StringBuilder output = new StringBuilder();
+      execute(adb(serial, "install", "-r", apk), INSTALL_TIMEOUT_MS, new LineHandler() {
+        @Override
+        public void onLine(String line) {
+          output.append(line).append('\n');
+        }
+      });
+      if (!output.toString().contains("Success")) {
+        throw new IOException(output.toString().trim());
+      }
+    }
+
+    /**
+     * Lists the test classes without running the tests.
+     */
+    private List<String> listClasses(String serial, InstrumentationApk apk)
+        throws IOException, InterruptedException {
+      final InstrumentationResultParser parser = new InstrumentationResultParser();
+      execute(adb(serial, "shell", "am", "instrument", "-r", "-w", "-e", "log", "true",
+          apk.getComponent()), LIST_TIMEOUT_MS, new LineHandler() {
+            @Override
+            public void onLine(String line) {
+              parser.parse(line);
+            }
+          });
+      Set<String> classNames = new LinkedHashSet<String>();
+      for (InstrumentationTestResult result: parser.finish()) {
+        classNames.add(result.getClassName());
+      }
+      if (classNames.isEmpty() && parser.getRunFailure() != null) {
+        throw new IOException(parser.getRunFailure());
+      }
+      return new ArrayList<String>(classNames);
+    }
+
+    private List<InstrumentationTestResult> runClass(String serial, String className,
+        InstrumentationApk apk) throws IOException, InterruptedException {
+      final InstrumentationResultParser parser = new InstrumentationResultParser();
+      execute(adb(serial, "shell", "am", "instrument", "-r", "-w", "-e", "class", className,
+          apk.getComponent()), CLASS_TIMEOUT_MS, new LineHandler() {
+            @Override
+            public void onLine(String line) {
+              parser.parse(line);
+            }
+          });
+      if (!parser.isFinished()) {
+        // The device went away. Another device runs the class again.
+        throw new IOException("The instrumentation output of " + className + " ended early");
+      }
+      List<InstrumentationTestResult> results = parser.finish();
+      if (results.isEmpty() && parser.getRunFailure() != null) {
+        results = Collections.singletonList(new InstrumentationTestResult(className,
+            "initializationError", InstrumentationTestResult.Status.ERROR,
+            parser.getRunFailure(), 0));
+      }
+      return results;
+    }
+
+    private List<String> adb(String serial, String... args) {
+      List<String> command = new ArrayList<String>(adbCommand);
+      command.add("-s");
+      command.add(serial);
+      command.addAll(Arrays.asList(args));
+      return command;
+    }
+
+    private void execute(List<String> command, long timeoutMillis, LineHandler handler)
+        throws IOException, InterruptedException {
+      ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+      builder.environment().putAll(environment);
+      final Process process = builder.start();
+      processes.add(process);
+      process.getOutputStream().close();
+
+      final AtomicBoolean timedOut = new AtomicBoolean();
+      final AtomicBoolean aborted = new AtomicBoolean();
+      final Thread caller = Thread.currentThread();
+      final long deadline = System.currentTimeMillis() + timeoutMillis;
+      Thread watchdog = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              long remaining = deadline - System.currentTimeMillis();
+              if (remaining <= 0) {
+                timedOut.set(true);
+                process.destroy();
+                return;
+              }
+              if (process.waitFor(Math.min(remaining, INTERRUPT_CHECK_INTERVAL_MS),
+                  TimeUnit.MILLISECONDS)) {
+                return;
+              }
+              if (caller.isInterrupted()) {
+                // Ends the read of the caller.
+                aborted.set(true);
+                process.destroy();
+                return;
+              }
+            }
+          } catch (InterruptedException ex) {
+            // The process finished.
+          }
+        }
+      }, "STF instrumentation watchdog");
+      watchdog.setDaemon(true);
+      watchdog.start();
+
+      try {
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            handler.onLine(line);
+          }
+        } finally {
+          reader.close();
+        }
+        process.waitFor();
+      } finally {
+        watchdog.interrupt();
+        processes.remove(process);
+      }
+      if (aborted.get()) {
+        throw new InterruptedException("Interrupted while running " + command);
+      }
+      if (timedOut.get()) {
+        throw new IOException("adb did not finish in " + timeoutMillis / 1000 + " sec");
+      }
+    }
+  }
+
+  private interface LineHandler {
+    void onLine(String line);
+  }
+}
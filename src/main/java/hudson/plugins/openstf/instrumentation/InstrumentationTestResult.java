@@ -0,0 +1,62 @@
+package hudson.plugins.openstf.instrumentation;
+
+import java.io.Serializable;
+
+/**
+ * Result of a test run by am instrument.
+ */
+public final class InstrumentationTestResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Outcome of a test. */
+  public enum Status {
+    PASSED, FAILED, ERROR, SKIPPED
+  }
+
+  private final String className;
+  private final String testName;
+  private final Status status;
+  private final String stackTrace;
+  private final long durationMillis;
+  private String serial;
+
+  public InstrumentationTestResult(String className, String testName, Status status,
+      String stackTrace, long durationMillis) {
+    this.className = className;
+    this.testName = testName;
+    this.status = status;
+    this.stackTrace = stackTrace;
+    this.durationMillis = durationMillis;
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public String getTestName() {
+    return testName;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /** Stack trace of a failed test, or null. */
+  public String getStackTrace() {
+    return stackTrace;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /** Serial of the device which ran the test. */
+  public String getSerial() {
+    return serial;
+  }
+
+  void setSerial(String serial) {
+    this.serial = serial;
+  }
+}
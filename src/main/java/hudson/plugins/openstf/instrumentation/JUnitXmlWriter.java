@@ -0,0 +1,139 @@
+package hudson.plugins.openstf.instrumentation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes test results as one JUnit XML report, with a test suite per class.
+ * The serial of the device which ran a class is written as the hostname of its test suite.
+ */
+public final class JUnitXmlWriter {
+
+  private JUnitXmlWriter() {
+  }
+
+  /**
+   * Writes the report.
+   * @param results Results of the tests.
+   * @param out Destination. Not closed.
+   * @throws IOException if the report could not be written.
+   */
+  public static void write(List<InstrumentationTestResult> results, OutputStream out)
+      throws IOException {
+    Map<String, List<InstrumentationTestResult>> suites =
+        new LinkedHashMap<String, List<InstrumentationTestResult>>();
+    for (InstrumentationTestResult result: results) {
+      List<InstrumentationTestResult> suite = suites.get(result.getClassName());
+      if (suite == null) {
+        suite = new ArrayList<InstrumentationTestResult>();
+        suites.put(result.getClassName(), suite);
+      }
+      suite.add(result);
+    }
+
+    try {
+      XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeStartElement("testsuites");
+      for (Map.Entry<String, List<InstrumentationTestResult>> suite: suites.entrySet()) {
+        writeSuite(xml, suite.getKey(), suite.getValue());
+      }
+      xml.writeEndElement();
+      xml.writeEndDocument();
+      xml.flush();
+    } catch (XMLStreamException ex) {
+      throw new IOException("Could not write the JUnit report", ex);
+    }
+  }
+
+  private static void writeSuite(XMLStreamWriter xml, String className,
+      List<InstrumentationTestResult> results) throws XMLStreamException {
+    int failures = 0;
+    int errors = 0;
+    int skipped = 0;
+    long duration = 0;
+    for (InstrumentationTestResult result: results) {
+      switch (result.getStatus()) {
+        case FAILED:
+          failures++;
+          break;
+        case ERROR:
+          errors++;
+          break;
+        case SKIPPED:
+          skipped++;
+          break;
+        default:
+          break;
+      }
+      duration += result.getDurationMillis();
+    }
+
+    xml.writeStartElement("testsuite");
+    xml.writeAttribute("name", className);
+    xml.writeAttribute("tests", String.valueOf(results.size()));
+    xml.writeAttribute("failures", String.valueOf(failures));
+    xml.writeAttribute("errors", String.valueOf(errors));
+    xml.writeAttribute("skipped", String.valueOf(skipped));
+    xml.writeAttribute("time", formatSeconds(duration));
+    String serial = results.get(0).getSerial();
+    if (serial != null) {
+      xml.writeAttribute("hostname", serial);
+    }
+    for (InstrumentationTestResult result: results) {
+      xml.writeStartElement("testcase");
+      xml.writeAttribute("classname", className);
+      xml.writeAttribute("name", result.getTestName());
+      xml.writeAttribute("time", formatSeconds(result.getDurationMillis()));
+      switch (result.getStatus()) {
+        case FAILED:
+          writeProblem(xml, "failure", result.getStackTrace());
+          break;
+        case ERROR:
+          writeProblem(xml, "error", result.getStackTrace());
+          break;
+        case SKIPPED:
+          xml.writeEmptyElement("skipped");
+          break;
+        default:
+          break;
+      }
+      xml.writeEndElement();
+    }
+    xml.writeEndElement();
+  }
+
+  private static void writeProblem(XMLStreamWriter xml, String element, String stackTrace)
+      throws XMLStreamException {
+    String text = stackTrace == null ? "" : stripInvalidCharacters(stackTrace);
+    int lineEnd = text.indexOf('\n');
+    xml.writeStartElement(element);
+    xml.writeAttribute("message", lineEnd < 0 ? text : text.substring(0, lineEnd));
+    xml.writeCharacters(text);
+    xml.writeEndElement();
+  }
+
+  private static String formatSeconds(long millis) {
+    return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+  }
+
+  /** Removes the characters XML 1.0 can't represent, which logs of crashes may contain. */
+  private static String stripInvalidCharacters(String text) {
+    StringBuilder builder = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+        builder.append(c);
+      }
+    }
+    return builder.toString();
+  }
+}
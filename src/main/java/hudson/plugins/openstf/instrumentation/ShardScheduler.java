@@ -0,0 +1,165 @@
+package hudson.plugins.openstf.instrumentation;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads test classes over devices.
+ * Each device takes the next class from a shared queue as soon as it finished the previous one,
+ * so fast devices run more classes and a slow device holds up the end by one class at most.
+ * When a device fails to run a class, the class goes back to the queue for another device, and
+ * the device stops taking classes.
+ */
+public final class ShardScheduler {
+
+  private static final Logger LOGGER = Logger.getLogger(ShardScheduler.class.getName());
+
+  /** Number of devices a class may fail on before it is reported as an error. */
+  static final int MAX_ATTEMPTS = 2;
+
+  /**
+   * Runs a test class on a device.
+   */
+  public interface Shard {
+
+    /**
+     * Runs the tests of a class.
+     * @param serial Serial of the device.
+     * @param className Test class.
+     * @return the results of the tests.
+     * @throws IOException if the device could not run the class.
+     * @throws InterruptedException if interrupted while running.
+     */
+    List<InstrumentationTestResult> run(String serial, String className)
+        throws IOException, InterruptedException;
+  }
+
+  private final Shard shard;
+  private final ArrayDeque<String> queue = new ArrayDeque<String>();
+  private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+  private final List<InstrumentationTestResult> results =
+      new ArrayList<InstrumentationTestResult>();
+  private int running;
+
+  public ShardScheduler(Shard shard) {
+    this.shard = shard;
+  }
+
+  /**
+   * Runs the classes on the devices, in parallel.
+   * @param serials Serials of the devices.
+   * @param classNames Test classes.
+   * @return the results of all the tests.
+   * @throws InterruptedException if interrupted while running.
+   */
+  public List<InstrumentationTestResult> run(List<String> serials, List<String> classNames)
+      throws InterruptedException {
+    queue.addAll(classNames);
+    List<Thread> workers = new ArrayList<Thread>();
+    for (final String serial: serials) {
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work(serial);
+        }
+      }, "STF instrumentation shard " + serial);
+      worker.setDaemon(true);
+      workers.add(worker);
+    }
+    for (Thread worker: workers) {
+      worker.start();
+    }
+    try {
+      for (Thread worker: workers) {
+        worker.join();
+      }
+    } catch (InterruptedException ex) {
+      for (Thread worker: workers) {
+        worker.interrupt();
+      }
+      throw ex;
+    }
+
+    // Every device failed. Report what was left.
+    for (String className: queue) {
+      results.add(new InstrumentationTestResult(className, "initializationError",
+          InstrumentationTestResult.Status.ERROR, "No device could run this class", 0));
+    }
+    return Collections.unmodifiableList(results);
+  }
+
+  private void work(String serial) {
+    while (true) {
+      String className = take();
+      if (className == null) {
+        return;
+      }
+      try {
+        List<InstrumentationTestResult> classResults = shard.run(serial, className);
+        for (InstrumentationTestResult result: classResults) {
+          result.setSerial(serial);
+        }
+        done(classResults);
+      } catch (IOException ex) {
+        LOGGER.log(Level.WARNING, "Device " + serial + " failed to run " + className, ex);
+        retry(serial, className, ex.getMessage());
+        return;
+      } catch (InterruptedException ex) {
+        done(Collections.<InstrumentationTestResult>emptyList());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Takes the next class. Waits while other devices run classes, which may come back.
+   * @return the class, or null when all the classes have run.
+   */
+  private synchronized String take() {
+    while (true) {
+      String className = queue.poll();
+      if (className != null) {
+        running++;
+        return className;
+      }
+      if (running == 0) {
+        return null;
+      }
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        return null;
+      }
+    }
+  }
+
+  private synchronized void done(List<InstrumentationTestResult> classResults) {
+    results.addAll(classResults);
+    running--;
+    notifyAll();
+  }
+
+  private synchronized void retry(String serial, String className, String reason) {
+    Integer count = attempts.get(className);
+    count = count == null ? 1 : count + 1;
+    attempts.put(className, count);
+    if (count < MAX_ATTEMPTS) {
+      // Let another device run it first.
+      queue.addFirst(className);
+    } else {
+      InstrumentationTestResult result = new InstrumentationTestResult(className,
+          "initializationError", InstrumentationTestResult.Status.ERROR, reason, 0);
+      result.setSerial(serial);
+      results.add(result);
+    }
+    running--;
+    notifyAll();
+  }
+}
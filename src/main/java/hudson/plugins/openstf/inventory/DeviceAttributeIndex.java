@@ -0,0 +1,73 @@
+package hudson.plugins.openstf.inventory;
+
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Distinct values of each device attribute in a device list, for the dropdowns of the
+ * configuration pages.
+ * The index is built once per inventory snapshot, so rendering a page with many condition rows
+ * doesn't walk the device list once per row.
+ */
+public final class DeviceAttributeIndex {
+
+  /** Attributes which can be used in device conditions, sorted by name. */
+  public static final SortedSet<String> ATTRIBUTES = Collections.unmodifiableSortedSet(
+      getConditionAttributes());
+
+  private final Map<String, SortedSet<String>> values;
+
+  private DeviceAttributeIndex(Map<String, SortedSet<String>> values) {
+    this.values = values;
+  }
+
+  /**
+   * Builds the index of a device list.
+   * @param devices STF devices.
+   * @return the index of all {@link #ATTRIBUTES}.
+   */
+  public static DeviceAttributeIndex build(Collection<DeviceListResponseDevices> devices) {
+    Map<String, SortedSet<String>> values = new HashMap<String, SortedSet<String>>();
+    for (String attribute: ATTRIBUTES) {
+      SortedSet<String> attributeValues = new TreeSet<String>();
+      for (DeviceListResponseDevices device: devices) {
+        String value = DeviceFilter.getAttributeValue(device, attribute);
+        if (value != null) {
+          attributeValues.add(value);
+        }
+      }
+      values.put(attribute, Collections.unmodifiableSortedSet(attributeValues));
+    }
+    return new DeviceAttributeIndex(values);
+  }
+
+  /**
+   * Gets the distinct values of an attribute.
+   * @param attribute Attribute name.
+   * @return sorted values, or an empty set if the attribute is not in {@link #ATTRIBUTES}.
+   */
+  public SortedSet<String> getValues(String attribute) {
+    SortedSet<String> attributeValues = values.get(attribute);
+    return attributeValues == null ? Collections.<String>emptySortedSet() : attributeValues;
+  }
+
+  private static SortedSet<String> getConditionAttributes() {
+    List<String> excludeAttributes = Arrays.asList("image", "owner", "present", "remoteConnectUrl");
+    SortedSet<String> attributes = new TreeSet<String>();
+    for (Field field: DeviceListResponseDevices.class.getFields()) {
+      if (!excludeAttributes.contains(field.getName())) {
+        attributes.add(field.getName());
+      }
+    }
+    return attributes;
+  }
+}
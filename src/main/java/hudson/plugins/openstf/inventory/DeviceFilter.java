@@ -0,0 +1,263 @@
+package hudson.plugins.openstf.inventory;
+
+import hudson.plugins.openstf.Constants;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Device condition set compiled for repeated evaluation.
+ * Attribute accessors are resolved and regex values are compiled once in {@link #compile(Map)},
+ * so that evaluating the filter against many devices does not use reflection or recompile patterns.
+ */
+public final class DeviceFilter {
+
+  /** Filter which matches every device. */
+  public static final DeviceFilter ANY = new DeviceFilter(new Condition[0]);
+
+  private static final String ANY_VALUE = "any";
+  private static final String NULL_VALUE = "null";
+
+  private static final Map<String, AttributeAccessor> ACCESSORS = createAccessors();
+
+  private final Condition[] conditions;
+
+  private DeviceFilter(Condition[] conditions) {
+    this.conditions = conditions;
+  }
+
+  /**
+   * Compiles the given device condition set.
+   * Conditions with the value "any", and conditions on unknown attributes are ignored.
+   * @param filter Conditions of the STF device. (attribute name to value, or "/REGEX/")
+   * @return compiled filter.
+   * @throws java.util.regex.PatternSyntaxException if a regex value is invalid.
+   */
+  public static DeviceFilter compile(Map<String, String> filter) {
+    if (filter == null || filter.isEmpty()) {
+      return ANY;
+    }
+
+    List<Condition> conditions = new ArrayList<Condition>(filter.size());
+    for (Map.Entry<String, String> entry: filter.entrySet()) {
+      String value = entry.getValue();
+      AttributeAccessor accessor = getAccessor(entry.getKey());
+      if (value == null || value.equals(ANY_VALUE) || accessor == null) {
+        continue;
+      }
+
+      Pattern pattern = null;
+      if (value.matches(Constants.REGEX_ESCAPED_REGEX_VALUE)) {
+        pattern = Pattern.compile(value.substring(1, value.length() - 1));
+      }
+      conditions.add(new Condition(entry.getKey(), accessor, value, pattern));
+    }
+    return new DeviceFilter(conditions.toArray(new Condition[conditions.size()]));
+  }
+
+  /**
+   * Gets the value of the given attribute in the form used for filtering.
+   * @param device STF device.
+   * @param attribute Attribute name.
+   * @return attribute value, or null if the device has no value or the attribute is unknown.
+   */
+  public static String getAttributeValue(DeviceListResponseDevices device, String attribute) {
+    AttributeAccessor accessor = getAccessor(attribute);
+    if (accessor == null) {
+      return null;
+    }
+    return accessor.get(device);
+  }
+
+  /**
+   * Gets the names of the attributes which this filter evaluates.
+   * @return attribute names.
+   */
+  public Set<String> getAttributes() {
+    Set<String> attributes = new TreeSet<String>();
+    for (Condition condition: conditions) {
+      attributes.add(condition.attribute);
+    }
+    return attributes;
+  }
+
+  /**
+   * Whether the given device meets all conditions.
+   * @param device STF device.
+   * @return true if the device matches.
+   */
+  public boolean matches(DeviceListResponseDevices device) {
+    for (Condition condition: conditions) {
+      if (!condition.matches(device)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the devices that meet all conditions, in their original order.
+   * @param devices STF devices to be filtered. This collection is not modified.
+   * @return new list of matched devices.
+   */
+  public List<DeviceListResponseDevices> apply(Collection<DeviceListResponseDevices> devices) {
+    List<DeviceListResponseDevices> matched = new ArrayList<DeviceListResponseDevices>();
+    for (DeviceListResponseDevices device: devices) {
+      if (matches(device)) {
+        matched.add(device);
+      }
+    }
+    return matched;
+  }
+
+  private static AttributeAccessor getAccessor(String attribute) {
+    if (attribute == null) {
+      return null;
+    }
+    AttributeAccessor accessor = ACCESSORS.get(attribute);
+    if (accessor == null) {
+      // Fields added to the STF client model later on. Resolved on each compile, so that
+      // matching a device doesn't look the field up.
+      try {
+        accessor = new FieldAccessor(DeviceListResponseDevices.class.getField(attribute));
+      } catch (NoSuchFieldException ex) {
+        return null;
+      }
+    }
+    return accessor;
+  }
+
+  private static String toStringOrNull(Object value) {
+    return value == null ? null : value.toString();
+  }
+
+  private static Map<String, AttributeAccessor> createAccessors() {
+    Map<String, AttributeAccessor> accessors = new HashMap<String, AttributeAccessor>();
+    accessors.put("serial", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.serial);
+      }
+    });
+    accessors.put("name", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.name);
+      }
+    });
+    accessors.put("model", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.model);
+      }
+    });
+    accessors.put("version", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.version);
+      }
+    });
+    accessors.put("sdk", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.sdk);
+      }
+    });
+    accessors.put("image", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.image);
+      }
+    });
+    accessors.put("present", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.present);
+      }
+    });
+    accessors.put("owner", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.owner);
+      }
+    });
+    accessors.put("provider", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return device.provider == null ? null : device.provider.name;
+      }
+    });
+    accessors.put("notes", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.notes);
+      }
+    });
+    accessors.put("manufacturer", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.manufacturer);
+      }
+    });
+    accessors.put("abi", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.abi);
+      }
+    });
+    accessors.put("battery", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return device.battery == null ? null : String.valueOf(device.battery.level);
+      }
+    });
+    accessors.put("remoteConnectUrl", new AttributeAccessor() {
+      public String get(DeviceListResponseDevices device) {
+        return toStringOrNull(device.remoteConnectUrl);
+      }
+    });
+    return Collections.unmodifiableMap(accessors);
+  }
+
+  private interface AttributeAccessor {
+    String get(DeviceListResponseDevices device);
+  }
+
+  private static final class FieldAccessor implements AttributeAccessor {
+    private final Field field;
+
+    private FieldAccessor(Field field) {
+      this.field = field;
+    }
+
+    public String get(DeviceListResponseDevices device) {
+      try {
+        return toStringOrNull(field.get(device));
+      } catch (IllegalAccessException ex) {
+        return null;
+      }
+    }
+  }
+
+  private static final class Condition {
+    private final String attribute;
+    private final AttributeAccessor accessor;
+    private final String value;
+    private final Pattern pattern;
+
+    private Condition(String attribute, AttributeAccessor accessor, String value,
+        Pattern pattern) {
+      this.attribute = attribute;
+      this.accessor = accessor;
+      this.value = value;
+      this.pattern = pattern;
+    }
+
+    private boolean matches(DeviceListResponseDevices device) {
+      String deviceValue = accessor.get(device);
+      if (deviceValue == null) {
+        return value.equals(NULL_VALUE);
+      }
+      if (pattern != null) {
+        return pattern.matcher(deviceValue).matches();
+      }
+      return value.equals(deviceValue);
+    }
+  }
+}
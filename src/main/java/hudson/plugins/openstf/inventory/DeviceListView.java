@@ -0,0 +1,182 @@
+package hudson.plugins.openstf.inventory;
+
+import io.swagger.client.model.DeviceListResponseDevices;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Device list of the job configuration page, built from one inventory snapshot.
+ * Each device is projected to a flat tile with only what the page shows, and tagged with a
+ * revision. The page sends the revisions of the tiles it shows, and gets back only the tiles
+ * which were added or changed, so that it can patch the list in place.
+ * Pages which preview the same conditions at the same time share one evaluation of the filter.
+ */
+public final class DeviceListView {
+
+  /** Upper bound of filter results kept per view, which lives as long as its snapshot. */
+  private static final int MAX_CACHED_FILTERS = 64;
+
+  private final long version;
+  private final List<DeviceListResponseDevices> devices;
+  private final Map<String, JSONObject> tiles = new HashMap<String, JSONObject>();
+  private final ConcurrentMap<String, FutureTask<List<DeviceListResponseDevices>>> matches =
+      new ConcurrentHashMap<String, FutureTask<List<DeviceListResponseDevices>>>();
+
+  private DeviceListView(long version, List<DeviceListResponseDevices> devices) {
+    this.version = version;
+    this.devices = devices;
+    for (DeviceListResponseDevices device: devices) {
+      tiles.put(device.serial, toTile(device));
+    }
+  }
+
+  /**
+   * Builds the view of an inventory snapshot.
+   * @param version Version of the snapshot.
+   * @param devices Devices of the snapshot, with {@link DeviceQuery#ALL_FIELDS}.
+   * @return the view.
+   */
+  public static DeviceListView build(long version, List<DeviceListResponseDevices> devices) {
+    return new DeviceListView(version, devices);
+  }
+
+  /**
+   * Gets the version of the snapshot this view was built from.
+   * @return version, which increases with every snapshot.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the changes which bring the tiles shown by a page up to date.
+   * Concurrent calls with the same conditions share one evaluation of the filter.
+   * @param filter Conditions of the devices to show. (attribute name to value, or "/REGEX/")
+   * @param knownRevisions Revision of each tile the page shows, by serial.
+   * @return JSON object in the same form as {@link #getUpdate(DeviceFilter, Map)}.
+   * @throws InterruptedException if interrupted while waiting for another evaluation.
+   */
+  public JSONObject getUpdate(final Map<String, String> filter,
+      Map<String, String> knownRevisions) throws InterruptedException {
+    String key = new TreeMap<String, String>(filter).toString();
+    FutureTask<List<DeviceListResponseDevices>> task =
+        new FutureTask<List<DeviceListResponseDevices>>(
+            new Callable<List<DeviceListResponseDevices>>() {
+              @Override
+              public List<DeviceListResponseDevices> call() {
+                return DeviceFilter.compile(filter).apply(devices);
+              }
+            });
+    if (matches.size() >= MAX_CACHED_FILTERS) {
+      matches.clear();
+    }
+    FutureTask<List<DeviceListResponseDevices>> evaluation = matches.putIfAbsent(key, task);
+    if (evaluation == null) {
+      evaluation = task;
+      task.run();
+    }
+    try {
+      return getUpdate(evaluation.get(), knownRevisions);
+    } catch (ExecutionException ex) {
+      matches.remove(key, evaluation);
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+
+  /**
+   * Gets the changes which bring the tiles shown by a page up to date.
+   * @param filter Conditions of the devices to show.
+   * @param knownRevisions Revision of each tile the page shows, by serial.
+   * @return JSON object with the snapshot "version", the "serials" to show in order,
+   *     the tiles to "upsert", and the serials of the tiles to "remove".
+   */
+  public JSONObject getUpdate(DeviceFilter filter, Map<String, String> knownRevisions) {
+    return getUpdate(filter.apply(devices), knownRevisions);
+  }
+
+  private JSONObject getUpdate(List<DeviceListResponseDevices> matchedDevices,
+      Map<String, String> knownRevisions) {
+    JSONArray serials = new JSONArray();
+    JSONArray upsert = new JSONArray();
+    Set<String> shown = new HashSet<String>();
+    for (DeviceListResponseDevices device: matchedDevices) {
+      JSONObject tile = tiles.get(device.serial);
+      serials.add(device.serial);
+      shown.add(device.serial);
+      if (!tile.getString("rev").equals(knownRevisions.get(device.serial))) {
+        upsert.add(tile);
+      }
+    }
+    JSONArray remove = new JSONArray();
+    for (String serial: knownRevisions.keySet()) {
+      if (!shown.contains(serial)) {
+        remove.add(serial);
+      }
+    }
+
+    JSONObject update = new JSONObject();
+    update.put("version", version);
+    update.put("serials", serials);
+    update.put("upsert", upsert);
+    update.put("remove", remove);
+    return update;
+  }
+
+  /**
+   * Gets the changes which clear the tiles shown by a page, e.g. when STF is not configured.
+   * @param knownRevisions Revision of each tile the page shows, by serial.
+   * @return JSON object in the same form as {@link #getUpdate}.
+   */
+  public static JSONObject getEmptyUpdate(Map<String, String> knownRevisions) {
+    return new DeviceListView(0, Collections.<DeviceListResponseDevices>emptyList())
+        .getUpdate(DeviceFilter.ANY, knownRevisions);
+  }
+
+  private static JSONObject toTile(DeviceListResponseDevices device) {
+    JSONObject tile = new JSONObject();
+    tile.put("serial", device.serial);
+    tile.put("name", device.name == null ? "" : device.name);
+    tile.put("image", device.image == null ? "" : device.image);
+    tile.put("present", Boolean.TRUE.equals(device.present));
+    tile.put("owner", getOwnerName(device));
+    for (String attribute: DeviceAttributeIndex.ATTRIBUTES) {
+      if (!tile.containsKey(attribute)) {
+        String value = DeviceFilter.getAttributeValue(device, attribute);
+        if (value != null) {
+          tile.put(attribute, value);
+        }
+      }
+    }
+    // The string form is stable for the same content, as the keys are put in the same order.
+    tile.put("rev", Integer.toHexString(tile.toString().hashCode()));
+    return tile;
+  }
+
+  private static String getOwnerName(DeviceListResponseDevices device) {
+    if (device.owner == null) {
+      return null;
+    }
+    try {
+      return JSONObject.fromObject(device.owner).optString("name", "");
+    } catch (JSONException ex) {
+      return device.owner.toString();
+    }
+  }
+}
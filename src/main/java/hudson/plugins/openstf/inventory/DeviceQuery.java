@@ -0,0 +1,66 @@
+package hudson.plugins.openstf.inventory;
+
+import hudson.Util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Plans the field projection of GET /devices requests.
+ * STF can't filter devices on the server side, but it only serializes the requested fields,
+ * so callers ask for the attributes their filter evaluates plus what they actually read.
+ */
+public final class DeviceQuery {
+
+  /** Fields which every projection contains, so that devices can always be identified. */
+  private static final String[] BASE_FIELDS = {"serial"};
+
+  /** Fields used by the device list on the job configuration page and by the dropdowns. */
+  public static final String ALL_FIELDS = toFields(Arrays.asList(
+      "serial", "name", "model", "version", "sdk", "image", "present", "owner",
+      "provider", "notes", "manufacturer", "abi", "battery"));
+
+  private DeviceQuery() {
+  }
+
+  /**
+   * Gets the minimal fields parameter to evaluate the filter and to read the given fields.
+   * @param filter Filter that will be applied to the result.
+   * @param requiredFields Fields the caller reads from the matched devices.
+   * @return comma separated field names, in a stable order.
+   */
+  public static String getFields(DeviceFilter filter, String... requiredFields) {
+    Set<String> fields = new TreeSet<String>(Arrays.asList(BASE_FIELDS));
+    fields.addAll(filter.getAttributes());
+    fields.addAll(Arrays.asList(requiredFields));
+    return toFields(fields);
+  }
+
+  /**
+   * Whether a response requested with {@code availableFields} contains all
+   * of {@code requestedFields}.
+   * @param availableFields comma separated field names of a fetched device list.
+   * @param requestedFields comma separated field names a caller needs.
+   * @return true if the fetched device list can serve the caller.
+   */
+  public static boolean covers(String availableFields, String requestedFields) {
+    return parseFields(availableFields).containsAll(parseFields(requestedFields));
+  }
+
+  private static Set<String> parseFields(String fields) {
+    Set<String> parsed = new TreeSet<String>();
+    for (String field: fields.split(",")) {
+      String trimmed = Util.fixEmptyAndTrim(field);
+      if (trimmed != null) {
+        parsed.add(trimmed);
+      }
+    }
+    return parsed;
+  }
+
+  private static String toFields(Collection<String> fields) {
+    return Util.join(new TreeSet<String>(fields), ",");
+  }
+}
@@ -0,0 +1,253 @@
+package hudson.plugins.openstf.inventory;
+
+import hudson.Extension;
+import hudson.plugins.openstf.STFBuildWrapper;
+import hudson.plugins.openstf.exception.ApiFailedException;
+import io.swagger.client.ApiClient;
+import io.swagger.client.ApiException;
+import io.swagger.client.api.DevicesApi;
+import io.swagger.client.model.DeviceListResponseDevices;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-wide cache of the STF device list.
+ * All callers share one snapshot per STF API endpoint and field projection, which is refreshed
+ * at most once per TTL. A snapshot with more fields also serves callers which need fewer ones.
+ * When no snapshot is fresh, concurrent callers wait for a single in-flight GET /devices request
+ * instead of sending their own.
+ */
+@Extension
+public class STFDeviceInventory {
+
+  /** Device list cache TTL used when no Jenkins instance is available. */
+  public static final int DEFAULT_CACHE_TTL_SEC = 10;
+
+  private static final STFDeviceInventory FALLBACK_INSTANCE = new STFDeviceInventory();
+
+  /** Versions of the snapshots, which increase with every fetch. */
+  private static final AtomicLong VERSIONS = new AtomicLong();
+
+  private final ConcurrentMap<String, Snapshot> snapshots =
+      new ConcurrentHashMap<String, Snapshot>();
+  private final ConcurrentMap<String, FutureTask<Snapshot>> inFlightRequests =
+      new ConcurrentHashMap<String, FutureTask<Snapshot>>();
+
+  /**
+   * Gets the inventory registered as an extension.
+   * Falls back to a static instance when Jenkins is not running (e.g. unit tests).
+   * @return the device inventory.
+   */
+  public static STFDeviceInventory get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      List<STFDeviceInventory> list = jenkins.getExtensionList(STFDeviceInventory.class);
+      if (!list.isEmpty()) {
+        return list.get(0);
+      }
+    }
+    return FALLBACK_INSTANCE;
+  }
+
+  /**
+   * Gets a snapshot of all STF devices with all fields in {@link DeviceQuery#ALL_FIELDS}.
+   * The returned list is shared between callers and must not be modified.
+   * @param stfApiClient The STF API client.
+   * @return unmodifiable list of STF devices.
+   * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
+   */
+  public List<DeviceListResponseDevices> getDevices(ApiClient stfApiClient)
+      throws ApiFailedException {
+    return getDevices(stfApiClient, DeviceQuery.ALL_FIELDS);
+  }
+
+  /**
+   * Gets a snapshot of all STF devices, which contains at least the given fields.
+   * The returned list is shared between callers and must not be modified.
+   * @param stfApiClient The STF API client.
+   * @param fields Comma separated field names. (see {@link DeviceQuery#getFields})
+   * @return unmodifiable list of STF devices.
+   * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
+   */
+  public List<DeviceListResponseDevices> getDevices(ApiClient stfApiClient, String fields)
+      throws ApiFailedException {
+    return getDevices(stfApiClient, fields, getCacheTtlMillis());
+  }
+
+  /**
+   * Gets a snapshot of all STF devices, which contains at least the given fields
+   * and is not older than the given age.
+   * The returned list is shared between callers and must not be modified.
+   * @param stfApiClient The STF API client.
+   * @param fields Comma separated field names. (see {@link DeviceQuery#getFields})
+   * @param maxAgeMillis Maximum age of the snapshot. Use 0 to get the latest state.
+   * @return unmodifiable list of STF devices.
+   * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
+   */
+  public List<DeviceListResponseDevices> getDevices(ApiClient stfApiClient, String fields,
+      long maxAgeMillis) throws ApiFailedException {
+    return getSnapshot(stfApiClient, fields, maxAgeMillis).devices;
+  }
+
+  /**
+   * Gets the distinct values of each device attribute, for the dropdowns of the configuration
+   * pages. The index is built once per snapshot of all fields.
+   * @param stfApiClient The STF API client.
+   * @return attribute index of the current snapshot.
+   * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
+   */
+  public DeviceAttributeIndex getAttributeIndex(ApiClient stfApiClient)
+      throws ApiFailedException {
+    return getSnapshot(stfApiClient, DeviceQuery.ALL_FIELDS, getCacheTtlMillis())
+        .getAttributeIndex();
+  }
+
+  /**
+   * Gets the device list of the job configuration page, built once per snapshot of all fields.
+   * @param stfApiClient The STF API client.
+   * @return device list view of the current snapshot.
+   * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
+   */
+  public DeviceListView getListView(ApiClient stfApiClient) throws ApiFailedException {
+    return getSnapshot(stfApiClient, DeviceQuery.ALL_FIELDS, getCacheTtlMillis()).getListView();
+  }
+
+  private Snapshot getSnapshot(final ApiClient stfApiClient, final String fields,
+      long maxAgeMillis) throws ApiFailedException {
+    final String endpoint = stfApiClient.getBasePath();
+    final String key = endpoint + " " + fields;
+
+    long ttlMillis = Math.min(maxAgeMillis, getCacheTtlMillis());
+    Snapshot snapshot = snapshots.get(key);
+    if (snapshot == null || snapshot.isExpired(ttlMillis)) {
+      snapshot = findCoveringSnapshot(endpoint, fields, ttlMillis);
+    }
+    if (snapshot != null) {
+      return snapshot;
+    }
+
+    FutureTask<Snapshot> task = new FutureTask<Snapshot>(new Callable<Snapshot>() {
+      @Override
+      public Snapshot call() throws ApiFailedException {
+        return fetch(stfApiClient, endpoint, fields);
+      }
+    });
+    FutureTask<Snapshot> request = inFlightRequests.putIfAbsent(key, task);
+    if (request == null) {
+      request = task;
+      task.run();
+    }
+
+    try {
+      snapshot = request.get();
+      // Only the thread which ran the request publishes the result, and only if nobody
+      // invalidated the inventory in the meantime.
+      if (request == task && inFlightRequests.get(key) == task) {
+        snapshots.put(key, snapshot);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ApiFailedException("Interrupted while waiting for GET /devices API");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof ApiFailedException) {
+        throw (ApiFailedException) ex.getCause();
+      }
+      throw new ApiFailedException("GET /devices API failed");
+    } finally {
+      if (request == task) {
+        inFlightRequests.remove(key, task);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Discards all cached device lists, so that the next read fetches the latest state.
+   * Should be called after a device is reserved or released.
+   */
+  public void invalidate() {
+    snapshots.clear();
+    inFlightRequests.clear();
+  }
+
+  private Snapshot findCoveringSnapshot(String endpoint, String fields, long ttlMillis) {
+    for (Snapshot snapshot: snapshots.values()) {
+      if (snapshot.endpoint.equals(endpoint) && !snapshot.isExpired(ttlMillis)
+          && DeviceQuery.covers(snapshot.fields, fields)) {
+        return snapshot;
+      }
+    }
+    return null;
+  }
+
+  private static Snapshot fetch(ApiClient stfApiClient, String endpoint, String fields)
+      throws ApiFailedException {
+    DevicesApi stfDevicesApi = new DevicesApi(stfApiClient);
+    try {
+      List<DeviceListResponseDevices> devices = stfDevicesApi.getDevices(fields).getDevices();
+      if (devices == null) {
+        devices = Collections.emptyList();
+      }
+      return new Snapshot(endpoint, fields, Collections.unmodifiableList(
+          new ArrayList<DeviceListResponseDevices>(devices)));
+    } catch (ApiException ex) {
+      throw new ApiFailedException("GET /devices API failed");
+    }
+  }
+
+  private static long getCacheTtlMillis() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      STFBuildWrapper.DescriptorImpl descriptor =
+          jenkins.getDescriptorByType(STFBuildWrapper.DescriptorImpl.class);
+      if (descriptor != null) {
+        return descriptor.deviceListCacheTtl * 1000L;
+      }
+    }
+    return DEFAULT_CACHE_TTL_SEC * 1000L;
+  }
+
+  private static final class Snapshot {
+    private final String endpoint;
+    private final String fields;
+    private final List<DeviceListResponseDevices> devices;
+    private final long fetchedAt;
+    private final long version = VERSIONS.incrementAndGet();
+    private DeviceAttributeIndex attributeIndex;
+    private DeviceListView listView;
+
+    private Snapshot(String endpoint, String fields, List<DeviceListResponseDevices> devices) {
+      this.endpoint = endpoint;
+      this.fields = fields;
+      this.devices = devices;
+      this.fetchedAt = System.currentTimeMillis();
+    }
+
+    private boolean isExpired(long ttlMillis) {
+      return System.currentTimeMillis() - fetchedAt >= ttlMillis;
+    }
+
+    private synchronized DeviceAttributeIndex getAttributeIndex() {
+      if (attributeIndex == null) {
+        attributeIndex = DeviceAttributeIndex.build(devices);
+      }
+      return attributeIndex;
+    }
+
+    private synchronized DeviceListView getListView() {
+      if (listView == null) {
+        listView = DeviceListView.build(version, devices);
+      }
+      return listView;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes binary logcat on the agent. Writes it as text to the temporary logcat file, and ships
+ * it as an indexed, chunked file which can be queried without scanning the whole log.
+ */
+public class BinaryLogcatSink implements LogcatSink {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Size of the buffers in front of the shipped streams. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final OutputStream textOut;
+  private final LogcatIndexWriter indexWriter;
+  private final LogcatBinaryDecoder decoder;
+
+  /**
+   * @param textOut Temporary logcat file of the build. (ANDROID_TMP_LOGCAT_FILE)
+   * @param dataOut Stream receiving the data chunks.
+   * @param indexOut Stream receiving the index records.
+   */
+  public BinaryLogcatSink(OutputStream textOut, OutputStream dataOut, OutputStream indexOut) {
+    this.textOut = new BufferedOutputStream(textOut, BUFFER_SIZE);
+    this.indexWriter = new LogcatIndexWriter(new BufferedOutputStream(dataOut, BUFFER_SIZE),
+        new BufferedOutputStream(indexOut, BUFFER_SIZE));
+    this.decoder = new LogcatBinaryDecoder(new LogcatBinaryDecoder.Handler() {
+      @Override
+      public void onEntry(LogcatEntry entry) throws IOException {
+        BinaryLogcatSink.this.textOut.write(entry.format().getBytes(CHARSET));
+        indexWriter.add(entry);
+      }
+    });
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    decoder.feed(b, off, len);
+    textOut.flush();
+  }
+
+  public void shipChunk() throws IOException {
+    indexWriter.finishChunk();
+  }
+
+  public void close() throws IOException {
+    try {
+      textOut.close();
+    } finally {
+      indexWriter.close();
+    }
+  }
+}
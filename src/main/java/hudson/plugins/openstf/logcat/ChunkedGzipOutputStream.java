@@ -0,0 +1,86 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes gzip data as a series of complete gzip members.
+ * Concatenated gzip members are a valid gzip file, so each finished chunk can be shipped and
+ * appended to the archive while the rest of the data is still being written.
+ */
+public class ChunkedGzipOutputStream extends OutputStream {
+
+  private final OutputStream out;
+  private Member member;
+  private long pendingBytes;
+
+  public ChunkedGzipOutputStream(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return;
+    }
+    if (member == null) {
+      member = new Member(out);
+    }
+    member.write(b, off, len);
+    pendingBytes += len;
+  }
+
+  /**
+   * Gets the number of uncompressed bytes written since the last chunk was finished.
+   * @return pending bytes.
+   */
+  public long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * Finishes the current gzip member and flushes it to the underlying stream.
+   * Does nothing if nothing was written since the last chunk.
+   * @throws IOException if writing to the underlying stream failed.
+   */
+  public void finishChunk() throws IOException {
+    if (member == null) {
+      return;
+    }
+    try {
+      member.finish();
+    } finally {
+      member.end();
+      member = null;
+    }
+    pendingBytes = 0;
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finishChunk();
+    } finally {
+      out.close();
+    }
+  }
+
+  /** gzip member which releases its deflater once finished, leaving the stream open. */
+  private static final class Member extends GZIPOutputStream {
+
+    private Member(OutputStream out) throws IOException {
+      super(out);
+    }
+
+    private void end() {
+      def.end();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the binary logcat format. ('logcat -B')
+ * Each entry is a little endian struct logger_entry followed by the payload: a priority byte,
+ * a NUL terminated tag and a NUL terminated message. Version 1 headers have no header size
+ * field and are 20 bytes long. Later versions append fields we don't use.
+ */
+public class LogcatBinaryDecoder {
+
+  /** Receives decoded entries. */
+  public interface Handler {
+    void onEntry(LogcatEntry entry) throws IOException;
+  }
+
+  /** Size of the version 1 header, which has a padding instead of the header size. */
+  static final int V1_HEADER_SIZE = 20;
+
+  /** Upper bound of the header size, to detect streams which are not binary logcat. */
+  static final int MAX_HEADER_SIZE = 128;
+
+  /** Upper bound of the payload size. (logcat entries are at most about 5KB) */
+  static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final Handler handler;
+  private byte[] buffer = new byte[64 * 1024];
+  private int length;
+
+  public LogcatBinaryDecoder(Handler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Decodes the next part of the stream. Entries split between calls are kept until complete.
+   * @param b Data.
+   * @param off Offset of the data.
+   * @param len Length of the data.
+   * @throws IOException if the data is not in the binary logcat format, or the handler failed.
+   */
+  public void feed(byte[] b, int off, int len) throws IOException {
+    if (length + len > buffer.length) {
+      byte[] grown = new byte[Math.max(buffer.length * 2, length + len)];
+      System.arraycopy(buffer, 0, grown, 0, length);
+      buffer = grown;
+    }
+    System.arraycopy(b, off, buffer, length, len);
+    length += len;
+
+    int pos = 0;
+    while (length - pos >= 4) {
+      int payloadSize = readUnsignedShort(pos);
+      int headerSize = readUnsignedShort(pos + 2);
+      if (headerSize == 0) {
+        headerSize = V1_HEADER_SIZE;
+      }
+      if (headerSize < V1_HEADER_SIZE || headerSize > MAX_HEADER_SIZE
+          || payloadSize > MAX_PAYLOAD_SIZE) {
+        throw new IOException("Not a binary logcat entry (header size " + headerSize
+            + ", payload size " + payloadSize + ")");
+      }
+      if (length - pos < headerSize + payloadSize) {
+        break;
+      }
+      handler.onEntry(decode(pos, headerSize, payloadSize));
+      pos += headerSize + payloadSize;
+    }
+
+    System.arraycopy(buffer, pos, buffer, 0, length - pos);
+    length -= pos;
+  }
+
+  private LogcatEntry decode(int pos, int headerSize, int payloadSize) {
+    int pid = readInt(pos + 4);
+    int tid = readInt(pos + 8);
+    long sec = readInt(pos + 12) & 0xffffffffL;
+    long nsec = readInt(pos + 16) & 0xffffffffL;
+
+    int payload = pos + headerSize;
+    int end = payload + payloadSize;
+    int priority = payloadSize > 0 ? buffer[payload] : 0;
+    int tagStart = Math.min(payload + 1, end);
+    int tagEnd = indexOfNul(tagStart, end);
+    int messageStart = Math.min(tagEnd + 1, end);
+    int messageEnd = indexOfNul(messageStart, end);
+    while (messageEnd > messageStart && buffer[messageEnd - 1] == '\n') {
+      messageEnd--;
+    }
+
+    return new LogcatEntry(sec * 1000 + nsec / 1000000, pid, tid, priority,
+        new String(buffer, tagStart, tagEnd - tagStart, CHARSET),
+        new String(buffer, messageStart, messageEnd - messageStart, CHARSET));
+  }
+
+  private int indexOfNul(int from, int end) {
+    for (int i = from; i < end; i++) {
+      if (buffer[i] == 0) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  private int readUnsignedShort(int pos) {
+    return (buffer[pos] & 0xff) | (buffer[pos + 1] & 0xff) << 8;
+  }
+
+  private int readInt(int pos) {
+    return (buffer[pos] & 0xff) | (buffer[pos + 1] & 0xff) << 8
+        | (buffer[pos + 2] & 0xff) << 16 | (buffer[pos + 3] & 0xff) << 24;
+  }
+}
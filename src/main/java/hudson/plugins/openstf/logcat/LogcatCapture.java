@@ -0,0 +1,196 @@
+package hudson.plugins.openstf.logcat;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logcat capture running on the agent.
+ * Reads the output of adb logcat on the agent and passes it to a {@link LogcatSink}, which
+ * ships it in chunks to the archive while the build runs. So only the last chunk is left to
+ * ship when the build finishes.
+ * The latest text is also kept in a {@link LogcatRingBuffer}, from which live viewers read.
+ */
+public final class LogcatCapture {
+
+  private static final Logger LOGGER = Logger.getLogger(LogcatCapture.class.getName());
+
+  /** Longest time logcat output waits on the agent before it is shipped. */
+  static final long CHUNK_INTERVAL_MS = 5 * 1000;
+
+  /** Interval during which the reader should stop after the logcat process was destroyed. */
+  private static final long DESTROY_TIMEOUT_MS = 5 * 1000;
+
+  private static final Map<String, LogcatCapture> CAPTURES = new HashMap<String, LogcatCapture>();
+
+  private static ScheduledExecutorService chunkExecutor;
+
+  private final Process process;
+  private final LogcatSink sink;
+  private final LogcatRingBuffer ringBuffer;
+  private final Thread reader;
+  private ScheduledFuture<?> chunkShipper;
+
+  private LogcatCapture(Process process, LogcatSink sink, LogcatRingBuffer ringBuffer) {
+    this.process = process;
+    this.sink = sink;
+    this.ringBuffer = ringBuffer;
+    this.reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        read();
+      }
+    }, "STF logcat capture");
+    this.reader.setDaemon(true);
+  }
+
+  /**
+   * Starts capturing logcat.
+   * @param command Command line of adb logcat.
+   * @param environment Environment for the command.
+   * @param sink Destination of the output. Closed when the capture stops.
+   * @param ringBuffer Buffer which the sink also writes the text to, for {@link #tail}.
+   * @return capture ID, to stop it later.
+   * @throws IOException if logcat could not be started.
+   */
+  public static String start(List<String> command, Map<String, String> environment,
+      LogcatSink sink, LogcatRingBuffer ringBuffer) throws IOException {
+
+    ProcessBuilder builder = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.to(getNullFile()));
+    builder.environment().putAll(environment);
+    Process process;
+    try {
+      process = builder.start();
+    } catch (IOException ex) {
+      sink.close();
+      throw ex;
+    }
+    process.getOutputStream().close();
+
+    final LogcatCapture capture = new LogcatCapture(process, sink, ringBuffer);
+    String id = UUID.randomUUID().toString();
+    synchronized (LogcatCapture.class) {
+      CAPTURES.put(id, capture);
+    }
+    capture.reader.start();
+    capture.chunkShipper = getChunkExecutor().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        capture.shipChunk();
+      }
+    }, CHUNK_INTERVAL_MS, CHUNK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    return id;
+  }
+
+  /**
+   * Stops capturing logcat, and ships the last chunk.
+   * Logcat stops by itself when the device is disconnected. If it doesn't within the timeout,
+   * it is destroyed.
+   * @param id Capture ID returned by {@link #start}.
+   * @param timeoutMillis Time to let logcat stop by itself.
+   * @return false if logcat had to be destroyed.
+   * @throws InterruptedException if interrupted while waiting for logcat.
+   */
+  public static boolean stop(String id, long timeoutMillis) throws InterruptedException {
+    LogcatCapture capture;
+    synchronized (LogcatCapture.class) {
+      capture = CAPTURES.remove(id);
+    }
+    if (capture == null) {
+      return true;
+    }
+    return capture.stop(timeoutMillis);
+  }
+
+  /**
+   * Reads the latest text of a running capture.
+   * @param id Capture ID returned by {@link #start}.
+   * @param offset Offset the viewer has read up to.
+   * @param maxBytes Maximum number of bytes to return.
+   * @return the text following the offset, or null if the capture is not running.
+   */
+  public static LogcatRingBuffer.Tail tail(String id, long offset, int maxBytes) {
+    LogcatCapture capture;
+    synchronized (LogcatCapture.class) {
+      capture = CAPTURES.get(id);
+    }
+    return capture == null ? null : capture.ringBuffer.read(offset, maxBytes);
+  }
+
+  private boolean stop(long timeoutMillis) throws InterruptedException {
+    reader.join(timeoutMillis);
+    boolean finished = !reader.isAlive();
+    if (!finished) {
+      process.destroy();
+      reader.join(DESTROY_TIMEOUT_MS);
+    }
+    chunkShipper.cancel(false);
+    synchronized (sink) {
+      closeQuietly(sink);
+    }
+    return finished;
+  }
+
+  private void read() {
+    byte[] buffer = new byte[8192];
+    InputStream in = process.getInputStream();
+    try {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        synchronized (sink) {
+          sink.write(buffer, 0, n);
+        }
+      }
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Logcat capture stopped", ex);
+      process.destroy();
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private void shipChunk() {
+    synchronized (sink) {
+      try {
+        sink.shipChunk();
+      } catch (IOException ex) {
+        LOGGER.log(Level.FINE, "Failed to ship logcat chunk", ex);
+      }
+    }
+  }
+
+  private static File getNullFile() {
+    return new File(File.separatorChar == '\\' ? "NUL" : "/dev/null");
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getChunkExecutor() {
+    if (chunkExecutor == null) {
+      chunkExecutor = Executors.newSingleThreadScheduledExecutor(
+          new NamingThreadFactory(new DaemonThreadFactory(), "STF logcat chunk shipper"));
+    }
+    return chunkExecutor;
+  }
+}
@@ -0,0 +1,107 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Index record of a chunk of logcat entries.
+ * Summarizes what the chunk contains, so queries read only the chunks which may match.
+ */
+public final class LogcatChunk {
+
+  private final long offset;
+  private final int length;
+  private final int count;
+  private final long minTime;
+  private final long maxTime;
+  private final int priorityMask;
+  private final Set<Integer> pids;
+  private final Set<String> tags;
+
+  LogcatChunk(long offset, int length, int count, long minTime, long maxTime, int priorityMask,
+      Set<Integer> pids, Set<String> tags) {
+    this.offset = offset;
+    this.length = length;
+    this.count = count;
+    this.minTime = minTime;
+    this.maxTime = maxTime;
+    this.priorityMask = priorityMask;
+    this.pids = Collections.unmodifiableSet(pids);
+    this.tags = Collections.unmodifiableSet(tags);
+  }
+
+  /** Offset of the compressed chunk in the data file. */
+  public long getOffset() {
+    return offset;
+  }
+
+  /** Length of the compressed chunk in the data file. */
+  public int getLength() {
+    return length;
+  }
+
+  /** Number of entries in the chunk. */
+  public int getCount() {
+    return count;
+  }
+
+  public long getMinTime() {
+    return minTime;
+  }
+
+  public long getMaxTime() {
+    return maxTime;
+  }
+
+  /** Bit mask of the priorities in the chunk. (bit n is set if priority n appears) */
+  public int getPriorityMask() {
+    return priorityMask;
+  }
+
+  public Set<Integer> getPids() {
+    return pids;
+  }
+
+  public Set<String> getTags() {
+    return tags;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeLong(offset);
+    out.writeInt(length);
+    out.writeInt(count);
+    out.writeLong(minTime);
+    out.writeLong(maxTime);
+    out.writeInt(priorityMask);
+    out.writeInt(pids.size());
+    for (int pid: pids) {
+      out.writeInt(pid);
+    }
+    out.writeInt(tags.size());
+    for (String tag: tags) {
+      out.writeUTF(tag);
+    }
+  }
+
+  static LogcatChunk read(DataInput in) throws IOException {
+    long offset = in.readLong();
+    int length = in.readInt();
+    int count = in.readInt();
+    long minTime = in.readLong();
+    long maxTime = in.readLong();
+    int priorityMask = in.readInt();
+    Set<Integer> pids = new TreeSet<Integer>();
+    for (int i = in.readInt(); i > 0; i--) {
+      pids.add(in.readInt());
+    }
+    Set<String> tags = new TreeSet<String>();
+    for (int i = in.readInt(); i > 0; i--) {
+      tags.add(in.readUTF());
+    }
+    return new LogcatChunk(offset, length, count, minTime, maxTime, priorityMask, pids, tags);
+  }
+}
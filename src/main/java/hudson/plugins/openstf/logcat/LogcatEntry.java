@@ -0,0 +1,98 @@
+package hudson.plugins.openstf.logcat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A logcat line decoded from the binary logcat format.
+ */
+public final class LogcatEntry {
+
+  /** Priority letters indexed by the android_LogPriority value. */
+  private static final String PRIORITY_LETTERS = "??VDIWEFS";
+
+  private final long timeMillis;
+  private final int pid;
+  private final int tid;
+  private final int priority;
+  private final String tag;
+  private final String message;
+
+  public LogcatEntry(long timeMillis, int pid, int tid, int priority, String tag,
+      String message) {
+    this.timeMillis = timeMillis;
+    this.pid = pid;
+    this.tid = tid;
+    this.priority = priority;
+    this.tag = tag;
+    this.message = message;
+  }
+
+  public long getTimeMillis() {
+    return timeMillis;
+  }
+
+  public int getPid() {
+    return pid;
+  }
+
+  public int getTid() {
+    return tid;
+  }
+
+  /**
+   * Gets the priority. (2:VERBOSE, 3:DEBUG, 4:INFO, 5:WARN, 6:ERROR, 7:FATAL)
+   * @return priority value.
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  public String getTag() {
+    return tag;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  /**
+   * Gets the letter of a priority, as logcat prints it.
+   * @param priority Priority value.
+   * @return priority letter, or '?' for unknown values.
+   */
+  public static char toPriorityLetter(int priority) {
+    return priority >= 0 && priority < PRIORITY_LETTERS.length()
+        ? PRIORITY_LETTERS.charAt(priority) : '?';
+  }
+
+  /**
+   * Parses a priority letter. ('A' is accepted as FATAL, like logcat does)
+   * @param letter Priority letter.
+   * @return priority value, or -1 if unknown.
+   */
+  public static int parsePriority(char letter) {
+    char upper = Character.toUpperCase(letter);
+    if (upper == 'A') {
+      upper = 'F';
+    }
+    int priority = PRIORITY_LETTERS.indexOf(upper, 2);
+    return priority;
+  }
+
+  /**
+   * Formats the entry like 'logcat -v time' does. Multi-line messages get one line per line.
+   * @return formatted lines, each ending with a line feed.
+   */
+  public String format() {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.ROOT);
+    String prefix = String.format(Locale.ROOT, "%s %c/%s(%5d): ",
+        dateFormat.format(new Date(timeMillis)), toPriorityLetter(priority), tag, pid);
+    StringBuilder sb = new StringBuilder();
+    for (String line: message.split("\n", -1)) {
+      sb.append(prefix).append(line).append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,103 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Answers queries over logcat written by {@link LogcatIndexWriter}.
+ * Only the chunks whose index record may match are read and decompressed.
+ * Files which are still being written are read up to the last complete chunk.
+ */
+public class LogcatIndexReader {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final File dataFile;
+  private final File indexFile;
+
+  public LogcatIndexReader(File dataFile, File indexFile) {
+    this.dataFile = dataFile;
+    this.indexFile = indexFile;
+  }
+
+  /**
+   * Reads the index.
+   * @return chunk records, in the order of the data file.
+   * @throws IOException if the index could not be read.
+   */
+  public List<LogcatChunk> getChunks() throws IOException {
+    List<LogcatChunk> chunks = new ArrayList<LogcatChunk>();
+    long dataLength = dataFile.length();
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      while (true) {
+        LogcatChunk chunk = LogcatChunk.read(in);
+        if (chunk.getOffset() + chunk.getLength() > dataLength) {
+          break;
+        }
+        chunks.add(chunk);
+      }
+    } catch (EOFException ex) {
+      // end of the index, or a record which is still being written
+    } finally {
+      in.close();
+    }
+    return chunks;
+  }
+
+  /**
+   * Finds the matching entries.
+   * @param query Conditions.
+   * @param handler Receives the matching entries in the order they were logged.
+   * @return number of chunks which were read.
+   * @throws IOException if the files could not be read, or the handler failed.
+   */
+  public int query(LogcatQuery query, LogcatBinaryDecoder.Handler handler) throws IOException {
+    int chunksRead = 0;
+    RandomAccessFile data = new RandomAccessFile(dataFile, "r");
+    try {
+      for (LogcatChunk chunk: getChunks()) {
+        if (!query.mayMatch(chunk)) {
+          continue;
+        }
+        chunksRead++;
+        byte[] bytes = new byte[chunk.getLength()];
+        data.seek(chunk.getOffset());
+        data.readFully(bytes);
+        DataInputStream in = new DataInputStream(
+            new GZIPInputStream(new ByteArrayInputStream(bytes)));
+        for (int i = 0; i < chunk.getCount(); i++) {
+          LogcatEntry entry = readEntry(in);
+          if (query.matches(entry)) {
+            handler.onEntry(entry);
+          }
+        }
+      }
+    } finally {
+      data.close();
+    }
+    return chunksRead;
+  }
+
+  static LogcatEntry readEntry(DataInputStream in) throws IOException {
+    long time = in.readLong();
+    int pid = in.readInt();
+    int tid = in.readInt();
+    int priority = in.readByte();
+    String tag = in.readUTF();
+    byte[] message = new byte[in.readInt()];
+    in.readFully(message);
+    return new LogcatEntry(time, pid, tid, priority, tag, new String(message, CHARSET));
+  }
+}
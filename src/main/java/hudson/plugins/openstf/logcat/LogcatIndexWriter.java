@@ -0,0 +1,124 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes logcat entries into a chunked data file and its index.
+ * The data file is a series of gzip compressed chunks. The index has one {@link LogcatChunk}
+ * record per chunk, appended when the chunk is written, so both files can be shipped while
+ * logcat is being captured.
+ */
+public class LogcatIndexWriter implements Closeable {
+
+  /** Number of entries per chunk. */
+  static final int CHUNK_ENTRIES = 4096;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final OutputStream dataOut;
+  private final DataOutputStream indexOut;
+  private long offset;
+
+  private ByteArrayOutputStream chunkBytes;
+  private GZIPOutputStream chunkGzip;
+  private DataOutputStream chunkOut;
+  private int count;
+  private long minTime;
+  private long maxTime;
+  private int priorityMask;
+  private Set<Integer> pids;
+  private Set<String> tags;
+
+  public LogcatIndexWriter(OutputStream dataOut, OutputStream indexOut) {
+    this.dataOut = dataOut;
+    this.indexOut = new DataOutputStream(indexOut);
+  }
+
+  /**
+   * Adds an entry. A chunk is written each time it is full.
+   * @param entry Logcat entry.
+   * @throws IOException if writing failed.
+   */
+  public void add(LogcatEntry entry) throws IOException {
+    if (chunkOut == null) {
+      chunkBytes = new ByteArrayOutputStream();
+      chunkGzip = new GZIPOutputStream(chunkBytes);
+      chunkOut = new DataOutputStream(chunkGzip);
+      count = 0;
+      minTime = Long.MAX_VALUE;
+      maxTime = Long.MIN_VALUE;
+      priorityMask = 0;
+      pids = new TreeSet<Integer>();
+      tags = new TreeSet<String>();
+    }
+
+    writeEntry(chunkOut, entry);
+    count++;
+    minTime = Math.min(minTime, entry.getTimeMillis());
+    maxTime = Math.max(maxTime, entry.getTimeMillis());
+    if (entry.getPriority() >= 0 && entry.getPriority() < Integer.SIZE) {
+      priorityMask |= 1 << entry.getPriority();
+    }
+    pids.add(entry.getPid());
+    tags.add(entry.getTag());
+
+    if (count >= CHUNK_ENTRIES) {
+      finishChunk();
+    }
+  }
+
+  /**
+   * Writes the current chunk, even if it is not full, e.g. to ship it while logcat is quiet.
+   * @throws IOException if writing failed.
+   */
+  public void finishChunk() throws IOException {
+    if (chunkOut == null) {
+      return;
+    }
+    chunkOut.flush();
+    chunkGzip.close();
+    byte[] bytes = chunkBytes.toByteArray();
+    chunkOut = null;
+    chunkGzip = null;
+    chunkBytes = null;
+
+    dataOut.write(bytes);
+    dataOut.flush();
+    new LogcatChunk(offset, bytes.length, count, minTime, maxTime, priorityMask, pids, tags)
+        .write(indexOut);
+    indexOut.flush();
+    offset += bytes.length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finishChunk();
+    } finally {
+      try {
+        dataOut.close();
+      } finally {
+        indexOut.close();
+      }
+    }
+  }
+
+  static void writeEntry(DataOutputStream out, LogcatEntry entry) throws IOException {
+    out.writeLong(entry.getTimeMillis());
+    out.writeInt(entry.getPid());
+    out.writeInt(entry.getTid());
+    out.writeByte(entry.getPriority());
+    out.writeUTF(entry.getTag());
+    byte[] message = entry.getMessage().getBytes(CHARSET);
+    out.writeInt(message.length);
+    out.write(message);
+  }
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.openstf.logcat;
+
+/**
+ * Conditions of a query over indexed logcat. Unset conditions match everything.
+ */
+public final class LogcatQuery {
+
+  /** Query which matches all entries. */
+  public static final LogcatQuery ALL = new LogcatQuery(Long.MIN_VALUE, Long.MAX_VALUE, 0,
+      null, null, null);
+
+  private final long fromMillis;
+  private final long toMillis;
+  private final int minPriority;
+  private final String tag;
+  private final Integer pid;
+  private final Integer tid;
+
+  /**
+   * @param fromMillis Earliest time, inclusive.
+   * @param toMillis Latest time, inclusive.
+   * @param minPriority Lowest priority, like the logcat filter 'tag:E'. 0 matches all.
+   * @param tag Exact tag, or null.
+   * @param pid Process ID, or null.
+   * @param tid Thread ID, or null.
+   */
+  public LogcatQuery(long fromMillis, long toMillis, int minPriority, String tag, Integer pid,
+      Integer tid) {
+    this.fromMillis = fromMillis;
+    this.toMillis = toMillis;
+    this.minPriority = minPriority;
+    this.tag = tag;
+    this.pid = pid;
+    this.tid = tid;
+  }
+
+  /**
+   * Whether a chunk may contain matching entries, judging from its index record.
+   * @param chunk Index record.
+   * @return false if the chunk can be skipped.
+   */
+  public boolean mayMatch(LogcatChunk chunk) {
+    if (chunk.getMaxTime() < fromMillis || chunk.getMinTime() > toMillis) {
+      return false;
+    }
+    if (minPriority > 0 && (chunk.getPriorityMask() >>> minPriority) == 0) {
+      return false;
+    }
+    if (tag != null && !chunk.getTags().contains(tag)) {
+      return false;
+    }
+    if (pid != null && !chunk.getPids().contains(pid)) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Whether an entry matches.
+   * @param entry Logcat entry.
+   * @return true if it matches all conditions.
+   */
+  public boolean matches(LogcatEntry entry) {
+    return entry.getTimeMillis() >= fromMillis && entry.getTimeMillis() <= toMillis
+        && entry.getPriority() >= minPriority
+        && (tag == null || tag.equals(entry.getTag()))
+        && (pid == null || pid == entry.getPid())
+        && (tid == null || tid == entry.getTid());
+  }
+}
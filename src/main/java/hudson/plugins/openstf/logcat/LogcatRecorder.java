@@ -0,0 +1,168 @@
+package hudson.plugins.openstf.logcat;
+
+import hudson.FilePath;
+import hudson.plugins.android_emulator.sdk.Tool;
+import hudson.plugins.openstf.AndroidRemoteContext;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the logcat of a build: captures it on the node, and archives it into the artifacts
+ * directory while the build runs.
+ * Text logcat is archived gzip compressed. Binary logcat is decoded on the node and archived as
+ * an indexed, chunked file.
+ */
+public final class LogcatRecorder {
+
+  /** Archive of text logcat in the artifacts directory. */
+  public static final String TEXT_ARCHIVE_FILE_NAME = "logcat.txt.gz";
+
+  /** Data file of binary logcat in the artifacts directory. */
+  public static final String BINARY_DATA_FILE_NAME = "logcat.bin";
+
+  /** Index file of binary logcat in the artifacts directory. */
+  public static final String BINARY_INDEX_FILE_NAME = "logcat.idx";
+
+  private final AndroidRemoteContext remote;
+  private final FilePath textFile;
+  private final File artifactsDir;
+  private final boolean binary;
+  private final List<OutputStream> archiveStreams = new ArrayList<OutputStream>();
+  private volatile String captureId;
+
+  /**
+   * @param remote Context of the build.
+   * @param textFile Temporary logcat file in the workspace. (ANDROID_TMP_LOGCAT_FILE)
+   * @param artifactsDir Artifacts directory of the build.
+   * @param binary Whether to capture binary logcat.
+   */
+  public LogcatRecorder(AndroidRemoteContext remote, FilePath textFile, File artifactsDir,
+      boolean binary) {
+    this.remote = remote;
+    this.textFile = textFile;
+    this.artifactsDir = artifactsDir;
+    this.binary = binary;
+  }
+
+  public FilePath getTextFile() {
+    return textFile;
+  }
+
+  /**
+   * Starts recording.
+   * @throws IOException if logcat could not be started.
+   * @throws InterruptedException if interrupted while starting logcat.
+   */
+  public void start() throws IOException, InterruptedException {
+    if (!artifactsDir.isDirectory() && !artifactsDir.mkdirs()) {
+      throw new IOException("Could not create " + artifactsDir);
+    }
+    try {
+      if (binary) {
+        // exec-out keeps the binary stream intact, where shell would translate line feeds.
+        List<String> command = remote.getToolCommand(Tool.ADB,
+            String.format("-s %s exec-out logcat -B", remote.serial())).toList();
+        captureId = remote.callOnNode(LogcatTasks.startBinary(command,
+            remote.getAdbEnvironment(), textFile.getRemote(),
+            openArchive(BINARY_DATA_FILE_NAME), openArchive(BINARY_INDEX_FILE_NAME)));
+      } else {
+        List<String> command = remote.getToolCommand(Tool.ADB,
+            String.format("-s %s logcat -v time", remote.serial())).toList();
+        captureId = remote.callOnNode(LogcatTasks.startText(command,
+            remote.getAdbEnvironment(), textFile.getRemote(),
+            openArchive(TEXT_ARCHIVE_FILE_NAME)));
+      }
+    } catch (IOException ex) {
+      closeArchives();
+      throw ex;
+    }
+  }
+
+  /**
+   * Whether logcat is being captured.
+   * @return true between {@link #start} and {@link #finish}.
+   */
+  public boolean isRecording() {
+    return captureId != null;
+  }
+
+  /**
+   * Reads the latest logcat text for live viewers.
+   * Memory use on the node is bounded by the ring buffer, whatever the number of viewers.
+   * @param offset Offset the viewer has read up to.
+   * @param maxBytes Maximum number of bytes to return.
+   * @return the text following the offset, or null if logcat is not being captured.
+   * @throws IOException if the node could not be reached.
+   * @throws InterruptedException if interrupted while reading.
+   */
+  public LogcatRingBuffer.Tail tail(long offset, int maxBytes)
+      throws IOException, InterruptedException {
+    String id = captureId;
+    if (id == null) {
+      return null;
+    }
+    return remote.callOnNode(LogcatTasks.tail(id, offset, maxBytes));
+  }
+
+  /**
+   * Stops recording. Only the last chunk is left to ship, so this takes about the same time
+   * however long the log is.
+   * @param timeoutMillis Time to let logcat stop by itself.
+   * @return true if some logcat was archived.
+   * @throws IOException if the archive could not be completed.
+   * @throws InterruptedException if interrupted while stopping.
+   */
+  public boolean finish(long timeoutMillis) throws IOException, InterruptedException {
+    if (captureId == null) {
+      return false;
+    }
+    try {
+      remote.callOnNode(LogcatTasks.stop(captureId, timeoutMillis));
+      // Wait until the chunks sent by the node have been written.
+      VirtualChannel channel = remote.launcher().getChannel();
+      if (channel instanceof Channel) {
+        ((Channel) channel).syncIO();
+      }
+    } finally {
+      captureId = null;
+      closeArchives();
+      textFile.delete();
+    }
+
+    File archive = new File(artifactsDir,
+        binary ? BINARY_DATA_FILE_NAME : TEXT_ARCHIVE_FILE_NAME);
+    if (archive.length() == 0) {
+      deleteArchives();
+      return false;
+    }
+    return true;
+  }
+
+  private OutputStream openArchive(String fileName) throws IOException {
+    OutputStream out = new FileOutputStream(new File(artifactsDir, fileName));
+    archiveStreams.add(out);
+    return out;
+  }
+
+  private void closeArchives() throws IOException {
+    for (OutputStream out: archiveStreams) {
+      out.close();
+    }
+    archiveStreams.clear();
+  }
+
+  private void deleteArchives() throws IOException {
+    for (String fileName: new String[] {TEXT_ARCHIVE_FILE_NAME, BINARY_DATA_FILE_NAME,
+        BINARY_INDEX_FILE_NAME}) {
+      Files.deleteIfExists(new File(artifactsDir, fileName).toPath());
+    }
+  }
+}
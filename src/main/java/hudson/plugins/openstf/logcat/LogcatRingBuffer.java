@@ -0,0 +1,128 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Keeps the latest logcat text on the agent for live viewers.
+ * Bytes are addressed by their offset from the start of the capture, like the progressive
+ * console log, so each viewer just asks for what follows the offset it has seen.
+ * Viewers which fall behind by more than the capacity skip what was overwritten.
+ */
+public final class LogcatRingBuffer {
+
+  /** Default capacity. */
+  public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+  private final byte[] buffer;
+  private long end;
+
+  public LogcatRingBuffer(int capacity) {
+    this.buffer = new byte[capacity];
+  }
+
+  /**
+   * Appends bytes, overwriting the oldest ones when full.
+   */
+  public synchronized void write(byte[] b, int off, int len) {
+    if (len > buffer.length) {
+      end += len - buffer.length;
+      off += len - buffer.length;
+      len = buffer.length;
+    }
+    int pos = (int) (end % buffer.length);
+    int first = Math.min(len, buffer.length - pos);
+    System.arraycopy(b, off, buffer, pos, first);
+    System.arraycopy(b, off + first, buffer, 0, len - first);
+    end += len;
+  }
+
+  /**
+   * Reads the bytes following an offset.
+   * Reads up to the last line feed, so that lines and characters are not split between reads,
+   * unless a single line is longer than maxBytes.
+   * @param offset Offset the viewer has read up to.
+   * @param maxBytes Maximum number of bytes to return.
+   * @return the bytes and the offset to read next.
+   */
+  public synchronized Tail read(long offset, int maxBytes) {
+    long start = Math.max(0, end - buffer.length);
+    long from = Math.min(Math.max(offset, start), end);
+    long skipped = Math.max(0, start - offset);
+    int length = (int) Math.min(maxBytes, end - from);
+
+    byte[] data = new byte[length];
+    int pos = (int) (from % buffer.length);
+    int first = Math.min(length, buffer.length - pos);
+    System.arraycopy(buffer, pos, data, 0, first);
+    System.arraycopy(buffer, 0, data, first, length - first);
+
+    int lineEnd = length;
+    while (lineEnd > 0 && data[lineEnd - 1] != '\n') {
+      lineEnd--;
+    }
+    if (lineEnd > 0 && lineEnd < length) {
+      byte[] lines = new byte[lineEnd];
+      System.arraycopy(data, 0, lines, 0, lineEnd);
+      data = lines;
+    } else if (lineEnd == 0 && length < maxBytes) {
+      // Wait for the rest of the line.
+      data = new byte[0];
+    }
+    return new Tail(from + data.length, data, skipped);
+  }
+
+  /**
+   * Wraps a stream so that what is written to it is also kept in this buffer.
+   * @param out Stream to write to.
+   * @return the wrapping stream.
+   */
+  public OutputStream tee(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        LogcatRingBuffer.this.write(b, off, len);
+      }
+    };
+  }
+
+  /**
+   * Result of {@link #read}.
+   */
+  public static final class Tail implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long nextOffset;
+    private final byte[] data;
+    private final long skippedBytes;
+
+    Tail(long nextOffset, byte[] data, long skippedBytes) {
+      this.nextOffset = nextOffset;
+      this.data = data;
+      this.skippedBytes = skippedBytes;
+    }
+
+    /** Offset to read next. */
+    public long getNextOffset() {
+      return nextOffset;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    /** Number of bytes which were overwritten before the viewer read them. */
+    public long getSkippedBytes() {
+      return skippedBytes;
+    }
+  }
+}
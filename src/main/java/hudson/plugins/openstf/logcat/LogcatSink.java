@@ -0,0 +1,21 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the logcat output captured on the agent.
+ * Calls are serialized by {@link LogcatCapture}.
+ */
+public interface LogcatSink extends Closeable {
+
+  /**
+   * Receives the next part of the logcat output.
+   */
+  void write(byte[] b, int off, int len) throws IOException;
+
+  /**
+   * Ships what was received so far, e.g. because logcat has been quiet for a while.
+   */
+  void shipChunk() throws IOException;
+}
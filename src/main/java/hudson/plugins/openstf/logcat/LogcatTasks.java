@@ -0,0 +1,133 @@
+package hudson.plugins.openstf.logcat;
+
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remoting tasks which control the logcat capture on the node of the build.
+ */
+public final class LogcatTasks {
+
+  private LogcatTasks() {
+  }
+
+  /**
+   * Starts capturing text logcat on the node. The task returns the capture ID.
+   * @param archiveOut Stream on the controller receiving the gzip chunks.
+   */
+  public static Callable<String, IOException> startText(List<String> command,
+      Map<String, String> environment, String textFile, OutputStream archiveOut) {
+    return new StartTask(command, environment, textFile,
+        new RemoteOutputStream(archiveOut), null);
+  }
+
+  /**
+   * Starts capturing binary logcat on the node. The task returns the capture ID.
+   * @param dataOut Stream on the controller receiving the data chunks.
+   * @param indexOut Stream on the controller receiving the index records.
+   */
+  public static Callable<String, IOException> startBinary(List<String> command,
+      Map<String, String> environment, String textFile, OutputStream dataOut,
+      OutputStream indexOut) {
+    return new StartTask(command, environment, textFile,
+        new RemoteOutputStream(dataOut), new RemoteOutputStream(indexOut));
+  }
+
+  /**
+   * Stops capturing logcat on the node. The task returns false if logcat had to be destroyed.
+   */
+  public static Callable<Boolean, IOException> stop(String id, long timeoutMillis) {
+    return new StopTask(id, timeoutMillis);
+  }
+
+  /**
+   * Reads the latest text of a running capture. The task returns null once the capture stopped.
+   */
+  public static Callable<LogcatRingBuffer.Tail, IOException> tail(String id, long offset,
+      int maxBytes) {
+    return new TailTask(id, offset, maxBytes);
+  }
+
+  private static final class StartTask extends MasterToSlaveCallable<String, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> command;
+    private final Map<String, String> environment;
+    private final String textFile;
+    private final OutputStream archiveOut;
+    private final OutputStream indexOut;
+
+    /**
+     * @param indexOut Stream receiving the index records for binary logcat, or null for text.
+     */
+    private StartTask(List<String> command, Map<String, String> environment, String textFile,
+        OutputStream archiveOut, OutputStream indexOut) {
+      this.command = new ArrayList<String>(command);
+      this.environment = new HashMap<String, String>(environment);
+      this.textFile = textFile;
+      this.archiveOut = archiveOut;
+      this.indexOut = indexOut;
+    }
+
+    public String call() throws IOException {
+      LogcatRingBuffer ringBuffer = new LogcatRingBuffer(LogcatRingBuffer.DEFAULT_CAPACITY);
+      OutputStream textOut = ringBuffer.tee(new FileOutputStream(textFile));
+      LogcatSink sink = indexOut == null
+          ? new TextLogcatSink(textOut, archiveOut)
+          : new BinaryLogcatSink(textOut, archiveOut, indexOut);
+      return LogcatCapture.start(command, environment, sink, ringBuffer);
+    }
+  }
+
+  private static final class StopTask extends MasterToSlaveCallable<Boolean, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final long timeoutMillis;
+
+    private StopTask(String id, long timeoutMillis) {
+      this.id = id;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    public Boolean call() throws IOException {
+      try {
+        return LogcatCapture.stop(id, timeoutMillis);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while stopping logcat", ex);
+      }
+    }
+  }
+
+  private static final class TailTask
+      extends MasterToSlaveCallable<LogcatRingBuffer.Tail, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final long offset;
+    private final int maxBytes;
+
+    private TailTask(String id, long offset, int maxBytes) {
+      this.id = id;
+      this.offset = offset;
+      this.maxBytes = maxBytes;
+    }
+
+    public LogcatRingBuffer.Tail call() throws IOException {
+      return LogcatCapture.tail(id, offset, maxBytes);
+    }
+  }
+}
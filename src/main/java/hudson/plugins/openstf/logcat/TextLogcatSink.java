@@ -0,0 +1,50 @@
+package hudson.plugins.openstf.logcat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes text logcat to the temporary logcat file, and ships it gzip compressed in chunks.
+ */
+public class TextLogcatSink implements LogcatSink {
+
+  /** Amount of uncompressed logcat output which is shipped as one chunk. */
+  static final int CHUNK_SIZE = 1024 * 1024;
+
+  /** Size of the buffer in front of the archive stream, so chunks are shipped in few writes. */
+  private static final int ARCHIVE_BUFFER_SIZE = 64 * 1024;
+
+  private final OutputStream textOut;
+  private final ChunkedGzipOutputStream archiveOut;
+
+  /**
+   * @param textOut Temporary logcat file of the build. (ANDROID_TMP_LOGCAT_FILE)
+   * @param archiveOut Stream receiving the gzip chunks.
+   */
+  public TextLogcatSink(OutputStream textOut, OutputStream archiveOut) {
+    this.textOut = textOut;
+    this.archiveOut = new ChunkedGzipOutputStream(
+        new BufferedOutputStream(archiveOut, ARCHIVE_BUFFER_SIZE));
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    textOut.write(b, off, len);
+    archiveOut.write(b, off, len);
+    if (archiveOut.getPendingBytes() >= CHUNK_SIZE) {
+      archiveOut.finishChunk();
+    }
+  }
+
+  public void shipChunk() throws IOException {
+    archiveOut.finishChunk();
+  }
+
+  public void close() throws IOException {
+    try {
+      textOut.close();
+    } finally {
+      archiveOut.close();
+    }
+  }
+}
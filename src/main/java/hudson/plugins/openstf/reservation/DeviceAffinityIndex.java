@@ -0,0 +1,171 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.Extension;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Devices which recently ran each job and each app package.
+ * A build for the same app on the same device skips the APK install and starts with warm
+ * dex/ART caches, so reservations prefer the free devices the job or its packages ran on last.
+ * The index is updated when a build gives its devices back.
+ */
+@Extension
+public class DeviceAffinityIndex {
+
+  /** Devices remembered per job or package. */
+  static final int MAX_SERIALS_PER_KEY = 8;
+
+  /** Packages remembered per job. */
+  static final int MAX_PACKAGES_PER_JOB = 4;
+
+  /** Upper bound of the jobs and packages remembered, the least recently used going first. */
+  static final int MAX_KEYS = 1024;
+
+  private static final DeviceAffinityIndex FALLBACK_INSTANCE = new DeviceAffinityIndex();
+
+  private final Map<String, LinkedHashSet<String>> serialsByKey = newLruMap();
+  private final Map<String, LinkedHashSet<String>> packagesByJob = newLruMap();
+
+  private final AtomicLong affineReservationCount = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+
+  /**
+   * Gets the index registered as an extension.
+   * Falls back to a static instance when Jenkins is not running (e.g. unit tests).
+   * @return the affinity index.
+   */
+  public static DeviceAffinityIndex get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      List<DeviceAffinityIndex> list = jenkins.getExtensionList(DeviceAffinityIndex.class);
+      if (!list.isEmpty()) {
+        return list.get(0);
+      }
+    }
+    return FALLBACK_INSTANCE;
+  }
+
+  /**
+   * Records the app packages a job installs on its devices.
+   * @param job Full name of the job.
+   * @param packageNames Package names.
+   */
+  public synchronized void recordPackages(String job, Collection<String> packageNames) {
+    for (String packageName: packageNames) {
+      touch(packagesByJob, job, packageName, MAX_PACKAGES_PER_JOB);
+    }
+  }
+
+  /**
+   * Records that a job ran on a device, along with the packages it installs.
+   * Called when the build gives the device back.
+   * @param job Full name of the job.
+   * @param serial Serial of the device.
+   */
+  public synchronized void recordRelease(String job, String serial) {
+    touch(serialsByKey, getJobKey(job), serial, MAX_SERIALS_PER_KEY);
+    LinkedHashSet<String> packageNames = packagesByJob.get(job);
+    if (packageNames != null) {
+      for (String packageName: packageNames) {
+        touch(serialsByKey, getPackageKey(packageName), serial, MAX_SERIALS_PER_KEY);
+      }
+    }
+  }
+
+  /**
+   * Gets the devices a job should prefer.
+   * @param job Full name of the job.
+   * @return serials, most preferred first: the devices which ran the job, most recent first,
+   *     then the devices which ran its packages for other jobs.
+   */
+  public synchronized List<String> getAffineSerials(String job) {
+    LinkedHashSet<String> serials = new LinkedHashSet<String>();
+    addMostRecentFirst(serials, serialsByKey.get(getJobKey(job)));
+    LinkedHashSet<String> packageNames = packagesByJob.get(job);
+    if (packageNames != null) {
+      for (String packageName: packageNames) {
+        addMostRecentFirst(serials, serialsByKey.get(getPackageKey(packageName)));
+      }
+    }
+    return new ArrayList<String>(serials);
+  }
+
+  /**
+   * Records the outcome of a reservation which had affine devices to prefer.
+   * @param hit true if one of the affine devices was reserved.
+   */
+  public void recordReservation(boolean hit) {
+    affineReservationCount.incrementAndGet();
+    if (hit) {
+      hitCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Gets the number of reservations which had affine devices to prefer.
+   * @return reservation count.
+   */
+  public long getAffineReservationCount() {
+    return affineReservationCount.get();
+  }
+
+  /**
+   * Gets the number of reservations which got one of their affine devices.
+   * @return hit count.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  private static String getJobKey(String job) {
+    return "job:" + job;
+  }
+
+  private static String getPackageKey(String packageName) {
+    return "package:" + packageName;
+  }
+
+  /** Adds a value as the most recent one of a key, dropping the oldest beyond the limit. */
+  private static void touch(Map<String, LinkedHashSet<String>> map, String key, String value,
+      int limit) {
+    LinkedHashSet<String> values = map.get(key);
+    if (values == null) {
+      values = new LinkedHashSet<String>();
+      map.put(key, values);
+    }
+    values.remove(value);
+    values.add(value);
+    while (values.size() > limit) {
+      values.remove(values.iterator().next());
+    }
+  }
+
+  private static void addMostRecentFirst(Collection<String> to, LinkedHashSet<String> from) {
+    if (from == null) {
+      return;
+    }
+    List<String> values = new ArrayList<String>(from);
+    for (int i = values.size() - 1; i >= 0; i--) {
+      to.add(values.get(i));
+    }
+  }
+
+  private static Map<String, LinkedHashSet<String>> newLruMap() {
+    return new LinkedHashMap<String, LinkedHashSet<String>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LinkedHashSet<String>> eldest) {
+        return size() > MAX_KEYS;
+      }
+    };
+  }
+}
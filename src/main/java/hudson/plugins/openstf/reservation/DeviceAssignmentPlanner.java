@@ -0,0 +1,109 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans which free device goes to which of several requests, e.g. the cells of a matrix build,
+ * from one snapshot of the inventory.
+ * Requests are matched to devices as a whole (maximum bipartite matching), so a request which
+ * accepts many devices doesn't take the only device another request accepts, as happens when
+ * requests pick their device one after the other.
+ */
+public final class DeviceAssignmentPlanner {
+
+  private DeviceAssignmentPlanner() {
+  }
+
+  /**
+   * Assigns free devices to requests.
+   * @param filters Conditions of each request, by request key.
+   * @param devicesPerRequest Number of devices each request needs.
+   * @param freeDevices Devices which can be assigned.
+   * @return the devices assigned to each request. Requests which could not get all the devices
+   *     they need are left out, and none of their devices is assigned.
+   */
+  public static Map<String, List<DeviceListResponseDevices>> plan(
+      Map<String, DeviceFilter> filters, int devicesPerRequest,
+      List<DeviceListResponseDevices> freeDevices) {
+
+    // Each request takes one slot per device it needs.
+    List<String> slotKeys = new ArrayList<String>();
+    final List<List<Integer>> candidates = new ArrayList<List<Integer>>();
+    for (Map.Entry<String, DeviceFilter> entry: filters.entrySet()) {
+      List<Integer> accepted = new ArrayList<Integer>();
+      for (int i = 0; i < freeDevices.size(); i++) {
+        if (entry.getValue().matches(freeDevices.get(i))) {
+          accepted.add(i);
+        }
+      }
+      for (int n = 0; n < devicesPerRequest; n++) {
+        slotKeys.add(entry.getKey());
+        candidates.add(accepted);
+      }
+    }
+
+    // Most constrained slots first, which finds most of the matching without augmenting paths.
+    Integer[] order = new Integer[slotKeys.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer s1, Integer s2) {
+        return candidates.get(s1).size() - candidates.get(s2).size();
+      }
+    });
+
+    int[] slotOfDevice = new int[freeDevices.size()];
+    Arrays.fill(slotOfDevice, -1);
+    for (int slot: order) {
+      augment(slot, candidates, slotOfDevice, new boolean[freeDevices.size()]);
+    }
+
+    Map<String, List<DeviceListResponseDevices>> assignments =
+        new LinkedHashMap<String, List<DeviceListResponseDevices>>();
+    for (String key: filters.keySet()) {
+      assignments.put(key, new ArrayList<DeviceListResponseDevices>());
+    }
+    for (int i = 0; i < slotOfDevice.length; i++) {
+      if (slotOfDevice[i] >= 0) {
+        assignments.get(slotKeys.get(slotOfDevice[i])).add(freeDevices.get(i));
+      }
+    }
+    for (String key: filters.keySet()) {
+      if (assignments.get(key).size() < devicesPerRequest) {
+        assignments.remove(key);
+      }
+    }
+    return Collections.unmodifiableMap(assignments);
+  }
+
+  /**
+   * Finds a device for the slot, moving the slots which hold its candidates to other devices
+   * if needed.
+   */
+  private static boolean augment(int slot, List<List<Integer>> candidates, int[] slotOfDevice,
+      boolean[] visited) {
+    for (int device: candidates.get(slot)) {
+      if (visited[device]) {
+        continue;
+      }
+      visited[device] = true;
+      if (slotOfDevice[device] < 0
+          || augment(slotOfDevice[device], candidates, slotOfDevice, visited)) {
+        slotOfDevice[device] = slot;
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,109 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.Extension;
+import jenkins.model.Jenkins;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How long each device recently took to connect, and how often connecting to it failed.
+ * Both are moving averages, so that a device which got fixed recovers its rank after a few
+ * builds. Read by {@link DeviceRankingStrategy.ConnectHealth}.
+ */
+@Extension
+public class DeviceConnectHistory {
+
+  /** Weight of the latest connect in the moving averages. */
+  static final double SMOOTHING = 0.3;
+
+  /** Upper bound of the devices remembered, the least recently connected going first. */
+  static final int MAX_DEVICES = 1024;
+
+  private static final DeviceConnectHistory FALLBACK_INSTANCE = new DeviceConnectHistory();
+
+  private final Map<String, Stat> stats =
+      new LinkedHashMap<String, Stat>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stat> eldest) {
+          return size() > MAX_DEVICES;
+        }
+      };
+
+  /**
+   * Gets the history registered as an extension.
+   * Falls back to a static instance when Jenkins is not running (e.g. unit tests).
+   * @return the connect history.
+   */
+  public static DeviceConnectHistory get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      List<DeviceConnectHistory> list = jenkins.getExtensionList(DeviceConnectHistory.class);
+      if (!list.isEmpty()) {
+        return list.get(0);
+      }
+    }
+    return FALLBACK_INSTANCE;
+  }
+
+  /**
+   * Records that a device got ready for a build.
+   * @param serial Serial of the device.
+   * @param millis Time from the reservation until the device was ready.
+   */
+  public synchronized void recordConnect(String serial, long millis) {
+    Stat stat = getStat(serial);
+    stat.latencyMillis = stat.latencyMillis < 0
+        ? millis : SMOOTHING * millis + (1 - SMOOTHING) * stat.latencyMillis;
+    stat.failureRate = (1 - SMOOTHING) * stat.failureRate;
+    stat.count++;
+  }
+
+  /**
+   * Records that a device could not be connected for a build.
+   * @param serial Serial of the device.
+   */
+  public synchronized void recordFailure(String serial) {
+    Stat stat = getStat(serial);
+    stat.failureRate = stat.count == 0 ? 1 : SMOOTHING + (1 - SMOOTHING) * stat.failureRate;
+    stat.count++;
+  }
+
+  /**
+   * Gets the average connect time of a device.
+   * @param serial Serial of the device.
+   * @return time in milliseconds, or -1 if the device never connected.
+   */
+  public synchronized long getLatencyMillis(String serial) {
+    Stat stat = stats.get(serial);
+    return stat == null || stat.latencyMillis < 0 ? -1 : Math.round(stat.latencyMillis);
+  }
+
+  /**
+   * Gets the recent rate of failed connects of a device.
+   * @param serial Serial of the device.
+   * @return rate between 0 and 1, 0 if the device was never used.
+   */
+  public synchronized double getFailureRate(String serial) {
+    Stat stat = stats.get(serial);
+    return stat == null ? 0 : stat.failureRate;
+  }
+
+  private Stat getStat(String serial) {
+    Stat stat = stats.get(serial);
+    if (stat == null) {
+      stat = new Stat();
+      stats.put(serial, stat);
+    }
+    return stat;
+  }
+
+  private static final class Stat {
+    private long count;
+    private double latencyMillis = -1;
+    private double failureRate;
+  }
+}
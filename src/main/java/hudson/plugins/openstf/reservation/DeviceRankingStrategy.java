@@ -0,0 +1,210 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import io.swagger.client.model.DeviceListResponseDevices;
+import jenkins.model.Jenkins;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scores the free devices matching a reservation request, so that builds get the device most
+ * likely to finish fast instead of a random one.
+ * The scores of all registered strategies are added up, and the devices are offered highest
+ * score first. Devices with the same score keep their random order.
+ * A strategy should return scores roughly between -1 and 1, so that no signal drowns the others.
+ */
+public abstract class DeviceRankingStrategy implements ExtensionPoint {
+
+  private static final List<DeviceRankingStrategy> FALLBACK_STRATEGIES =
+      Collections.unmodifiableList(Arrays.<DeviceRankingStrategy>asList(
+          new Battery(), new ProviderLoad(), new ConnectHealth()));
+
+  /**
+   * Gets all the strategies registered as extensions.
+   * Falls back to the built-in strategies when Jenkins is not running (e.g. unit tests).
+   * @return the ranking strategies.
+   */
+  public static List<DeviceRankingStrategy> all() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      return jenkins.getExtensionList(DeviceRankingStrategy.class);
+    }
+    return FALLBACK_STRATEGIES;
+  }
+
+  /**
+   * Gets the device fields this strategy reads, which the device list is fetched with.
+   * @return field names.
+   */
+  public String[] getFields() {
+    return new String[0];
+  }
+
+  /**
+   * Scores a free device.
+   * @param device Device matching the request, with the fields of {@link #getFields()}.
+   * @param context All the devices of the same snapshot.
+   * @return score, higher is better.
+   */
+  public abstract double score(DeviceListResponseDevices device, Context context);
+
+  /**
+   * The device list the candidates were picked from.
+   */
+  public static final class Context {
+    private final List<DeviceListResponseDevices> devices;
+    private Map<String, Double> providerLoads;
+
+    public Context(List<DeviceListResponseDevices> devices) {
+      this.devices = devices;
+    }
+
+    /**
+     * Gets all the devices of the snapshot, free or not.
+     * @return unmodifiable list of devices.
+     */
+    public List<DeviceListResponseDevices> getDevices() {
+      return Collections.unmodifiableList(devices);
+    }
+
+    /**
+     * Gets the share of the present devices of a provider which are in use.
+     * @param provider Name of the provider.
+     * @return load between 0 and 1.
+     */
+    public synchronized double getProviderLoad(String provider) {
+      if (providerLoads == null) {
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (DeviceListResponseDevices device: devices) {
+          if (device.provider == null || !Boolean.TRUE.equals(device.present)) {
+            continue;
+          }
+          int[] count = counts.get(device.provider.name);
+          if (count == null) {
+            count = new int[2];
+            counts.put(device.provider.name, count);
+          }
+          count[0]++;
+          if (device.owner != null) {
+            count[1]++;
+          }
+        }
+        providerLoads = new HashMap<String, Double>();
+        for (Map.Entry<String, int[]> entry: counts.entrySet()) {
+          providerLoads.put(entry.getKey(),
+              (double) entry.getValue()[1] / entry.getValue()[0]);
+        }
+      }
+      Double load = providerLoads.get(provider);
+      return load == null ? 0 : load;
+    }
+  }
+
+  /**
+   * Avoids devices with a low battery, which throttle or shut down during the build,
+   * and hot devices, which throttle.
+   */
+  @Extension
+  public static class Battery extends DeviceRankingStrategy {
+
+    /** Battery level above which the level makes no difference. */
+    static final double FULL_ENOUGH_LEVEL = 50;
+
+    /** Battery temperature in degrees Celsius above which devices start to throttle. */
+    static final double HOT_TEMPERATURE = 40;
+
+    @Override
+    public String[] getFields() {
+      return new String[] {"battery"};
+    }
+
+    @Override
+    public double score(DeviceListResponseDevices device, Context context) {
+      if (device.battery == null) {
+        return 0;
+      }
+      double score = 0;
+      double level = toNumber(device.battery.level);
+      if (!Double.isNaN(level)) {
+        score += Math.min(level, FULL_ENOUGH_LEVEL) / FULL_ENOUGH_LEVEL;
+      }
+      double temperature = getTemperature(device.battery);
+      if (temperature > HOT_TEMPERATURE) {
+        score -= Math.min(temperature - HOT_TEMPERATURE, 10) / 10;
+      }
+      return score;
+    }
+
+    /** The temperature is only in the models of newer STF API clients. */
+    private static double getTemperature(Object battery) {
+      try {
+        Field field = battery.getClass().getField("temp");
+        return toNumber(field.get(battery));
+      } catch (NoSuchFieldException ex) {
+        return Double.NaN;
+      } catch (IllegalAccessException ex) {
+        return Double.NaN;
+      }
+    }
+  }
+
+  /**
+   * Spreads builds over the providers, since the host of a busy provider serves the screen,
+   * adb and installs of all its devices.
+   */
+  @Extension
+  public static class ProviderLoad extends DeviceRankingStrategy {
+
+    @Override
+    public String[] getFields() {
+      return new String[] {"provider", "present", "owner"};
+    }
+
+    @Override
+    public double score(DeviceListResponseDevices device, Context context) {
+      if (device.provider == null) {
+        return 0;
+      }
+      return 1 - context.getProviderLoad(device.provider.name);
+    }
+  }
+
+  /**
+   * Avoids devices which recently took long to connect or failed to connect.
+   * Devices without history score best, so that every device gets a history.
+   */
+  @Extension
+  public static class ConnectHealth extends DeviceRankingStrategy {
+
+    /** Connect time from which a device scores worst on latency. */
+    static final long SLOW_CONNECT_MS = 60 * 1000;
+
+    @Override
+    public double score(DeviceListResponseDevices device, Context context) {
+      DeviceConnectHistory history = DeviceConnectHistory.get();
+      double score = -history.getFailureRate(device.serial);
+      long latencyMillis = history.getLatencyMillis(device.serial);
+      if (latencyMillis > 0) {
+        score -= (double) Math.min(latencyMillis, SLOW_CONNECT_MS) / SLOW_CONNECT_MS;
+      }
+      return score;
+    }
+  }
+
+  private static double toNumber(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    try {
+      return Double.parseDouble(String.valueOf(value));
+    } catch (NumberFormatException ex) {
+      return Double.NaN;
+    }
+  }
+}
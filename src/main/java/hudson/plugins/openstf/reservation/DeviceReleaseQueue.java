@@ -0,0 +1,301 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.plugins.openstf.exception.ApiFailedException;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.util.Utils;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide record of the STF devices held by builds, and of the devices which still have
+ * to be released.
+ * A device which could not be released when its build ended is retried with backoff, and a
+ * device whose build is no longer running (e.g. after a controller restart) is reclaimed, so that
+ * failed releases don't keep devices owned by our token. Devices kept warm between builds are
+ * held by the {@link WarmDevicePool}. The state is kept under JENKINS_HOME.
+ */
+@Extension
+public class DeviceReleaseQueue implements Saveable {
+
+  private static final Logger LOGGER = Logger.getLogger(DeviceReleaseQueue.class.getName());
+
+  /** Delay before the first retry. Doubles on each failed attempt. */
+  static final long MIN_RETRY_INTERVAL_MS = 30 * 1000;
+
+  /** Upper bound of the delay between retries. */
+  static final long MAX_RETRY_INTERVAL_MS = 30 * 60 * 1000;
+
+  /** Number of attempts after which a release is given up, i.e. about a day. */
+  static final int MAX_ATTEMPTS = 60;
+
+  private static final DeviceReleaseQueue FALLBACK_INSTANCE = new DeviceReleaseQueue(null);
+
+  /** Build holding each device, by serial. */
+  private final Map<String, Lease> leases = new TreeMap<String, Lease>();
+
+  /** Devices to release, by serial. */
+  private final Map<String, PendingRelease> pendingReleases =
+      new TreeMap<String, PendingRelease>();
+
+  private final transient XmlFile file;
+
+  public DeviceReleaseQueue() {
+    this(new XmlFile(new File(Jenkins.getInstance().getRootDir(),
+        DeviceReleaseQueue.class.getName() + ".xml")));
+  }
+
+  DeviceReleaseQueue(XmlFile file) {
+    this.file = file;
+    if (file != null && file.exists()) {
+      try {
+        file.unmarshal(this);
+      } catch (IOException ex) {
+        LOGGER.log(Level.WARNING, "Failed to load " + file, ex);
+      }
+    }
+  }
+
+  /**
+   * Gets the queue registered as an extension.
+   * Falls back to a static instance when Jenkins is not running (e.g. unit tests).
+   * @return the release queue.
+   */
+  public static DeviceReleaseQueue get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      List<DeviceReleaseQueue> list = jenkins.getExtensionList(DeviceReleaseQueue.class);
+      if (!list.isEmpty()) {
+        return list.get(0);
+      }
+    }
+    return FALLBACK_INSTANCE;
+  }
+
+  /**
+   * Records that a build holds a device.
+   * @param stfApiClient STF API client the device was reserved with.
+   * @param serial Serial of the device.
+   * @param buildId Externalizable id of the build. (see {@link Run#getExternalizableId()})
+   */
+  public synchronized void lease(ApiClient stfApiClient, String serial, String buildId) {
+    leases.put(serial, new Lease(stfApiClient.getBasePath(), buildId));
+    // We own the device again, so an older release must not take it from the build.
+    pendingReleases.remove(serial);
+    saveQuietly();
+  }
+
+  /**
+   * Records that a device has been released.
+   * @param serial Serial of the device.
+   */
+  public synchronized void released(String serial) {
+    boolean changed = leases.remove(serial) != null;
+    changed |= pendingReleases.remove(serial) != null;
+    if (changed) {
+      saveQuietly();
+    }
+  }
+
+  /**
+   * Queues a device whose release failed, to be retried later.
+   * @param stfApiClient STF API client the device was reserved with.
+   * @param serial Serial of the device.
+   */
+  public void retryLater(ApiClient stfApiClient, String serial) {
+    retryLater(stfApiClient.getBasePath(), serial, System.currentTimeMillis());
+  }
+
+  synchronized void retryLater(String endpoint, String serial, long now) {
+    leases.remove(serial);
+    if (!pendingReleases.containsKey(serial)) {
+      pendingReleases.put(serial, new PendingRelease(endpoint, now + MIN_RETRY_INTERVAL_MS));
+    }
+    saveQuietly();
+  }
+
+  /**
+   * Queues the devices whose build is no longer running, or which are no longer in the warm
+   * device pool they were parked in.
+   * @return serials of the devices queued.
+   */
+  public List<String> sweep() {
+    return sweep(System.currentTimeMillis());
+  }
+
+  List<String> sweep(long now) {
+    Map<String, Lease> snapshot;
+    synchronized (this) {
+      snapshot = new TreeMap<String, Lease>(leases);
+    }
+    List<String> orphans = new ArrayList<String>();
+    for (Map.Entry<String, Lease> entry: snapshot.entrySet()) {
+      if (!isHeld(entry.getKey(), entry.getValue().buildId)) {
+        orphans.add(entry.getKey());
+      }
+    }
+    synchronized (this) {
+      for (String serial: orphans) {
+        Lease lease = leases.get(serial);
+        // The device may have been released or leased again meanwhile.
+        if (lease == snapshot.get(serial)) {
+          LOGGER.log(Level.INFO, "Reclaiming STF device {0} held by {1}, which is not running",
+              new Object[] {serial, lease.buildId});
+          retryLater(lease.endpoint, serial, now);
+        }
+      }
+    }
+    return orphans;
+  }
+
+  /**
+   * Releases the queued devices which are due.
+   * Devices queued for another STF endpoint are dropped, as the current token can't release
+   * them.
+   * @param stfApiClient STF API client of the global configuration.
+   * @return number of devices released.
+   */
+  public int process(ApiClient stfApiClient) {
+    return process(stfApiClient, System.currentTimeMillis());
+  }
+
+  int process(ApiClient stfApiClient, long now) {
+    String endpoint = stfApiClient.getBasePath();
+    Map<String, PendingRelease> due = new TreeMap<String, PendingRelease>();
+    boolean dropped = false;
+    synchronized (this) {
+      Iterator<Map.Entry<String, PendingRelease>> it = pendingReleases.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, PendingRelease> entry = it.next();
+        PendingRelease pendingRelease = entry.getValue();
+        if (!pendingRelease.endpoint.equals(endpoint)) {
+          LOGGER.log(Level.WARNING, "Giving up releasing STF device {0} of {1}",
+              new Object[] {entry.getKey(), pendingRelease.endpoint});
+          it.remove();
+          dropped = true;
+        } else if (pendingRelease.nextAttemptMillis <= now) {
+          due.put(entry.getKey(), pendingRelease);
+        }
+      }
+    }
+
+    int releasedCount = 0;
+    for (Map.Entry<String, PendingRelease> entry: due.entrySet()) {
+      String serial = entry.getKey();
+      PendingRelease pendingRelease = entry.getValue();
+      boolean released = false;
+      try {
+        releaseOnSTF(stfApiClient, serial);
+        released = true;
+        releasedCount++;
+      } catch (ApiFailedException ex) {
+        LOGGER.log(Level.FINE, "Failed to release STF device " + serial, ex);
+      }
+      synchronized (this) {
+        // The device may have been leased again meanwhile.
+        if (pendingReleases.get(serial) != pendingRelease) {
+          continue;
+        }
+        if (released) {
+          pendingReleases.remove(serial);
+        } else if (++pendingRelease.attempts >= MAX_ATTEMPTS) {
+          LOGGER.log(Level.WARNING, "Giving up releasing STF device {0} after {1} attempts",
+              new Object[] {serial, pendingRelease.attempts});
+          pendingReleases.remove(serial);
+        } else {
+          pendingRelease.nextAttemptMillis = now + getRetryInterval(pendingRelease.attempts);
+        }
+      }
+    }
+    if (dropped || !due.isEmpty()) {
+      saveQuietly();
+    }
+    if (releasedCount > 0) {
+      STFDeviceInventory.get().invalidate();
+      DeviceReservationBroker.get().notifyDeviceReleased();
+    }
+    return releasedCount;
+  }
+
+  /**
+   * Gets the number of devices waiting to be released.
+   * @return number of devices.
+   */
+  public synchronized int getPendingCount() {
+    return pendingReleases.size();
+  }
+
+  static long getRetryInterval(int attempts) {
+    long interval = MIN_RETRY_INTERVAL_MS << Math.min(attempts, 16);
+    return Math.min(interval, MAX_RETRY_INTERVAL_MS);
+  }
+
+  boolean isHeld(String serial, String buildId) {
+    if (WarmDevicePool.HOLDER.equals(buildId)) {
+      return WarmDevicePool.get().contains(serial);
+    }
+    Run<?, ?> run = Run.fromExternalizableId(buildId);
+    return run != null && run.isBuilding();
+  }
+
+  void releaseOnSTF(ApiClient stfApiClient, String serial) throws ApiFailedException {
+    DeviceListResponseDevices device = new DeviceListResponseDevices();
+    device.serial = serial;
+    try {
+      Utils.remoteDisconnectSTFDevice(stfApiClient, device);
+    } catch (ApiFailedException ex) {
+      // Remote connect may have been stopped by the earlier attempt.
+    }
+    Utils.releaseSTFDevice(stfApiClient, device);
+  }
+
+  @Override
+  public synchronized void save() throws IOException {
+    if (file != null) {
+      file.write(this);
+    }
+  }
+
+  private void saveQuietly() {
+    try {
+      save();
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Failed to save " + file, ex);
+    }
+  }
+
+  private static final class Lease {
+    private final String endpoint;
+    private final String buildId;
+
+    private Lease(String endpoint, String buildId) {
+      this.endpoint = endpoint;
+      this.buildId = buildId;
+    }
+  }
+
+  private static final class PendingRelease {
+    private final String endpoint;
+    private int attempts;
+    private long nextAttemptMillis;
+
+    private PendingRelease(String endpoint, long nextAttemptMillis) {
+      this.endpoint = endpoint;
+      this.nextAttemptMillis = nextAttemptMillis;
+    }
+  }
+}
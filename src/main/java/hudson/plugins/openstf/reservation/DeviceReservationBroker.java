@@ -0,0 +1,439 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.Extension;
+import hudson.plugins.openstf.exception.ApiFailedException;
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.plugins.openstf.inventory.DeviceQuery;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.util.Utils;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide broker which reserves STF devices on behalf of builds.
+ * All reservation requests are queued here and served by a single dispatcher, so builds on this
+ * controller never race each other for the same device: a device is offered to one request only,
+ * and a POST /user/devices fails only if someone outside of this controller took the device.
+ * Requests are served by priority, and waiting requests gain priority over time so that low
+ * priority jobs don't starve. Among the free devices matching a request, the devices the job or
+ * its app ran on recently are offered first, then the others as ranked by the
+ * {@link DeviceRankingStrategy} extensions.
+ * Waiting requests are polled for as in {@link DeviceWaitQueue}.
+ */
+@Extension
+public class DeviceReservationBroker extends DeviceWaitQueue<DeviceReservationBroker.Request> {
+
+  private static final Logger LOGGER = Logger.getLogger(DeviceReservationBroker.class.getName());
+
+  /** Waiting time which raises the priority of a request by one. */
+  static final long PRIORITY_AGING_MS = 60 * 1000;
+
+  /** Maximum number of reservation calls made at once for a batch. */
+  private static final int MAX_CONCURRENT_RESERVATIONS = 8;
+
+  private static final DeviceReservationBroker FALLBACK_INSTANCE = new DeviceReservationBroker();
+
+  private long requestSequence;
+
+  private final AtomicLong reservationCount = new AtomicLong();
+  private final AtomicLong batchReservationCount = new AtomicLong();
+  private final AtomicLong totalWaitMillis = new AtomicLong();
+  private final AtomicLong maxWaitMillis = new AtomicLong();
+  private final AtomicLong failedReservationCount = new AtomicLong();
+
+  public DeviceReservationBroker() {
+    super("STF device reservation broker");
+  }
+
+  /**
+   * Gets the broker registered as an extension.
+   * Falls back to a static instance when Jenkins is not running (e.g. unit tests).
+   * @return the reservation broker.
+   */
+  public static DeviceReservationBroker get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      List<DeviceReservationBroker> list =
+          jenkins.getExtensionList(DeviceReservationBroker.class);
+      if (!list.isEmpty()) {
+        return list.get(0);
+      }
+    }
+    return FALLBACK_INSTANCE;
+  }
+
+  /**
+   * Reserves a free device matching the filter, waiting until one is available.
+   * @param stfApiClient The STF API client.
+   * @param filter Conditions of free devices. (should include present and owner conditions)
+   * @param priority Priority of the request. Higher values are served first.
+   * @param timeoutMillis Maximum time to wait.
+   * @return the reserved device, or null if no device could be reserved in time.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public DeviceListResponseDevices reserve(ApiClient stfApiClient, DeviceFilter filter,
+      int priority, long timeoutMillis) throws InterruptedException {
+    return reserve(stfApiClient, filter, priority, Collections.<String>emptyList(),
+        timeoutMillis);
+  }
+
+  /**
+   * Reserves a free device matching the filter, preferring the given devices when they are free.
+   * @param stfApiClient The STF API client.
+   * @param filter Conditions of free devices. (should include present and owner conditions)
+   * @param priority Priority of the request. Higher values are served first.
+   * @param preferredSerials Serials of the devices to prefer, most preferred first, or null.
+   *     (see {@link DeviceAffinityIndex})
+   * @param timeoutMillis Maximum time to wait.
+   * @return the reserved device, or null if no device could be reserved in time.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public DeviceListResponseDevices reserve(ApiClient stfApiClient, DeviceFilter filter,
+      int priority, List<String> preferredSerials, long timeoutMillis)
+      throws InterruptedException {
+    Request request;
+    synchronized (this) {
+      request = new Request(stfApiClient, filter, priority,
+          preferredSerials == null ? Collections.<String>emptyList() : preferredSerials,
+          requestSequence++);
+    }
+    return await(request, timeoutMillis);
+  }
+
+  /**
+   * Reserves the given devices at once, e.g. the devices planned for the cells of a matrix build.
+   * The reservation calls run concurrently, but never alongside a dispatch, so the devices are
+   * not offered to waiting requests at the same time.
+   * @param stfApiClient The STF API client.
+   * @param devices Devices to reserve.
+   * @return serials of the devices which could be reserved.
+   * @throws InterruptedException if interrupted while reserving. Devices reserved up to then,
+   *     or by the reservation calls in flight, are released. The other calls are not made.
+   */
+  public Set<String> reserveAll(final ApiClient stfApiClient,
+      final List<DeviceListResponseDevices> devices) throws InterruptedException {
+    Future<Set<String>> batch = getExecutor().submit(new Callable<Set<String>>() {
+      @Override
+      public Set<String> call() throws InterruptedException {
+        return reserveConcurrently(stfApiClient, devices);
+      }
+    });
+    try {
+      return batch.get();
+    } catch (InterruptedException ex) {
+      // The batch releases what it reserved when interrupted.
+      batch.cancel(true);
+      throw ex;
+    } catch (ExecutionException ex) {
+      LOGGER.log(Level.WARNING, "Failed to reserve STF devices", ex.getCause());
+      return Collections.emptySet();
+    } finally {
+      wakeUp();
+    }
+  }
+
+  private Set<String> reserveConcurrently(final ApiClient stfApiClient,
+      List<DeviceListResponseDevices> devices) throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(devices.size(), MAX_CONCURRENT_RESERVATIONS)),
+        new NamingThreadFactory(new DaemonThreadFactory(), "STF batch device reservation"));
+    // Serials reserved so far. Once the batch is abandoned, tasks release what they reserve.
+    final Set<String> reserved = new HashSet<String>();
+    final boolean[] abandoned = new boolean[1];
+    List<Future<?>> results = new ArrayList<Future<?>>();
+    for (final DeviceListResponseDevices device: devices) {
+      results.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Utils.reserveSTFDevice(stfApiClient, device);
+          } catch (ApiFailedException ex) {
+            failedReservationCount.incrementAndGet();
+            return;
+          }
+          synchronized (reserved) {
+            if (!abandoned[0]) {
+              reserved.add(device.serial);
+              return;
+            }
+          }
+          release(stfApiClient, device);
+        }
+      }));
+    }
+    pool.shutdown();
+
+    try {
+      for (Future<?> result: results) {
+        try {
+          result.get();
+        } catch (ExecutionException ex) {
+          failedReservationCount.incrementAndGet();
+        }
+      }
+    } catch (InterruptedException ex) {
+      // Queued tasks never run, and running ones release their device when they are done.
+      // Running ones are not interrupted, as STF may have reserved the device all the same.
+      for (Future<?> result: results) {
+        result.cancel(false);
+      }
+      List<String> toRelease;
+      synchronized (reserved) {
+        abandoned[0] = true;
+        toRelease = new ArrayList<String>(reserved);
+      }
+      for (String serial: toRelease) {
+        DeviceListResponseDevices device = new DeviceListResponseDevices();
+        device.serial = serial;
+        release(stfApiClient, device);
+      }
+      throw ex;
+    } finally {
+      STFDeviceInventory.get().invalidate();
+    }
+    // Planned devices don't wait in the queue, so they are kept out of the wait statistics.
+    batchReservationCount.addAndGet(reserved.size());
+    return reserved;
+  }
+
+  /**
+   * Gets the number of devices reserved for waiting requests.
+   * @return reservation count.
+   */
+  public long getReservationCount() {
+    return reservationCount.get();
+  }
+
+  /**
+   * Gets the number of devices reserved at once for the cells of matrix builds.
+   * (see {@link #reserveAll})
+   * @return reservation count.
+   */
+  public long getBatchReservationCount() {
+    return batchReservationCount.get();
+  }
+
+  /**
+   * Gets the average time requests waited for their device.
+   * @return average wait time in milliseconds.
+   */
+  public long getAverageWaitMillis() {
+    long count = reservationCount.get();
+    return count == 0 ? 0 : totalWaitMillis.get() / count;
+  }
+
+  /**
+   * Gets the longest time a request waited for its device.
+   * @return max wait time in milliseconds.
+   */
+  public long getMaxWaitMillis() {
+    return maxWaitMillis.get();
+  }
+
+  /**
+   * Gets the number of reservation API calls which failed, e.g. because someone outside of this
+   * controller took the device first.
+   * @return failed reservation count.
+   */
+  public long getFailedReservationCount() {
+    return failedReservationCount.get();
+  }
+
+  @Override
+  void order(List<Request> pending, final long now) {
+    Collections.sort(pending, new Comparator<Request>() {
+      @Override
+      public int compare(Request r1, Request r2) {
+        long p1 = r1.getEffectivePriority(now);
+        long p2 = r2.getEffectivePriority(now);
+        if (p1 != p2) {
+          return p1 > p2 ? -1 : 1;
+        }
+        return r1.sequence < r2.sequence ? -1 : (r1.sequence == r2.sequence ? 0 : 1);
+      }
+    });
+  }
+
+  @Override
+  boolean serve(ApiClient stfApiClient, List<Request> group, long maxAgeMillis,
+      Set<String> freeSerials) {
+    Set<String> attributes = new HashSet<String>();
+    for (Request request: group) {
+      attributes.addAll(request.filter.getAttributes());
+    }
+    List<DeviceRankingStrategy> strategies = DeviceRankingStrategy.all();
+    for (DeviceRankingStrategy strategy: strategies) {
+      attributes.addAll(Arrays.asList(strategy.getFields()));
+    }
+    String fields = DeviceQuery.getFields(DeviceFilter.ANY,
+        attributes.toArray(new String[attributes.size()]));
+
+    List<DeviceListResponseDevices> devices;
+    try {
+      devices = STFDeviceInventory.get().getDevices(stfApiClient, fields, maxAgeMillis);
+    } catch (ApiFailedException ex) {
+      LOGGER.log(Level.FINE, "Failed to get STF devices for reservation requests", ex);
+      return false;
+    }
+
+    boolean served = false;
+    Set<String> taken = new HashSet<String>();
+    DeviceRankingStrategy.Context context = new DeviceRankingStrategy.Context(devices);
+    for (Request request: group) {
+      if (request.isDone()) {
+        continue;
+      }
+      List<DeviceListResponseDevices> candidates = request.filter.apply(devices);
+      Collections.shuffle(candidates);
+      sortByRank(candidates, context, strategies);
+      if (!request.preferredSerials.isEmpty()) {
+        sortByAffinity(candidates, request.preferredSerials);
+      }
+      for (DeviceListResponseDevices device: candidates) {
+        freeSerials.add(device.serial);
+        if (!taken.add(device.serial)) {
+          continue;
+        }
+        try {
+          Utils.reserveSTFDevice(stfApiClient, device);
+        } catch (ApiFailedException ex) {
+          failedReservationCount.incrementAndGet();
+          continue;
+        }
+        served = true;
+        STFDeviceInventory.get().invalidate();
+        if (request.complete(device)) {
+          recordWaitTime(System.currentTimeMillis() - request.enqueuedAt);
+          if (!request.preferredSerials.isEmpty()) {
+            DeviceAffinityIndex.get().recordReservation(
+                request.preferredSerials.contains(device.serial));
+          }
+        } else {
+          // The request gave up while the device was being reserved.
+          release(stfApiClient, device);
+        }
+        break;
+      }
+    }
+    return served;
+  }
+
+  /**
+   * Sorts devices by the sum of their scores, highest first.
+   * Devices with the same score keep their order.
+   * @param candidates Devices to sort.
+   * @param context Device list the candidates were picked from.
+   * @param strategies Strategies to score the devices with.
+   */
+  static void sortByRank(List<DeviceListResponseDevices> candidates,
+      DeviceRankingStrategy.Context context, List<DeviceRankingStrategy> strategies) {
+    if (strategies.isEmpty()) {
+      return;
+    }
+    final Map<String, Double> scores = new HashMap<String, Double>();
+    for (DeviceListResponseDevices device: candidates) {
+      double score = 0;
+      for (DeviceRankingStrategy strategy: strategies) {
+        try {
+          double strategyScore = strategy.score(device, context);
+          if (!Double.isNaN(strategyScore)) {
+            score += strategyScore;
+          }
+        } catch (RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Failed to rank STF device " + device.serial + " with "
+              + strategy.getClass().getName(), ex);
+        }
+      }
+      scores.put(device.serial, score);
+    }
+    Collections.sort(candidates, new Comparator<DeviceListResponseDevices>() {
+      @Override
+      public int compare(DeviceListResponseDevices d1, DeviceListResponseDevices d2) {
+        return Double.compare(scores.get(d2.serial), scores.get(d1.serial));
+      }
+    });
+  }
+
+  /**
+   * Moves the preferred devices to the front, in order of preference.
+   * The order of the other devices is kept.
+   * @param candidates Devices to sort.
+   * @param preferredSerials Serials of the devices to prefer, most preferred first.
+   */
+  static void sortByAffinity(List<DeviceListResponseDevices> candidates,
+      List<String> preferredSerials) {
+    final Map<String, Integer> ranks = new HashMap<String, Integer>();
+    for (String serial: preferredSerials) {
+      if (!ranks.containsKey(serial)) {
+        ranks.put(serial, ranks.size());
+      }
+    }
+    Collections.sort(candidates, new Comparator<DeviceListResponseDevices>() {
+      @Override
+      public int compare(DeviceListResponseDevices d1, DeviceListResponseDevices d2) {
+        Integer r1 = ranks.get(d1.serial);
+        Integer r2 = ranks.get(d2.serial);
+        int rank1 = r1 == null ? Integer.MAX_VALUE : r1;
+        int rank2 = r2 == null ? Integer.MAX_VALUE : r2;
+        return rank1 < rank2 ? -1 : (rank1 == rank2 ? 0 : 1);
+      }
+    });
+  }
+
+  private void recordWaitTime(long waitMillis) {
+    reservationCount.incrementAndGet();
+    totalWaitMillis.addAndGet(waitMillis);
+    long max;
+    do {
+      max = maxWaitMillis.get();
+    } while (waitMillis > max && !maxWaitMillis.compareAndSet(max, waitMillis));
+  }
+
+  private static void release(ApiClient stfApiClient, DeviceListResponseDevices device) {
+    try {
+      Utils.releaseSTFDevice(stfApiClient, device);
+    } catch (ApiFailedException ex) {
+      LOGGER.log(Level.WARNING, "Failed to release unclaimed STF device " + device.serial, ex);
+      DeviceReleaseQueue.get().retryLater(stfApiClient, device.serial);
+    }
+  }
+
+  static final class Request extends DeviceWaitQueue.Waiter {
+    private final int priority;
+    private final List<String> preferredSerials;
+    private final long sequence;
+
+    private Request(ApiClient stfApiClient, DeviceFilter filter, int priority,
+        List<String> preferredSerials, long sequence) {
+      super(stfApiClient, filter);
+      this.priority = priority;
+      this.preferredSerials = preferredSerials;
+      this.sequence = sequence;
+    }
+
+    private long getEffectivePriority(long now) {
+      return priority + (now - enqueuedAt) / PRIORITY_AGING_MS;
+    }
+  }
+}
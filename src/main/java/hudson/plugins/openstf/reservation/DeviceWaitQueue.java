@@ -0,0 +1,265 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-side queue of builds waiting for a STF device.
+ * A single poller watches the device inventory for all waiters, polling quickly while devices are
+ * changing hands and backing off while nothing changes. Each poll hands the free devices to the
+ * waiters in FIFO order, unless a subclass orders them otherwise, so waiters don't rush the STF
+ * API. Releases done by this controller wake the poller immediately.
+ * @param <W> Type of the waiters.
+ */
+public abstract class DeviceWaitQueue<W extends DeviceWaitQueue.Waiter> {
+
+  private static final Logger LOGGER = Logger.getLogger(DeviceWaitQueue.class.getName());
+
+  /** Poll interval right after the free devices changed. */
+  static final long MIN_POLL_INTERVAL_MS = 2 * 1000;
+
+  /** Poll interval after the free devices stayed the same for a while. */
+  static final long MAX_POLL_INTERVAL_MS = 30 * 1000;
+
+  private final String threadName;
+  private final LinkedList<W> waiters = new LinkedList<W>();
+  private ScheduledExecutorService executor;
+  private ScheduledFuture<?> nextPoll;
+  private long pollInterval = MIN_POLL_INTERVAL_MS;
+  private boolean forceRefresh;
+  private Set<String> lastFreeSerials = new HashSet<String>();
+
+  /**
+   * @param threadName Name of the poller thread.
+   */
+  protected DeviceWaitQueue(String threadName) {
+    this.threadName = threadName;
+  }
+
+  /**
+   * Queues a waiter and waits until it is served.
+   * @param waiter The waiter.
+   * @param timeoutMillis Maximum time to wait.
+   * @return the device the waiter was served, or null if it was not served in time.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  DeviceListResponseDevices await(W waiter, long timeoutMillis) throws InterruptedException {
+    synchronized (this) {
+      waiters.add(waiter);
+      schedulePoll(0);
+    }
+    try {
+      return waiter.await(timeoutMillis);
+    } finally {
+      synchronized (this) {
+        waiters.remove(waiter);
+      }
+    }
+  }
+
+  /**
+   * Notifies that a device has been released, so that waiters are served without delay.
+   */
+  public synchronized void notifyDeviceReleased() {
+    if (!waiters.isEmpty()) {
+      forceRefresh = true;
+      pollInterval = MIN_POLL_INTERVAL_MS;
+      schedulePoll(0);
+    }
+  }
+
+  /**
+   * Gets the number of builds waiting for a device.
+   * @return queue depth.
+   */
+  public synchronized int getQueueLength() {
+    return waiters.size();
+  }
+
+  /**
+   * Polls again right away if anyone is waiting, e.g. after devices changed hands outside of a
+   * poll.
+   */
+  synchronized void wakeUp() {
+    if (!waiters.isEmpty()) {
+      schedulePoll(0);
+    }
+  }
+
+  /**
+   * Gets the executor of the poller. Tasks submitted to it never run alongside a poll.
+   * @return the executor.
+   */
+  synchronized ScheduledExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(
+          new NamingThreadFactory(new DaemonThreadFactory(), threadName));
+    }
+    return executor;
+  }
+
+  /**
+   * Orders the waiters of a poll. The waiters are served in this order.
+   * @param pending Waiters in FIFO order.
+   * @param now Time of the poll.
+   */
+  void order(List<W> pending, long now) {
+  }
+
+  /**
+   * Serves the waiters of one STF API client.
+   * @param stfApiClient The STF API client of the waiters.
+   * @param group Waiters, in the order to serve them. Some may be done already.
+   * @param maxAgeMillis Maximum age of the device list to serve them from.
+   * @param freeSerials Collects the serials of the free devices seen.
+   * @return true if at least one waiter was served.
+   */
+  abstract boolean serve(ApiClient stfApiClient, List<W> group, long maxAgeMillis,
+      Set<String> freeSerials);
+
+  private synchronized void schedulePoll(long delayMillis) {
+    if (nextPoll != null) {
+      if (nextPoll.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+        return;
+      }
+      nextPoll.cancel(false);
+    }
+    nextPoll = getExecutor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        poll();
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void poll() {
+    List<W> pending;
+    long maxAgeMillis;
+    synchronized (this) {
+      nextPoll = null;
+      if (waiters.isEmpty()) {
+        return;
+      }
+      pending = new ArrayList<W>(waiters);
+      maxAgeMillis = forceRefresh ? 0 : MIN_POLL_INTERVAL_MS / 2;
+      forceRefresh = false;
+    }
+
+    // Whatever goes wrong, the next poll must be scheduled, or the waiters hang until timeout.
+    Set<String> freeSerials = new HashSet<String>();
+    boolean served = false;
+    try {
+      order(pending, System.currentTimeMillis());
+
+      // Group waiters by STF API client, keeping the order in each group.
+      Map<ApiClient, List<W>> groups = new LinkedHashMap<ApiClient, List<W>>();
+      for (W waiter: pending) {
+        List<W> group = groups.get(waiter.stfApiClient);
+        if (group == null) {
+          group = new ArrayList<W>();
+          groups.put(waiter.stfApiClient, group);
+        }
+        group.add(waiter);
+      }
+
+      for (Map.Entry<ApiClient, List<W>> entry: groups.entrySet()) {
+        try {
+          served |= serve(entry.getKey(), entry.getValue(), maxAgeMillis, freeSerials);
+        } catch (RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Failed to serve builds waiting for STF devices of "
+              + entry.getKey().getBasePath(), ex);
+        }
+      }
+    } finally {
+      synchronized (this) {
+        if (served || !freeSerials.equals(lastFreeSerials)) {
+          pollInterval = MIN_POLL_INTERVAL_MS;
+        } else {
+          pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MS);
+        }
+        lastFreeSerials = freeSerials;
+        if (!waiters.isEmpty()) {
+          schedulePoll(served ? 0 : pollInterval);
+        }
+      }
+    }
+  }
+
+  /**
+   * A build waiting for a device matching a filter.
+   */
+  static class Waiter {
+    final ApiClient stfApiClient;
+    final DeviceFilter filter;
+    final long enqueuedAt = System.currentTimeMillis();
+    private DeviceListResponseDevices device;
+    private boolean cancelled;
+
+    Waiter(ApiClient stfApiClient, DeviceFilter filter) {
+      this.stfApiClient = stfApiClient;
+      this.filter = filter;
+    }
+
+    synchronized boolean isDone() {
+      return device != null || cancelled;
+    }
+
+    /**
+     * Serves the waiter.
+     * @param device The device for the waiter.
+     * @return false if the waiter was served already or gave up.
+     */
+    synchronized boolean complete(DeviceListResponseDevices device) {
+      if (isDone()) {
+        return false;
+      }
+      this.device = device;
+      notifyAll();
+      return true;
+    }
+
+    synchronized DeviceListResponseDevices await(long timeoutMillis)
+        throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      try {
+        while (device == null) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return null;
+          }
+          try {
+            wait(remaining);
+          } catch (InterruptedException ex) {
+            if (device == null) {
+              throw ex;
+            }
+            // The device is ours already, so hand it over for the caller to release.
+            Thread.currentThread().interrupt();
+          }
+        }
+        return device;
+      } finally {
+        if (device == null) {
+          cancelled = true;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,376 @@
+package hudson.plugins.openstf.reservation;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.plugins.openstf.adb.AdbTasks;
+import hudson.plugins.openstf.exception.ApiFailedException;
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.plugins.openstf.inventory.DeviceQuery;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.util.Utils;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Devices kept reserved and remote connected after their build, for the next compatible build on
+ * the same agent.
+ * Short jobs which run back to back then skip the reservation, remote connect and, with the
+ * shared adb server, adb connect. With the shared adb server, the pool keeps the reference of
+ * the build which parked the device, so the device stays connected to adb while idle.
+ * Devices idle for longer than the idle time are released.
+ */
+@Extension
+public class WarmDevicePool {
+
+  private static final Logger LOGGER = Logger.getLogger(WarmDevicePool.class.getName());
+
+  /** Holder of the parked devices in the {@link DeviceReleaseQueue}. */
+  public static final String HOLDER = "STF warm device pool";
+
+  /** Fields to tell whether a parked device is still remote connected. */
+  private static final String REMOTE_CONNECT_FIELDS =
+      DeviceQuery.getFields(DeviceFilter.ANY, "present", "owner", "remoteConnectUrl");
+
+  private static final WarmDevicePool FALLBACK_INSTANCE = new WarmDevicePool();
+
+  private final LinkedList<Entry> entries = new LinkedList<Entry>();
+  private ScheduledExecutorService executor;
+
+  private final AtomicLong reuseCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Gets the pool registered as an extension.
+   * Falls back to a static instance when Jenkins is not running (e.g. unit tests).
+   * @return the warm device pool.
+   */
+  public static WarmDevicePool get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins != null) {
+      List<WarmDevicePool> list = jenkins.getExtensionList(WarmDevicePool.class);
+      if (!list.isEmpty()) {
+        return list.get(0);
+      }
+    }
+    return FALLBACK_INSTANCE;
+  }
+
+  /**
+   * Keeps a device reserved and connected after its build.
+   * @param stfApiClient STF API client the device was reserved with.
+   * @param nodeName Name of the node the build ran on.
+   * @param sharedAdbServerPort Port of the shared adb server the device is connected to,
+   *     or 0 if the build ran a dedicated adb server.
+   * @param device The device, with its remote connect URL.
+   * @param idleMillis How long the device may stay idle before it is released.
+   * @param maxDevices Maximum number of devices in the pool.
+   * @return true if the device was parked, false if the pool is full.
+   */
+  public boolean park(ApiClient stfApiClient, String nodeName, int sharedAdbServerPort,
+      DeviceListResponseDevices device, long idleMillis, int maxDevices) {
+    Entry entry = new Entry(stfApiClient, nodeName, sharedAdbServerPort, device,
+        System.currentTimeMillis() + idleMillis);
+    if (!park(entry, maxDevices)) {
+      return false;
+    }
+    scheduleEviction(entry.deadline);
+    return true;
+  }
+
+  synchronized boolean park(Entry entry, int maxDevices) {
+    if (entries.size() >= maxDevices) {
+      return false;
+    }
+    // The most recently used devices are offered first.
+    entries.addFirst(entry);
+    DeviceReleaseQueue.get().lease(entry.stfApiClient, entry.device.serial, HOLDER);
+    return true;
+  }
+
+  /**
+   * Takes warm devices matching a filter for a build.
+   * Either enough devices are taken for the build, or none.
+   * @param stfApiClient STF API client of the build.
+   * @param nodeName Name of the node the build runs on.
+   * @param sharedAdbServerPort Port of the shared adb server of the build, or 0.
+   * @param filter Conditions of the devices, without the present and owner conditions.
+   * @param minCount Number of devices the build needs.
+   * @param maxCount Number of devices the build can use.
+   * @param buildId Externalizable id of the build, which holds the devices from now on.
+   * @return the devices, with their remote connect URL, or an empty list.
+   */
+  public List<DeviceListResponseDevices> take(ApiClient stfApiClient, String nodeName,
+      int sharedAdbServerPort, DeviceFilter filter, int minCount, int maxCount,
+      String buildId) {
+    List<Entry> candidates = new ArrayList<Entry>();
+    synchronized (this) {
+      Iterator<Entry> it = entries.iterator();
+      while (it.hasNext() && candidates.size() < maxCount) {
+        Entry entry = it.next();
+        if (entry.isCompatible(stfApiClient, nodeName, sharedAdbServerPort)
+            && !filter.apply(Collections.singletonList(entry.device)).isEmpty()) {
+          it.remove();
+          DeviceReleaseQueue.get().lease(stfApiClient, entry.device.serial, buildId);
+          candidates.add(entry);
+        }
+      }
+      if (candidates.size() < minCount) {
+        restore(candidates);
+        return Collections.emptyList();
+      }
+    }
+
+    // STF may have taken the device back while it was idle, e.g. when it was unplugged.
+    Set<String> connectedSerials = getStillConnectedSerials(stfApiClient, candidates);
+    List<Entry> taken = new ArrayList<Entry>();
+    for (Entry entry: candidates) {
+      if (connectedSerials.contains(entry.device.serial)) {
+        taken.add(entry);
+      } else {
+        evict(Collections.singletonList(entry));
+      }
+    }
+    if (taken.size() < minCount) {
+      synchronized (this) {
+        restore(taken);
+      }
+      return Collections.emptyList();
+    }
+
+    reuseCount.incrementAndGet();
+    List<DeviceListResponseDevices> devices = new ArrayList<DeviceListResponseDevices>();
+    for (Entry entry: taken) {
+      devices.add(entry.device);
+    }
+    return devices;
+  }
+
+  private void restore(List<Entry> taken) {
+    for (Entry entry: taken) {
+      entries.addFirst(entry);
+      DeviceReleaseQueue.get().lease(entry.stfApiClient, entry.device.serial, HOLDER);
+    }
+  }
+
+  /**
+   * Whether a device is parked in the pool.
+   * @param serial Serial of the device.
+   * @return true if the device is parked.
+   */
+  public synchronized boolean contains(String serial) {
+    for (Entry entry: entries) {
+      if (entry.device.serial.equals(serial)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Releases the devices which stayed idle for too long.
+   * @return number of devices evicted.
+   */
+  public int evictExpired() {
+    return evictExpired(System.currentTimeMillis());
+  }
+
+  int evictExpired(long now) {
+    List<Entry> expired = new ArrayList<Entry>();
+    synchronized (this) {
+      Iterator<Entry> it = entries.iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (entry.deadline <= now) {
+          it.remove();
+          expired.add(entry);
+        }
+      }
+    }
+    evict(expired);
+    return expired.size();
+  }
+
+  /**
+   * Releases all the parked devices, e.g. when the global configuration changes.
+   */
+  public void evictAll() {
+    List<Entry> all;
+    synchronized (this) {
+      all = new ArrayList<Entry>(entries);
+      entries.clear();
+    }
+    evict(all);
+  }
+
+  /**
+   * Gets the number of parked devices.
+   * @return number of devices.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Gets the number of builds which reused warm devices.
+   * @return number of builds.
+   */
+  public long getReuseCount() {
+    return reuseCount.get();
+  }
+
+  /**
+   * Gets the number of devices released after idling.
+   * @return number of devices.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  private void evict(List<Entry> evicted) {
+    if (evicted.isEmpty()) {
+      return;
+    }
+    evictionCount.addAndGet(evicted.size());
+    for (final Entry entry: evicted) {
+      getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          release(entry);
+        }
+      });
+    }
+  }
+
+  private void scheduleEviction(long deadline) {
+    long delay = Math.max(0, deadline - System.currentTimeMillis());
+    getExecutor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        evictExpired();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Checks the devices against STF in a single request.
+   * @return serials of the devices which are still present, reserved and remote connected at
+   *     the URL they were parked with.
+   */
+  Set<String> getStillConnectedSerials(ApiClient stfApiClient, List<Entry> candidates) {
+    Set<String> connectedSerials = new HashSet<String>();
+    List<DeviceListResponseDevices> devices;
+    try {
+      devices = STFDeviceInventory.get().getDevices(stfApiClient, REMOTE_CONNECT_FIELDS, 0);
+    } catch (ApiFailedException ex) {
+      return connectedSerials;
+    }
+    Map<String, DeviceListResponseDevices> devicesBySerial =
+        new HashMap<String, DeviceListResponseDevices>();
+    for (DeviceListResponseDevices device: devices) {
+      devicesBySerial.put(device.serial, device);
+    }
+    for (Entry entry: candidates) {
+      DeviceListResponseDevices device = devicesBySerial.get(entry.device.serial);
+      if (device != null && Boolean.TRUE.equals(device.present) && device.owner != null
+          && entry.device.remoteConnectUrl.equals(device.remoteConnectUrl)) {
+        connectedSerials.add(entry.device.serial);
+      }
+    }
+    return connectedSerials;
+  }
+
+  void release(Entry entry) {
+    DeviceListResponseDevices device = entry.device;
+    if (entry.sharedAdbServerPort > 0) {
+      VirtualChannel channel = getChannel(entry.nodeName);
+      if (channel != null) {
+        try {
+          channel.call(AdbTasks.releaseShared(entry.sharedAdbServerPort,
+              device.remoteConnectUrl));
+        } catch (IOException ex) {
+          // The agent went away, and its adb server with it.
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    try {
+      Utils.remoteDisconnectSTFDevice(entry.stfApiClient, device);
+      Utils.releaseSTFDevice(entry.stfApiClient, device);
+      DeviceReleaseQueue.get().released(device.serial);
+    } catch (ApiFailedException ex) {
+      LOGGER.log(Level.WARNING, "Failed to release warm STF device " + device.serial, ex);
+      DeviceReleaseQueue.get().retryLater(entry.stfApiClient, device.serial);
+    }
+    STFDeviceInventory.get().invalidate();
+    DeviceReservationBroker.get().notifyDeviceReleased();
+  }
+
+  private static VirtualChannel getChannel(String nodeName) {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins == null) {
+      return null;
+    }
+    Node node = nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
+    Computer computer = node == null ? null : node.toComputer();
+    return computer == null ? null : computer.getChannel();
+  }
+
+  private synchronized ScheduledExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(
+          new NamingThreadFactory(new DaemonThreadFactory(), "STF warm device pool"));
+    }
+    return executor;
+  }
+
+  static final class Entry {
+    private final ApiClient stfApiClient;
+    private final String nodeName;
+    private final int sharedAdbServerPort;
+    private final DeviceListResponseDevices device;
+    private final long deadline;
+
+    Entry(ApiClient stfApiClient, String nodeName, int sharedAdbServerPort,
+        DeviceListResponseDevices device, long deadline) {
+      this.stfApiClient = stfApiClient;
+      this.nodeName = nodeName;
+      this.sharedAdbServerPort = sharedAdbServerPort;
+      this.device = device;
+      this.deadline = deadline;
+    }
+
+    DeviceListResponseDevices getDevice() {
+      return device;
+    }
+
+    private boolean isCompatible(ApiClient stfApiClient, String nodeName,
+        int sharedAdbServerPort) {
+      return this.stfApiClient.getBasePath().equals(stfApiClient.getBasePath())
+          && this.nodeName.equals(nodeName)
+          && this.sharedAdbServerPort == sharedAdbServerPort;
+    }
+  }
+}
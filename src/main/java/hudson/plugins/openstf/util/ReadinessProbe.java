@@ -0,0 +1,45 @@
+package hudson.plugins.openstf.util;
+
+/**
+ * Bounded readiness check with exponential backoff.
+ * Used in place of fixed sleeps, so that fast devices don't pay for the slowest ones.
+ */
+public abstract class ReadinessProbe {
+
+  /** First interval between checks. */
+  static final long INITIAL_INTERVAL_MS = 100;
+
+  /** Upper bound of the interval between checks. */
+  static final long MAX_INTERVAL_MS = 2 * 1000;
+
+  /**
+   * Checks once whether the target is ready.
+   * @return true if ready.
+   * @throws InterruptedException if interrupted while checking.
+   */
+  protected abstract boolean isReady() throws InterruptedException;
+
+  /**
+   * Checks repeatedly until the target is ready or the timeout has elapsed.
+   * @param timeoutMillis Maximum time to wait.
+   * @return time it took to become ready in milliseconds, or -1 if it did not become ready in time.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public long await(long timeoutMillis) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    long deadline = start + timeoutMillis;
+    long interval = INITIAL_INTERVAL_MS;
+
+    while (true) {
+      if (isReady()) {
+        return System.currentTimeMillis() - start;
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return -1;
+      }
+      Thread.sleep(Math.min(interval, remaining));
+      interval = Math.min(interval * 2, MAX_INTERVAL_MS);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package hudson.plugins.openstf.util;
+
+import io.swagger.client.ApiClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of long-lived STF API clients.
+ * One client (and so one Jersey client and connection pool) is kept per
+ * (endpoint, token, ignoreCertError), and shared by builds and web requests.
+ * ApiClient does not hold per-request state that we rely on, so it is safe to share.
+ */
+public final class STFApiClientPool {
+
+  /** Upper bound of pooled clients, so that checking many tokens on the config page can't leak. */
+  private static final int MAX_CLIENTS = 16;
+
+  private static final Map<Key, ApiClient> CLIENTS =
+      new LinkedHashMap<Key, ApiClient>(MAX_CLIENTS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, ApiClient> eldest) {
+          return size() > MAX_CLIENTS;
+        }
+      };
+
+  private STFApiClientPool() {
+  }
+
+  /**
+   * Gets the pooled STF API client for the given settings, creating it on first use.
+   * @param stfApiEndpoint The STF API endpoint URL.
+   * @param ignoreCertError Whether to ignore SSL certificate errors.
+   * @param stfToken The STF access token.
+   * @return STF API client.
+   */
+  public static ApiClient get(String stfApiEndpoint, boolean ignoreCertError, String stfToken) {
+    Key key = new Key(stfApiEndpoint, ignoreCertError, stfToken);
+    synchronized (CLIENTS) {
+      ApiClient stfApiClient = CLIENTS.get(key);
+      if (stfApiClient == null) {
+        stfApiClient = new ApiClient();
+        if (ignoreCertError) {
+          stfApiClient.setIgnoreCertError(true);
+        }
+        stfApiClient.setBasePath(stfApiEndpoint);
+        stfApiClient.setApiKeyPrefix("Bearer");
+        stfApiClient.setApiKey(stfToken);
+        CLIENTS.put(key, stfApiClient);
+      }
+      return stfApiClient;
+    }
+  }
+
+  /**
+   * Drops all pooled clients. Called when the global configuration changes.
+   */
+  public static void clear() {
+    synchronized (CLIENTS) {
+      CLIENTS.clear();
+    }
+  }
+
+  /**
+   * Identifies the settings of a client. Also used by {@link ValidatedConfigCache}.
+   */
+  static final class Key {
+    private final String stfApiEndpoint;
+    private final boolean ignoreCertError;
+    private final String stfToken;
+
+    Key(String stfApiEndpoint, boolean ignoreCertError, String stfToken) {
+      this.stfApiEndpoint = String.valueOf(stfApiEndpoint);
+      this.ignoreCertError = ignoreCertError;
+      this.stfToken = String.valueOf(stfToken);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return stfApiEndpoint.equals(other.stfApiEndpoint)
+          && ignoreCertError == other.ignoreCertError
+          && stfToken.equals(other.stfToken);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = stfApiEndpoint.hashCode();
+      result = 31 * result + (ignoreCertError ? 1 : 0);
+      result = 31 * result + stfToken.hashCode();
+      return result;
+    }
+  }
+}
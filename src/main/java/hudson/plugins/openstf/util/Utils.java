@@ -7,27 +7,27 @@ import hudson.model.Computer;
 import hudson.plugins.openstf.Constants;
 import hudson.plugins.openstf.Messages;
 import hudson.plugins.openstf.exception.ApiFailedException;
+import hudson.plugins.openstf.inventory.DeviceAttributeIndex;
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.plugins.openstf.inventory.DeviceQuery;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
 import hudson.util.ComboBoxModel;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import io.swagger.client.ApiClient;
 import io.swagger.client.ApiException;
-import io.swagger.client.Configuration;
 import io.swagger.client.api.DevicesApi;
 import io.swagger.client.api.UserApi;
 import io.swagger.client.model.AddUserDevicePayload;
 import io.swagger.client.model.DeviceListResponseDevices;
 import net.sf.json.JSONObject;
 
-import java.lang.reflect.Field;
 import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.TreeSet;
+import java.util.SortedSet;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -102,7 +102,7 @@ public class Utils {
    */
   public static ListBoxModel getSTFDeviceAttributeListBoxItems() {
     ListBoxModel items = new ListBoxModel();
-    for (String value: getSTFDeviceAttributeSet()) {
+    for (String value: DeviceAttributeIndex.ATTRIBUTES) {
       items.add(value);
     }
 
@@ -111,13 +111,15 @@ public class Utils {
 
   /**
    * Gets Attribute values of the STF device.
+   * @param stfApiClient  The STF API client.
    * @param attribute  Attribute name you want to get the values.
    * @return Attribute values of the STF device as ComboBoxModel.
    */
-  public static ComboBoxModel getSTFDeviceAttributeValueComboBoxItems(String attribute) {
+  public static ComboBoxModel getSTFDeviceAttributeValueComboBoxItems(ApiClient stfApiClient,
+      String attribute) {
     ComboBoxModel items = new ComboBoxModel();
     items.add("any");
-    for (String value: getSTFDeviceAttributeValueSet(attribute)) {
+    for (String value: getSTFDeviceAttributeValueSet(stfApiClient, attribute)) {
       items.add(value);
     }
 
@@ -126,12 +128,14 @@ public class Utils {
 
   /**
    * Gets Attribute values of the STF device.
+   * @param stfApiClient  The STF API client.
    * @param attribute  Attribute name you want to get the values.
    * @return Attribute values of the STF device as ListBoxModel.
    */
-  public static ListBoxModel getSTFDeviceAttributeValueListBoxItems(String attribute) {
+  public static ListBoxModel getSTFDeviceAttributeValueListBoxItems(ApiClient stfApiClient,
+      String attribute) {
     ListBoxModel items = new ListBoxModel();
-    for (String value: getSTFDeviceAttributeValueSet(attribute)) {
+    for (String value: getSTFDeviceAttributeValueSet(stfApiClient, attribute)) {
       items.add(value);
     }
 
@@ -139,109 +143,78 @@ public class Utils {
   }
 
   /**
-   * Set the STF API client up by using given information.
+   * Gets the STF API client for the given information.
+   * Clients are pooled, so the same instance is returned for the same settings.
    * @param stfApiEndpoint  stfApiEndpoint The STF API endpoint URL.
    * @param stfToken  stfToken The STF access token.
+   * @return STF API client.
    */
-  public static void setupSTFApiClient(String stfApiEndpoint, boolean ignoreCertError,
+  public static ApiClient getSTFApiClient(String stfApiEndpoint, boolean ignoreCertError,
       String stfToken) {
-
-    ApiClient stfApiClient = new ApiClient();
-    if (ignoreCertError) {
-      stfApiClient.setIgnoreCertError(true);
-    }
-    stfApiClient.setBasePath(stfApiEndpoint);
-    stfApiClient.setApiKeyPrefix("Bearer");
-    stfApiClient.setApiKey(stfToken);
-    Configuration.setDefaultApiClient(stfApiClient);
+    return STFApiClientPool.get(stfApiEndpoint, ignoreCertError, stfToken);
   }
 
-  public static List<DeviceListResponseDevices> getDeviceList() throws ApiFailedException {
-    return getDeviceList(null);
+  public static List<DeviceListResponseDevices> getDeviceList(ApiClient stfApiClient)
+      throws ApiFailedException {
+    return getDeviceList(stfApiClient, DeviceFilter.ANY);
   }
 
   /**
    * Gets a list of devices that match the given filter.
+   * The device list is read from the shared {@link STFDeviceInventory} snapshot.
+   * @param stfApiClient The STF API client.
    * @param filter Conditions of the STF device you want to get.
    * @return List of STF devices that meet the filter.
    * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
    */
-  public static List<DeviceListResponseDevices> getDeviceList(Map<String, String> filter)
-      throws ApiFailedException {
+  public static List<DeviceListResponseDevices> getDeviceList(ApiClient stfApiClient,
+      Map<String, String> filter) throws ApiFailedException {
 
-    List<DeviceListResponseDevices> deviceList;
-    String fields = "serial,name,model,version,sdk,image,present,owner"
-        + ",provider,notes,manufacturer,abi,battery";
-    DevicesApi stfDevicesApi = new DevicesApi();
+    return getDeviceList(stfApiClient, DeviceFilter.compile(filter));
+  }
 
-    try {
-      deviceList = stfDevicesApi.getDevices(fields).getDevices();
-    }  catch (ApiException ex) {
-      throw new ApiFailedException("GET /devices API failed");
-    }
+  /**
+   * Gets a list of devices that match the given compiled filter.
+   * The device list is read from the shared {@link STFDeviceInventory} snapshot.
+   * @param stfApiClient The STF API client.
+   * @param filter Compiled conditions of the STF device you want to get.
+   * @return List of STF devices that meet the filter.
+   * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
+   */
+  public static List<DeviceListResponseDevices> getDeviceList(ApiClient stfApiClient,
+      DeviceFilter filter) throws ApiFailedException {
+    return filter.apply(STFDeviceInventory.get().getDevices(stfApiClient));
+  }
 
-    if (filter != null) {
-      for (Map.Entry<String, String> entry: filter.entrySet()) {
-        String key = entry.getKey();
-        String value = entry.getValue();
-
-        if (!value.equals("any")) {
-          for (Iterator<DeviceListResponseDevices> di = deviceList.listIterator();
-              di.hasNext(); ) {
-            DeviceListResponseDevices device = di.next();
-            Class klass = device.getClass();
-            try {
-              Field field = klass.getField(key);
-
-              if (field.get(device) != null) {
-                String deviceValue;
-                if (key.equals("battery")) {
-                  deviceValue = String.valueOf(device.battery.level);
-                }
-                else if (key.equals("provider")) {
-                  deviceValue = device.provider.name;
-                } else {
-                  deviceValue = field.get(device).toString();
-                }
-                if (value.matches(Constants.REGEX_ESCAPED_REGEX_VALUE)) {
-                  String regex = value.substring(1, value.length() - 1);
-                  if (!deviceValue.matches(regex)) {
-                    di.remove();
-                  }
-                } else {
-                  if (!value.equals(deviceValue)) {
-                    di.remove();
-                  }
-                }
-              } else {
-                if (!value.equals("null")) {
-                  di.remove();
-                }
-              }
-            } catch (NoSuchFieldException ex) {
-              //ignore
-            } catch (IllegalAccessException ex) {
-              //ignore
-            }
-          }
-        }
-      }
-    }
-    return deviceList;
+  /**
+   * Gets a list of devices that match the given compiled filter,
+   * fetching only the fields needed by the filter and the given fields.
+   * Fields not requested are null in the returned devices.
+   * @param stfApiClient The STF API client.
+   * @param filter Compiled conditions of the STF device you want to get.
+   * @param requiredFields Fields the caller reads from the returned devices.
+   * @return List of STF devices that meet the filter.
+   * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
+   */
+  public static List<DeviceListResponseDevices> findDevices(ApiClient stfApiClient,
+      DeviceFilter filter, String... requiredFields) throws ApiFailedException {
+    String fields = DeviceQuery.getFields(filter, requiredFields);
+    return filter.apply(STFDeviceInventory.get().getDevices(stfApiClient, fields));
   }
 
   /**
    * Gets a STF device that matches the given id.
+   * @param stfApiClient The STF API client.
    * @param deviceId The id of the device you want to get.
    * @return a STF device that matches the given id.
    * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
    */
-  public static DeviceListResponseDevices getSTFDeviceById(String deviceId)
-      throws ApiFailedException {
+  public static DeviceListResponseDevices getSTFDeviceById(ApiClient stfApiClient,
+      String deviceId) throws ApiFailedException {
 
     DeviceListResponseDevices device = null;
 
-    DevicesApi stfDevicesApi = new DevicesApi();
+    DevicesApi stfDevicesApi = new DevicesApi(stfApiClient);
     String fields = "serial,name,model,version,sdk,image,present,owner"
         + ",remoteConnectUrl,provider,notes,manufacturer,abi,battery";
     try {
@@ -254,13 +227,14 @@ public class Utils {
 
   /**
    * Reserve a STF device.
+   * @param stfApiClient  The STF API client.
    * @param device  The device you want to reserve.
    * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
    */
-  public static void reserveSTFDevice(DeviceListResponseDevices device)
+  public static void reserveSTFDevice(ApiClient stfApiClient, DeviceListResponseDevices device)
       throws ApiFailedException {
 
-    UserApi stfUserApi = new UserApi();
+    UserApi stfUserApi = new UserApi(stfApiClient);
     AddUserDevicePayload body = new AddUserDevicePayload();
     body.setSerial(device.serial);
 
@@ -273,13 +247,14 @@ public class Utils {
 
   /**
    * Remote connect to a STF device.
+   * @param stfApiClient  The STF API client.
    * @param device  The device you want to connect.
    * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
    */
-  public static void remoteConnectSTFDevice(DeviceListResponseDevices device)
-      throws ApiFailedException {
+  public static void remoteConnectSTFDevice(ApiClient stfApiClient,
+      DeviceListResponseDevices device) throws ApiFailedException {
 
-    UserApi stfUserApi = new UserApi();
+    UserApi stfUserApi = new UserApi(stfApiClient);
     try {
       stfUserApi.remoteConnectUserDeviceBySerial(device.serial);
     } catch (ApiException ex) {
@@ -290,13 +265,14 @@ public class Utils {
 
   /**
    * Remote disconnect to a STF device.
+   * @param stfApiClient  The STF API client.
    * @param device  The device you want to disconnect.
    * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
    */
-  public static void remoteDisconnectSTFDevice(DeviceListResponseDevices device)
-      throws ApiFailedException {
+  public static void remoteDisconnectSTFDevice(ApiClient stfApiClient,
+      DeviceListResponseDevices device) throws ApiFailedException {
 
-    UserApi stfUserApi = new UserApi();
+    UserApi stfUserApi = new UserApi(stfApiClient);
     try {
       stfUserApi.remoteDisconnectUserDeviceBySerial(device.serial);
     } catch (ApiException ex) {
@@ -307,12 +283,14 @@ public class Utils {
 
   /**
    * Release a STF device.
+   * @param stfApiClient  The STF API client.
    * @param device  The device you want to release.
    * @throws hudson.plugins.openstf.exception.ApiFailedException Failed STF API request.
    */
-  public static void releaseSTFDevice(DeviceListResponseDevices device) throws ApiFailedException {
+  public static void releaseSTFDevice(ApiClient stfApiClient, DeviceListResponseDevices device)
+      throws ApiFailedException {
 
-    UserApi stfUserApi = new UserApi();
+    UserApi stfUserApi = new UserApi(stfApiClient);
     try {
       stfUserApi.deleteUserDeviceBySerial(device.serial);
     } catch (ApiException ex) {
@@ -428,57 +406,40 @@ public class Utils {
     return FormValidation.ok();
   }
 
-  private static TreeSet<String> getSTFDeviceAttributeSet() {
-    TreeSet<String> items = new TreeSet<String>();
-    String[] excludeAttributes = {"image", "owner", "present", "remoteConnectUrl"};
-
-    Field[] fields = DeviceListResponseDevices.class.getFields();
-    for (Field f: fields) {
-      if (!Arrays.asList(excludeAttributes).contains(f.getName())) {
-        items.add(f.getName());
+  /**
+   * Verifies the STF access token with a single request, as builds do before using the settings.
+   * @param stfApiClient The STF API client of the settings.
+   * @return true if STF accepted the token, false if it rejected it.
+   * @throws ApiFailedException if STF could not be reached, or failed otherwise.
+   */
+  public static boolean verifySTFToken(ApiClient stfApiClient) throws ApiFailedException {
+    UserApi stfUserApi = new UserApi(stfApiClient);
+    try {
+      stfUserApi.getUser();
+      return true;
+    } catch (ApiException ex) {
+      if (ex.getCode() == 401) {
+        return false;
       }
+      throw new ApiFailedException("GET /api/v1/user API failed");
+    } catch (ClientHandlerException ex) {
+      throw new ApiFailedException("GET /api/v1/user API failed: " + ex.getMessage());
     }
-
-    return items;
   }
 
-  private static TreeSet<String> getSTFDeviceAttributeValueSet(String attribute) {
-
-    TreeSet<String> items = new TreeSet<String>();
-
+  private static SortedSet<String> getSTFDeviceAttributeValueSet(ApiClient stfApiClient,
+      String attribute) {
     try {
-      for (DeviceListResponseDevices device : getDeviceList()) {
-        Class klass = device.getClass();
-        try {
-          Field field = klass.getField(attribute);
-
-          if (field.get(device) != null) {
-            if (attribute.equals("battery")) {
-              items.add(String.valueOf(device.battery.level));}
-            else if (attribute.equals("provider")) {
-              items.add(device.provider.name);
-            } else {
-              items.add(field.get(device).toString());
-            }
-          }
-        } catch (NoSuchFieldException ex) {
-          //ignore
-        } catch (IllegalAccessException ex) {
-          //ignore
-        }
-      }
+      return STFDeviceInventory.get().getAttributeIndex(stfApiClient).getValues(attribute);
     } catch (ApiFailedException ex) {
-      //ignore
+      return Collections.<String>emptySortedSet();
     }
-
-    return items;
   }
 
   private static boolean verifyToken(String stfApiEndpoint, boolean ignoreCertError,
       String stfToken) {
 
-    setupSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken);
-    UserApi stfUserApi = new UserApi();
+    UserApi stfUserApi = new UserApi(getSTFApiClient(stfApiEndpoint, ignoreCertError, stfToken));
     try {
       stfUserApi.getUser();
       return true;
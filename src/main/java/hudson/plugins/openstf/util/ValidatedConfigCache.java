@@ -0,0 +1,79 @@
+package hudson.plugins.openstf.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which global settings passed validation recently.
+ * Validating the STF API endpoint and token takes a round trip to STF, which builds
+ * would otherwise make before any device work starts. Once settings are known to be valid,
+ * builds skip the check for a short time; if STF becomes unreachable meanwhile, the API calls
+ * of the build fail instead.
+ */
+public final class ValidatedConfigCache {
+
+  /** How long settings stay validated. */
+  static final long TTL_MS = 60 * 1000;
+
+  private static final Map<STFApiClientPool.Key, Long> VALIDATED_AT =
+      new HashMap<STFApiClientPool.Key, Long>();
+
+  private ValidatedConfigCache() {
+  }
+
+  /**
+   * Whether the given settings passed validation recently.
+   * @param stfApiEndpoint The STF API endpoint URL.
+   * @param ignoreCertError Whether to ignore SSL certificate errors.
+   * @param stfToken The STF access token.
+   * @return true if the settings need not be validated again.
+   */
+  public static boolean isValid(String stfApiEndpoint, boolean ignoreCertError,
+      String stfToken) {
+    return isValid(new STFApiClientPool.Key(stfApiEndpoint, ignoreCertError, stfToken),
+        System.currentTimeMillis());
+  }
+
+  static boolean isValid(STFApiClientPool.Key key, long now) {
+    synchronized (VALIDATED_AT) {
+      Long validatedAt = VALIDATED_AT.get(key);
+      if (validatedAt == null) {
+        return false;
+      }
+      if (now - validatedAt >= TTL_MS) {
+        VALIDATED_AT.remove(key);
+        return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Records that the given settings passed validation.
+   * Failed validations are not recorded, so that fixed settings are picked up by the next build.
+   * @param stfApiEndpoint The STF API endpoint URL.
+   * @param ignoreCertError Whether to ignore SSL certificate errors.
+   * @param stfToken The STF access token.
+   */
+  public static void markValid(String stfApiEndpoint, boolean ignoreCertError,
+      String stfToken) {
+    markValid(new STFApiClientPool.Key(stfApiEndpoint, ignoreCertError, stfToken),
+        System.currentTimeMillis());
+  }
+
+  static void markValid(STFApiClientPool.Key key, long now) {
+    synchronized (VALIDATED_AT) {
+      // Only the current settings are validated by builds, so this stays small.
+      VALIDATED_AT.put(key, now);
+    }
+  }
+
+  /**
+   * Forgets all validations. Called when the global configuration changes.
+   */
+  public static void clear() {
+    synchronized (VALIDATED_AT) {
+      VALIDATED_AT.clear();
+    }
+  }
+}
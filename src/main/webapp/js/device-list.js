@@ -5,7 +5,7 @@ Behaviour.specify("INPUT.repeatable-add", 'repeatable', 0, function(e) {
         //hack jenkins default behaviour
         if (Q('#openSTFPluginContent').find(Q(e.target)).length) {
           Q('#openSTFPluginContent').find('.repeated-chunk.last').find('.stf-filter').each(function() {
-            Q(this).blur(updateDeviceList);
+            Q(this).blur(scheduleDeviceListUpdate);
           });
         }
     });
@@ -16,10 +16,31 @@ Q(document).ready(function(){
   updateDeviceList();
 
   Q('.stf-filter').each(function(){
-    Q(this).blur(updateDeviceList);
+    Q(this).blur(scheduleDeviceListUpdate);
   });
 });
 
+// Tiles shown in #deviceList, by serial: {rev: revision of the tile, $el: tile element}
+var deviceTiles = {};
+
+// Filter changes within this delay are previewed with one request.
+var DEVICE_LIST_UPDATE_DELAY_MS = 300;
+var deviceListUpdateTimer = null;
+
+// Only the response to the latest request of this page is applied.
+var deviceListPageId = Math.random().toString(36).substring(2) + new Date().getTime();
+var deviceListRequestId = 0;
+
+function scheduleDeviceListUpdate(evt) {
+  if (deviceListUpdateTimer != null) {
+    clearTimeout(deviceListUpdateTimer);
+  }
+  deviceListUpdateTimer = setTimeout(function(){
+    deviceListUpdateTimer = null;
+    updateDeviceList();
+  }, DEVICE_LIST_UPDATE_DELAY_MS);
+}
+
 function updateDeviceList(evt) {
     var filter = {};
     Q('.stf-filter').each(function(){
@@ -29,23 +50,57 @@ function updateDeviceList(evt) {
         filter[key] = value;
       }
     });
-    desc.getStfApiEndpoint(function(t){
-        var endpointURL = t.responseJSON;
-        desc.getDeviceListJSON(filter, function(t) {
-            var devices = t.responseJSON;
-            Q('#deviceList').html('');
-            Q.each(devices, function(index, device){
-              var $device = getDeviceListItem(expandDeviceImageURL(endpointURL, device));
-              $device.balloon({
-                html: true,
-                contents: getDeviceBalloonContents(device)
-              });
-              Q('#deviceList').append($device);
-            });
-        });
+    var known = {};
+    Q.each(deviceTiles, function(serial, tile){
+      known[serial] = tile.rev;
+    });
+    var requestId = ++deviceListRequestId;
+    desc.getDeviceListUpdate(filter, known, deviceListPageId, requestId, function(t) {
+        var update = t.responseJSON;
+        if (requestId != deviceListRequestId || update.stale) {
+          return;
+        }
+        applyDeviceListUpdate(update);
     });
 }
 
+// Patches the shown tiles: only added or changed tiles are rendered, and tiles are moved only
+// when they are out of order.
+function applyDeviceListUpdate(update) {
+  Q.each(update.remove, function(index, serial){
+    if (deviceTiles[serial]) {
+      deviceTiles[serial].$el.remove();
+      delete deviceTiles[serial];
+    }
+  });
+  Q.each(update.upsert, function(index, device){
+    var $device = getDeviceListItem(expandDeviceImageURL(update.endpoint, device));
+    $device.balloon({
+      html: true,
+      contents: getDeviceBalloonContents(device)
+    });
+    var tile = deviceTiles[device.serial];
+    if (tile) {
+      tile.$el.replaceWith($device);
+    }
+    deviceTiles[device.serial] = {rev: device.rev, $el: $device};
+  });
+
+  var $list = Q('#deviceList');
+  var $previous = null;
+  Q.each(update.serials, function(index, serial){
+    var $device = deviceTiles[serial].$el;
+    if ($previous == null) {
+      if ($list.children().first()[0] !== $device[0]) {
+        $list.prepend($device);
+      }
+    } else if ($device.prev()[0] !== $previous[0]) {
+      $device.insertAfter($previous);
+    }
+    $previous = $device;
+  });
+}
+
 function expandDeviceImageURL(endpointURL, device) {
   var stfUrlArray = endpointURL.split("/");
   var schema = stfUrlArray[0];
@@ -89,17 +144,9 @@ function getDeviceListItem(device) {
 function getDeviceBalloonContents(device) {
   var deviceAttrList = Q('<table />').addClass('device-attr-table');
   Q.each(device, function(k, v){
-    if (Q.inArray(k, ['image', 'remoteConnectUrl']) == -1) {
+    if (Q.inArray(k, ['image', 'rev']) == -1) {
       var tdKey = Q('<td class="device-attr"/>').text(k);
       var tdValue = Q('<td class="device-attr"/>').text(v);
-
-      if (( k.includes('battery')) && v != null) {
-        tdValue.text(v.level);
-      }
-      else if ((k == 'owner' || k == 'provider') && v != null) {
-        tdValue.text(v.name);
-      }
-
       Q('<tr />').append(tdKey).append(tdValue).appendTo(deviceAttrList);
     }
   });
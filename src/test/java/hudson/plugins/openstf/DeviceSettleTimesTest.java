@@ -0,0 +1,43 @@
+package hudson.plugins.openstf;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+public class DeviceSettleTimesTest {
+
+  private DeviceSettleTimes settleTimes;
+
+  @Before
+  public void init() {
+    settleTimes = new DeviceSettleTimes();
+  }
+
+  @Test
+  public void testEmpty() {
+    assertTrue(settleTimes.getSummary().isEmpty());
+  }
+
+  @Test
+  public void testAggregatedPerModelAndPhase() {
+    settleTimes.record("Nexus 5X", DeviceSettleTimes.PHASE_AUTHENTICATION, 1000);
+    settleTimes.record("Nexus 5X", DeviceSettleTimes.PHASE_AUTHENTICATION, 3000);
+    settleTimes.record("Nexus 5X", DeviceSettleTimes.PHASE_REMOTE_CONNECT, 200);
+    settleTimes.record("HTL22", DeviceSettleTimes.PHASE_AUTHENTICATION, 500);
+
+    assertEquals(Arrays.asList(
+        Messages.SETTLE_TIME_SUMMARY("HTL22 / authentication", 1, 500, 500),
+        Messages.SETTLE_TIME_SUMMARY("Nexus 5X / authentication", 2, 2000, 3000),
+        Messages.SETTLE_TIME_SUMMARY("Nexus 5X / remoteConnect", 1, 200, 200)),
+        settleTimes.getSummary());
+  }
+
+  @Test
+  public void testUnknownModel() {
+    settleTimes.record(null, DeviceSettleTimes.PHASE_REMOTE_CONNECT_URL, 100);
+    assertEquals(Arrays.asList(
+        Messages.SETTLE_TIME_SUMMARY("null / remoteConnectUrl", 1, 100, 100)),
+        settleTimes.getSummary());
+  }
+}
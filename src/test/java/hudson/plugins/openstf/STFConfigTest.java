@@ -0,0 +1,101 @@
+package hudson.plugins.openstf;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.util.Utils;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class STFConfigTest {
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(8888);
+
+  private static final String DUMMY_TOKEN = "dummyToken";
+
+  /** The planned devices are owned by us, and SERIAL3 is free. */
+  private static final String DEVICES = "{\"success\":true,\"devices\":["
+      + "{\"serial\":\"SERIAL1\",\"present\":true,"
+      + "\"owner\":{\"email\":\"jenkins@example.com\",\"name\":\"jenkins\"}},"
+      + "{\"serial\":\"SERIAL2\",\"present\":true,"
+      + "\"owner\":{\"email\":\"jenkins@example.com\",\"name\":\"jenkins\"}},"
+      + "{\"serial\":\"SERIAL3\",\"present\":true,\"owner\":null}]}";
+
+  private ApiClient stfApiClient;
+
+  @Before
+  public void init() throws Exception {
+    stubJson(get(urlPathEqualTo("/api/v1/devices")), DEVICES);
+    stubJson(post(urlPathEqualTo("/api/v1/user/devices")), "{\"success\":true}");
+    stubJson(delete(urlPathMatching("/api/v1/user/devices/.*")), "{\"success\":true}");
+    stubJson(post(urlPathMatching("/api/v1/user/devices/.*/remoteConnect")),
+        "{\"success\":true}");
+    stubRemoteConnectUrl("SERIAL1", "10.0.0.1:7401");
+    stubRemoteConnectUrl("SERIAL3", "10.0.0.1:7405");
+    stfApiClient = Utils.getSTFApiClient("http://127.0.0.1:8888/api/v1", false, DUMMY_TOKEN);
+    STFDeviceInventory.get().invalidate();
+  }
+
+  @Test
+  public void testPreassignedDevices() throws Exception {
+    STFConfig stfConfig = newSTFConfig();
+    stfConfig.setPreassignedDevices(Arrays.asList(device("SERIAL1")));
+
+    List<STFConfig.ReservedDevice> reserved = stfConfig.reserve(1, 1);
+    assertEquals(1, reserved.size());
+    assertEquals("10.0.0.1:7401", reserved.get(0).getDevice().remoteConnectUrl);
+    // The matrix build reserved the device already.
+    verify(0, postRequestedFor(urlPathEqualTo("/api/v1/user/devices")));
+  }
+
+  @Test
+  public void testBrokenPreassignedDeviceIsReplaced() throws Exception {
+    // STF never publishes the remote connect URL of SERIAL2.
+    stubFor(get(urlPathEqualTo("/api/v1/devices/SERIAL2"))
+      .willReturn(aResponse().withStatus(500)));
+
+    STFConfig stfConfig = newSTFConfig();
+    stfConfig.setPreassignedDevices(Arrays.asList(device("SERIAL1"), device("SERIAL2")));
+
+    List<String> serials = new ArrayList<String>();
+    for (STFConfig.ReservedDevice reservedDevice: stfConfig.reserve(2, 2)) {
+      serials.add(reservedDevice.getDevice().serial);
+    }
+    assertEquals(Arrays.asList("SERIAL1", "SERIAL3"), serials);
+    verify(deleteRequestedFor(urlPathEqualTo("/api/v1/user/devices/SERIAL2")));
+    verify(1, postRequestedFor(urlPathEqualTo("/api/v1/user/devices")));
+  }
+
+  private STFConfig newSTFConfig() {
+    return new STFConfig(stfApiClient, false, "", "", new HashMap<String, String>(), 0, 0);
+  }
+
+  private static DeviceListResponseDevices device(String serial) {
+    DeviceListResponseDevices device = new DeviceListResponseDevices();
+    device.serial = serial;
+    return device;
+  }
+
+  private static void stubRemoteConnectUrl(String serial, String remoteConnectUrl) {
+    stubJson(get(urlPathEqualTo("/api/v1/devices/" + serial)),
+        "{\"success\":true,\"device\":{\"serial\":\"" + serial + "\",\"present\":true,"
+        + "\"remoteConnectUrl\":\"" + remoteConnectUrl + "\"}}");
+  }
+
+  private static void stubJson(MappingBuilder request, String body) {
+    stubFor(request.willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody(body)));
+  }
+}
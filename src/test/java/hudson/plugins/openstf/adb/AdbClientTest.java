@@ -0,0 +1,301 @@
+package hudson.plugins.openstf.adb;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class AdbClientTest {
+
+  private FakeAdbServer server;
+  private AdbClient client;
+
+  @Before
+  public void init() throws Exception {
+    server = new FakeAdbServer();
+    client = new AdbClient(server.getPort());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void testConnect() throws Exception {
+    server.reply("host:connect:10.0.0.1:7401", FakeAdbServer.okay("connected to 10.0.0.1:7401"));
+    assertEquals("connected to 10.0.0.1:7401", client.connect("10.0.0.1:7401"));
+    assertEquals(Arrays.asList("host:connect:10.0.0.1:7401"), server.getCommands());
+  }
+
+  @Test
+  public void testDisconnectWithoutMessage() throws Exception {
+    // Older adb servers reply OKAY only.
+    server.reply("host:disconnect:10.0.0.1:7401", "OKAY");
+    assertEquals("", client.disconnect("10.0.0.1:7401"));
+  }
+
+  @Test
+  public void testFailedCommand() throws Exception {
+    server.reply("host:disconnect:10.0.0.1:7401", FakeAdbServer.fail("no such device"));
+    try {
+      client.disconnect("10.0.0.1:7401");
+      fail();
+    } catch (AdbClient.AdbCommandFailedException ex) {
+      assertEquals("no such device", ex.getMessage());
+    }
+  }
+
+  @Test
+  public void testGetDevices() throws Exception {
+    server.setDevices("10.0.0.1:7401\tdevice\n10.0.0.2:7403\tunauthorized\n");
+    List<AdbDevice> devices = client.getDevices();
+    assertEquals(2, devices.size());
+    assertTrue(AdbDevice.find(devices, "10.0.0.1:7401").isOnline());
+    assertEquals(AdbDevice.STATE_UNAUTHORIZED,
+        AdbDevice.find(devices, "10.0.0.2:7403").getState());
+    assertNull(AdbDevice.find(devices, "10.0.0.3:7405"));
+  }
+
+  @Test
+  public void testGetDevicesWhenEmpty() throws Exception {
+    assertTrue(client.getDevices().isEmpty());
+  }
+
+  @Test
+  public void testTrackDevices() throws Exception {
+    AdbClient.DeviceTracker tracker = client.trackDevices();
+    try {
+      assertTrue(tracker.next(1000).isEmpty());
+
+      server.setDevices("10.0.0.1:7401\toffline\n");
+      assertEquals(AdbDevice.STATE_OFFLINE, tracker.next(1000).get(0).getState());
+
+      server.setDevices("10.0.0.1:7401\tdevice\n");
+      assertTrue(tracker.next(1000).get(0).isOnline());
+
+      try {
+        tracker.next(100);
+        fail();
+      } catch (SocketTimeoutException expected) {
+        // no change
+      }
+
+      server.closeTrackers();
+      assertNull(tracker.next(1000));
+    } finally {
+      tracker.close();
+    }
+  }
+
+  @Test
+  public void testWaitForDeviceReportsTransitions() throws Exception {
+    final String serial = "10.0.0.1:7401";
+    final List<String> states = new CopyOnWriteArrayList<String>();
+    server.setDevices(serial + "\toffline\n");
+
+    Thread pusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          waitFor(states, 1);
+          server.setDevices(serial + "\tunauthorized\n");
+          waitFor(states, 2);
+          server.setDevices(serial + "\tdevice\n");
+        } catch (Exception ex) {
+          // the assertions below fail
+        }
+      }
+    });
+    pusher.start();
+
+    long start = System.currentTimeMillis();
+    assertTrue(client.waitForDevice(serial, 10 * 1000, new AdbClient.StateListener() {
+      @Override
+      public void onStateChanged(String s, String state) {
+        states.add(state);
+      }
+    }));
+    assertTrue(System.currentTimeMillis() - start < 5 * 1000);
+    assertEquals(Arrays.asList(AdbDevice.STATE_OFFLINE, AdbDevice.STATE_UNAUTHORIZED,
+        AdbDevice.STATE_DEVICE), states);
+    pusher.join();
+  }
+
+  @Test
+  public void testWaitForDeviceResubscribes() throws Exception {
+    final String serial = "10.0.0.1:7401";
+    final List<String> states = new CopyOnWriteArrayList<String>();
+    server.setDevices(serial + "\toffline\n");
+
+    Thread restarter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          waitFor(states, 1);
+          // The adb server restarts, and the device comes back online.
+          server.closeTrackers();
+          server.setDevices(serial + "\tdevice\n");
+        } catch (Exception ex) {
+          // the assertions below fail
+        }
+      }
+    });
+    restarter.start();
+
+    assertTrue(client.waitForDevice(serial, 10 * 1000, new AdbClient.StateListener() {
+      @Override
+      public void onStateChanged(String s, String state) {
+        states.add(state);
+      }
+    }));
+    assertEquals(2, countTrackDevices(server.getCommands()));
+    restarter.join();
+  }
+
+  private static int countTrackDevices(List<String> commands) {
+    int count = 0;
+    for (String command: commands) {
+      if ("host:track-devices".equals(command)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testWaitForDeviceTimeout() throws Exception {
+    server.setDevices("10.0.0.1:7401\tunauthorized\n");
+    assertFalse(client.waitForDevice("10.0.0.1:7401", 300, null));
+  }
+
+  @Test
+  public void testTrackerResumesPartlyReadDeviceList() throws Exception {
+    AdbClient.DeviceTracker tracker = client.trackDevices();
+    try {
+      assertTrue(tracker.next(1000).isEmpty());
+
+      String framed = FakeAdbServer.framed("10.0.0.1:7401\tdevice\n");
+      server.push(framed.substring(0, 2));
+      try {
+        tracker.next(100);
+        fail();
+      } catch (SocketTimeoutException expected) {
+        // half of the length
+      }
+      server.push(framed.substring(2, 10));
+      try {
+        tracker.next(100);
+        fail();
+      } catch (SocketTimeoutException expected) {
+        // half of the device list
+      }
+      server.push(framed.substring(10));
+      assertTrue(tracker.next(1000).get(0).isOnline());
+    } finally {
+      tracker.close();
+    }
+  }
+
+  @Test
+  public void testWaitForDeviceIsInterrupted() throws Exception {
+    server.setDevices("10.0.0.1:7401\toffline\n");
+    final Thread waiter = Thread.currentThread();
+    Thread interrupter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(300);
+        } catch (InterruptedException ex) {
+          return;
+        }
+        waiter.interrupt();
+      }
+    });
+    interrupter.start();
+
+    long start = System.currentTimeMillis();
+    try {
+      client.waitForDevice("10.0.0.1:7401", 60 * 1000, null);
+      fail();
+    } catch (InterruptedException ex) {
+      assertTrue(System.currentTimeMillis() - start
+          < 300 + 2 * AdbClient.INTERRUPT_CHECK_INTERVAL_MS);
+    }
+    interrupter.join();
+  }
+
+  @Test
+  public void testWaitForDevicesFollowsAllOfThem() throws Exception {
+    final List<String> states = new CopyOnWriteArrayList<String>();
+    server.setDevices("10.0.0.1:7401\tdevice\n10.0.0.2:7401\toffline\n");
+
+    Thread pusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          waitFor(states, 2);
+          server.setDevices("10.0.0.1:7401\tdevice\n10.0.0.2:7401\tdevice\n");
+        } catch (Exception ex) {
+          // the assertions below fail
+        }
+      }
+    });
+    pusher.start();
+
+    Set<String> online = client.waitForDevices(Arrays.asList("10.0.0.1:7401", "10.0.0.2:7401"),
+        10 * 1000, new AdbClient.StateListener() {
+          @Override
+          public void onStateChanged(String s, String state) {
+            states.add(s + " " + state);
+          }
+        });
+    assertEquals(new HashSet<String>(Arrays.asList("10.0.0.1:7401", "10.0.0.2:7401")), online);
+    assertEquals(Arrays.asList("10.0.0.1:7401 device", "10.0.0.2:7401 offline",
+        "10.0.0.2:7401 device"), states);
+    assertEquals(1, countTrackDevices(server.getCommands()));
+    pusher.join();
+  }
+
+  @Test
+  public void testWaitForDevicesReturnsOnlineOnesAtTimeout() throws Exception {
+    server.setDevices("10.0.0.1:7401\tdevice\n10.0.0.2:7401\tunauthorized\n");
+    assertEquals(Collections.singleton("10.0.0.1:7401"),
+        client.waitForDevices(Arrays.asList("10.0.0.1:7401", "10.0.0.2:7401"), 300, null));
+  }
+
+  @Test
+  public void testWaitForDevicesSubscribesAgainWhenServerIsSlow() throws Exception {
+    server.setDevices("10.0.0.1:7401\tdevice\n");
+    server.stallTrackers(1);
+    assertTrue(client.waitForDevice("10.0.0.1:7401", 10 * 1000, null));
+    assertEquals(2, countTrackDevices(server.getCommands()));
+  }
+
+  private static void waitFor(List<String> states, int size) throws InterruptedException {
+    while (states.size() < size) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testServerNotRunning() throws Exception {
+    server.reply("host:version", FakeAdbServer.okay("0029"));
+    assertTrue(client.isServerRunning());
+    server.close();
+    assertFalse(client.isServerRunning());
+    try {
+      client.getDevices();
+      fail();
+    } catch (IOException expected) {
+      // connection refused
+    }
+  }
+}
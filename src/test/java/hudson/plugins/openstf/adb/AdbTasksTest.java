@@ -0,0 +1,61 @@
+package hudson.plugins.openstf.adb;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class AdbTasksTest {
+
+  private FakeAdbServer server;
+
+  @Before
+  public void init() throws Exception {
+    server = new FakeAdbServer();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void testConnectAllAtOnce() throws Exception {
+    List<String> serials = Arrays.asList("10.0.0.1:7401", "10.0.0.2:7403", "10.0.0.3:7405");
+    server.reply("host:connect:10.0.0.1:7401", FakeAdbServer.okay("connected to 10.0.0.1:7401"));
+    server.reply("host:connect:10.0.0.2:7403", FakeAdbServer.okay("connected to 10.0.0.2:7403"));
+    server.reply("host:connect:10.0.0.3:7405", FakeAdbServer.fail("unauthorized"));
+    for (String serial: serials) {
+      server.delay("host:connect:" + serial, 1000);
+    }
+
+    long start = System.currentTimeMillis();
+    Map<String, String> failures = AdbTasks.connect(server.getPort(), serials).call();
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    assertEquals(Collections.singletonMap("10.0.0.3:7405", "unauthorized"), failures);
+    assertEquals(3, server.getCommands().size());
+  }
+
+  @Test
+  public void testConnectReportsFailureAnsweredWithOkay() throws Exception {
+    List<String> serials = Arrays.asList("10.0.0.1:7401", "10.0.0.2:7403");
+    server.reply("host:connect:10.0.0.1:7401",
+        FakeAdbServer.okay("already connected to 10.0.0.1:7401"));
+    server.reply("host:connect:10.0.0.2:7403",
+        FakeAdbServer.okay("failed to connect to '10.0.0.2:7403': Connection refused"));
+
+    Map<String, String> failures = AdbTasks.connect(server.getPort(), serials).call();
+    assertEquals(Collections.singletonMap("10.0.0.2:7403",
+        "failed to connect to '10.0.0.2:7403': Connection refused"), failures);
+  }
+
+  @Test
+  public void testConnectWithoutDevices() throws Exception {
+    assertTrue(AdbTasks.connect(server.getPort(), Collections.<String>emptyList())
+        .call().isEmpty());
+    assertTrue(server.getCommands().isEmpty());
+  }
+}
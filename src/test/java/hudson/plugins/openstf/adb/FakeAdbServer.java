@@ -0,0 +1,192 @@
+package hudson.plugins.openstf.adb;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Minimal adb server speaking the host protocol, for unit tests.
+ */
+class FakeAdbServer implements Closeable {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final ServerSocket serverSocket;
+  private final Thread acceptThread;
+  private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+  private final Map<String, String> replies = Collections.synchronizedMap(new HashMap<String, String>());
+  private final Map<String, Long> delays = Collections.synchronizedMap(new HashMap<String, Long>());
+  private final List<Socket> trackers = new ArrayList<Socket>();
+  private final List<Socket> stalledSockets = new ArrayList<Socket>();
+  private int trackersToStall;
+  private String devices = "";
+
+  FakeAdbServer() throws IOException {
+    this(0);
+  }
+
+  /** Listens on the given port, e.g. to simulate an adb server which came back after a crash. */
+  FakeAdbServer(int port) throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 50);
+    acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    }, "fake adb server");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Commands received so far, in order. */
+  List<String> getCommands() {
+    synchronized (commands) {
+      return new ArrayList<String>(commands);
+    }
+  }
+
+  /** Sets the raw reply to a command. */
+  void reply(String command, String rawReply) {
+    replies.put(command, rawReply);
+  }
+
+  /** Delays the reply to a command, like a device which is slow to connect. */
+  void delay(String command, long millis) {
+    delays.put(command, millis);
+  }
+
+  /** Leaves the next subscriptions to the device list unanswered, like a busy adb server. */
+  synchronized void stallTrackers(int count) {
+    trackersToStall = count;
+  }
+
+  /** Sets the device list, and pushes it to all trackers. */
+  synchronized void setDevices(String payload) throws IOException {
+    devices = payload;
+    for (Socket tracker: trackers) {
+      write(tracker, framed(payload));
+    }
+  }
+
+  /** Pushes raw data to all trackers, e.g. part of a device list. */
+  synchronized void push(String raw) throws IOException {
+    for (Socket tracker: trackers) {
+      write(tracker, raw);
+    }
+  }
+
+  static String okay(String message) {
+    return "OKAY" + framed(message);
+  }
+
+  static String fail(String message) {
+    return "FAIL" + framed(message);
+  }
+
+  static String framed(String message) {
+    return String.format(Locale.ROOT, "%04x", message.getBytes(CHARSET).length) + message;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    serverSocket.close();
+    for (Socket tracker: trackers) {
+      tracker.close();
+    }
+    for (Socket socket: stalledSockets) {
+      socket.close();
+    }
+  }
+
+  /** Closes the connections of all trackers, like a crashing adb server would. */
+  synchronized void closeTrackers() throws IOException {
+    for (Socket tracker: trackers) {
+      tracker.close();
+    }
+    trackers.clear();
+  }
+
+  private void acceptLoop() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        // Like the adb server, serve the connections at once, so that a slow one delays no other.
+        Thread handler = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              handle(socket);
+            } catch (IOException ex) {
+              // closed
+            } catch (InterruptedException ex) {
+              // closed
+            }
+          }
+        }, "fake adb server connection");
+        handler.setDaemon(true);
+        handler.start();
+      } catch (IOException ex) {
+        // closed
+      }
+    }
+  }
+
+  private void handle(Socket socket) throws IOException, InterruptedException {
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    byte[] length = new byte[4];
+    in.readFully(length);
+    byte[] command = new byte[Integer.parseInt(new String(length, CHARSET), 16)];
+    in.readFully(command);
+    String request = new String(command, CHARSET);
+    commands.add(request);
+
+    synchronized (this) {
+      if ("host:track-devices".equals(request)) {
+        if (trackersToStall > 0) {
+          trackersToStall--;
+          stalledSockets.add(socket);
+          return;
+        }
+        write(socket, "OKAY" + framed(devices));
+        trackers.add(socket);
+        return;
+      }
+      if ("host:devices".equals(request)) {
+        write(socket, okay(devices));
+        socket.close();
+        return;
+      }
+    }
+    Long delay = delays.get(request);
+    if (delay != null) {
+      Thread.sleep(delay);
+    }
+    String reply = replies.get(request);
+    write(socket, reply != null ? reply : fail("unknown host service"));
+    socket.close();
+  }
+
+  private static void write(Socket socket, String data) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write(data.getBytes(CHARSET));
+    out.flush();
+  }
+}
@@ -0,0 +1,153 @@
+package hudson.plugins.openstf.adb;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class SharedAdbServerTest {
+
+  private static final String SERIAL = "10.0.0.1:7401";
+
+  /** Harmless command standing in for 'adb start-server'. */
+  private static final List<String> START_COMMAND = Arrays.asList(
+      System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+      "-version");
+
+  private static final Map<String, String> ENVIRONMENT = Collections.emptyMap();
+
+  private FakeAdbServer server;
+  private SharedAdbServer sharedServer;
+
+  @Before
+  public void init() throws Exception {
+    server = startFakeAdbServer(0);
+    sharedServer = new SharedAdbServer(server.getPort());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void testDisconnectOnlyWhenLastBuildReleases() throws Exception {
+    assertFalse(sharedServer.acquire(SERIAL, START_COMMAND, ENVIRONMENT));
+    assertFalse(sharedServer.acquire(SERIAL, START_COMMAND, ENVIRONMENT));
+    assertEquals(2, sharedServer.getRefCount(SERIAL));
+
+    assertEquals(1, sharedServer.release(SERIAL));
+    assertFalse(server.getCommands().contains("host:disconnect:" + SERIAL));
+
+    assertEquals(0, sharedServer.release(SERIAL));
+    assertTrue(server.getCommands().contains("host:disconnect:" + SERIAL));
+    assertFalse(server.getCommands().contains("host:kill"));
+  }
+
+  @Test
+  public void testHealthCheckWhileRunning() throws Exception {
+    sharedServer.acquire(SERIAL, START_COMMAND, ENVIRONMENT);
+    assertFalse(sharedServer.checkHealth());
+    assertEquals(0, sharedServer.getRestartCount());
+    sharedServer.release(SERIAL);
+  }
+
+  @Test
+  public void testRestartOnCrash() throws Exception {
+    final int port = server.getPort();
+    sharedServer.acquire(SERIAL, START_COMMAND, ENVIRONMENT);
+
+    // The adb server crashes, and comes back while the health check restarts it.
+    server.close();
+    Thread restarter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(300);
+          server = startFakeAdbServer(port);
+        } catch (Exception ex) {
+          // the assertions below fail
+        }
+      }
+    });
+    restarter.start();
+
+    assertTrue(sharedServer.checkHealth());
+    restarter.join();
+    assertEquals(1, sharedServer.getRestartCount());
+    assertTrue(server.getCommands().contains("host:connect:" + SERIAL));
+    sharedServer.release(SERIAL);
+  }
+
+  @Test
+  public void testSlowDeviceDoesNotBlockOtherBuilds() throws Exception {
+    final String slowSerial = "10.0.0.2:7403";
+    server.reply("host:connect:" + slowSerial, FakeAdbServer.okay("connected to " + slowSerial));
+    server.delay("host:connect:" + slowSerial, 3000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> slowAcquire = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return sharedServer.acquire(slowSerial, START_COMMAND, ENVIRONMENT);
+        }
+      });
+      Thread.sleep(300);
+
+      long start = System.currentTimeMillis();
+      sharedServer.acquire(SERIAL, START_COMMAND, ENVIRONMENT);
+      assertEquals(0, sharedServer.release(SERIAL));
+      assertFalse(sharedServer.checkHealth());
+      assertTrue(System.currentTimeMillis() - start < 2000);
+      assertFalse(slowAcquire.isDone());
+
+      slowAcquire.get(10, TimeUnit.SECONDS);
+      assertEquals(1, sharedServer.getRefCount(slowSerial));
+      sharedServer.release(slowSerial);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testStartEnvironmentDoesNotIdentifyTheBuild() {
+    Map<String, String> buildEnvironment = new HashMap<String, String>();
+    buildEnvironment.put("ANDROID_ADB_SERVER_PORT", "5137");
+    buildEnvironment.put("ANDROID_SDK_HOME", "/opt/android");
+    buildEnvironment.put("PATH", "/opt/android/platform-tools:/usr/bin");
+    buildEnvironment.put("BUILD_ID", "42");
+    buildEnvironment.put("JENKINS_SERVER_COOKIE", "0123456789abcdef");
+    buildEnvironment.put("JOB_NAME", "app");
+    Map<String, String> startEnvironment = new HashMap<String, String>();
+    startEnvironment.put("HOME", "/home/jenkins");
+    startEnvironment.put("JENKINS_NODE_COOKIE", "fedcba9876543210");
+
+    SharedAdbServer.setUpStartEnvironment(startEnvironment, buildEnvironment);
+    assertEquals("5137", startEnvironment.get("ANDROID_ADB_SERVER_PORT"));
+    assertEquals("/opt/android", startEnvironment.get("ANDROID_SDK_HOME"));
+    assertEquals("/opt/android/platform-tools:/usr/bin", startEnvironment.get("PATH"));
+    assertEquals("/home/jenkins", startEnvironment.get("HOME"));
+    assertFalse(startEnvironment.containsKey("BUILD_ID"));
+    assertFalse(startEnvironment.containsKey("JENKINS_SERVER_COOKIE"));
+    assertFalse(startEnvironment.containsKey("JENKINS_NODE_COOKIE"));
+    assertFalse(startEnvironment.containsKey("JOB_NAME"));
+  }
+
+  private static FakeAdbServer startFakeAdbServer(int port) throws Exception {
+    FakeAdbServer fake = new FakeAdbServer(port);
+    fake.reply("host:version", FakeAdbServer.okay("0029"));
+    fake.reply("host:connect:" + SERIAL, FakeAdbServer.okay("connected to " + SERIAL));
+    fake.reply("host:disconnect:" + SERIAL, FakeAdbServer.okay("disconnected " + SERIAL));
+    return fake;
+  }
+}
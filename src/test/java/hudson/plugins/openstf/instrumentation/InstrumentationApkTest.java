@@ -0,0 +1,41 @@
+package hudson.plugins.openstf.instrumentation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+public class InstrumentationApkTest {
+
+  private static final String MANIFEST =
+      "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+      + "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\""
+      + " package=\"com.example.test\">\n"
+      + "  <instrumentation android:name=\"%s\" android:targetPackage=\"com.example\"/>\n"
+      + "  <application android:debuggable=\"true\"/>\n"
+      + "</manifest>\n";
+
+  @Test
+  public void testParseManifest() throws Exception {
+    InstrumentationApk apk = InstrumentationApk.parseManifest("com.example.test",
+        String.format(MANIFEST, "androidx.test.runner.AndroidJUnitRunner"));
+    assertEquals("com.example.test", apk.getPackageName());
+    assertEquals("androidx.test.runner.AndroidJUnitRunner", apk.getRunner());
+    assertEquals("com.example", apk.getTargetPackage());
+    assertEquals("com.example.test/androidx.test.runner.AndroidJUnitRunner",
+        apk.getComponent());
+  }
+
+  @Test
+  public void testRelativeRunnerName() throws Exception {
+    InstrumentationApk apk = InstrumentationApk.parseManifest("com.example.test",
+        String.format(MANIFEST, ".CustomRunner"));
+    assertEquals("com.example.test.CustomRunner", apk.getRunner());
+  }
+
+  @Test(expected = IOException.class)
+  public void testNoInstrumentation() throws Exception {
+    InstrumentationApk.parseManifest("com.example",
+        "<manifest package=\"com.example\"><application/></manifest>");
+  }
+}
@@ -0,0 +1,92 @@
+package hudson.plugins.openstf.instrumentation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+public class InstrumentationResultParserTest {
+
+  private static List<InstrumentationTestResult> parse(InstrumentationResultParser parser,
+      String output) {
+    for (String line: output.split("\n", -1)) {
+      parser.parse(line);
+    }
+    return parser.finish();
+  }
+
+  private static String status(String className, String test, int code, String... extra) {
+    StringBuilder out = new StringBuilder();
+    out.append("INSTRUMENTATION_STATUS: class=").append(className).append('\n');
+    out.append("INSTRUMENTATION_STATUS: current=1\n");
+    out.append("INSTRUMENTATION_STATUS: id=AndroidJUnitRunner\n");
+    out.append("INSTRUMENTATION_STATUS: numtests=3\n");
+    for (String line: extra) {
+      out.append(line).append('\n');
+    }
+    out.append("INSTRUMENTATION_STATUS: stream=\n");
+    out.append("INSTRUMENTATION_STATUS: test=").append(test).append('\n');
+    out.append("INSTRUMENTATION_STATUS_CODE: ").append(code).append('\n');
+    return out.toString();
+  }
+
+  @Test
+  public void testParsesOutcomes() throws Exception {
+    InstrumentationResultParser parser = new InstrumentationResultParser();
+    List<InstrumentationTestResult> results = parse(parser,
+        status("com.example.FooTest", "passes", 1)
+        + status("com.example.FooTest", "passes", 0)
+        + status("com.example.FooTest", "fails", 1)
+        + status("com.example.FooTest", "fails", -2,
+            "INSTRUMENTATION_STATUS: stack=java.lang.AssertionError: expected",
+            "\tat com.example.FooTest.fails(FooTest.java:12)")
+        + status("com.example.FooTest", "ignored", 1)
+        + status("com.example.FooTest", "ignored", -3)
+        + "INSTRUMENTATION_RESULT: stream=\n"
+        + "Time: 1.5\n"
+        + "INSTRUMENTATION_CODE: -1\n");
+
+    assertEquals(3, results.size());
+    assertEquals("passes", results.get(0).getTestName());
+    assertEquals(InstrumentationTestResult.Status.PASSED, results.get(0).getStatus());
+    assertEquals(InstrumentationTestResult.Status.FAILED, results.get(1).getStatus());
+    assertEquals("java.lang.AssertionError: expected\n"
+        + "\tat com.example.FooTest.fails(FooTest.java:12)", results.get(1).getStackTrace());
+    assertEquals(InstrumentationTestResult.Status.SKIPPED, results.get(2).getStatus());
+    assertTrue(parser.isFinished());
+    assertNull(parser.getRunFailure());
+  }
+
+  @Test
+  public void testCrashReportsStartedTestAsError() throws Exception {
+    InstrumentationResultParser parser = new InstrumentationResultParser();
+    List<InstrumentationTestResult> results = parse(parser,
+        status("com.example.FooTest", "crashes", 1)
+        + "INSTRUMENTATION_RESULT: shortMsg=Process crashed.\r\n"
+        + "INSTRUMENTATION_CODE: 0\r\n");
+
+    assertEquals(1, results.size());
+    assertEquals("crashes", results.get(0).getTestName());
+    assertEquals(InstrumentationTestResult.Status.ERROR, results.get(0).getStatus());
+    assertEquals("Process crashed.", results.get(0).getStackTrace());
+    assertTrue(parser.isFinished());
+  }
+
+  @Test
+  public void testOutputEndingEarlyIsNotFinished() throws Exception {
+    InstrumentationResultParser parser = new InstrumentationResultParser();
+    parse(parser, status("com.example.FooTest", "passes", 1));
+    assertFalse(parser.isFinished());
+  }
+
+  @Test
+  public void testMissingRunner() throws Exception {
+    InstrumentationResultParser parser = new InstrumentationResultParser();
+    List<InstrumentationTestResult> results = parse(parser,
+        "INSTRUMENTATION_FAILED: com.example.test/androidx.test.runner.AndroidJUnitRunner\n");
+    assertTrue(results.isEmpty());
+    assertTrue(parser.isFinished());
+    assertEquals("com.example.test/androidx.test.runner.AndroidJUnitRunner",
+        parser.getRunFailure());
+  }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.openstf.instrumentation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ShardSchedulerTest {
+
+  private static List<String> classes(int count) {
+    List<String> classNames = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      classNames.add("com.example.Test" + i);
+    }
+    return classNames;
+  }
+
+  private static InstrumentationTestResult passed(String className) {
+    return new InstrumentationTestResult(className, "test",
+        InstrumentationTestResult.Status.PASSED, null, 0);
+  }
+
+  @Test
+  public void testFastDeviceStealsWork() throws Exception {
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    List<InstrumentationTestResult> results = new ShardScheduler(new ShardScheduler.Shard() {
+      @Override
+      public List<InstrumentationTestResult> run(String serial, String className)
+          throws InterruptedException {
+        Thread.sleep("slow".equals(serial) ? 200 : 10);
+        synchronized (counts) {
+          Integer count = counts.get(serial);
+          counts.put(serial, count == null ? 1 : count + 1);
+        }
+        return Collections.singletonList(passed(className));
+      }
+    }).run(Arrays.asList("slow", "fast"), classes(20));
+
+    assertEquals(20, results.size());
+    assertTrue(counts.get("fast") > counts.get("slow") * 5);
+    Set<String> classNames = new HashSet<String>();
+    for (InstrumentationTestResult result: results) {
+      classNames.add(result.getClassName());
+      assertNotNull(result.getSerial());
+    }
+    assertEquals(20, classNames.size());
+  }
+
+  @Test
+  public void testFailedClassMovesToAnotherDevice() throws Exception {
+    List<InstrumentationTestResult> results = new ShardScheduler(new ShardScheduler.Shard() {
+      @Override
+      public List<InstrumentationTestResult> run(String serial, String className)
+          throws IOException, InterruptedException {
+        if ("broken".equals(serial)) {
+          throw new IOException("device offline");
+        }
+        Thread.sleep(10);
+        return Collections.singletonList(passed(className));
+      }
+    }).run(Arrays.asList("broken", "working"), classes(5));
+
+    assertEquals(5, results.size());
+    for (InstrumentationTestResult result: results) {
+      assertEquals(InstrumentationTestResult.Status.PASSED, result.getStatus());
+      assertEquals("working", result.getSerial());
+    }
+  }
+
+  @Test
+  public void testClassFailingEverywhereIsAnError() throws Exception {
+    List<InstrumentationTestResult> results = new ShardScheduler(new ShardScheduler.Shard() {
+      @Override
+      public List<InstrumentationTestResult> run(String serial, String className)
+          throws IOException {
+        throw new IOException("device offline");
+      }
+    }).run(Arrays.asList("a", "b"), classes(3));
+
+    assertEquals(3, results.size());
+    for (InstrumentationTestResult result: results) {
+      assertEquals(InstrumentationTestResult.Status.ERROR, result.getStatus());
+    }
+  }
+}
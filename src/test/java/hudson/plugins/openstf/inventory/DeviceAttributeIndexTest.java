@@ -0,0 +1,59 @@
+package hudson.plugins.openstf.inventory;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DeviceAttributeIndexTest {
+
+  @Test
+  public void testAttributesExcludeInternalFields() {
+    assertTrue(DeviceAttributeIndex.ATTRIBUTES.contains("model"));
+    assertTrue(DeviceAttributeIndex.ATTRIBUTES.contains("version"));
+    assertFalse(DeviceAttributeIndex.ATTRIBUTES.contains("image"));
+    assertFalse(DeviceAttributeIndex.ATTRIBUTES.contains("owner"));
+    assertFalse(DeviceAttributeIndex.ATTRIBUTES.contains("present"));
+    assertFalse(DeviceAttributeIndex.ATTRIBUTES.contains("remoteConnectUrl"));
+  }
+
+  @Test
+  public void testDistinctSortedValues() {
+    List<DeviceListResponseDevices> devices = new ArrayList<DeviceListResponseDevices>();
+    devices.add(device("SERIAL1", "Pixel 2", "8.0.0"));
+    devices.add(device("SERIAL2", "Nexus 5X", "8.0.0"));
+    devices.add(device("SERIAL3", "Pixel 2", "7.1.1"));
+    devices.add(device("SERIAL4", null, null));
+
+    DeviceAttributeIndex index = DeviceAttributeIndex.build(devices);
+
+    assertEquals(Arrays.asList("Nexus 5X", "Pixel 2"),
+        new ArrayList<String>(index.getValues("model")));
+    assertEquals(Arrays.asList("7.1.1", "8.0.0"),
+        new ArrayList<String>(index.getValues("version")));
+    assertEquals(4, index.getValues("serial").size());
+  }
+
+  @Test
+  public void testUnknownAttributeHasNoValues() {
+    List<DeviceListResponseDevices> devices = new ArrayList<DeviceListResponseDevices>();
+    devices.add(device("SERIAL1", "Pixel 2", "8.0.0"));
+
+    DeviceAttributeIndex index = DeviceAttributeIndex.build(devices);
+
+    assertTrue(index.getValues("noSuchAttribute").isEmpty());
+    assertTrue(index.getValues("owner").isEmpty());
+  }
+
+  private static DeviceListResponseDevices device(String serial, String model, String version) {
+    DeviceListResponseDevices device = new DeviceListResponseDevices();
+    device.serial = serial;
+    device.model = model;
+    device.version = version;
+    return device;
+  }
+}
@@ -0,0 +1,134 @@
+package hudson.plugins.openstf.inventory;
+
+import io.swagger.client.model.DeviceListResponseDevices;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link DeviceFilter} with the reflective filter it replaced, over a synthetic
+ * inventory of 5,000 devices.
+ * Not run by the unit tests. Run {@link #main} from the test classpath, e.g. from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceFilterBenchmark {
+
+  private static final int INVENTORY_SIZE = 5000;
+
+  private static final String[] MODELS = {"HTL22", "SH-04F", "402SH", "Nexus 5X", "Pixel 2"};
+  private static final String[] VERSIONS = {"4.1.2", "4.4.2", "4.4.4", "7.1.1", "8.0.0"};
+
+  private static final String REGEX_ESCAPED_REGEX_VALUE = "^/.+/$";
+
+  /** Device conditions as configured on a job: exact values, or a regex for the version. */
+  @Param({"exact", "regex"})
+  public String condition;
+
+  private List<DeviceListResponseDevices> inventory;
+  private Map<String, String> filter;
+  private DeviceFilter compiledFilter;
+
+  @Setup
+  public void setUp() {
+    inventory = new ArrayList<DeviceListResponseDevices>(INVENTORY_SIZE);
+    for (int i = 0; i < INVENTORY_SIZE; i++) {
+      DeviceListResponseDevices device = new DeviceListResponseDevices();
+      device.serial = String.format("SERIAL%05d", i);
+      device.model = MODELS[i % MODELS.length];
+      device.version = VERSIONS[(i / MODELS.length) % VERSIONS.length];
+      device.sdk = String.valueOf(16 + i % 10);
+      device.present = (i % 3 != 0);
+      inventory.add(device);
+    }
+
+    filter = new HashMap<String, String>();
+    filter.put("model", "Nexus 5X");
+    filter.put("present", "true");
+    filter.put("owner", "null");
+    if ("regex".equals(condition)) {
+      filter.put("version", "/[78]\\..*/");
+    } else {
+      filter.put("version", "7.1.1");
+    }
+    compiledFilter = DeviceFilter.compile(filter);
+  }
+
+  /** The filter as it was before DeviceFilter: reflection and regex compilation per device. */
+  @Benchmark
+  public List<DeviceListResponseDevices> reflective() {
+    List<DeviceListResponseDevices> deviceList =
+        new ArrayList<DeviceListResponseDevices>(inventory);
+    for (Map.Entry<String, String> entry: filter.entrySet()) {
+      String key = entry.getKey();
+      String value = entry.getValue();
+      if (value.equals("any")) {
+        continue;
+      }
+      for (Iterator<DeviceListResponseDevices> di = deviceList.listIterator(); di.hasNext(); ) {
+        DeviceListResponseDevices device = di.next();
+        try {
+          Field field = device.getClass().getField(key);
+          if (field.get(device) != null) {
+            String deviceValue = field.get(device).toString();
+            if (value.matches(REGEX_ESCAPED_REGEX_VALUE)) {
+              if (!deviceValue.matches(value.substring(1, value.length() - 1))) {
+                di.remove();
+              }
+            } else if (!value.equals(deviceValue)) {
+              di.remove();
+            }
+          } else if (!value.equals("null")) {
+            di.remove();
+          }
+        } catch (NoSuchFieldException ex) {
+          // ignore
+        } catch (IllegalAccessException ex) {
+          // ignore
+        }
+      }
+    }
+    return deviceList;
+  }
+
+  /** A filter compiled once and applied to each inventory snapshot, as the callers do. */
+  @Benchmark
+  public List<DeviceListResponseDevices> compiled() {
+    return compiledFilter.apply(inventory);
+  }
+
+  /** A filter compiled for a single use, e.g. by the JSON preview endpoint. */
+  @Benchmark
+  public List<DeviceListResponseDevices> compileAndApply() {
+    return DeviceFilter.compile(filter).apply(inventory);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(DeviceFilterBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
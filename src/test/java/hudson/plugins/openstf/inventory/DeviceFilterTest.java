@@ -0,0 +1,112 @@
+package hudson.plugins.openstf.inventory;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DeviceFilterTest {
+
+  private static final int INVENTORY_SIZE = 5000;
+
+  private static final String[] MODELS = {"HTL22", "SH-04F", "402SH", "Nexus 5X", "Pixel 2"};
+  private static final String[] VERSIONS = {"4.1.2", "4.4.2", "4.4.4", "7.1.1", "8.0.0"};
+
+  private List<DeviceListResponseDevices> inventory;
+
+  @Before
+  public void init() {
+    inventory = new ArrayList<DeviceListResponseDevices>(INVENTORY_SIZE);
+    for (int i = 0; i < INVENTORY_SIZE; i++) {
+      DeviceListResponseDevices device = new DeviceListResponseDevices();
+      device.serial = String.format("SERIAL%05d", i);
+      device.model = MODELS[i % MODELS.length];
+      device.version = VERSIONS[(i / MODELS.length) % VERSIONS.length];
+      device.sdk = String.valueOf(16 + i % 10);
+      device.present = (i % 3 != 0);
+      inventory.add(device);
+    }
+  }
+
+  @Test
+  public void testEmptyFilterMatchesAll() {
+    assertEquals(INVENTORY_SIZE, DeviceFilter.compile(null).apply(inventory).size());
+    assertEquals(INVENTORY_SIZE,
+        DeviceFilter.compile(new HashMap<String, String>()).apply(inventory).size());
+  }
+
+  @Test
+  public void testAnyAndUnknownAttributesAreIgnored() {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put("model", "any");
+    filter.put("noSuchAttribute", "foo");
+
+    assertEquals(INVENTORY_SIZE, DeviceFilter.compile(filter).apply(inventory).size());
+  }
+
+  @Test
+  public void testExactValue() {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put("model", "HTL22");
+    filter.put("present", "true");
+
+    List<DeviceListResponseDevices> matched = DeviceFilter.compile(filter).apply(inventory);
+    assertEquals(countMatches(filter), matched.size());
+    for (DeviceListResponseDevices device: matched) {
+      assertEquals("HTL22", device.model);
+      assertTrue(device.present);
+    }
+  }
+
+  @Test
+  public void testRegexValue() {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put("version", "/4\\.4\\..*/");
+
+    List<DeviceListResponseDevices> matched = DeviceFilter.compile(filter).apply(inventory);
+    assertEquals(2 * INVENTORY_SIZE / VERSIONS.length, matched.size());
+    for (DeviceListResponseDevices device: matched) {
+      assertTrue(device.version.startsWith("4.4."));
+    }
+  }
+
+  @Test
+  public void testNullValue() {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put("owner", "null");
+    assertEquals(INVENTORY_SIZE, DeviceFilter.compile(filter).apply(inventory).size());
+
+    filter.put("owner", "someone");
+    assertEquals(0, DeviceFilter.compile(filter).apply(inventory).size());
+  }
+
+  @Test
+  public void testApplyDoesNotModifyInventory() {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put("model", "Pixel 2");
+
+    DeviceFilter.compile(filter).apply(inventory);
+    assertEquals(INVENTORY_SIZE, inventory.size());
+  }
+
+  private int countMatches(Map<String, String> filter) {
+    int count = 0;
+    for (DeviceListResponseDevices device: inventory) {
+      boolean matched = true;
+      for (Map.Entry<String, String> entry: filter.entrySet()) {
+        if (!entry.getValue().equals(DeviceFilter.getAttributeValue(device, entry.getKey()))) {
+          matched = false;
+        }
+      }
+      if (matched) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,125 @@
+package hudson.plugins.openstf.inventory;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import io.swagger.client.model.DeviceListResponseDevices;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DeviceListViewTest {
+
+  private List<DeviceListResponseDevices> devices;
+
+  @Before
+  public void init() {
+    devices = new ArrayList<DeviceListResponseDevices>();
+    devices.add(device("SERIAL1", "Pixel 2", "8.0.0"));
+    devices.add(device("SERIAL2", "Nexus 5X", "8.0.0"));
+    devices.add(device("SERIAL3", "Pixel 2", "7.1.1"));
+  }
+
+  @Test
+  public void testFirstUpdateSendsAllMatchingTiles() {
+    JSONObject update = DeviceListView.build(1, devices)
+        .getUpdate(filter("model", "Pixel 2"), new HashMap<String, String>());
+
+    assertEquals(1, update.getLong("version"));
+    assertEquals(Arrays.asList("SERIAL1", "SERIAL3"), update.getJSONArray("serials"));
+    assertEquals(2, update.getJSONArray("upsert").size());
+    assertTrue(update.getJSONArray("remove").isEmpty());
+
+    JSONObject tile = update.getJSONArray("upsert").getJSONObject(0);
+    assertEquals("SERIAL1", tile.getString("serial"));
+    assertEquals("Pixel 2", tile.getString("model"));
+    assertEquals("", tile.getString("image"));
+    assertNotNull(tile.getString("rev"));
+  }
+
+  @Test
+  public void testUnchangedTilesAreNotSentAgain() {
+    Map<String, String> known = getRevisions(DeviceListView.build(1, devices)
+        .getUpdate(DeviceFilter.ANY, new HashMap<String, String>()));
+
+    List<DeviceListResponseDevices> refreshed = new ArrayList<DeviceListResponseDevices>();
+    refreshed.add(device("SERIAL1", "Pixel 2", "8.0.0"));
+    refreshed.add(device("SERIAL2", "Nexus 5X", "8.1.0"));
+    JSONObject update = DeviceListView.build(2, refreshed).getUpdate(DeviceFilter.ANY, known);
+
+    assertEquals(Arrays.asList("SERIAL1", "SERIAL2"), update.getJSONArray("serials"));
+    assertEquals(1, update.getJSONArray("upsert").size());
+    assertEquals("SERIAL2", update.getJSONArray("upsert").getJSONObject(0).getString("serial"));
+    assertEquals(Arrays.asList("SERIAL3"), update.getJSONArray("remove"));
+  }
+
+  @Test
+  public void testFilterChangeRemovesTiles() {
+    DeviceListView view = DeviceListView.build(1, devices);
+    Map<String, String> known =
+        getRevisions(view.getUpdate(DeviceFilter.ANY, new HashMap<String, String>()));
+
+    JSONObject update = view.getUpdate(filter("version", "8.0.0"), known);
+
+    assertTrue(update.getJSONArray("upsert").isEmpty());
+    assertEquals(Arrays.asList("SERIAL3"), update.getJSONArray("remove"));
+  }
+
+  @Test
+  public void testConditionsGiveSameUpdateAsCompiledFilter() throws Exception {
+    DeviceListView view = DeviceListView.build(1, devices);
+    Map<String, String> conditions = new HashMap<String, String>();
+    conditions.put("model", "Pixel 2");
+    conditions.put("version", "/8\\..*/");
+
+    JSONObject first = view.getUpdate(conditions, new HashMap<String, String>());
+    JSONObject second = view.getUpdate(conditions, new HashMap<String, String>());
+
+    assertEquals(Arrays.asList("SERIAL1"), first.getJSONArray("serials"));
+    assertEquals(first, second);
+    assertEquals(view.getUpdate(DeviceFilter.compile(conditions), new HashMap<String, String>()),
+        first);
+  }
+
+  @Test
+  public void testEmptyUpdateRemovesAllTiles() {
+    Map<String, String> known = new HashMap<String, String>();
+    known.put("SERIAL1", "1234");
+
+    JSONObject update = DeviceListView.getEmptyUpdate(known);
+
+    assertTrue(update.getJSONArray("serials").isEmpty());
+    assertEquals(Arrays.asList("SERIAL1"), update.getJSONArray("remove"));
+  }
+
+  private static Map<String, String> getRevisions(JSONObject update) {
+    Map<String, String> revisions = new HashMap<String, String>();
+    JSONArray tiles = update.getJSONArray("upsert");
+    for (int i = 0; i < tiles.size(); i++) {
+      revisions.put(tiles.getJSONObject(i).getString("serial"),
+          tiles.getJSONObject(i).getString("rev"));
+    }
+    return revisions;
+  }
+
+  private static DeviceFilter filter(String name, String value) {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put(name, value);
+    return DeviceFilter.compile(filter);
+  }
+
+  private static DeviceListResponseDevices device(String serial, String model, String version) {
+    DeviceListResponseDevices device = new DeviceListResponseDevices();
+    device.serial = serial;
+    device.name = model;
+    device.model = model;
+    device.version = version;
+    device.present = true;
+    return device;
+  }
+}
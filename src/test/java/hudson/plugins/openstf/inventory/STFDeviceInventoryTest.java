@@ -0,0 +1,104 @@
+package hudson.plugins.openstf.inventory;
+
+import org.apache.commons.io.IOUtils;
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.util.Utils;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class STFDeviceInventoryTest {
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(8888);
+
+  private static final String DUMMY_TOKEN = "dummyToken";
+
+  private ApiClient stfApiClient;
+
+  @Before
+  public void init() throws Exception {
+    InputStream getDevicesStream = Thread.currentThread().getContextClassLoader()
+      .getResource("stf/response_models/get_devices.json").openStream();
+    stubFor(get(urlPathEqualTo("/api/v1/devices"))
+      .withHeader("Authorization", equalTo("Bearer " + DUMMY_TOKEN))
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withFixedDelay(200)
+        .withBody(IOUtils.toString(getDevicesStream, Charset.defaultCharset()))));
+
+    stfApiClient = Utils.getSTFApiClient("http://127.0.0.1:8888/api/v1", false, DUMMY_TOKEN);
+    STFDeviceInventory.get().invalidate();
+  }
+
+  @Test
+  public void testSnapshotIsShared() throws Exception {
+    List<DeviceListResponseDevices> first = STFDeviceInventory.get().getDevices(stfApiClient);
+    List<DeviceListResponseDevices> second = STFDeviceInventory.get().getDevices(stfApiClient);
+
+    assertEquals(5, first.size());
+    assertSame(first, second);
+    verify(1, getRequestedFor(urlPathEqualTo("/api/v1/devices")));
+  }
+
+  @Test
+  public void testConcurrentReadsShareOneRequest() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<List<DeviceListResponseDevices>>> futures =
+          new ArrayList<Future<List<DeviceListResponseDevices>>>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<List<DeviceListResponseDevices>>() {
+          @Override
+          public List<DeviceListResponseDevices> call() throws Exception {
+            return STFDeviceInventory.get().getDevices(stfApiClient);
+          }
+        }));
+      }
+      for (Future<List<DeviceListResponseDevices>> future: futures) {
+        assertEquals(5, future.get().size());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    verify(1, getRequestedFor(urlPathEqualTo("/api/v1/devices")));
+  }
+
+  @Test
+  public void testWiderSnapshotServesNarrowerProjection() throws Exception {
+    STFDeviceInventory.get().getDevices(stfApiClient);
+    STFDeviceInventory.get().getDevices(stfApiClient, "owner,present,serial");
+
+    verify(1, getRequestedFor(urlPathEqualTo("/api/v1/devices")));
+  }
+
+  @Test
+  public void testNarrowProjectionIsRequested() throws Exception {
+    STFDeviceInventory.get().getDevices(stfApiClient, "owner,present,serial");
+
+    verify(1, getRequestedFor(urlPathEqualTo("/api/v1/devices"))
+        .withQueryParam("fields", equalTo("owner,present,serial")));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    STFDeviceInventory.get().getDevices(stfApiClient);
+    STFDeviceInventory.get().invalidate();
+    STFDeviceInventory.get().getDevices(stfApiClient);
+
+    verify(2, getRequestedFor(urlPathEqualTo("/api/v1/devices")));
+  }
+}
@@ -0,0 +1,72 @@
+package hudson.plugins.openstf.logcat;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+public class ChunkedGzipOutputStreamTest {
+
+  private static final String LINE =
+      "10-16 12:34:56.789 I/ActivityManager( 1234): Start proc com.example for activity\n";
+
+  @Test
+  public void testChunksFormOneGzipFile() throws Exception {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ChunkedGzipOutputStream out = new ChunkedGzipOutputStream(archive);
+    StringBuilder expected = new StringBuilder();
+
+    for (int chunk = 0; chunk < 3; chunk++) {
+      for (int i = 0; i < 100; i++) {
+        out.write(LINE.getBytes("UTF-8"));
+        expected.append(LINE);
+      }
+      assertEquals(100 * LINE.length(), out.getPendingBytes());
+      out.finishChunk();
+      assertEquals(0, out.getPendingBytes());
+
+      // Each finished chunk can be read while the rest is still being written.
+      assertEquals(expected.toString(), decompress(archive.toByteArray()));
+    }
+    out.close();
+    assertEquals(expected.toString(), decompress(archive.toByteArray()));
+    assertTrue(archive.size() < expected.length() / 10);
+  }
+
+  @Test
+  public void testNoEmptyChunks() throws Exception {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ChunkedGzipOutputStream out = new ChunkedGzipOutputStream(archive);
+    out.finishChunk();
+    out.write(new byte[0], 0, 0);
+    out.close();
+    assertEquals(0, archive.size());
+  }
+
+  @Test
+  public void testUnfinishedChunkIsNotReadable() throws Exception {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ChunkedGzipOutputStream out = new ChunkedGzipOutputStream(archive);
+    out.write(LINE.getBytes("UTF-8"));
+    out.finishChunk();
+    out.write(LINE.getBytes("UTF-8"));
+
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(archive.toByteArray()));
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    try {
+      IOUtils.copy(in, read);
+    } catch (EOFException expected) {
+      // the viewer stops here while the build is running
+    }
+    assertEquals(LINE, read.toString("UTF-8"));
+  }
+
+  private static String decompress(byte[] data) throws Exception {
+    return IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(data)), "UTF-8");
+  }
+}
@@ -0,0 +1,108 @@
+package hudson.plugins.openstf.logcat;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogcatBinaryDecoderTest {
+
+  private final List<LogcatEntry> entries = new ArrayList<LogcatEntry>();
+  private final LogcatBinaryDecoder decoder = new LogcatBinaryDecoder(
+      new LogcatBinaryDecoder.Handler() {
+        @Override
+        public void onEntry(LogcatEntry entry) {
+          entries.add(entry);
+        }
+      });
+
+  @Test
+  public void testDecodeV1AndV3Headers() throws Exception {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    stream.write(entry(0, 100, 101, 1500000000, 250000000, 4, "ActivityManager", "Start proc\n"));
+    stream.write(entry(24, 200, 202, 1500000001, 0, 6, "AndroidRuntime", "FATAL EXCEPTION"));
+    byte[] data = stream.toByteArray();
+    decoder.feed(data, 0, data.length);
+
+    assertEquals(2, entries.size());
+    LogcatEntry first = entries.get(0);
+    assertEquals(1500000000250L, first.getTimeMillis());
+    assertEquals(100, first.getPid());
+    assertEquals(101, first.getTid());
+    assertEquals(4, first.getPriority());
+    assertEquals("ActivityManager", first.getTag());
+    assertEquals("Start proc", first.getMessage());
+
+    LogcatEntry second = entries.get(1);
+    assertEquals(200, second.getPid());
+    assertEquals(6, second.getPriority());
+    assertEquals("AndroidRuntime", second.getTag());
+    assertEquals("FATAL EXCEPTION", second.getMessage());
+  }
+
+  @Test
+  public void testEntriesSplitAcrossReads() throws Exception {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    for (int i = 0; i < 10; i++) {
+      stream.write(entry(24, i, i, 1500000000 + i, 0, 3, "Tag" + i, "message " + i));
+    }
+    byte[] data = stream.toByteArray();
+    for (int i = 0; i < data.length; i += 7) {
+      decoder.feed(data, i, Math.min(7, data.length - i));
+    }
+
+    assertEquals(10, entries.size());
+    assertEquals("Tag9", entries.get(9).getTag());
+    assertEquals("message 9", entries.get(9).getMessage());
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectText() throws Exception {
+    byte[] data = "--------- beginning of main\n".getBytes("UTF-8");
+    decoder.feed(data, 0, data.length);
+  }
+
+  @Test
+  public void testFormat() throws Exception {
+    LogcatEntry entry = new LogcatEntry(0, 1234, 1234, 5, "Tag", "line1\nline2");
+    String[] lines = entry.format().split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[0].endsWith(" W/Tag( 1234): line1"));
+    assertTrue(lines[1].endsWith(" W/Tag( 1234): line2"));
+    assertEquals(6, LogcatEntry.parsePriority('e'));
+    assertEquals(7, LogcatEntry.parsePriority('A'));
+    assertEquals(-1, LogcatEntry.parsePriority('x'));
+  }
+
+  /**
+   * Builds an entry in the binary logcat format.
+   * @param headerSize 0 for a version 1 header, or the header size of later versions.
+   */
+  static byte[] entry(int headerSize, int pid, int tid, int sec, int nsec, int priority,
+      String tag, String message) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    payload.write(priority);
+    payload.write(tag.getBytes("UTF-8"));
+    payload.write(0);
+    payload.write(message.getBytes("UTF-8"));
+    payload.write(0);
+
+    int actualHeaderSize = headerSize == 0 ? 20 : headerSize;
+    ByteBuffer buffer = ByteBuffer.allocate(actualHeaderSize + payload.size())
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putShort((short) payload.size());
+    buffer.putShort((short) headerSize);
+    buffer.putInt(pid);
+    buffer.putInt(tid);
+    buffer.putInt(sec);
+    buffer.putInt(nsec);
+    buffer.position(actualHeaderSize);
+    buffer.put(payload.toByteArray());
+    return buffer.array();
+  }
+}
@@ -0,0 +1,99 @@
+package hudson.plugins.openstf.logcat;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogcatIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final long START = 1500000000000L;
+
+  private File dataFile;
+  private File indexFile;
+
+  @Before
+  public void init() throws Exception {
+    dataFile = tmp.newFile("logcat.bin");
+    indexFile = tmp.newFile("logcat.idx");
+
+    // 10 chunks: one entry per second, an error from "Crash" in the 8th chunk only
+    LogcatIndexWriter writer = new LogcatIndexWriter(new FileOutputStream(dataFile),
+        new FileOutputStream(indexFile));
+    for (int i = 0; i < LogcatIndexWriter.CHUNK_ENTRIES * 10; i++) {
+      boolean crash = i == LogcatIndexWriter.CHUNK_ENTRIES * 7 + 5;
+      writer.add(new LogcatEntry(START + i * 1000L, crash ? 999 : 100 + i % 3, 1000 + i % 7,
+          crash ? 6 : 4, crash ? "Crash" : "Tag" + (i % 5), "message " + i));
+    }
+    writer.add(new LogcatEntry(START + 1000L * 1000 * 1000, 100, 100, 3, "Last", "tail"));
+    writer.close();
+  }
+
+  @Test
+  public void testChunks() throws Exception {
+    List<LogcatChunk> chunks = new LogcatIndexReader(dataFile, indexFile).getChunks();
+    assertEquals(11, chunks.size());
+    assertEquals(1, chunks.get(10).getCount());
+    assertEquals(dataFile.length(), chunks.get(10).getOffset() + chunks.get(10).getLength());
+  }
+
+  @Test
+  public void testQueryByPriorityAndTagReadsOneChunk() throws Exception {
+    List<LogcatEntry> found = new ArrayList<LogcatEntry>();
+    int chunksRead = query(new LogcatQuery(Long.MIN_VALUE, Long.MAX_VALUE, 6, "Crash", null,
+        null), found);
+    assertEquals(1, chunksRead);
+    assertEquals(1, found.size());
+    assertEquals(999, found.get(0).getPid());
+  }
+
+  @Test
+  public void testQueryByTime() throws Exception {
+    List<LogcatEntry> found = new ArrayList<LogcatEntry>();
+    int chunksRead = query(new LogcatQuery(START + 100 * 1000L, START + 109 * 1000L, 0, null,
+        null, null), found);
+    assertEquals(1, chunksRead);
+    assertEquals(10, found.size());
+    assertEquals("message 100", found.get(0).getMessage());
+  }
+
+  @Test
+  public void testQueryByPidAndTid() throws Exception {
+    List<LogcatEntry> found = new ArrayList<LogcatEntry>();
+    query(new LogcatQuery(START, START + 99 * 1000L, 0, null, 101, 1001), found);
+    for (LogcatEntry entry: found) {
+      assertEquals(101, entry.getPid());
+      assertEquals(1001, entry.getTid());
+    }
+    assertFalse(found.isEmpty());
+  }
+
+  @Test
+  public void testIncompleteFilesAreReadUpToTheLastChunk() throws Exception {
+    // Simulate files which are still being shipped.
+    long truncatedLength = dataFile.length() - 1;
+    java.io.RandomAccessFile data = new java.io.RandomAccessFile(dataFile, "rw");
+    data.setLength(truncatedLength);
+    data.close();
+
+    List<LogcatChunk> chunks = new LogcatIndexReader(dataFile, indexFile).getChunks();
+    assertEquals(10, chunks.size());
+  }
+
+  private int query(LogcatQuery query, final List<LogcatEntry> found) throws Exception {
+    return new LogcatIndexReader(dataFile, indexFile).query(query,
+        new LogcatBinaryDecoder.Handler() {
+          @Override
+          public void onEntry(LogcatEntry entry) {
+            found.add(entry);
+          }
+        });
+  }
+}
@@ -0,0 +1,88 @@
+package hudson.plugins.openstf.logcat;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+public class LogcatRingBufferTest {
+
+  private static byte[] bytes(String text) throws Exception {
+    return text.getBytes("UTF-8");
+  }
+
+  private static String read(LogcatRingBuffer buffer, long offset, int maxBytes)
+      throws Exception {
+    return new String(buffer.read(offset, maxBytes).getData(), "UTF-8");
+  }
+
+  @Test
+  public void testReadFollowsOffset() throws Exception {
+    LogcatRingBuffer buffer = new LogcatRingBuffer(64);
+    buffer.write(bytes("one\ntwo\n"), 0, 8);
+
+    LogcatRingBuffer.Tail tail = buffer.read(0, 1024);
+    assertEquals("one\ntwo\n", new String(tail.getData(), "UTF-8"));
+    assertEquals(8, tail.getNextOffset());
+    assertEquals(0, tail.getSkippedBytes());
+
+    buffer.write(bytes("three\n"), 0, 6);
+    tail = buffer.read(tail.getNextOffset(), 1024);
+    assertEquals("three\n", new String(tail.getData(), "UTF-8"));
+    assertEquals(14, tail.getNextOffset());
+
+    tail = buffer.read(tail.getNextOffset(), 1024);
+    assertEquals(0, tail.getData().length);
+    assertEquals(14, tail.getNextOffset());
+  }
+
+  @Test
+  public void testReadStopsAtLineEnd() throws Exception {
+    LogcatRingBuffer buffer = new LogcatRingBuffer(64);
+    buffer.write(bytes("one\ntwo\nthr"), 0, 11);
+
+    assertEquals("one\ntwo\n", read(buffer, 0, 1024));
+    assertEquals("one\n", read(buffer, 0, 6));
+    // A partial line is held back until it ends...
+    assertEquals("", read(buffer, 8, 1024));
+    // ...unless it doesn't fit in a read.
+    assertEquals("th", read(buffer, 8, 2));
+  }
+
+  @Test
+  public void testOverwrittenBytesAreSkipped() throws Exception {
+    LogcatRingBuffer buffer = new LogcatRingBuffer(8);
+    for (int i = 0; i < 5; i++) {
+      buffer.write(bytes("ab\n"), 0, 3);
+    }
+
+    LogcatRingBuffer.Tail tail = buffer.read(0, 1024);
+    assertEquals(7, tail.getSkippedBytes());
+    assertEquals("b\nab\nab\n", new String(tail.getData(), "UTF-8"));
+    assertEquals(15, tail.getNextOffset());
+  }
+
+  @Test
+  public void testWriteLargerThanCapacity() throws Exception {
+    LogcatRingBuffer buffer = new LogcatRingBuffer(4);
+    buffer.write(bytes("abcdefg\n"), 0, 8);
+
+    LogcatRingBuffer.Tail tail = buffer.read(0, 1024);
+    assertEquals("efg\n", new String(tail.getData(), "UTF-8"));
+    assertEquals(4, tail.getSkippedBytes());
+    assertEquals(8, tail.getNextOffset());
+  }
+
+  @Test
+  public void testTee() throws Exception {
+    LogcatRingBuffer buffer = new LogcatRingBuffer(64);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    OutputStream out = buffer.tee(file);
+    out.write(bytes("line\n"));
+    out.close();
+
+    assertEquals("line\n", file.toString("UTF-8"));
+    assertEquals("line\n", read(buffer, 0, 1024));
+  }
+}
@@ -0,0 +1,58 @@
+package hudson.plugins.openstf.reservation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DeviceAffinityIndexTest {
+
+  private DeviceAffinityIndex index;
+
+  @Before
+  public void init() {
+    index = new DeviceAffinityIndex();
+  }
+
+  @Test
+  public void testMostRecentDeviceOfTheJobComesFirst() {
+    index.recordRelease("app-test", "SERIAL1");
+    index.recordRelease("app-test", "SERIAL2");
+    index.recordRelease("app-test", "SERIAL1");
+
+    assertEquals(Arrays.asList("SERIAL1", "SERIAL2"), index.getAffineSerials("app-test"));
+    assertTrue(index.getAffineSerials("other-test").isEmpty());
+  }
+
+  @Test
+  public void testDevicesOfThePackagesFollowThoseOfTheJob() {
+    index.recordPackages("app-test", Collections.singletonList("com.example.app"));
+    index.recordPackages("app-smoke-test", Collections.singletonList("com.example.app"));
+    index.recordRelease("app-smoke-test", "SERIAL2");
+    index.recordRelease("app-test", "SERIAL1");
+
+    assertEquals(Arrays.asList("SERIAL1", "SERIAL2"), index.getAffineSerials("app-test"));
+    assertEquals(Arrays.asList("SERIAL2", "SERIAL1"), index.getAffineSerials("app-smoke-test"));
+  }
+
+  @Test
+  public void testHistoryIsBounded() {
+    for (int i = 0; i <= DeviceAffinityIndex.MAX_SERIALS_PER_KEY; i++) {
+      index.recordRelease("app-test", "SERIAL" + i);
+    }
+
+    assertEquals(DeviceAffinityIndex.MAX_SERIALS_PER_KEY,
+        index.getAffineSerials("app-test").size());
+    assertFalse(index.getAffineSerials("app-test").contains("SERIAL0"));
+  }
+
+  @Test
+  public void testHitCount() {
+    index.recordReservation(true);
+    index.recordReservation(false);
+
+    assertEquals(2, index.getAffineReservationCount());
+    assertEquals(1, index.getHitCount());
+  }
+}
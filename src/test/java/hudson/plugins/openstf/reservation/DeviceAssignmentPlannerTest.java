@@ -0,0 +1,102 @@
+package hudson.plugins.openstf.reservation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class DeviceAssignmentPlannerTest {
+
+  private List<DeviceListResponseDevices> devices;
+
+  @Before
+  public void init() {
+    devices = new ArrayList<DeviceListResponseDevices>();
+    addDevice("SERIAL1", "Nexus 5X", "7.1.1");
+    addDevice("SERIAL2", "Nexus 5X", "8.0.0");
+    addDevice("SERIAL3", "Pixel 2", "8.0.0");
+    addDevice("SERIAL4", "Pixel 2", "8.0.0");
+  }
+
+  @Test
+  public void testFlexibleRequestDoesNotTakeTheOnlyDeviceOfAnother() {
+    // Picking in order would give SERIAL1 to the first request, and nothing to the second.
+    Map<String, DeviceFilter> filters = new LinkedHashMap<String, DeviceFilter>();
+    filters.put("model=Nexus 5X", filter("model", "Nexus 5X"));
+    filters.put("version=7.1.1", filter("version", "7.1.1"));
+
+    Map<String, List<DeviceListResponseDevices>> plan =
+        DeviceAssignmentPlanner.plan(filters, 1, devices);
+
+    assertEquals(2, plan.size());
+    assertEquals("SERIAL2", plan.get("model=Nexus 5X").get(0).serial);
+    assertEquals("SERIAL1", plan.get("version=7.1.1").get(0).serial);
+  }
+
+  @Test
+  public void testDeviceIsAssignedOnce() {
+    Map<String, DeviceFilter> filters = new LinkedHashMap<String, DeviceFilter>();
+    filters.put("a", filter("version", "8.0.0"));
+    filters.put("b", filter("version", "8.0.0"));
+    filters.put("c", filter("version", "8.0.0"));
+    filters.put("d", filter("version", "8.0.0"));
+
+    Map<String, List<DeviceListResponseDevices>> plan =
+        DeviceAssignmentPlanner.plan(filters, 1, devices);
+
+    assertEquals(3, plan.size());
+    Set<String> serials = new HashSet<String>();
+    for (List<DeviceListResponseDevices> assigned: plan.values()) {
+      assertEquals(1, assigned.size());
+      assertTrue(serials.add(assigned.get(0).serial));
+    }
+  }
+
+  @Test
+  public void testRequestNeedingSeveralDevicesGetsAllOrNone() {
+    Map<String, DeviceFilter> filters = new LinkedHashMap<String, DeviceFilter>();
+    filters.put("pixel", filter("model", "Pixel 2"));
+    filters.put("nexus", filter("model", "Nexus 5X"));
+    filters.put("oreo", filter("version", "8.0.0"));
+
+    Map<String, List<DeviceListResponseDevices>> plan =
+        DeviceAssignmentPlanner.plan(filters, 2, devices);
+
+    // Four devices can only serve two of the three requests.
+    assertEquals(2, plan.size());
+    for (List<DeviceListResponseDevices> assigned: plan.values()) {
+      assertEquals(2, assigned.size());
+    }
+  }
+
+  @Test
+  public void testNoDeviceMatches() {
+    Map<String, DeviceFilter> filters = new LinkedHashMap<String, DeviceFilter>();
+    filters.put("model=HTL22", filter("model", "HTL22"));
+
+    assertTrue(DeviceAssignmentPlanner.plan(filters, 1, devices).isEmpty());
+  }
+
+  private void addDevice(String serial, String model, String version) {
+    DeviceListResponseDevices device = new DeviceListResponseDevices();
+    device.serial = serial;
+    device.model = model;
+    device.version = version;
+    devices.add(device);
+  }
+
+  private static DeviceFilter filter(String name, String value) {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put(name, value);
+    return DeviceFilter.compile(filter);
+  }
+}
@@ -0,0 +1,131 @@
+package hudson.plugins.openstf.reservation;
+
+import org.apache.commons.io.IOUtils;
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.util.Utils;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DeviceRankingStrategyTest {
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(8888);
+
+  private static final String DUMMY_TOKEN = "dummyToken";
+
+  private List<DeviceListResponseDevices> devices;
+  private DeviceRankingStrategy.Context context;
+
+  @Before
+  public void init() throws Exception {
+    // Devices AAA and BBB are in use, on the same provider as CCC. DDD has a low battery. FFF is
+    // hot, and otherwise the same as EEE.
+    InputStream getDevicesStream = Thread.currentThread().getContextClassLoader()
+      .getResource("stf/response_models/get_devices_for_ranking.json").openStream();
+    stubFor(get(urlPathEqualTo("/api/v1/devices"))
+      .withHeader("Authorization", equalTo("Bearer " + DUMMY_TOKEN))
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody(IOUtils.toString(getDevicesStream, Charset.defaultCharset()))));
+
+    ApiClient stfApiClient =
+        Utils.getSTFApiClient("http://127.0.0.1:8888/api/v1", false, DUMMY_TOKEN);
+    STFDeviceInventory.get().invalidate();
+    devices = STFDeviceInventory.get().getDevices(stfApiClient);
+    context = new DeviceRankingStrategy.Context(devices);
+  }
+
+  @Test
+  public void testLowBatteryScoresWorse() {
+    DeviceRankingStrategy strategy = new DeviceRankingStrategy.Battery();
+
+    assertTrue(strategy.score(getDevice("DDDDDDDDDDDDDDD"), context)
+        < strategy.score(getDevice("EEEEEEEEEEEEEEE"), context));
+    assertEquals(strategy.score(getDevice("CCCCCCCCCCCCCCC"), context),
+        strategy.score(getDevice("EEEEEEEEEEEEEEE"), context), 0);
+  }
+
+  @Test
+  public void testHotBatteryScoresWorse() {
+    DeviceRankingStrategy strategy = new DeviceRankingStrategy.Battery();
+    assertTrue(strategy.score(getDevice("FFFFFFFFFFFFFFF"), context)
+        < strategy.score(getDevice("EEEEEEEEEEEEEEE"), context));
+
+    List<DeviceListResponseDevices> candidates = new ArrayList<DeviceListResponseDevices>(
+        Arrays.asList(getDevice("FFFFFFFFFFFFFFF"), getDevice("EEEEEEEEEEEEEEE")));
+    DeviceReservationBroker.sortByRank(candidates, context, DeviceRankingStrategy.all());
+    assertEquals("EEEEEEEEEEEEEEE", candidates.get(0).serial);
+    assertEquals("FFFFFFFFFFFFFFF", candidates.get(1).serial);
+  }
+
+  @Test
+  public void testBusyProviderScoresWorse() {
+    DeviceRankingStrategy strategy = new DeviceRankingStrategy.ProviderLoad();
+
+    assertEquals(2.0 / 3, context.getProviderLoad("hoge_provider"), 0.001);
+    assertEquals(0, context.getProviderLoad("fuga_provider"), 0);
+    assertTrue(strategy.score(getDevice("CCCCCCCCCCCCCCC"), context)
+        < strategy.score(getDevice("EEEEEEEEEEEEEEE"), context));
+  }
+
+  @Test
+  public void testConnectHistory() {
+    DeviceConnectHistory history = new DeviceConnectHistory();
+    assertEquals(-1, history.getLatencyMillis("SERIAL1"));
+    assertEquals(0, history.getFailureRate("SERIAL1"), 0);
+
+    history.recordFailure("SERIAL1");
+    assertEquals(1, history.getFailureRate("SERIAL1"), 0);
+    history.recordConnect("SERIAL1", 1000);
+    history.recordConnect("SERIAL1", 2000);
+    assertEquals(1300, history.getLatencyMillis("SERIAL1"));
+    assertTrue(history.getFailureRate("SERIAL1") < 0.5);
+  }
+
+  @Test
+  public void testDevicesAreSortedByScore() {
+    List<DeviceListResponseDevices> candidates = new ArrayList<DeviceListResponseDevices>();
+    for (String serial: new String[] {"DDDDDDDDDDDDDDD", "CCCCCCCCCCCCCCC", "EEEEEEEEEEEEEEE"}) {
+      candidates.add(getDevice(serial));
+    }
+
+    DeviceReservationBroker.sortByRank(candidates, context, DeviceRankingStrategy.all());
+
+    assertEquals("EEEEEEEEEEEEEEE", candidates.get(0).serial);
+    assertEquals("CCCCCCCCCCCCCCC", candidates.get(1).serial);
+    assertEquals("DDDDDDDDDDDDDDD", candidates.get(2).serial);
+  }
+
+  @Test
+  public void testDevicesWithTheSameScoreKeepTheirOrder() {
+    List<DeviceListResponseDevices> candidates = new ArrayList<DeviceListResponseDevices>(
+        Arrays.asList(getDevice("EEEEEEEEEEEEEEE"), getDevice("CCCCCCCCCCCCCCC")));
+
+    DeviceReservationBroker.sortByRank(candidates, context,
+        Arrays.<DeviceRankingStrategy>asList(new DeviceRankingStrategy.Battery()));
+
+    assertEquals("EEEEEEEEEEEEEEE", candidates.get(0).serial);
+    assertEquals("CCCCCCCCCCCCCCC", candidates.get(1).serial);
+  }
+
+  private DeviceListResponseDevices getDevice(String serial) {
+    for (DeviceListResponseDevices device: devices) {
+      if (device.serial.equals(serial)) {
+        return device;
+      }
+    }
+    throw new AssertionError(serial);
+  }
+}
@@ -0,0 +1,123 @@
+package hudson.plugins.openstf.reservation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.exception.ApiFailedException;
+import io.swagger.client.ApiClient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class DeviceReleaseQueueTest {
+
+  private static final String ENDPOINT = "http://localhost:8888/";
+
+  private ApiClient stfApiClient;
+  private Set<String> runningBuilds;
+  private Set<String> failingSerials;
+  private List<String> releasedSerials;
+  private DeviceReleaseQueue queue;
+
+  @Before
+  public void init() {
+    stfApiClient = new ApiClient();
+    stfApiClient.setBasePath(ENDPOINT);
+    runningBuilds = new HashSet<String>();
+    failingSerials = new HashSet<String>();
+    releasedSerials = new ArrayList<String>();
+    queue = new DeviceReleaseQueue(null) {
+      @Override
+      boolean isHeld(String serial, String buildId) {
+        return runningBuilds.contains(buildId);
+      }
+
+      @Override
+      void releaseOnSTF(ApiClient stfApiClient, String serial) throws ApiFailedException {
+        if (failingSerials.contains(serial)) {
+          throw new ApiFailedException("DELETE /api/v1/user/devices/" + serial + " API failed");
+        }
+        releasedSerials.add(serial);
+      }
+    };
+  }
+
+  @Test
+  public void testFailedReleaseIsRetriedWithBackoff() {
+    failingSerials.add("SERIAL1");
+    queue.retryLater(ENDPOINT, "SERIAL1", 0);
+
+    // Not due yet.
+    assertEquals(0, queue.process(stfApiClient, DeviceReleaseQueue.MIN_RETRY_INTERVAL_MS - 1));
+    long now = DeviceReleaseQueue.MIN_RETRY_INTERVAL_MS;
+    assertEquals(0, queue.process(stfApiClient, now));
+    assertEquals(1, queue.getPendingCount());
+
+    // The next attempt waits twice as long.
+    failingSerials.clear();
+    long retryInterval = DeviceReleaseQueue.getRetryInterval(1);
+    assertEquals(2 * DeviceReleaseQueue.MIN_RETRY_INTERVAL_MS, retryInterval);
+    assertEquals(0, queue.process(stfApiClient, now + retryInterval - 1));
+    assertEquals(1, queue.process(stfApiClient, now + retryInterval));
+    assertEquals(Collections.singletonList("SERIAL1"), releasedSerials);
+    assertEquals(0, queue.getPendingCount());
+  }
+
+  @Test
+  public void testRetryIntervalIsBounded() {
+    assertEquals(DeviceReleaseQueue.MAX_RETRY_INTERVAL_MS,
+        DeviceReleaseQueue.getRetryInterval(DeviceReleaseQueue.MAX_ATTEMPTS));
+  }
+
+  @Test
+  public void testReleaseIsGivenUpAfterMaxAttempts() {
+    failingSerials.add("SERIAL1");
+    queue.retryLater(ENDPOINT, "SERIAL1", 0);
+    long now = 0;
+    for (int i = 0; i < DeviceReleaseQueue.MAX_ATTEMPTS; i++) {
+      assertEquals(1, queue.getPendingCount());
+      now += DeviceReleaseQueue.MAX_RETRY_INTERVAL_MS;
+      queue.process(stfApiClient, now);
+    }
+    assertEquals(0, queue.getPendingCount());
+  }
+
+  @Test
+  public void testDevicesOfFinishedBuildsAreReclaimed() {
+    runningBuilds.add("job#1");
+    queue.lease(stfApiClient, "SERIAL1", "job#1");
+    queue.lease(stfApiClient, "SERIAL2", "job#2");
+
+    assertEquals(Arrays.asList("SERIAL2"), queue.sweep(0));
+    assertEquals(1, queue.process(stfApiClient, DeviceReleaseQueue.MIN_RETRY_INTERVAL_MS));
+    assertEquals(Arrays.asList("SERIAL2"), releasedSerials);
+
+    // Nothing is left to reclaim once the device has been released by its build.
+    queue.released("SERIAL1");
+    runningBuilds.clear();
+    assertTrue(queue.sweep(0).isEmpty());
+  }
+
+  @Test
+  public void testLeaseCancelsPendingRelease() {
+    queue.retryLater(ENDPOINT, "SERIAL1", 0);
+    runningBuilds.add("job#3");
+    queue.lease(stfApiClient, "SERIAL1", "job#3");
+
+    assertEquals(0, queue.process(stfApiClient, Long.MAX_VALUE / 2));
+    assertTrue(releasedSerials.isEmpty());
+  }
+
+  @Test
+  public void testReleaseOfOtherEndpointIsDropped() {
+    queue.retryLater("http://other:8888/", "SERIAL1", 0);
+
+    assertEquals(0, queue.process(stfApiClient, Long.MAX_VALUE / 2));
+    assertTrue(releasedSerials.isEmpty());
+    assertEquals(0, queue.getPendingCount());
+  }
+}
@@ -0,0 +1,232 @@
+package hudson.plugins.openstf.reservation;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import hudson.plugins.openstf.inventory.STFDeviceInventory;
+import hudson.plugins.openstf.util.Utils;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceReservationBrokerTest {
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(8888);
+
+  private static final String DUMMY_TOKEN = "dummyToken";
+
+  private static final String BUSY_DEVICES = "{\"success\":true,\"devices\":["
+      + "{\"serial\":\"SERIAL1\",\"present\":true,"
+      + "\"owner\":{\"email\":\"someone@example.com\",\"name\":\"someone\"}}]}";
+
+  private static final String FREE_DEVICES = "{\"success\":true,\"devices\":["
+      + "{\"serial\":\"SERIAL1\",\"present\":true,\"owner\":null}]}";
+
+  private ApiClient stfApiClient;
+  private DeviceFilter freeDeviceFilter;
+
+  @Before
+  public void init() throws Exception {
+    stubDevices(BUSY_DEVICES);
+    stubFor(post(urlPathEqualTo("/api/v1/user/devices"))
+      .withHeader("Authorization", equalTo("Bearer " + DUMMY_TOKEN))
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody("{\"success\":true,\"description\":\"Device successfully added\"}")));
+    stfApiClient = Utils.getSTFApiClient("http://127.0.0.1:8888/api/v1", false, DUMMY_TOKEN);
+    STFDeviceInventory.get().invalidate();
+
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put("present", "true");
+    filter.put("owner", "null");
+    freeDeviceFilter = DeviceFilter.compile(filter);
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    assertNull(DeviceReservationBroker.get().reserve(stfApiClient, freeDeviceFilter, 0, 500));
+    assertEquals(0, DeviceReservationBroker.get().getQueueLength());
+  }
+
+  @Test
+  public void testConcurrentRequestsDoNotCollide() throws Exception {
+    // The device becomes busy once it has been reserved.
+    stubFor(get(urlPathEqualTo("/api/v1/devices"))
+      .inScenario("reservation").whenScenarioStateIs(Scenario.STARTED)
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody(FREE_DEVICES)));
+    stubFor(get(urlPathEqualTo("/api/v1/devices"))
+      .inScenario("reservation").whenScenarioStateIs("reserved")
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody(BUSY_DEVICES)));
+    stubFor(post(urlPathEqualTo("/api/v1/user/devices"))
+      .inScenario("reservation").willSetStateTo("reserved")
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody("{\"success\":true}")));
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<DeviceListResponseDevices>> futures =
+          new ArrayList<Future<DeviceListResponseDevices>>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(executor.submit(new Callable<DeviceListResponseDevices>() {
+          @Override
+          public DeviceListResponseDevices call() throws Exception {
+            return DeviceReservationBroker.get()
+                .reserve(stfApiClient, freeDeviceFilter, 0, 3 * 1000);
+          }
+        }));
+      }
+
+      int reserved = 0;
+      for (Future<DeviceListResponseDevices> future: futures) {
+        if (future.get() != null) {
+          reserved++;
+        }
+      }
+      assertEquals(1, reserved);
+    } finally {
+      executor.shutdownNow();
+    }
+    // The only free device is offered to one request, so the other requests don't POST for it.
+    verify(1, postRequestedFor(urlPathEqualTo("/api/v1/user/devices")));
+  }
+
+  @Test
+  public void testWakeUpOnRelease() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<DeviceListResponseDevices> future =
+          executor.submit(new Callable<DeviceListResponseDevices>() {
+            @Override
+            public DeviceListResponseDevices call() throws Exception {
+              return DeviceReservationBroker.get()
+                  .reserve(stfApiClient, freeDeviceFilter, 0, 60 * 1000);
+            }
+          });
+
+      Thread.sleep(500);
+      assertFalse(future.isDone());
+      assertEquals(1, DeviceReservationBroker.get().getQueueLength());
+
+      stubDevices(FREE_DEVICES);
+      DeviceReservationBroker.get().notifyDeviceReleased();
+
+      DeviceListResponseDevices device = future.get(5, TimeUnit.SECONDS);
+      assertEquals("SERIAL1", device.serial);
+      verify(1, postRequestedFor(urlPathEqualTo("/api/v1/user/devices")));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testBatchReservationsAreNotCountedAsWaits() throws Exception {
+    List<DeviceListResponseDevices> devices = new ArrayList<DeviceListResponseDevices>();
+    for (String serial: new String[] {"SERIAL1", "SERIAL2"}) {
+      DeviceListResponseDevices device = new DeviceListResponseDevices();
+      device.serial = serial;
+      devices.add(device);
+    }
+    DeviceReservationBroker broker = DeviceReservationBroker.get();
+    long reservationCount = broker.getReservationCount();
+    long batchReservationCount = broker.getBatchReservationCount();
+
+    assertEquals(2, broker.reserveAll(stfApiClient, devices).size());
+    assertEquals(reservationCount, broker.getReservationCount());
+    assertEquals(batchReservationCount + 2, broker.getBatchReservationCount());
+  }
+
+  @Test
+  public void testAbortedBatchReleasesEveryReservedDevice() throws Exception {
+    stubFor(post(urlPathEqualTo("/api/v1/user/devices"))
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withFixedDelay(1000)
+        .withHeader("Content-Type", "application/json")
+        .withBody("{\"success\":true}")));
+    stubFor(delete(urlPathMatching("/api/v1/user/devices/.*"))
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody("{\"success\":true}")));
+    final List<DeviceListResponseDevices> devices = new ArrayList<DeviceListResponseDevices>();
+    for (int i = 0; i < 20; i++) {
+      DeviceListResponseDevices device = new DeviceListResponseDevices();
+      device.serial = "SERIAL" + i;
+      devices.add(device);
+    }
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> future = executor.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return DeviceReservationBroker.get().reserveAll(stfApiClient, devices);
+        }
+      });
+      Thread.sleep(300);
+      future.cancel(true);
+    } finally {
+      executor.shutdown();
+    }
+
+    // The reservations in flight complete after the abort, and are released all the same.
+    Thread.sleep(3000);
+    int reservedCount = findAll(postRequestedFor(urlPathEqualTo("/api/v1/user/devices"))).size();
+    assertTrue(reservedCount > 0);
+    assertTrue(reservedCount < devices.size());
+    verify(reservedCount, deleteRequestedFor(urlPathMatching("/api/v1/user/devices/.*")));
+  }
+
+  @Test
+  public void testAffineDevicesComeFirst() {
+    List<DeviceListResponseDevices> candidates = new ArrayList<DeviceListResponseDevices>();
+    for (String serial: new String[] {"SERIAL1", "SERIAL2", "SERIAL3", "SERIAL4"}) {
+      DeviceListResponseDevices device = new DeviceListResponseDevices();
+      device.serial = serial;
+      candidates.add(device);
+    }
+
+    DeviceReservationBroker.sortByAffinity(candidates,
+        Arrays.asList("SERIAL3", "SERIAL9", "SERIAL2"));
+
+    // The other devices keep their order.
+    List<String> serials = new ArrayList<String>();
+    for (DeviceListResponseDevices device: candidates) {
+      serials.add(device.serial);
+    }
+    assertEquals(Arrays.asList("SERIAL3", "SERIAL2", "SERIAL1", "SERIAL4"), serials);
+  }
+
+  private void stubDevices(String body) {
+    stubFor(get(urlPathEqualTo("/api/v1/devices"))
+      .withHeader("Authorization", equalTo("Bearer " + DUMMY_TOKEN))
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Content-Type", "application/json")
+        .withBody(body)));
+  }
+}
@@ -0,0 +1,154 @@
+package hudson.plugins.openstf.reservation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DeviceWaitQueueTest {
+
+  private ApiClient stfApiClient;
+  private LinkedList<String> freeSerials;
+  private AtomicInteger failingPolls;
+  private DeviceWaitQueue<DeviceWaitQueue.Waiter> queue;
+  private ExecutorService executor;
+
+  @Before
+  public void init() {
+    stfApiClient = new ApiClient();
+    stfApiClient.setBasePath("http://localhost:8888/");
+    freeSerials = new LinkedList<String>();
+    failingPolls = new AtomicInteger();
+    // Hands out the free serials in the order of the waiters, one per waiter.
+    queue = new DeviceWaitQueue<DeviceWaitQueue.Waiter>("STF device wait queue test") {
+      @Override
+      boolean serve(ApiClient stfApiClient, List<DeviceWaitQueue.Waiter> group,
+          long maxAgeMillis, Set<String> seenSerials) {
+        if (failingPolls.getAndDecrement() > 0) {
+          throw new IllegalStateException("Failed to deserialize the device list");
+        }
+        boolean served = false;
+        synchronized (freeSerials) {
+          seenSerials.addAll(freeSerials);
+          for (DeviceWaitQueue.Waiter waiter: group) {
+            if (freeSerials.isEmpty()) {
+              break;
+            }
+            if (!waiter.isDone()) {
+              DeviceListResponseDevices device = new DeviceListResponseDevices();
+              device.serial = freeSerials.peek();
+              if (waiter.complete(device)) {
+                freeSerials.remove();
+                served = true;
+              }
+            }
+          }
+        }
+        return served;
+      }
+    };
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    assertNull(queue.await(new DeviceWaitQueue.Waiter(stfApiClient, DeviceFilter.ANY), 500));
+    assertEquals(0, queue.getQueueLength());
+  }
+
+  @Test
+  public void testWaitersAreServedInOrder() throws Exception {
+    Future<DeviceListResponseDevices> first = submitWaiter();
+    Thread.sleep(200);
+    Future<DeviceListResponseDevices> second = submitWaiter();
+    Thread.sleep(200);
+    assertEquals(2, queue.getQueueLength());
+
+    synchronized (freeSerials) {
+      freeSerials.add("SERIAL1");
+    }
+    queue.notifyDeviceReleased();
+    assertEquals("SERIAL1", first.get(5, TimeUnit.SECONDS).serial);
+    assertFalse(second.isDone());
+
+    synchronized (freeSerials) {
+      freeSerials.add("SERIAL2");
+    }
+    queue.notifyDeviceReleased();
+    assertEquals("SERIAL2", second.get(5, TimeUnit.SECONDS).serial);
+    assertEquals(0, queue.getQueueLength());
+  }
+
+  @Test
+  public void testPollingGoesOnAfterFailure() throws Exception {
+    failingPolls.set(1);
+    Future<DeviceListResponseDevices> waiter = submitWaiter();
+    Thread.sleep(500);
+
+    // Served by a later poll, without being woken up.
+    synchronized (freeSerials) {
+      freeSerials.add("SERIAL1");
+    }
+    assertEquals("SERIAL1", waiter.get(
+        2 * DeviceWaitQueue.MIN_POLL_INTERVAL_MS + 5000, TimeUnit.MILLISECONDS).serial);
+  }
+
+  @Test
+  public void testServedWaiterKeepsDeviceWhenInterrupted() throws Exception {
+    final DeviceWaitQueue.Waiter waiter =
+        new DeviceWaitQueue.Waiter(stfApiClient, DeviceFilter.ANY);
+    final DeviceListResponseDevices[] result = new DeviceListResponseDevices[1];
+    final boolean[] interrupted = new boolean[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          result[0] = waiter.await(60 * 1000);
+          interrupted[0] = Thread.currentThread().isInterrupted();
+        } catch (InterruptedException ex) {
+          interrupted[0] = true;
+        }
+      }
+    };
+    thread.start();
+    Thread.sleep(200);
+
+    // Served and aborted at once: the device must not get lost.
+    DeviceListResponseDevices device = new DeviceListResponseDevices();
+    device.serial = "SERIAL1";
+    synchronized (waiter) {
+      assertTrue(waiter.complete(device));
+      thread.interrupt();
+    }
+    thread.join(5000);
+    assertSame(device, result[0]);
+    assertTrue(interrupted[0]);
+  }
+
+  private Future<DeviceListResponseDevices> submitWaiter() {
+    return executor.submit(new Callable<DeviceListResponseDevices>() {
+      @Override
+      public DeviceListResponseDevices call() throws Exception {
+        return queue.await(new DeviceWaitQueue.Waiter(stfApiClient, DeviceFilter.ANY),
+            60 * 1000);
+      }
+    });
+  }
+}
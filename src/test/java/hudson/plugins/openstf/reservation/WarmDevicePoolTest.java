@@ -0,0 +1,129 @@
+package hudson.plugins.openstf.reservation;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import hudson.plugins.openstf.inventory.DeviceFilter;
+import io.swagger.client.ApiClient;
+import io.swagger.client.model.DeviceListResponseDevices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class WarmDevicePoolTest {
+
+  private ApiClient stfApiClient;
+  private Set<String> disconnectedSerials;
+  private List<String> releasedSerials;
+  private WarmDevicePool pool;
+
+  @Before
+  public void init() {
+    stfApiClient = new ApiClient();
+    stfApiClient.setBasePath("http://localhost:8888/");
+    disconnectedSerials = new HashSet<String>();
+    releasedSerials = new ArrayList<String>();
+    pool = new WarmDevicePool() {
+      @Override
+      Set<String> getStillConnectedSerials(ApiClient stfApiClient, List<Entry> candidates) {
+        Set<String> connectedSerials = new HashSet<String>();
+        for (Entry entry: candidates) {
+          if (!disconnectedSerials.contains(getSerial(entry))) {
+            connectedSerials.add(getSerial(entry));
+          }
+        }
+        return connectedSerials;
+      }
+
+      @Override
+      void release(Entry entry) {
+        synchronized (releasedSerials) {
+          releasedSerials.add(getSerial(entry));
+        }
+      }
+    };
+  }
+
+  @Test
+  public void testCompatibleBuildTakesParkedDevice() {
+    park("SERIAL1", "Nexus 5X", "agent1", 1000);
+
+    assertTrue(take("model", "Pixel 2", "agent1", 1, 1).isEmpty());
+    assertTrue(take("model", "Nexus 5X", "agent2", 1, 1).isEmpty());
+    List<DeviceListResponseDevices> devices = take("model", "Nexus 5X", "agent1", 1, 1);
+    assertEquals(1, devices.size());
+    assertEquals("SERIAL1", devices.get(0).serial);
+    assertFalse(pool.contains("SERIAL1"));
+    assertEquals(1, pool.getReuseCount());
+  }
+
+  @Test
+  public void testDevicesAreTakenOnlyIfEnough() {
+    park("SERIAL1", "Nexus 5X", "agent1", 1000);
+
+    assertTrue(take("model", "Nexus 5X", "agent1", 2, 2).isEmpty());
+    assertTrue(pool.contains("SERIAL1"));
+
+    park("SERIAL2", "Nexus 5X", "agent1", 1000);
+    assertEquals(2, take("model", "Nexus 5X", "agent1", 2, 3).size());
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testDisconnectedDeviceIsEvicted() throws InterruptedException {
+    park("SERIAL1", "Nexus 5X", "agent1", 1000);
+    disconnectedSerials.add("SERIAL1");
+
+    assertTrue(take("model", "Nexus 5X", "agent1", 1, 1).isEmpty());
+    assertFalse(pool.contains("SERIAL1"));
+    assertEquals(1, pool.getEvictionCount());
+  }
+
+  @Test
+  public void testPoolSizeIsBounded() {
+    assertTrue(pool.park(entry("SERIAL1", "Nexus 5X", "agent1", 1000), 2));
+    assertTrue(pool.park(entry("SERIAL2", "Nexus 5X", "agent1", 1000), 2));
+    assertFalse(pool.park(entry("SERIAL3", "Nexus 5X", "agent1", 1000), 2));
+    assertEquals(2, pool.size());
+  }
+
+  @Test
+  public void testIdleDevicesAreEvicted() {
+    park("SERIAL1", "Nexus 5X", "agent1", 1000);
+    park("SERIAL2", "Nexus 5X", "agent1", 2000);
+
+    assertEquals(0, pool.evictExpired(999));
+    assertEquals(1, pool.evictExpired(1000));
+    assertFalse(pool.contains("SERIAL1"));
+    assertTrue(pool.contains("SERIAL2"));
+  }
+
+  private void park(String serial, String model, String nodeName, long deadline) {
+    assertTrue(pool.park(entry(serial, model, nodeName, deadline), Integer.MAX_VALUE));
+  }
+
+  private WarmDevicePool.Entry entry(String serial, String model, String nodeName,
+      long deadline) {
+    DeviceListResponseDevices device = new DeviceListResponseDevices();
+    device.serial = serial;
+    device.model = model;
+    device.remoteConnectUrl = "localhost:" + (7400 + pool.size());
+    return new WarmDevicePool.Entry(stfApiClient, nodeName, 5137, device, deadline);
+  }
+
+  private List<DeviceListResponseDevices> take(String name, String value, String nodeName,
+      int minCount, int maxCount) {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put(name, value);
+    return pool.take(stfApiClient, nodeName, 5137, DeviceFilter.compile(filter), minCount,
+        maxCount, "job#1");
+  }
+
+  private static String getSerial(WarmDevicePool.Entry entry) {
+    return entry.getDevice().serial;
+  }
+}
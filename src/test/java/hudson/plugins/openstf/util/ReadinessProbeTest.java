@@ -0,0 +1,68 @@
+package hudson.plugins.openstf.util;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReadinessProbeTest {
+
+  @Test
+  public void testReadyRightAway() throws Exception {
+    CountingProbe probe = new CountingProbe(1);
+    long millis = probe.await(10 * 1000);
+    assertTrue(millis >= 0 && millis < ReadinessProbe.INITIAL_INTERVAL_MS);
+    assertEquals(1, probe.checks.size());
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    CountingProbe probe = new CountingProbe(4);
+    long millis = probe.await(10 * 1000);
+    assertEquals(4, probe.checks.size());
+    // Slept 100, 200 and 400 ms between the checks.
+    assertTrue(millis >= 7 * ReadinessProbe.INITIAL_INTERVAL_MS);
+    for (int i = 2; i < probe.checks.size(); i++) {
+      long previous = probe.checks.get(i - 1) - probe.checks.get(i - 2);
+      long interval = probe.checks.get(i) - probe.checks.get(i - 1);
+      assertTrue(interval > previous);
+    }
+  }
+
+  @Test
+  public void testIntervalIsBounded() throws Exception {
+    CountingProbe probe = new CountingProbe(Integer.MAX_VALUE);
+    assertEquals(-1, probe.await(6 * 1000));
+    // Slept 100, 200, 400, 800, 1600 and then at most 2000 ms between the checks.
+    for (int i = 1; i < probe.checks.size(); i++) {
+      long interval = probe.checks.get(i) - probe.checks.get(i - 1);
+      assertTrue(interval < ReadinessProbe.MAX_INTERVAL_MS + 500);
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    CountingProbe probe = new CountingProbe(Integer.MAX_VALUE);
+    long start = System.currentTimeMillis();
+    assertEquals(-1, probe.await(1000));
+    long elapsed = System.currentTimeMillis() - start;
+    assertTrue(elapsed >= 1000 && elapsed < 1000 + 500);
+  }
+
+  /** Gets ready on the given check, and records when it was checked. */
+  private static class CountingProbe extends ReadinessProbe {
+    private final int readyOnCheck;
+    private final List<Long> checks = new ArrayList<Long>();
+
+    CountingProbe(int readyOnCheck) {
+      this.readyOnCheck = readyOnCheck;
+    }
+
+    @Override
+    protected boolean isReady() {
+      checks.add(System.currentTimeMillis());
+      return checks.size() >= readyOnCheck;
+    }
+  }
+}
@@ -12,7 +12,9 @@ import hudson.util.ComboBoxModel;
 
 
 import hudson.EnvVars;
+import hudson.plugins.openstf.exception.ApiFailedException;
 
+import io.swagger.client.ApiClient;
 import io.swagger.client.model.DeviceListResponseDevices;
 
 import java.io.File;
@@ -83,45 +85,58 @@ public class UtilsTest {
 
   @Test
   public void testGetSTFDeviceAttributeValueComboBoxItemsForModel() throws Exception {
-    setupSTFApiClient();
+    ApiClient stfApiClient = setupSTFApiClient();
 
-    ComboBoxModel items = Utils.getSTFDeviceAttributeValueComboBoxItems("model");
+    ComboBoxModel items = Utils.getSTFDeviceAttributeValueComboBoxItems(stfApiClient, "model");
     assertEquals(4, items.size());
     assertThat(items, hasItems("any", "HTL22", "SH-04F", "402SH"));
   }
 
   @Test
   public void testGetSTFDeviceAttributeValueComboBoxItemsForVersion() throws Exception {
-    setupSTFApiClient();
+    ApiClient stfApiClient = setupSTFApiClient();
 
-    ComboBoxModel items = Utils.getSTFDeviceAttributeValueComboBoxItems("version");
+    ComboBoxModel items = Utils.getSTFDeviceAttributeValueComboBoxItems(stfApiClient, "version");
     assertEquals(4, items.size());
     assertThat(items, hasItems("any", "4.1.2", "4.4.2", "4.4.4"));
   }
 
   @Test
   public void testGetDeviceListWithNoFilter() throws Exception {
-    setupSTFApiClient();
+    ApiClient stfApiClient = setupSTFApiClient();
 
-    List<DeviceListResponseDevices> deviceList = Utils.getDeviceList();
+    List<DeviceListResponseDevices> deviceList = Utils.getDeviceList(stfApiClient);
     assertEquals(5, deviceList.size());
   }
 
   @Test
   public void testGetDeviceListWithFilter() throws Exception {
-    setupSTFApiClient();
+    ApiClient stfApiClient = setupSTFApiClient();
 
     Map<String, String> filter = new HashMap<String, String>();
     filter.put("owner", "null");
     filter.put("present", "true");
 
-    List<DeviceListResponseDevices> deviceList = Utils.getDeviceList(filter);
+    List<DeviceListResponseDevices> deviceList = Utils.getDeviceList(stfApiClient, filter);
     assertEquals(1, deviceList.size());
   }
 
-  private void setupSTFApiClient() {
+  @Test
+  public void testVerifySTFToken() throws Exception {
+    assertTrue(Utils.verifySTFToken(setupSTFApiClient()));
+    assertFalse(Utils.verifySTFToken(
+        Utils.getSTFApiClient("http://127.0.0.1:8888/api/v1", false, "otherToken")));
+    verify(2, getRequestedFor(urlEqualTo("/api/v1/user")));
+  }
+
+  @Test(expected = ApiFailedException.class)
+  public void testVerifySTFTokenWhenUnreachable() throws Exception {
+    Utils.verifySTFToken(Utils.getSTFApiClient("http://127.0.0.1:1/api/v1", false, DUMMY_TOKEN));
+  }
+
+  private ApiClient setupSTFApiClient() {
     String dummySTFApiEndpoint = "http://127.0.0.1:8888/api/v1";
     String dummySTFToken = DUMMY_TOKEN;
-    Utils.setupSTFApiClient(dummySTFApiEndpoint, false, dummySTFToken);
+    return Utils.getSTFApiClient(dummySTFApiEndpoint, false, dummySTFToken);
   }
 }
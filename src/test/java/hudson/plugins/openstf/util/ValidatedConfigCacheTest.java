@@ -0,0 +1,39 @@
+package hudson.plugins.openstf.util;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ValidatedConfigCacheTest {
+
+  private static final STFApiClientPool.Key KEY =
+      new STFApiClientPool.Key("http://localhost:8888/", false, "dummyToken");
+
+  @Before
+  public void init() {
+    ValidatedConfigCache.clear();
+  }
+
+  @Test
+  public void testValidUntilTtlExpires() {
+    assertFalse(ValidatedConfigCache.isValid(KEY, 1000));
+    ValidatedConfigCache.markValid(KEY, 1000);
+    assertTrue(ValidatedConfigCache.isValid(KEY, 1000 + ValidatedConfigCache.TTL_MS - 1));
+    assertFalse(ValidatedConfigCache.isValid(KEY, 1000 + ValidatedConfigCache.TTL_MS));
+  }
+
+  @Test
+  public void testSettingsAreValidatedSeparately() {
+    ValidatedConfigCache.markValid(KEY, 1000);
+    assertFalse(ValidatedConfigCache.isValid(
+        new STFApiClientPool.Key("http://localhost:8888/", true, "dummyToken"), 1000));
+    assertFalse(ValidatedConfigCache.isValid(
+        new STFApiClientPool.Key("http://localhost:8888/", false, "otherToken"), 1000));
+  }
+
+  @Test
+  public void testClear() {
+    ValidatedConfigCache.markValid(KEY, 1000);
+    ValidatedConfigCache.clear();
+    assertFalse(ValidatedConfigCache.isValid(KEY, 1000));
+  }
+}